@@ -6,6 +6,7 @@ import net.kyori.adventure.text.format.TextDecoration;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.NamespacedKey;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
@@ -15,9 +16,15 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
+import org.bukkit.event.inventory.InventoryAction;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerItemHeldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemFlag;
 import org.bukkit.inventory.ItemStack;
@@ -25,10 +32,69 @@ import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.persistence.PersistentDataContainer;
 import org.bukkit.persistence.PersistentDataType;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.MVStoreException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
 
 /**
  * Backpacks Plugin - Portable Storage Containers for Minecraft
@@ -44,13 +110,15 @@ import java.util.stream.Collectors;
  * </ul>
  * 
  * <h2>Storage Architecture</h2>
- * <p>All backpack contents are persisted to individual YAML files in the 
- * plugins/Backpacks/playerdata/ directory. Each backpack (personal or item-based)
+ * <p>All backpack contents are persisted to individual files in the 
+ * plugins/Backpacks/playerdata/ directory - compact binary records ({@link BackpackCodec})
+ * by default, or the original YAML format. Each backpack (personal or item-based)
  * has a unique UUID that maps to its storage file. This design ensures:
  * <ul>
  *   <li>Data isolation - corruption in one file doesn't affect others</li>
  *   <li>Easy backup/restore of individual backpacks</li>
- *   <li>Immediate persistence on inventory close (no data loss on crash)</li>
+ *   <li>Persistence on inventory close, written by background threads so disk I/O
+ *       never runs inside a server tick (see {@link WriteBehindQueue})</li>
  * </ul>
  * 
  * <h2>Item-Based Backpack Mechanics</h2>
@@ -82,6 +150,7 @@ import java.util.stream.Collectors;
  * <ul>
  *   <li>backpack-item: Material name for backpack items (default: BARREL)</li>
  *   <li>allow-nested-backpacks: Whether backpacks can be placed inside backpacks (default: false)</li>
+ *   <li>storage.lazy-loading: Load backpack contents on first open instead of at startup (default: true)</li>
  * </ul>
  * 
  * @author SupaFloof Games, LLC
@@ -142,7 +211,7 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      * <ul>
      *   <li>Generated once when the backpack is created via {@link #createBackpack()}</li>
      *   <li>Never changed, even when the backpack is upgraded</li>
-     *   <li>Used as the filename: plugins/Backpacks/playerdata/{UUID}.yml</li>
+     *   <li>Used as the filename: plugins/Backpacks/playerdata/{UUID}.bin (or .yml)</li>
      *   <li>Used as the key in the {@link #backpackStorage} map</li>
      * </ul>
      * 
@@ -189,16 +258,26 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      * 
      * <p>Lifecycle:
      * <ul>
-     *   <li>Populated during {@link #loadBackpackStorage()} at server startup</li>
+     *   <li>Populated during {@link #loadBackpackStorage()} at server startup (eager mode),
+     *       or per backpack on first open via {@link #getBackpackContents(String)} (lazy mode)</li>
      *   <li>Updated when backpacks are closed via {@link #saveBackpackContents(Player)}</li>
-     *   <li>New entries created when backpacks are first created or opened</li>
+     *   <li>New entries created on a backpack's first non-empty save</li>
      *   <li>Persisted to YAML files in plugins/Backpacks/playerdata/ directory</li>
+     *   <li>Evicted by {@link #evictCachedBackpacks()} once "storage.cache.max-memory-mb"
+     *       is exceeded, and read again on the next {@link #getBackpackContents(String)}</li>
      * </ul>
      * 
      * <p>Empty slots are NOT stored - only slots containing items appear in the inner map.
      * This keeps memory usage and YAML file sizes minimal.</p>
+     * 
+     * <p>{@link BackpackCache#get} counts as a request for the backpack (it decides what
+     * stays in memory); checks that aren't a player or command using the backpack use
+     * {@link BackpackCache#peek}.</p>
      */
-    private Map<String, Map<Integer, ItemStack>> backpackStorage = new HashMap<>();
+    private BackpackCache backpackStorage;
+    
+    /** Main-thread task keeping {@link #backpackStorage} within its memory budget, every tick */
+    private BukkitTask cacheTask;
     
     /**
      * Tracks which backpack inventory GUIs are currently open, keyed by player UUID.
@@ -247,6 +326,309 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      */
     private Map<UUID, String> openBackpackUUIDs = new HashMap<>();
     
+    /**
+     * Slots of each player's open backpack that changed since it was opened.
+     * 
+     * <p>Most backpack opens are only a look inside. Only sessions with an entry here are
+     * saved by {@link #saveBackpackContents(Player)}; closing an unchanged backpack
+     * clones nothing, leaves {@link #backpackStorage} alone and writes nothing. A save
+     * clones only the marked slots, and the storage backend may write only those
+     * (see {@link BackpackSnapshot#changedSlots()}).</p>
+     * 
+     * <p>Slots are marked by:
+     * <ul>
+     *   <li>{@link #onBackpackClick(InventoryClickEvent)} - the clicked slot for clicks in the
+     *       backpack; every slot for shift-clicks into it and double-click collects, which
+     *       can touch any slot</li>
+     *   <li>{@link #onBackpackDrag(InventoryDragEvent)} - each backpack slot the drag covers</li>
+     *   <li>{@link #onInventoryClick(InventoryClickEvent)} - the slot of a backpack upgraded
+     *       with a doubler inside the open backpack</li>
+     * </ul>
+     * Hoppers and other blocks can't reach backpack inventories (they have no holder),
+     * so player interaction is the only way contents change. Anything new that modifies
+     * an open backpack must mark the slots it touches.</p>
+     * 
+     * <p>Cleared when a backpack is opened and when its session is saved.</p>
+     */
+    private Map<UUID, BitSet> dirtySlots = new HashMap<>();
+    
+    /**
+     * Number of backpack sessions saved because their contents changed. Main thread only.
+     */
+    private long savesPerformed;
+    
+    /**
+     * Number of backpack sessions closed without a save because nothing changed.
+     * Main thread only; shown by /backpack stats.
+     */
+    private long savesSkipped;
+    
+    /**
+     * Index of every backpack stored in the {@link #backpackStore}, with per-backpack
+     * metadata (capacity, item count, stored size, last save, last open).
+     * 
+     * <p>Read from plugins/Backpacks/manifest.dat at startup with one sequential read, so
+     * startup never lists or opens backpack data. In lazy mode (see {@link #lazyLoading})
+     * it is the only thing learned about stored backpacks at startup; contents are read
+     * on demand by {@link #getBackpackContents(String)}.</p>
+     * 
+     * <p>Existence checks for unknown IDs are a hash lookup: a backpack that was never
+     * saved (for example a freshly created item that is still empty) is answered
+     * without touching the disk.</p>
+     * 
+     * <p>Lifecycle:
+     * <ul>
+     *   <li>Opened (or rebuilt) by {@link #openBackpackStore()}</li>
+     *   <li>Updated by {@link #saveBackpackContents(Player)} on every save, by the writer
+     *       threads when a write completes, and when a backpack is opened</li>
+     *   <li>Written back every "storage.manifest-save-interval-seconds" by
+     *       {@link #manifestSaveTask}, and marked cleanly closed in {@link #onDisable()}</li>
+     * </ul>
+     */
+    private StorageManifest manifest;
+    
+    /**
+     * Async task that periodically writes the {@link #manifest} back to disk.
+     */
+    private BukkitTask manifestSaveTask;
+    
+    /**
+     * Main-thread task that rewrites backpacks stored by an older Minecraft version, a few
+     * per tick (see {@link #upgradeOutdatedBackpacks(long)}). Null when nothing is outdated or
+     * "storage.upgrade.tick-budget-ms" is 0.
+     */
+    private BukkitTask upgradeTask;
+    
+    /** Backpacks the {@link #upgradeTask} has yet to look at */
+    private Iterator<String> upgradeBacklog;
+    
+    /** Backpacks rewritten at the current DataVersion since startup, by either upgrade path */
+    private long backpacksUpgraded = 0;
+    
+    /**
+     * Backpacks locked because their stored record is damaged, in plugins/Backpacks/quarantine/.
+     * 
+     * <p>Filled by {@link #quarantineBackpack} when a load or the {@link #scrubber} finds a
+     * damaged record. Quarantined backpacks can't be opened and are never cached in
+     * {@link #backpackStorage}; /backpack quarantine clear unlocks them.</p>
+     */
+    private Quarantine quarantine;
+    
+    /**
+     * Background thread verifying stored records, null when "storage.scrub.enabled" is off.
+     * Started by {@link #startIntegrityScrubber()} and stopped in {@link #onDisable()}
+     * before the storage backend closes.
+     */
+    private IntegrityScrubber scrubber;
+    
+    /**
+     * Write-ahead log of backpack changes in plugins/Backpacks/wal/, null when
+     * "storage.wal.enabled" is off.
+     * 
+     * <p>Every save is logged before it is queued, and the slots players change in open
+     * backpacks are logged every "storage.wal.flush-interval-ticks" by the {@link #walTask}.
+     * After a crash, {@link #replayWriteAheadLog} writes the logged changes to storage
+     * before anything is loaded.</p>
+     */
+    private WriteAheadLog writeAheadLog;
+    
+    /**
+     * Slots of open backpacks changed since they were last logged to the
+     * {@link #writeAheadLog}. Marked alongside {@link #dirtySlots}. Main thread only.
+     */
+    private Map<UUID, BitSet> walPendingSlots = new HashMap<>();
+    
+    /** Main-thread task logging {@link #walPendingSlots} and starting checkpoints */
+    private BukkitTask walTask;
+    
+    /** When the next write-ahead log checkpoint is due, in epoch milliseconds (main thread) */
+    private long nextWalCheckpoint;
+    
+    /** Set while a checkpoint waits for the write queue, so checkpoints never overlap */
+    private final AtomicBoolean walCheckpointRunning = new AtomicBoolean();
+    
+    /** Write-ahead log checkpoints completed since startup */
+    private volatile long walCheckpoints;
+    
+    /** Logged changes replayed into storage at startup */
+    private long walReplayed;
+    
+    /**
+     * Earlier versions of every backpack in plugins/Backpacks/history/, null when
+     * "storage.history.enabled" is off. Each save records the version it replaces, for
+     * /backpack history and /backpack rollback.
+     */
+    private VersionHistory history;
+    
+    /**
+     * The /backpack backup being written, or null. Set on the main thread, read by the
+     * write-behind workers in {@link #writeBackpacks} to protect backpacks it hasn't read.
+     */
+    private volatile BackupJob activeBackup;
+    
+    /**
+     * Backpacks moved out of the {@link #backpackStore} because nobody opened them for
+     * "storage.archive.after-days", in plugins/Backpacks/archive/. Always open, so archived
+     * backpacks stay reachable when archiving is turned off.
+     * 
+     * <p>Archived backpacks are in neither the {@link #manifest} nor {@link #backpackStorage}.
+     * Opening one loads it off the main thread first ({@link #loadArchivedBackpack}); every
+     * other read gets it through {@link #getBackpackContents(String)}. Either way it is
+     * written back to the backend ({@link #unarchiveBackpack}).</p>
+     */
+    private ColdStorage coldStorage;
+    
+    /** Main-thread task starting an archival pass every "storage.archive.interval-hours" */
+    private BukkitTask archiveTask;
+    
+    /** The archival pass being written, or null. Main thread. */
+    private ArchivalJob activeArchival;
+    
+    /** Archived backpacks being loaded for a player, so each is loaded once. Main thread. */
+    private final Set<String> archiveLoads = new HashSet<>();
+    
+    /** Backpacks moved into the archive since startup */
+    private long backpacksArchived;
+    
+    /** Archived backpacks brought back since startup */
+    private long backpacksUnarchived;
+    
+    /**
+     * Whether personal backpacks are read while their owner logs in
+     * ("storage.cache.preload-personal"). Read by the login threads.
+     */
+    private volatile boolean preloadPersonalBackpacks;
+    
+    /** How long a personal backpack stays in memory after its owner leaves, in ticks */
+    private long personalGraceTicks;
+    
+    /** Personal backpacks loaded during their owner's login since startup. Main thread. */
+    private long personalPreloads;
+    
+    /** Personal backpacks dropped from memory after their owner left, since startup. Main thread. */
+    private long personalReleases;
+    
+    /**
+     * Backpacks being read by {@link #prefetchBackpack}, each with the opens waiting for
+     * the read to finish. Main thread.
+     */
+    private final Map<String, List<Runnable>> prefetching = new HashMap<>();
+    
+    /** Whether backpack items are prefetched on join and hotbar selection ("storage.cache.prefetch-items") */
+    private boolean prefetchItemBackpacks;
+    
+    /** Backpacks read ahead of their open by {@link #prefetchBackpack} since startup. Main thread. */
+    private long backpacksPrefetched;
+    
+    /**
+     * When each backpack is usually opened, in plugins/Backpacks/access.dat - recorded on
+     * every open and used by {@link #warmUpBackpacks} at startup.
+     */
+    private AccessStatistics accessStatistics;
+    
+    /** Backpacks loaded by the startup warmup. Main thread. */
+    private long backpacksWarmed;
+    
+    /** The heap pool watched for pressure (the old generation), or null if not watched */
+    private MemoryPoolMXBean heapPressurePool;
+    
+    /** Receives the pool's threshold notifications on a JMX thread */
+    private NotificationListener heapPressureListener;
+    
+    /** Main-thread task checking whether heap pressure is over, or null while there is none */
+    private BukkitTask heapPressureTask;
+    
+    /** When {@link #relieveHeapPressure} last acted. Main thread. */
+    private long lastHeapRelief;
+    
+    /** Heap pressure reliefs since startup. Main thread. */
+    private long heapPressureEvents;
+    
+    /** Backpacks evicted by heap pressure reliefs since startup. Main thread. */
+    private long heapPressureEvictions;
+    
+    /**
+     * Whether backpack contents are loaded on demand instead of all at startup.
+     * 
+     * <p>Configuration: "storage.lazy-loading" in config.yml (default: true)</p>
+     * 
+     * <p>When true, {@link #loadBackpackStorage()} only indexes which backpack IDs exist,
+     * and each backpack's file is deserialized the first time it is opened. When false,
+     * every file is deserialized into {@link #backpackStorage} during startup (the
+     * original behavior). Read once per enable - changing it requires a restart.</p>
+     */
+    private boolean lazyLoading = true;
+    
+    /**
+     * Whether saves are written in the binary record format instead of YAML.
+     * 
+     * <p>Configuration: "storage.format" in config.yml - "binary" (default) or "yaml"</p>
+     * 
+     * <p>Both formats are always readable, so existing YAML files keep working and are
+     * converted one by one as their backpacks are saved. Switching back to "yaml"
+     * converts saved backpacks back the same way. Read once per enable.</p>
+     */
+    private boolean binaryFormat = true;
+    
+    /**
+     * Background writer that persists backpack snapshots off the main thread.
+     * 
+     * <p>{@link #saveBackpackContents(Player)} hands each save to this queue instead of
+     * writing the file inside the tick. Created in {@link #onEnable()} and drained
+     * completely in {@link #onDisable()}.</p>
+     * 
+     * <p>Configuration:
+     * <ul>
+     *   <li>"storage.write-threads" - number of writer threads (default: 2)</li>
+     *   <li>"storage.max-pending-writes" - backpacks that may wait for a write before
+     *       saves block the caller (default: 1024)</li>
+     * </ul>
+     */
+    private WriteBehindQueue writeQueue;
+    
+    /**
+     * Storage backend that backpack snapshots are read from and written to.
+     * 
+     * <p>Configuration: "storage.backend" in config.yml - "files" (default, one file per
+     * backpack in playerdata/), "packfile" (append-only segment files in packs/),
+     * "mvstore" (one embedded database file, backpacks.mv.db) or "sqlite" (backpacks.db,
+     * a {@link SQLiteBackpackStore} - the admin queries of /backpack find use it directly).
+     * Opened by {@link #openBackpackStore()} in {@link #onEnable()} and closed in
+     * {@link #onDisable()} after the {@link #writeQueue} has drained.</p>
+     */
+    private BackpackStore backpackStore;
+    
+    /**
+     * Preset dictionaries for compressed backpack records, in plugins/Backpacks/dictionaries/.
+     * 
+     * <p>Always loaded (records written while compression was on stay readable after it
+     * is turned off). With "storage.compression.enabled", a first dictionary is trained
+     * in the background once enough backpacks are stored; /backpack dictionary train
+     * trains a newer one. Installed into {@link BackpackCodec} by {@link #openBackpackStore()}.</p>
+     */
+    private CompressionDictionaries dictionaries;
+    
+    /** Set while a dictionary is being trained, so only one training runs at a time */
+    private final AtomicBoolean trainingDictionary = new AtomicBoolean();
+    
+    /**
+     * Shared store of serialized items for deduplicated records, in plugins/Backpacks/items/.
+     * 
+     * <p>Opened by {@link #openBackpackStore()} when "storage.deduplication.enabled" is on or
+     * the store already exists (so deduplicated records stay readable after it is turned
+     * off), null otherwise. Told about every confirmed write and delete by
+     * {@link #writeBackpacks(Map)}, and closed last in {@link #onDisable()}.</p>
+     */
+    private ItemBlobStore itemBlobs;
+    
+    /**
+     * Batches disk syncs when "storage.durability" is "group" (the default), null otherwise.
+     * 
+     * <p>Started by {@link #openBackpackStore()} and closed in {@link #onDisable()} after the
+     * storage backend, so the saves of the final window are committed too.</p>
+     */
+    private GroupCommitter groupCommitter;
+    
     /**
      * Prefix used to identify personal backpack storage entries.
      * 
@@ -256,6 +638,39 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      */
     private static final String PERSONAL_BACKPACK_PREFIX = "personal-";
     
+    /**
+     * Names accepted for "storage.backend", each implemented by a {@link BackpackStore}
+     * created in {@link #createBackpackStore(String, Durability)}. The first is the default.
+     */
+    private static final List<String> STORAGE_BACKENDS = List.of("files", "packfile", "mvstore", "sqlite");
+    
+    /** Backpacks handed to {@link BackpackStore#saveAll} at once during an import */
+    private static final int IMPORT_BATCH_SIZE = 256;
+    
+    /** Most backpacks listed by /backpack find and /backpack unused */
+    private static final int QUERY_RESULT_LIMIT = 10;
+    
+    /** Stored backpacks needed before a compression dictionary is trained automatically */
+    private static final int MIN_DICTIONARY_SAMPLES = 50;
+    
+    /** Minutes after startup before the first integrity scrub pass (if the pass interval is longer) */
+    private static final int SCRUB_FIRST_PASS_DELAY_MINUTES = 10;
+    
+    /** Minutes after startup before the first archival pass (if the pass interval is longer) */
+    private static final int ARCHIVE_FIRST_PASS_DELAY_MINUTES = 15;
+    
+    /** Fewest opens in the coming hour of the day for a backpack to be warmed up at startup */
+    private static final int WARMUP_MIN_OPENS = 2;
+    
+    /** Backpacks read per {@link BackpackStore#loadAll} call during the startup warmup */
+    private static final int WARMUP_BATCH = 64;
+    
+    /** Least time between two heap pressure reliefs, and between checks whether it is over */
+    private static final int HEAP_RELIEF_INTERVAL_SECONDS = 10;
+    
+    /** Size of the active write-ahead log segment that starts a checkpoint before it is due */
+    private static final long WAL_CHECKPOINT_BYTES = 16L * 1024 * 1024;
+    
     /**
      * The fixed capacity of personal backpacks in inventory slots.
      * 
@@ -275,7 +690,11 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      *   <li>Display author credit (magenta text, SupaFloof standard)</li>
      *   <li>Initialize all four NamespacedKey objects for NBT data storage</li>
      *   <li>Save default config.yml if the file doesn't exist</li>
-     *   <li>Load all backpack contents from YAML files into memory</li>
+     *   <li>Start the background write queue</li>
+     *   <li>Index stored backpacks (and, in eager mode, load their contents into memory)</li>
+     *   <li>Start the background DataVersion upgrade if any stored backpack is outdated</li>
+     *   <li>Start the background integrity scrubber</li>
+     *   <li>Schedule archival of inactive backpacks</li>
      *   <li>Register this class as an event listener for inventory and interaction events</li>
      *   <li>Register command executor for /backpack command</li>
      *   <li>Register command executor for /bp command (if defined in plugin.yml)</li>
@@ -310,12 +729,72 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
         // This ensures admins have a config file to customize even on fresh installations
         saveDefaultConfig();
         
-        // Load all existing backpack data from YAML files in playerdata/ directory
-        // This populates the backpackStorage map with all previously saved contents
+        // Start the background writer before anything can be saved
+        // Thread count and queue bound are read once per enable
+        writeQueue = new WriteBehindQueue(
+            Math.max(1, getConfig().getInt("storage.write-threads", 2)),
+            Math.max(1, getConfig().getInt("storage.max-pending-writes", 1024)),
+            getLogger(),
+            this::writeBackpacks);
+        
+        // In-memory contents, bounded by an estimated size (0 = no limit)
+        backpackStorage = new BackpackCache(
+            Math.max(0, getConfig().getLong("storage.cache.max-memory-mb", 64)) * 1024 * 1024);
+        // Personal backpacks follow their owner's session: read at login, dropped after leaving
+        personalGraceTicks = Math.max(0, getConfig().getInt("storage.cache.personal-grace-seconds", 300)) * 20L;
+        
+        // Open the configured storage backend - without storage the plugin can't run
+        if (!openBackpackStore()) {
+            getServer().getPluginManager().disablePlugin(this);
+            return;
+        }
+        
+        // Index existing backpack data in the storage backend
+        // In lazy mode only the IDs are learned; in eager mode backpackStorage is fully populated
         loadBackpackStorage();
+        cacheTask = getServer().getScheduler().runTaskTimer(this, this::evictCachedBackpacks, 1L, 1L);
+        startHeapPressureWatch();
+        preloadPersonalBackpacks = getConfig().getBoolean("storage.cache.preload-personal", true);
+        prefetchItemBackpacks = getConfig().getBoolean("storage.cache.prefetch-items", true);
+        
+        // Learn when backpacks are opened, and load the ones usually opened about now
+        accessStatistics = AccessStatistics.open(new File(getDataFolder(), "access.dat").toPath(), getLogger());
+        warmUpBackpacks();
+        
+        // Keep earlier versions of saved backpacks for /backpack rollback
+        if (getConfig().getBoolean("storage.history.enabled", true)) {
+            try {
+                history = VersionHistory.open(new File(getDataFolder(), "history").toPath(),
+                    Math.max(1, Math.min(1000, getConfig().getInt("storage.history.versions", 10))), getLogger());
+            } catch (IOException e) {
+                getLogger().warning("Failed to open backpack history, saves are not versioned: " + e.getMessage());
+            }
+        }
+        
+        // Write manifest changes back periodically, off the main thread
+        long manifestInterval = Math.max(1, getConfig().getInt("storage.manifest-save-interval-seconds", 60)) * 20L;
+        manifestSaveTask = getServer().getScheduler().runTaskTimerAsynchronously(
+            this, this::syncManifest, manifestInterval, manifestInterval);
+        
+        // Backpacks written by an older Minecraft version are rewritten gradually in the background
+        startDataVersionUpgrade();
+        
+        // Check stored records for damage before players find it
+        startIntegrityScrubber();
+        
+        // Move backpacks nobody uses any more out of the storage backend
+        startArchival();
+        
+        // Log changes to open backpacks as they happen, not only when they close
+        if (writeAheadLog != null) {
+            long flushInterval = Math.max(1, getConfig().getInt("storage.wal.flush-interval-ticks", 20));
+            nextWalCheckpoint = System.currentTimeMillis() + walCheckpointIntervalMillis();
+            walTask = getServer().getScheduler().runTaskTimer(this, this::flushWriteAheadLog, flushInterval, flushInterval);
+        }
         
         // Register this class as an event listener with Bukkit's plugin manager
-        // This enables the @EventHandler methods: onPlayerInteract, onInventoryClick, onInventoryClose
+        // This enables the @EventHandler methods: onPlayerInteract, onInventoryClick, onBackpackClick,
+        // onBackpackDrag, onInventoryClose, onAsyncPreLogin, onPlayerJoin, onItemHeld, onPlayerQuit
         getServer().getPluginManager().registerEvents(this, this);
         
         // Register command handlers for /backpack command (defined in plugin.yml)
@@ -385,6 +864,12 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      *   </li>
      *   <li>Clear activeBackpacks map to release Inventory references</li>
      *   <li>Clear openBackpackUUIDs map to release string references</li>
+     *   <li>Abandon a running backup and archival pass, then stop the integrity scrubber</li>
+     *   <li>Finish recording backpack history</li>
+     *   <li>Drain the write queue - blocks until every pending save is on disk</li>
+     *   <li>Record the archive entries of brought-back backpacks as dead</li>
+     *   <li>Hand the last open times to the backend, close it, the item store and the manifest</li>
+     *   <li>Delete the write-ahead log if every logged save reached the backend</li>
      *   <li>Log successful disable to server logger</li>
      * </ol>
      * 
@@ -415,6 +900,132 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
         // This is good practice even though the plugin is being disabled
         activeBackpacks.clear();
         openBackpackUUIDs.clear();
+        walPendingSlots.clear();
+        
+        // The saves above logged everything open backpacks held
+        if (walTask != null) {
+            walTask.cancel();
+            walTask = null;
+        }
+        
+        // No more periodic manifest syncs - the final one happens below
+        if (manifestSaveTask != null) {
+            manifestSaveTask.cancel();
+            manifestSaveTask = null;
+        }
+        
+        // Whatever the upgrade didn't reach yet continues on the next start
+        if (upgradeTask != null) {
+            upgradeTask.cancel();
+            upgradeTask = null;
+        }
+        
+        // An unfinished backup is abandoned - it reads from the backend too
+        BackupJob backup = activeBackup;
+        if (backup != null) {
+            backup.cancel();
+        }
+        
+        // Nothing is evicted or preloaded from here on - the saves below need the open backpacks' contents
+        preloadPersonalBackpacks = false;
+        if (cacheTask != null) {
+            cacheTask.cancel();
+            cacheTask = null;
+        }
+        stopHeapPressureWatch();
+        
+        // So is an unfinished archival pass; its backpacks simply stay in the backend
+        if (archiveTask != null) {
+            archiveTask.cancel();
+            archiveTask = null;
+        }
+        if (activeArchival != null) {
+            activeArchival.cancel();
+            activeArchival = null;
+        }
+        
+        // The scrubber reads from the backend, so it stops before the backend closes
+        if (scrubber != null) {
+            scrubber.stop();
+            scrubber = null;
+        }
+        
+        // The saves above recorded their versions; let those reach disk too
+        if (history != null) {
+            history.close();
+            history = null;
+        }
+        
+        // Wait for every queued save to reach disk before the plugin goes away
+        // The saves above were only queued, so this is what actually persists them
+        boolean allWritten = false;
+        if (writeQueue != null) {
+            writeQueue.shutdownAndDrain();
+            // The last staged saves only count once committed - a failed commit marks them failed
+            if (groupCommitter != null) {
+                groupCommitter.commitNow();
+            }
+            // A failed write's change is only in the log (re-logged by every checkpoint)
+            allWritten = writeQueue.failedWrites().isEmpty();
+            writeQueue = null;
+        }
+        
+        // Record the archive entries that are dead now, so the next start can drop their segments
+        if (coldStorage != null) {
+            coldStorage.close();
+            coldStorage = null;
+        }
+        
+        // Only now is every save in the backend; let it flush and release its files
+        if (backpackStore != null) {
+            if (manifest != null) {
+                // Backends that index last-open times get the final ones
+                pushOpenTimes();
+            }
+            try {
+                backpackStore.close();
+            } catch (IOException e) {
+                getLogger().warning("Failed to close backpack storage: " + e.getMessage());
+            }
+            backpackStore = null;
+        }
+        
+        // Commit the last group-commit window
+        if (groupCommitter != null) {
+            groupCommitter.close();
+            groupCommitter = null;
+        }
+        
+        // Storage holds everything logged - unless a write failed, which the next start replays
+        if (writeAheadLog != null) {
+            writeAheadLog.close(allWritten);
+            writeAheadLog = null;
+        }
+        
+        // Every record is on disk now, so the item index written here matches them
+        if (itemBlobs != null) {
+            try {
+                itemBlobs.close();
+            } catch (IOException e) {
+                // Harmless - the next start rebuilds the index and recounts
+                getLogger().warning("Failed to save item index: " + e.getMessage());
+            }
+            itemBlobs = null;
+        }
+        
+        // Open counts by hour - nothing depends on them but the next startup's warmup
+        saveAccessStatistics();
+        
+        // Last of all, mark the manifest cleanly closed so the next start can trust it
+        if (manifest != null) {
+            try {
+                manifest.close();
+            } catch (IOException e) {
+                // Harmless - the next start rebuilds the manifest from storage
+                getLogger().warning("Failed to save storage manifest: " + e.getMessage());
+            }
+            manifest = null;
+        }
         
         // Log successful disable using the plugin's logger
         getLogger().info("Backpacks plugin disabled!");
@@ -445,8 +1056,10 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      * </ul>
      * 
      * <p>Storage initialization:</p>
-     * <p>An empty HashMap is created in {@link #backpackStorage} for this UUID.
-     * This entry will be populated when items are added to the backpack.</p>
+     * <p>Nothing is written - no {@link #backpackStorage} entry and no file. A new backpack
+     * is empty, so its storage is created by {@link #saveBackpackContents(Player)} the first
+     * time it is closed with items inside. Backpacks that are given out and never filled
+     * cost no memory and no disk space.</p>
      * 
      * <p>The generated UUID is critical - it permanently links this physical item
      * to its storage. The UUID never changes, even when the backpack is upgraded.</p>
@@ -514,10 +1127,8 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
         // Without this call, none of the above changes would take effect
         backpack.setItemMeta(meta);
         
-        // Initialize empty storage entry for this new backpack
-        // The empty HashMap will be populated when items are added to the backpack
-        // This prevents null checks elsewhere and ensures save operations work immediately
-        backpackStorage.put(backpackUUID, new HashMap<>());
+        // No storage entry is created here - an empty backpack has nothing to store.
+        // The first non-empty save creates both the in-memory entry and the file.
         
         return backpack;
     }
@@ -702,7 +1313,7 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      * <p>The UUID is used to:</p>
      * <ul>
      *   <li>Look up contents in the {@link #backpackStorage} map</li>
-     *   <li>Determine the filename for persistent storage (UUID.yml)</li>
+     *   <li>Determine the filename for persistent storage (UUID.bin or UUID.yml)</li>
      *   <li>Link the physical item to its stored inventory contents</li>
      * </ul>
      * 
@@ -801,8 +1412,13 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      * <ol>
      *   <li>Extract UUID from backpack's NBT data</li>
      *   <li>Validate UUID exists (show error if missing/corrupted)</li>
+     *   <li>If the backpack is being prefetched ({@link #prefetchBackpack}), open it
+     *       once that read finishes</li>
+     *   <li>If the backpack is archived, load it asynchronously and open it afterwards
+     *       (see {@link #loadArchivedBackpack})</li>
      *   <li>Get backpack capacity (27 or 54 slots)</li>
      *   <li>Create Bukkit Inventory with appropriate size</li>
+     *   <li>Refuse to open a {@link #quarantine}d backpack</li>
      *   <li>Load stored items from memory into the inventory</li>
      *   <li>Register session in tracking maps for save/event handling</li>
      *   <li>Open the inventory GUI for the player</li>
@@ -813,8 +1429,11 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      * 
      * <p>Storage handling:</p>
      * <ul>
+     *   <li>Contents are fetched via {@link #getBackpackContents(String)}, which reads the
+     *       backpack's file on first access when lazy loading is enabled</li>
      *   <li>If storage exists for this UUID, items are loaded into their original slots</li>
-     *   <li>If storage doesn't exist (new or corrupted), empty HashMap is initialized</li>
+     *   <li>If storage doesn't exist (new backpack), the inventory opens empty and no
+     *       entry is created until the first non-empty save</li>
      *   <li>Items outside current capacity are skipped (shouldn't happen normally)</li>
      * </ul>
      * 
@@ -837,6 +1456,33 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
             return;
         }
         
+        // Being read in the background already - open it once the read is done
+        if (awaitPrefetch(player, backpackUUID, () -> {
+                ItemStack held = player.getInventory().getItemInMainHand();
+                if (!backpackUUID.equals(getBackpackUUID(held))) {
+                    held = player.getInventory().getItemInOffHand();
+                }
+                if (backpackUUID.equals(getBackpackUUID(held))) {
+                    openBackpack(player, held);
+                }
+            })) {
+            return;
+        }
+        
+        // Not opened for a long time - load it off the main thread, then open it if it is still held
+        if (coldStorage.contains(backpackUUID) && !quarantine.contains(backpackUUID)) {
+            loadArchivedBackpack(player, backpackUUID, () -> {
+                ItemStack held = player.getInventory().getItemInMainHand();
+                if (!backpackUUID.equals(getBackpackUUID(held))) {
+                    held = player.getInventory().getItemInOffHand();
+                }
+                if (backpackUUID.equals(getBackpackUUID(held))) {
+                    openBackpack(player, held);
+                }
+            });
+            return;
+        }
+        
         // Get the capacity to determine inventory size
         int capacity = getBackpackCapacity(backpack);
         
@@ -849,8 +1495,16 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
         Inventory inv = Bukkit.createInventory(null, capacity, title);
         
         // Load stored items into the newly created inventory
-        Map<Integer, ItemStack> contents = backpackStorage.get(backpackUUID);
+        // In lazy mode this is where the backpack's file is read for the first time
+        Map<Integer, ItemStack> contents = getBackpackContents(backpackUUID);
+        if (quarantine.contains(backpackUUID)) {
+            // Damaged on disk - opening it empty would let the next save overwrite what's left
+            player.sendMessage(Component.text("This backpack's stored data is damaged. It is locked until an admin restores it.", NamedTextColor.RED));
+            return;
+        }
         if (contents != null) {
+            manifest.recordOpen(backpackUUID);
+            accessStatistics.recordOpen(backpackUUID, LocalTime.now().getHour());
             // Iterate through all stored items and place them in the inventory
             for (Map.Entry<Integer, ItemStack> entry : contents.entrySet()) {
                 // Safety check: only load items that fit within current capacity
@@ -860,16 +1514,17 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
                     inv.setItem(entry.getKey(), entry.getValue());
                 }
             }
-        } else {
-            // No existing storage for this UUID - initialize empty storage
-            // This handles newly created backpacks or recovery from corrupted data
-            backpackStorage.put(backpackUUID, new HashMap<>());
         }
+        // No existing storage for this UUID means a new backpack - it simply opens empty.
+        // Its storage entry is created on the first non-empty save.
         
         // Register this session in tracking maps for later event handling and saving
         // These entries will be removed when the player closes the inventory
         activeBackpacks.put(player.getUniqueId(), inv);
         openBackpackUUIDs.put(player.getUniqueId(), backpackUUID);
+        // A new session starts clean - only actual changes make the close save
+        dirtySlots.remove(player.getUniqueId());
+        walPendingSlots.remove(player.getUniqueId());
         
         // Open the inventory GUI for the player (triggers client-side window)
         player.openInventory(inv);
@@ -892,7 +1547,11 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      * <p>Opening process:</p>
      * <ol>
      *   <li>Generate storage key from player's UUID with "personal-" prefix</li>
+     *   <li>If the backpack is being prefetched since the player joined, open it once
+     *       that read finishes</li>
+     *   <li>If the backpack is archived, load it asynchronously and open it afterwards</li>
      *   <li>Create 54-slot Bukkit Inventory with "Personal Backpack" title</li>
+     *   <li>Refuse to open a {@link #quarantine}d backpack</li>
      *   <li>Load stored items from memory into the inventory</li>
      *   <li>Register session in tracking maps</li>
      *   <li>Open the inventory GUI</li>
@@ -900,7 +1559,8 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      * </ol>
      * 
      * <p>The personal backpack is created on first use - no explicit creation required.
-     * If no storage exists for this player's personal backpack, an empty HashMap is initialized.</p>
+     * If no storage exists for this player's personal backpack, the inventory opens empty
+     * and storage is created on the first non-empty save.</p>
      * 
      * @param player The player opening their personal backpack
      */
@@ -910,14 +1570,31 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
         // This distinguishes personal backpacks from item-based backpacks in storage
         String personalBackpackUUID = PERSONAL_BACKPACK_PREFIX + player.getUniqueId().toString();
         
+        // Still being read since the player joined - open it once the read is done
+        if (awaitPrefetch(player, personalBackpackUUID, () -> openPersonalBackpack(player))) {
+            return;
+        }
+        
+        // Unused for a long time - load it off the main thread first
+        if (coldStorage.contains(personalBackpackUUID) && !quarantine.contains(personalBackpackUUID)) {
+            loadArchivedBackpack(player, personalBackpackUUID, () -> openPersonalBackpack(player));
+            return;
+        }
+        
         // Create the inventory GUI with fixed 54-slot capacity
         // Title is simpler than item-based backpacks since capacity never varies
         String title = "Personal Backpack";
         Inventory inv = Bukkit.createInventory(null, PERSONAL_BACKPACK_SIZE, title);
         
-        // Load any existing stored items into the inventory
-        Map<Integer, ItemStack> contents = backpackStorage.get(personalBackpackUUID);
+        // Load any existing stored items into the inventory (reads the file on first access in lazy mode)
+        Map<Integer, ItemStack> contents = getBackpackContents(personalBackpackUUID);
+        if (quarantine.contains(personalBackpackUUID)) {
+            player.sendMessage(Component.text("Your personal backpack's stored data is damaged. It is locked until an admin restores it.", NamedTextColor.RED));
+            return;
+        }
         if (contents != null) {
+            manifest.recordOpen(personalBackpackUUID);
+            accessStatistics.recordOpen(personalBackpackUUID, LocalTime.now().getHour());
             // Place each stored item in its saved slot position
             for (Map.Entry<Integer, ItemStack> entry : contents.entrySet()) {
                 // Safety check to prevent ArrayIndexOutOfBoundsException
@@ -925,14 +1602,15 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
                     inv.setItem(entry.getKey(), entry.getValue());
                 }
             }
-        } else {
-            // First time opening personal backpack - initialize empty storage
-            backpackStorage.put(personalBackpackUUID, new HashMap<>());
         }
+        // First time opening the personal backpack - nothing to load, storage is
+        // created on the first non-empty save
         
         // Register session in tracking maps (same as item-based backpacks)
         activeBackpacks.put(player.getUniqueId(), inv);
         openBackpackUUIDs.put(player.getUniqueId(), personalBackpackUUID);
+        dirtySlots.remove(player.getUniqueId());
+        walPendingSlots.remove(player.getUniqueId());
         
         // Open the GUI and confirm
         player.openInventory(inv);
@@ -945,11 +1623,16 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      * <p>Save process:</p>
      * <ol>
      *   <li>Verify player has an open backpack (check tracking maps)</li>
+     *   <li>Skip the save entirely if the session has no {@link #dirtySlots} -
+     *       nothing changed since the backpack was opened (counted in {@link #savesSkipped})</li>
      *   <li>Get the Inventory and backpack UUID from tracking maps</li>
-     *   <li>Iterate through all slots in the inventory</li>
-     *   <li>Clone each non-empty ItemStack into a contents map</li>
+     *   <li>Copy the stored contents the backpack was opened with</li>
+     *   <li>Clone each changed slot's ItemStack into the copy (or remove it if now empty)</li>
+     *   <li>Skip the save entirely if the backpack is empty and was never stored</li>
+     *   <li>Record the replaced contents of the changed slots in the {@link #history}</li>
      *   <li>Update the in-memory {@link #backpackStorage} map</li>
-     *   <li>Write contents to YAML file immediately</li>
+     *   <li>Log the snapshot to the {@link #writeAheadLog}</li>
+     *   <li>Hand the immutable snapshot, with its changed slots, to the {@link #writeQueue}</li>
      * </ol>
      * 
      * <p>Called by:</p>
@@ -963,7 +1646,11 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
      *   <li>Items are CLONED before storage to prevent reference issues</li>
      *   <li>Air/null items are not stored (keeps YAML files clean)</li>
      *   <li>Empty slots don't appear in storage (sparse map)</li>
-     *   <li>Save is immediate (no batching) for data safety</li>
+     *   <li>The stored map is unmodifiable - the same instance is shared with the
+     *       background writer, so it must never change after this method returns.
+     *       Unchanged slots share their ItemStack with the previous map; that is safe
+     *       because stored ItemStacks are never mutated (the inventory holds copies)</li>
+     *   <li>No disk I/O happens here; the write queue serializes and writes the file</li>
      * </ul>
      * 
      * @param player The player whose backpack should be saved
@@ -977,13 +1664,30 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
             return;
         }
         
+        // Read-only peek: the stored contents are still exact, so there is nothing to
+        // clone, cache or write
+        BitSet changed = dirtySlots.remove(playerId);
+        // The save logs everything the session changed
+        walPendingSlots.remove(playerId);
+        if (changed == null) {
+            savesSkipped++;
+            return;
+        }
+        savesPerformed++;
+        
         // Get the inventory GUI and the backpack's storage UUID
         Inventory inv = activeBackpacks.get(playerId);
         String backpackUUID = openBackpackUUIDs.get(playerId);
         
-        // Build a map of slot → item for all non-empty slots
-        Map<Integer, ItemStack> contents = new HashMap<>();
-        for (int i = 0; i < inv.getSize(); i++) {
+        // Start from the contents the backpack was opened with (empty for a new backpack).
+        // Slots beyond the inventory were never shown, so they are dropped - which is a
+        // change the changed-slot set doesn't describe, so the snapshot is marked full.
+        Map<Integer, ItemStack> stored = Objects.requireNonNullElse(backpackStorage.peek(backpackUUID), Collections.emptyMap());
+        Map<Integer, ItemStack> contents = new HashMap<>(stored);
+        BitSet changedSlots = contents.keySet().removeIf(slot -> slot >= inv.getSize()) ? null : changed;
+        
+        // Only the changed slots are read from the inventory
+        for (int i = changed.nextSetBit(0); i >= 0 && i < inv.getSize(); i = changed.nextSetBit(i + 1)) {
             ItemStack item = inv.getItem(i);
             // Only store slots that contain actual items (not air/null)
             if (item != null && item.getType() != Material.AIR) {
@@ -991,793 +1695,11463 @@ public class Backpacks extends JavaPlugin implements Listener, TabCompleter {
                 // Without cloning, changes to the inventory would affect our stored data
                 // and vice versa, leading to potential desync or duplication issues
                 contents.put(i, item.clone());
+            } else {
+                contents.remove(i);
             }
         }
         
+        // A backpack that has never been stored and is still empty has nothing to save.
+        // This keeps freshly created (or merely peeked-at) backpacks from creating
+        // empty map entries and empty files.
+        if (contents.isEmpty() && !manifest.contains(backpackUUID)) {
+            return;
+        }
+        
+        // Keep what this save replaces - every changed slot, plus the dropped ones
+        BitSet replaced = changed.get(0, inv.getSize());
+        if (changedSlots == null) {
+            stored.keySet().forEach(replaced::set);
+        }
+        recordVersion(backpackUUID, player.getName(), inv.getSize(), stored, replaced);
+        
+        // Freeze the snapshot - it is shared between backpackStorage and the writer thread
+        contents = Collections.unmodifiableMap(contents);
+        
         // Update the in-memory storage map
         backpackStorage.put(backpackUUID, contents);
         
-        // Write to disk immediately for data safety
-        // We don't batch saves because losing items is unacceptable
-        saveBackpackToFile(backpackUUID, contents);
+        // Queue the disk write - a worker thread serializes and writes the file.
+        // Quick repeat closes of the same backpack merge into a single write.
+        // An emptied backpack is deleted from storage by the writer instead.
+        BackpackSnapshot snapshot = new BackpackSnapshot(inv.getSize(), contents, changedSlots);
+        logBackpackChange(backpackUUID, snapshot);
+        writeQueue.submit(backpackUUID, snapshot);
+        
+        if (contents.isEmpty()) {
+            // Opening it again simply shows a new, empty backpack
+            manifest.recordDelete(backpackUUID);
+        } else {
+            // Updates a stored backpack's entry; a new one is added once its write completes
+            manifest.recordSave(backpackUUID, snapshot);
+        }
     }
     
     /**
-     * Writes a backpack's contents to its YAML file on disk.
+     * Records the version of a backpack a save is about to replace in the {@link #history},
+     * if there is one. Main thread.
      * 
-     * <p>File location: plugins/Backpacks/playerdata/{UUID}.yml</p>
-     * 
-     * <p>YAML structure:</p>
-     * <pre>
-     * slot:
-     *   0: {ItemStack data}
-     *   5: {ItemStack data}
-     *   10: {ItemStack data}
-     * </pre>
+     * @param key The backpack's storage key
+     * @param savedBy Who is saving
+     * @param capacity The backpack's size in slots
+     * @param previous The contents being replaced (never modified afterwards)
+     * @param replaced Slots the save changes - their previous items are what is kept
+     */
+    private void recordVersion(String key, String savedBy, int capacity, Map<Integer, ItemStack> previous, BitSet replaced) {
+        if (history != null) {
+            history.record(key, savedBy, new BackpackSnapshot(capacity, previous, replaced));
+        }
+    }
+    
+    /**
+     * Saves contents put together by an admin command (a rollback or a restore from
+     * backup) in place of a
+     * backpack's current ones, the same way {@link #saveBackpackContents} saves a session:
+     * history, memory, write-ahead log, write queue, manifest. The backpack must not be open.
      * 
-     * <p>Process:</p>
-     * <ol>
-     *   <li>Ensure playerdata/ directory exists (create if missing)</li>
-     *   <li>Create FileConfiguration object for YAML handling</li>
-     *   <li>Store each ItemStack at "slot.{index}" path</li>
-     *   <li>Save configuration to file with error handling</li>
-     * </ol>
+     * @param key The backpack's storage key
+     * @param capacity The backpack's size in slots
+     * @param previous The contents being replaced
+     * @param restored The new contents
+     * @param savedBy What made the change, for the history
+     */
+    private void restoreBackpack(String key, int capacity, Map<Integer, ItemStack> previous,
+                                 Map<Integer, ItemStack> restored, String savedBy) {
+        BitSet replaced = new BitSet();
+        previous.keySet().forEach(replaced::set);
+        restored.keySet().forEach(replaced::set);
+        recordVersion(key, savedBy, capacity, previous, replaced);
+        // The restored contents replace an archived copy too
+        coldStorage.release(key);
+        
+        Map<Integer, ItemStack> contents = Collections.unmodifiableMap(new HashMap<>(restored));
+        backpackStorage.put(key, contents);
+        BackpackSnapshot snapshot = new BackpackSnapshot(capacity, contents);
+        logBackpackChange(key, snapshot);
+        writeQueue.submit(key, snapshot);
+        if (contents.isEmpty()) {
+            manifest.recordDelete(key);
+        } else {
+            manifest.recordSave(key, snapshot);
+        }
+    }
+    
+    /**
+     * Persists a batch of backpack snapshots through the configured storage backend.
      * 
-     * <p>Bukkit's ConfigurationSection handles ItemStack serialization automatically,
-     * preserving all NBT data, enchantments, lore, display names, durability, etc.</p>
+     * <p>Snapshots with contents go to {@link BackpackStore#saveAll} in one call; an empty
+     * snapshot means the backpack was emptied and is removed with
+     * {@link BackpackStore#delete(String)}, so empty backpacks take no space.</p>
      * 
-     * <p>Each backpack has its own file to:</p>
+     * <p>Backends (config "storage.backend"):</p>
      * <ul>
-     *   <li>Prevent total data loss if one file corrupts</li>
-     *   <li>Enable easy per-backpack backup and recovery</li>
-     *   <li>Allow manual editing of individual backpack contents</li>
+     *   <li><b>files</b> (default): one file per backpack in plugins/Backpacks/playerdata/ -
+     *       {UUID}.bin in the binary format ({@link BackpackCodec}) or {UUID}.yml in the
+     *       original YAML format, see {@link FileBackpackStore}</li>
+     *   <li><b>packfile</b>: records appended to a few large segment files in
+     *       plugins/Backpacks/packs/, see {@link PackFileBackpackStore}</li>
      * </ul>
      * 
-     * @param backpackUUID The UUID identifying this backpack (becomes filename)
-     * @param contents Map of slot indices to ItemStacks to save
+     * <p>Threading: called on a {@link WriteBehindQueue} worker thread, never on the main
+     * thread. Writes for the same backpack are serialized by the queue, so two writes
+     * for one backpack never overlap.</p>
+     * 
+     * <p>The {@link #writeAheadLog} is forced first: a write must never reach the disk
+     * before the log record of the same change, or a replay after a crash could put
+     * older contents back over it.</p>
+     * 
+     * <p>While a /backpack backup runs, backpacks it hasn't read from the backend yet are
+     * read first ({@link BackupJob#preserve}), so the backup keeps their old contents.</p>
+     * 
+     * <p>Before a backpack is deleted, its dead entries in the {@link #coldStorage} archive
+     * are recorded ({@link ColdStorage#settle}) - with the backend no longer holding it,
+     * they would otherwise count as live again at the next start.</p>
+     * 
+     * <p>Errors are thrown to the queue, which logs them and retries the batch one
+     * backpack at a time - data is still safe in memory, and the next save of a failed
+     * backpack tries again.</p>
+     * 
+     * @param batch Backpack UUID → capacity and slot → item map to save
+     * @throws IOException If a backpack can't be written or deleted
      */
-    private void saveBackpackToFile(String backpackUUID, Map<Integer, ItemStack> contents) {
-        // Ensure the playerdata directory exists, creating it if necessary
-        // Using "playerdata" as the folder name (matches common Minecraft conventions)
-        File backpacksDir = new File(getDataFolder(), "playerdata");
-        if (!backpacksDir.exists()) {
-            // mkdirs() creates parent directories too if needed
-            backpacksDir.mkdirs();
+    private void writeBackpacks(Map<String, BackpackSnapshot> batch) throws IOException {
+        WriteAheadLog log = writeAheadLog;
+        if (log != null) {
+            log.sync();
         }
-        
-        // Construct the full file path: plugins/Backpacks/playerdata/{UUID}.yml
-        File backpackFile = new File(backpacksDir, backpackUUID + ".yml");
-        
-        // Create a new YAML configuration object
-        // We use a fresh config each save (not loading existing) because we're
-        // replacing all content, not updating individual entries
-        org.bukkit.configuration.file.FileConfiguration config = 
-            new org.bukkit.configuration.file.YamlConfiguration();
-        
-        // Store each ItemStack in the config at "slot.{index}" path
-        // Bukkit's serialization handles the complex ItemStack → YAML conversion
-        for (Map.Entry<Integer, ItemStack> entry : contents.entrySet()) {
-            config.set("slot." + entry.getKey(), entry.getValue());
+        BackupJob backup = activeBackup;
+        if (backup != null) {
+            batch.keySet().forEach(backup::preserve);
         }
-        
-        // Write the configuration to disk
-        try {
-            config.save(backpackFile);
-        } catch (Exception e) {
-            // Log the error but don't crash - data is still safe in memory
-            // The next save attempt might succeed (e.g., if disk space freed)
-            getLogger().warning("Failed to save backpack " + backpackUUID + ": " + e.getMessage());
-            e.printStackTrace();
+        Map<String, BackpackSnapshot> saves = new HashMap<>();
+        for (Map.Entry<String, BackpackSnapshot> entry : batch.entrySet()) {
+            if (entry.getValue().contents().isEmpty()) {
+                // An old archive entry must not come back once the backend no longer holds it
+                coldStorage.settle(entry.getKey());
+                backpackStore.delete(entry.getKey());
+                // Undoes the entry an older save of the key may have added since the delete was queued
+                manifest.recordDelete(entry.getKey());
+                if (itemBlobs != null) {
+                    itemBlobs.deleted(entry.getKey());
+                }
+            } else {
+                saves.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!saves.isEmpty()) {
+            saveWithItemReferences(backpackStore, saves).forEach((key, size) -> manifest.recordStored(key, saves.get(key), size));
         }
     }
     
     /**
-     * Loads all backpack data from YAML files into memory at startup.
+     * Saves a batch and tells the {@link #itemBlobs} store whether the records' item
+     * references are now on disk. A batch that fails may have been written in part, so
+     * the item store keeps the old and the new references of every backpack in it.
      * 
-     * <p>Loading process:</p>
-     * <ol>
-     *   <li>Clear existing backpackStorage map (important for /reload scenarios)</li>
-     *   <li>Check if playerdata/ directory exists (skip if not)</li>
-     *   <li>List all .yml files in the directory</li>
-     *   <li>For each file:
-     *     <ul>
-     *       <li>Extract UUID from filename (remove .yml extension)</li>
-     *       <li>Load YAML configuration</li>
-     *       <li>Parse "slot" section into Integer → ItemStack map</li>
-     *       <li>Store in backpackStorage map</li>
-     *     </ul>
-     *   </li>
-     *   <li>Log count of loaded backpacks</li>
-     * </ol>
+     * @param store Backend to write to
+     * @param saves Key → snapshot to write
+     * @return Key → bytes stored, as returned by {@link BackpackStore#saveAll}
+     * @throws IOException If the batch can't be written
+     */
+    private Map<String, Integer> saveWithItemReferences(BackpackStore store, Map<String, BackpackSnapshot> saves) throws IOException {
+        if (itemBlobs == null) {
+            return store.saveAll(saves);
+        }
+        Map<String, Integer> sizes;
+        try {
+            sizes = store.saveAll(saves);
+        } catch (IOException | RuntimeException e) {
+            itemBlobs.failed(saves.keySet());
+            throw e;
+        }
+        itemBlobs.committed(saves.keySet());
+        return sizes;
+    }
+    
+    /**
+     * Appends a backpack change to the {@link #writeAheadLog}, if there is one. A failed
+     * append is logged and the change goes on to storage unlogged, as it did before the
+     * log existed.
      * 
-     * <p>Error handling:</p>
-     * <ul>
-     *   <li>Missing directory: Logs info and returns (fresh server)</li>
-     *   <li>No files: Logs info and returns</li>
-     *   <li>Invalid slot number: Logs warning, skips that slot</li>
-     *   <li>File read error: YamlConfiguration handles gracefully</li>
-     * </ul>
+     * @param key The backpack's storage key
+     * @param snapshot The change - only its changed slots, or everything if they are null
+     * @return true if a record was appended
+     */
+    private boolean logBackpackChange(String key, BackpackSnapshot snapshot) {
+        if (writeAheadLog == null) {
+            return false;
+        }
+        try {
+            writeAheadLog.append(key, snapshot);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            getLogger().warning("Failed to log a change to backpack " + key + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Appends the archival of a backpack to the write-ahead log, if it is enabled. A
+     * replay finishes the backend delete but keeps the archive entry, which a plain
+     * delete would release.
      * 
-     * <p>File naming conventions:</p>
-     * <ul>
-     *   <li>Item backpacks: Random UUID (e.g., "a1b2c3d4-e5f6-7890-abcd-ef1234567890.yml")</li>
-     *   <li>Personal backpacks: "personal-{PlayerUUID}.yml"</li>
-     * </ul>
+     * @param key The backpack's storage key
+     * @param capacity The backpack's size
+     * @return true if a record was appended
+     */
+    private boolean logBackpackArchival(String key, int capacity) {
+        if (writeAheadLog == null) {
+            return false;
+        }
+        try {
+            writeAheadLog.appendArchival(key, capacity);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            getLogger().warning("Failed to log the archival of backpack " + key + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Logs the slots changed in open backpacks since the last run ({@link #walPendingSlots})
+     * and forces them to disk in the background. Runs on the main thread every
+     * "storage.wal.flush-interval-ticks"; starts a checkpoint when one is due.
      * 
-     * <p>Called only during {@link #onEnable()} at server startup.</p>
+     * <p>Items are serialized while the record is built, so slots are read straight from
+     * the inventories without cloning.</p>
      */
-    private void loadBackpackStorage() {
-        // Clear any existing data - important if this is called during a reload
-        // (though currently only called in onEnable, this is defensive programming)
-        backpackStorage.clear();
+    private void flushWriteAheadLog() {
+        boolean appended = false;
+        for (Map.Entry<UUID, BitSet> entry : walPendingSlots.entrySet()) {
+            Inventory inv = activeBackpacks.get(entry.getKey());
+            String key = openBackpackUUIDs.get(entry.getKey());
+            if (inv == null || key == null) {
+                continue;
+            }
+            BitSet slots = entry.getValue().get(0, inv.getSize());
+            appended |= logBackpackChange(key, new BackpackSnapshot(inv.getSize(), inventorySlots(inv, slots), slots));
+        }
+        walPendingSlots.clear();
         
-        // Check if the playerdata directory exists
-        File backpacksDir = new File(getDataFolder(), "playerdata");
-        if (!backpacksDir.exists()) {
-            // No playerdata folder means no backpacks have been created yet
-            // This is normal for fresh server installations
-            getLogger().info("No playerdata directory found, starting fresh");
+        if (System.currentTimeMillis() >= nextWalCheckpoint || writeAheadLog.activeSize() >= WAL_CHECKPOINT_BYTES) {
+            checkpointWriteAheadLog();
+        } else if (appended) {
+            WriteAheadLog log = writeAheadLog;
+            Bukkit.getScheduler().runTaskAsynchronously(this, () -> syncWriteAheadLog(log));
+        }
+    }
+    
+    /**
+     * Reads some slots of an inventory into a slot → item map, leaving out empty ones.
+     * The items are the inventory's own - serialize them before the inventory can change.
+     * 
+     * @param inv The inventory
+     * @param slots Slots to read, all below the inventory's size
+     * @return Slot → item map
+     */
+    private Map<Integer, ItemStack> inventorySlots(Inventory inv, BitSet slots) {
+        Map<Integer, ItemStack> contents = new HashMap<>();
+        for (int i = slots.nextSetBit(0); i >= 0; i = slots.nextSetBit(i + 1)) {
+            ItemStack item = inv.getItem(i);
+            if (item != null && item.getType() != Material.AIR) {
+                contents.put(i, item);
+            }
+        }
+        return contents;
+    }
+    
+    /**
+     * Forces the write-ahead log to disk, logging a failure. Any thread.
+     */
+    private void syncWriteAheadLog(WriteAheadLog log) {
+        try {
+            log.sync();
+        } catch (IOException e) {
+            getLogger().warning("Failed to sync the write-ahead log: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Starts a checkpoint: trims the {@link #writeAheadLog} to what storage doesn't hold yet.
+     * 
+     * <p>On the main thread, a new log segment is started and every open backpack with
+     * unsaved changes is logged in full to it - its changes in the older segments can
+     * then be dropped. So is every backpack whose last write failed (the newest contents
+     * queued for it, or the failed ones): the log holds their only durable copy. In the
+     * background, the checkpoint waits until every save queued so far has been written
+     * (and group-committed), then deletes the older segments. If a write failed for a
+     * backpack that wasn't logged again, they are kept until the next checkpoint, so a
+     * crash in between still replays the lost change.</p>
+     */
+    private void checkpointWriteAheadLog() {
+        nextWalCheckpoint = System.currentTimeMillis() + walCheckpointIntervalMillis();
+        if (!walCheckpointRunning.compareAndSet(false, true)) {
             return;
         }
-        
-        // List all .yml files in the directory using a filename filter
-        // The filter lambda only accepts files ending with ".yml"
-        File[] files = backpacksDir.listFiles((dir, name) -> name.endsWith(".yml"));
-        if (files == null || files.length == 0) {
-            // Directory exists but contains no YAML files
-            getLogger().info("No backpack files found, starting fresh");
+        WriteAheadLog log = writeAheadLog;
+        int firstKept;
+        try {
+            firstKept = log.rotate();
+        } catch (IOException e) {
+            getLogger().warning("Failed to start a new write-ahead log segment: " + e.getMessage());
+            walCheckpointRunning.set(false);
             return;
         }
+        Set<String> relogged = new HashSet<>();
+        for (Map.Entry<UUID, BitSet> entry : dirtySlots.entrySet()) {
+            Inventory inv = activeBackpacks.get(entry.getKey());
+            String key = openBackpackUUIDs.get(entry.getKey());
+            if (inv == null || key == null) {
+                continue;
+            }
+            // The stored contents with the session's changes - what a save would store now
+            Map<Integer, ItemStack> contents = new HashMap<>(Objects.requireNonNullElse(backpackStorage.peek(key), Collections.emptyMap()));
+            contents.keySet().removeIf(slot -> slot >= inv.getSize());
+            BitSet changed = entry.getValue().get(0, inv.getSize());
+            for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+                contents.remove(i);
+            }
+            contents.putAll(inventorySlots(inv, changed));
+            if (logBackpackChange(key, new BackpackSnapshot(inv.getSize(), contents))) {
+                relogged.add(key);
+            }
+        }
+        // Failed writes - storage holds older contents, and the older segments are about to go
+        for (Map.Entry<String, BackpackSnapshot> failed : writeQueue.failedWrites().entrySet()) {
+            String key = failed.getKey();
+            if (relogged.contains(key)) {
+                continue;
+            }
+            BackpackSnapshot newest = Objects.requireNonNullElse(writeQueue.peek(key), failed.getValue());
+            boolean logged = newest.contents().isEmpty() && coldStorage.contains(key)
+                ? logBackpackArchival(key, newest.capacity())
+                : logBackpackChange(key, new BackpackSnapshot(newest.capacity(), newest.contents()));
+            if (logged) {
+                relogged.add(key);
+            }
+        }
         
-        // Track count for logging
-        int loaded = 0;
-        
-        // Process each backpack file
-        for (File file : files) {
-            // Extract the UUID from the filename by removing the .yml extension
-            // For "a1b2c3d4-e5f6.yml" this gives us "a1b2c3d4-e5f6"
-            String uuid = file.getName().replace(".yml", "");
-            
-            // Load the YAML configuration from the file
-            // YamlConfiguration.loadConfiguration handles file reading and parsing
-            org.bukkit.configuration.file.FileConfiguration config = 
-                org.bukkit.configuration.file.YamlConfiguration.loadConfiguration(file);
-            
-            // Prepare the contents map for this backpack
-            Map<Integer, ItemStack> contents = new HashMap<>();
-            
-            // Check if the "slot" section exists in the YAML
-            if (config.contains("slot")) {
-                // Get the ConfigurationSection containing all slot entries
-                org.bukkit.configuration.ConfigurationSection section = config.getConfigurationSection("slot");
-                if (section != null) {
-                    // Iterate through each key in the slot section
-                    // Keys are slot numbers as strings: "0", "5", "10", etc.
-                    for (String slotStr : section.getKeys(false)) {
-                        try {
-                            // Parse the string key to an integer slot number
-                            int slot = Integer.parseInt(slotStr);
-                            
-                            // Deserialize the ItemStack from YAML
-                            // Bukkit handles all NBT, enchantments, lore, etc. automatically
-                            ItemStack item = section.getItemStack(slotStr);
-                            if (item != null) {
-                                contents.put(slot, item);
-                            }
-                        } catch (NumberFormatException e) {
-                            // The slot key wasn't a valid integer - corrupted data
-                            // Log and skip this slot but continue loading the rest
-                            getLogger().warning("Invalid slot number in backpack " + uuid + ": " + slotStr);
+        WriteBehindQueue queue = writeQueue;
+        GroupCommitter committer = groupCommitter;
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            try {
+                syncWriteAheadLog(log);
+                if (!queue.flush()) {
+                    // Shutting down - onDisable decides what happens to the log
+                    return;
+                }
+                if (committer != null) {
+                    committer.commitNow();
+                }
+                if (!relogged.containsAll(queue.failedWrites().keySet())) {
+                    getLogger().warning("Backpack writes failed during the checkpoint; the write-ahead log is kept until the next one");
+                    return;
+                }
+                log.discardBefore(firstKept);
+                walCheckpoints++;
+            } finally {
+                walCheckpointRunning.set(false);
+            }
+        });
+    }
+    
+    /** "storage.wal.checkpoint-interval-seconds" in milliseconds */
+    private long walCheckpointIntervalMillis() {
+        return Math.max(1, getConfig().getInt("storage.wal.checkpoint-interval-seconds", 60)) * 1000L;
+    }
+    
+    /**
+     * Writes the changes logged by the previous run to storage, then discards the log.
+     * 
+     * <p>Runs synchronously during startup, after the backend and manifest are open and
+     * before any backpack is read. Records are applied in order on top of the stored
+     * contents - a full record replaces them, a delta sets its slots - so replaying
+     * changes storage already holds is harmless. Every replayed backpack is then written
+     * in full through {@link #writeBackpacks}.</p>
+     * 
+     * <p>A backpack whose last logged change is its archival is deleted from the backend
+     * and keeps its archive entry; any other replayed backpack releases its entry, since
+     * its stored copy (or its deletion) is newer. Archive entries are only checked
+     * against the backend afterwards, by {@link ColdStorage#resolve}.</p>
+     * 
+     * <p>Quarantined backpacks and backpacks whose stored record can't be read are
+     * skipped with a warning.</p>
+     * 
+     * @param log The log, opened but not yet appended to
+     * @throws IOException If the log can't be read or the replayed backpacks can't be
+     *         written - the log is kept and startup fails, like a storage failure
+     */
+    private void replayWriteAheadLog(WriteAheadLog log) throws IOException {
+        List<WriteAheadLog.Entry> entries = log.recover();
+        Map<String, Map<Integer, ItemStack>> replayed = new HashMap<>();
+        Map<String, Integer> capacities = new HashMap<>();
+        Set<String> skipped = new HashSet<>();
+        Set<String> archived = new HashSet<>();
+        for (WriteAheadLog.Entry entry : entries) {
+            String key = entry.key();
+            if (skipped.contains(key)) {
+                continue;
+            }
+            if (quarantine.contains(key)) {
+                getLogger().warning("Not replaying logged changes to quarantined backpack " + key);
+                skipped.add(key);
+                continue;
+            }
+            Map<Integer, ItemStack> contents = replayed.get(key);
+            if (contents == null || entry.full()) {
+                contents = new HashMap<>();
+                if (!entry.full()) {
+                    // A delta applies to what storage holds
+                    try {
+                        BackpackSnapshot stored = backpackStore.load(key);
+                        if (stored != null) {
+                            contents.putAll(stored.contents());
                         }
+                    } catch (IOException e) {
+                        getLogger().warning("Not replaying logged changes to backpack " + key
+                            + " - its stored record can't be read: " + e.getMessage());
+                        skipped.add(key);
+                        continue;
                     }
                 }
+                replayed.put(key, contents);
+            }
+            try {
+                capacities.put(key, BackpackCodec.applyDelta(ByteBuffer.wrap(entry.delta()), contents));
+                if (entry.archived()) {
+                    archived.add(key);
+                } else {
+                    archived.remove(key);
+                }
+            } catch (IOException | RuntimeException e) {
+                getLogger().warning("Not replaying logged changes to backpack " + key + ": " + e.getMessage());
+                replayed.remove(key);
+                skipped.add(key);
             }
-            
-            // Store this backpack's contents in the main storage map
-            backpackStorage.put(uuid, contents);
-            loaded++;
         }
         
-        // Log the results for server operators
-        getLogger().info("Loaded " + loaded + " backpacks from storage");
+        if (!replayed.isEmpty()) {
+            Map<String, BackpackSnapshot> batch = new HashMap<>();
+            for (Map.Entry<String, Map<Integer, ItemStack>> entry : replayed.entrySet()) {
+                String key = entry.getKey();
+                BackpackSnapshot snapshot = new BackpackSnapshot(capacities.get(key),
+                    Collections.unmodifiableMap(entry.getValue()));
+                if (archived.contains(key)) {
+                    if (!coldStorage.contains(key)) {
+                        // Its segment is damaged - the backend's copy is all there is
+                        getLogger().warning("Not replaying the archival of backpack " + key
+                            + " - its archive entry can't be read; it stays in storage");
+                        continue;
+                    }
+                    // Archived, but the crash came before the backend delete
+                    batch.put(key, snapshot);
+                    manifest.recordDelete(key);
+                    continue;
+                }
+                // Brought back from the archive before the crash - storage has it (or its deletion) again
+                coldStorage.release(key);
+                batch.put(key, snapshot);
+                if (snapshot.contents().isEmpty()) {
+                    manifest.recordDelete(key);
+                } else {
+                    manifest.recordSave(key, snapshot);
+                }
+            }
+            writeBackpacks(batch);
+            if (groupCommitter != null) {
+                groupCommitter.commitNow();
+            }
+            walReplayed = entries.size();
+            getLogger().info("Replayed " + entries.size() + " logged changes to " + batch.size() + " backpacks");
+        }
+        log.discardRecovered();
     }
     
-    // ==================== EVENT HANDLERS ====================
-    // These methods respond to Bukkit events for player interactions and inventory management.
-    
     /**
-     * Handles right-click interactions for opening backpack items.
+     * Returns the directory holding one storage file per backpack.
      * 
-     * <p>Event: {@link PlayerInteractEvent}
-     * <br>Priority: {@link EventPriority#HIGHEST} (processes after most other plugins)</p>
+     * <p>Location: plugins/Backpacks/playerdata/ - "playerdata" matches common
+     * Minecraft conventions. The directory is not created here; writers create it
+     * on demand.</p>
      * 
-     * <p>Trigger conditions:</p>
-     * <ul>
-     *   <li>Action is RIGHT_CLICK_AIR or RIGHT_CLICK_BLOCK</li>
-     *   <li>Player is holding a backpack item (in main or off hand)</li>
-     * </ul>
+     * @return The playerdata directory (may not exist yet)
+     */
+    private File getBackpacksDirectory() {
+        return new File(getDataFolder(), "playerdata");
+    }
+    
+    /**
+     * Returns the stored contents of a backpack, loading them from disk on first access.
      * 
-     * <p>Behavior when triggered:</p>
+     * <p>Lookup order:</p>
      * <ol>
-     *   <li>Cancel the event to prevent default item/block behavior</li>
-     *   <li>Open the backpack GUI via {@link #openBackpack(Player, ItemStack)}</li>
+     *   <li>Contents already in {@link #backpackStorage} are returned directly</li>
+     *   <li>{@link #quarantine}d backpacks return null</li>
+     *   <li>Backpacks in the {@link #coldStorage} archive are read from it and brought
+     *       back ({@link #unarchiveBackpack}) - a synchronous read of one entry</li>
+     *   <li>IDs not in the {@link #manifest} return null without touching the disk -
+     *       the backpack has never been saved</li>
+     *   <li>A snapshot still waiting in the {@link #writeQueue} is newer than the file,
+     *       so it is used when present</li>
+     *   <li>Otherwise the backpack's file is read, cached in {@link #backpackStorage}
+     *       and returned. If it was written by an older Minecraft version, the upgraded
+     *       contents are queued for writing right away (see {@link #rewriteUpgraded})</li>
      * </ol>
      * 
-     * <p>Important notes:</p>
-     * <ul>
-     *   <li>NO permission check - backpack items work for all players</li>
-     *   <li>HIGHEST priority lets protection plugins cancel first if needed</li>
-     *   <li>Event is cancelled to prevent placing the backpack item as a block</li>
-     *   <li>Works with both main hand and off-hand (event.getItem() handles both)</li>
-     * </ul>
+     * <p>In eager mode every known backpack is in memory after startup unless the
+     * memory budget ran out, and backpacks evicted later are read again here like in
+     * lazy mode. A read that finds the record damaged quarantines the backpack and
+     * caches nothing.</p>
      * 
-     * @param event The PlayerInteractEvent from Bukkit
+     * @param backpackUUID The backpack's storage key (UUID or "personal-{PlayerUUID}")
+     * @return The slot → item map, or null if this backpack has no stored contents
      */
-    @EventHandler(priority = EventPriority.HIGHEST)
-    public void onPlayerInteract(PlayerInteractEvent event) {
-        Player player = event.getPlayer();
-        // Get the item the player is interacting with (main or off hand)
-        ItemStack item = event.getItem();
+    private Map<Integer, ItemStack> getBackpackContents(String backpackUUID) {
+        // Fast path: already loaded (counts as a cache hit, or a miss below)
+        Map<Integer, ItemStack> contents = backpackStorage.get(backpackUUID);
+        if (contents != null) {
+            return contents;
+        }
         
-        // Only process right-click actions
-        // LEFT_CLICK actions and PHYSICAL (pressure plates) are ignored
-        if (event.getAction() != Action.RIGHT_CLICK_AIR && event.getAction() != Action.RIGHT_CLICK_BLOCK) {
-            return;
+        // Damaged on disk - nothing to show until an admin clears it
+        if (quarantine.contains(backpackUUID)) {
+            return null;
         }
         
-        // Check if the held item is a backpack
-        // Note: NO permission check here - backpack items given via /backpack give
-        // are usable by any player, regardless of permissions
-        if (isBackpack(item)) {
-            // Cancel the event to prevent:
-            // - Placing the backpack item as a block (if it's a BARREL, etc.)
-            // - Opening containers the player might be looking at
-            // - Any other default right-click behavior
-            event.setCancelled(true);
-            // Open the backpack's inventory GUI
-            openBackpack(player, item);
-            return;
+        // Archived - opens load it off the main thread first, other reads get it here
+        if (coldStorage.contains(backpackUUID)) {
+            try {
+                BackpackSnapshot archived = coldStorage.read(backpackUUID);
+                if (archived != null) {
+                    return unarchiveBackpack(backpackUUID, archived);
+                }
+            } catch (IOException e) {
+                quarantineBackpack(backpackUUID, null, "archived copy can't be read: " + e.getMessage());
+                return null;
+            }
+        }
+        
+        // Unknown IDs were never saved - answer with a manifest lookup instead of a file open
+        if (!manifest.contains(backpackUUID)) {
+            return null;
+        }
+        
+        // A save that is still queued is newer than the file on disk
+        BackpackSnapshot queued = writeQueue != null ? writeQueue.peek(backpackUUID) : null;
+        if (queued != null) {
+            backpackStorage.put(backpackUUID, queued.contents());
+            return queued.contents();
+        }
+        
+        // Known but not loaded yet: read the file now and keep it in memory
+        BackpackSnapshot stored = loadStoredSnapshot(backpackUUID);
+        if (stored == null && quarantine.contains(backpackUUID)) {
+            return null;
+        }
+        contents = stored != null ? stored.contents() : Collections.emptyMap();
+        backpackStorage.put(backpackUUID, contents);
+        if (stored != null && stored.outdated()) {
+            // Paper just upgraded these items; store them that way so it needn't again
+            rewriteUpgraded(backpackUUID, stored);
         }
+        return contents;
     }
     
     /**
-     * Handles inventory clicks for backpack upgrades and nested backpack prevention.
+     * Queues a full write of a backpack whose stored record predates the server's
+     * DataVersion. The snapshot's items are already upgraded (deserializing did that),
+     * so the write stamps the record with the current DataVersion.
      * 
-     * <p>Event: {@link InventoryClickEvent}
-     * <br>Priority: NORMAL (default)</p>
+     * <p>Main thread only, like every other save.</p>
      * 
-     * <p>This handler manages two distinct scenarios:</p>
+     * @param backpackUUID The backpack's storage key
+     * @param snapshot The backpack's current contents
+     */
+    private void rewriteUpgraded(String backpackUUID, BackpackSnapshot snapshot) {
+        // No changedSlots: a delta on top of the old record would leave the old items in it
+        BackpackSnapshot full = new BackpackSnapshot(snapshot.capacity(), snapshot.contents());
+        writeQueue.submit(backpackUUID, full);
+        manifest.recordSave(backpackUUID, full);
+        backpacksUpgraded++;
+    }
+    
+    /**
+     * Opens the storage backend selected by "storage.backend" in config.yml.
      * 
-     * <h3>Scenario 1: Doubler Application</h3>
-     * <p>When a player has a doubler on their cursor and clicks a backpack:</p>
-     * <ol>
-     *   <li>Validate backpack is not stacked (amount must be 1)</li>
-     *   <li>Validate backpack is not already at 54 slots</li>
-     *   <li>Upgrade the backpack via {@link #upgradeBackpack(ItemStack)}</li>
-     *   <li>Consume one doubler from cursor</li>
-     *   <li>Play ENTITY_PLAYER_LEVELUP sound</li>
-     *   <li>Send success message</li>
-     *   <li>Cancel event to prevent normal click behavior</li>
-     * </ol>
-     * <p>This works in ANY inventory - player inventory, chests, etc.</p>
+     * <p>Backends:</p>
+     * <ul>
+     *   <li><b>files</b> (default): {@link FileBackpackStore} on plugins/Backpacks/playerdata/</li>
+     *   <li><b>packfile</b>: {@link PackFileBackpackStore} on plugins/Backpacks/packs/</li>
+     *   <li><b>mvstore</b>: {@link MVStoreBackpackStore} on plugins/Backpacks/backpacks.mv.db</li>
+     *   <li><b>sqlite</b>: {@link SQLiteBackpackStore} on plugins/Backpacks/backpacks.db</li>
+     * </ul>
      * 
-     * <h3>Scenario 2: Nested Backpack Prevention</h3>
-     * <p>When a player has a backpack open and tries to place another backpack inside:</p>
-     * <ol>
-     *   <li>Check if player has an active backpack session</li>
-     *   <li>Check if clicking in the backpack inventory (not player inventory)</li>
-     *   <li>Check if cursor contains a backpack</li>
-     *   <li>Check config "allow-nested-backpacks" setting (default: false)</li>
-     *   <li>If nested backpacks disallowed, cancel event and notify player</li>
-     * </ol>
+     * <p>When a backend other than files starts empty and playerdata/ still holds backpack
+     * files, those backpacks are imported once so switching backends loses nothing.
+     * The original files are left in place as a backup.</p>
      * 
-     * @param event The InventoryClickEvent from Bukkit
+     * <p>Unknown backend names fall back to "files" with a warning, like an invalid
+     * backpack-item material does.</p>
+     * 
+     * <p>"storage.durability" selects when saves are forced to disk (see {@link Durability});
+     * in group mode the {@link #groupCommitter} is started first.</p>
+     * 
+     * <p>Once the backend is open, the {@link #manifest} is read (or rebuilt from the
+     * backend if it is missing, damaged or was not closed cleanly).</p>
+     * 
+     * <p>Compression dictionaries are loaded first and installed in {@link BackpackCodec}
+     * with "storage.compression.*". With compression on and no dictionary yet, one is
+     * trained in the background once {@link #MIN_DICTIONARY_SAMPLES} backpacks are stored.</p>
+     * 
+     * <p>The {@link #quarantine} list is read with them.</p>
+     * 
+     * <p>The {@link #coldStorage} archive is opened right after the manifest, before the
+     * write-ahead log is replayed.</p>
+     * 
+     * <p>The {@link #itemBlobs} store is opened next to them with "storage.deduplication.*".
+     * If its reference counts are unknown (the server didn't shut down cleanly) or say
+     * that half of it is garbage, {@link #recountItemReferences()} runs before anything
+     * is saved, followed by compaction when it is worth it.</p>
+     * 
+     * @return true if a backend is open, false if it could not be opened (the plugin
+     *         must not run without storage)
      */
-    @EventHandler
-    public void onInventoryClick(InventoryClickEvent event) {
-        // Verify the clicker is a player (not a hopper, dropper, etc.)
-        if (!(event.getWhoClicked() instanceof Player)) {
-            return;
+    private boolean openBackpackStore() {
+        String backend = getConfig().getString("storage.backend", STORAGE_BACKENDS.get(0)).toLowerCase();
+        if (!STORAGE_BACKENDS.contains(backend)) {
+            getLogger().warning("Invalid storage.backend in config: " + backend + ", using " + STORAGE_BACKENDS.get(0));
+            backend = STORAGE_BACKENDS.get(0);
         }
         
-        Player player = (Player) event.getWhoClicked();
-        UUID playerId = player.getUniqueId();
-        
-        // Get the items involved in this click event
-        ItemStack cursor = event.getCursor();       // Item currently on the player's cursor (being held)
-        ItemStack clicked = event.getCurrentItem(); // Item in the slot that was clicked
+        // Durability policy - invalid values fall back to group commit
+        String durabilityName = getConfig().getString("storage.durability", "group").toUpperCase();
+        Durability durability;
+        try {
+            durability = Durability.valueOf(durabilityName);
+        } catch (IllegalArgumentException e) {
+            getLogger().warning("Invalid storage.durability in config: " + durabilityName + ", using group");
+            durability = Durability.GROUP;
+        }
+        if (durability == Durability.GROUP) {
+            groupCommitter = new GroupCommitter(
+                Math.max(1, getConfig().getInt("storage.group-commit-interval-ms", 50)), (key, snapshot) -> {
+                    // Staged saves count as written; a commit that loses one has to say so
+                    WriteBehindQueue queue = writeQueue;
+                    if (queue != null) {
+                        queue.markFailed(key, snapshot);
+                    }
+                }, getLogger());
+        }
         
-        // ===== DOUBLER APPLICATION HANDLING =====
-        // Check if player is clicking a doubler (cursor) onto a backpack (clicked slot)
-        if (isDoubler(cursor) && isBackpack(clicked)) {
-            // Safety check: backpack must not be stacked
-            // Stacked backpacks could lead to duplication exploits if upgraded
-            if (clicked.getAmount() > 1) {
-                player.sendMessage(Component.text("The doubler only works on a single backpack!", NamedTextColor.RED));
-                event.setCancelled(true);
-                return;
+        try {
+            // Before any record is read - imports and index rebuilds decode records too
+            dictionaries = CompressionDictionaries.open(new File(getDataFolder(), "dictionaries").toPath(), getLogger());
+            quarantine = Quarantine.open(new File(getDataFolder(), "quarantine").toPath(), getLogger());
+            boolean compress = getConfig().getBoolean("storage.compression.enabled", false);
+            int level = Math.max(1, Math.min(9, getConfig().getInt("storage.compression.level", 6)));
+            boolean deduplicate = getConfig().getBoolean("storage.deduplication.enabled", false);
+            itemBlobs = ItemBlobStore.open(new File(getDataFolder(), "items").toPath(), deduplicate, durability, getLogger());
+            BackpackCodec.configure(dictionaries, compress ? level : BackpackCodec.NO_COMPRESSION, itemBlobs, deduplicate,
+                Bukkit.getUnsafe().getDataVersion());
+            
+            backpackStore = createBackpackStore(backend, durability);
+            manifest = StorageManifest.open(new File(getDataFolder(), "manifest.dat").toPath(),
+                backend, backpackStore, getLogger());
+            
+            // Settle the item store's reference counts before the first save changes them
+            if (itemBlobs != null && (itemBlobs.needsRecount() || itemBlobs.worthCompacting())) {
+                if (recountItemReferences() && itemBlobs.worthCompacting()) {
+                    long reclaimed = itemBlobs.compact();
+                    getLogger().info("Compacted items/blobs.dat, reclaimed " + (reclaimed / 1024) + " KB");
+                }
             }
             
-            // Check current capacity to see if upgrade is possible
-            int currentCapacity = getBackpackCapacity(clicked);
+            // Archived backpacks - before the replay, whose deletes must settle their entries
+            coldStorage = ColdStorage.open(new File(getDataFolder(), "archive").toPath(), getLogger());
             
-            // Prevent upgrading an already-upgraded backpack
-            if (currentCapacity >= 54) {
-                player.sendMessage(Component.text("This backpack is already at maximum capacity!", NamedTextColor.RED));
-                event.setCancelled(true);
-                return;
+            // Changes the last run logged but may not have stored, before anything is read
+            boolean logChanges = getConfig().getBoolean("storage.wal.enabled", true);
+            WriteAheadLog log = WriteAheadLog.open(new File(getDataFolder(), "wal").toPath(),
+                logChanges, durability, getLogger());
+            if (log != null) {
+                try {
+                    replayWriteAheadLog(log);
+                } catch (IOException | RuntimeException e) {
+                    // Keep the log for the next attempt
+                    log.close(false);
+                    throw e;
+                }
+                if (logChanges) {
+                    writeAheadLog = log;
+                } else {
+                    log.close(true);
+                }
             }
             
-            // Perform the upgrade - modifies the ItemStack's NBT and lore
-            ItemStack upgraded = upgradeBackpack(clicked);
-            // Update the slot with the upgraded backpack
-            event.setCurrentItem(upgraded);
-            
-            // Consume one doubler from the cursor stack
-            if (cursor.getAmount() > 1) {
-                // Multiple doublers on cursor: decrease stack by 1
-                cursor.setAmount(cursor.getAmount() - 1);
-                event.setCursor(cursor);
-            } else {
-                // Single doubler on cursor: remove it entirely
-                event.setCursor(null);
-            }
-            
-            // Provide feedback to the player
-            // Magenta/light purple text with stars for a premium upgrade feel
-            player.sendMessage(Component.text("✦ Backpack upgraded to 54 slots! ✦", NamedTextColor.LIGHT_PURPLE, TextDecoration.BOLD));
-            // Play the level-up sound for satisfying audio feedback
-            // Pitch 1.5f makes it slightly higher than normal (more "upgrade-y")
-            player.playSound(player.getLocation(), org.bukkit.Sound.ENTITY_PLAYER_LEVELUP, 1.0f, 1.5f);
+            // Only now does the backend hold what the last run meant it to, archivals included
+            coldStorage.resolve(manifest.keys());
             
-            // Cancel the event to prevent the normal click behavior
-            event.setCancelled(true);
-            return;
-        }
-        
-        // ===== NESTED BACKPACK PREVENTION =====
-        // Only applies if player has an open backpack
-        if (!activeBackpacks.containsKey(playerId)) {
-            // Player doesn't have a backpack open, no restrictions apply
-            return;
-        }
-        
-        // Check if the player is clicking in the backpack inventory (top) not their own (bottom)
-        if (event.getClickedInventory() == activeBackpacks.get(playerId)) {
-            // Player is clicking in the backpack GUI
-            // Check if they're trying to place a backpack inside
-            if (isBackpack(cursor) && !getConfig().getBoolean("allow-nested-backpacks", false)) {
-                // Nested backpacks are disabled in config
-                event.setCancelled(true);
-                player.sendMessage(Component.text("You cannot put a backpack inside another backpack!", NamedTextColor.RED));
+            // First start with compression: learn what this server's backpacks look like
+            if (compress && dictionaries.currentId() == 0 && manifest.size() >= MIN_DICTIONARY_SAMPLES) {
+                Bukkit.getScheduler().runTaskAsynchronously(this, this::trainDictionary);
             }
+            return true;
+        } catch (IOException e) {
+            getLogger().severe("Failed to open " + backend + " storage: " + e.getMessage());
+            e.printStackTrace();
+            return false;
         }
     }
     
     /**
-     * Handles saving backpack contents when the inventory GUI is closed.
-     * 
-     * <p>Event: {@link InventoryCloseEvent}
-     * <br>Priority: NORMAL (default)</p>
+     * Recounts the {@link #itemBlobs} references by reading every stored backpack.
      * 
-     * <p>Process:</p>
-     * <ol>
-     *   <li>Verify closer is a player (not console or other entity)</li>
-     *   <li>Check if this player has an active backpack session</li>
-     *   <li>If yes:
-     *     <ul>
-     *       <li>Save contents via {@link #saveBackpackContents(Player)}</li>
-     *       <li>Remove from {@link #activeBackpacks} map</li>
-     *       <li>Remove from {@link #openBackpackUUIDs} map</li>
-     *       <li>Send "Backpack saved!" confirmation</li>
-     *     </ul>
-     *   </li>
-     * </ol>
+     * <p>Runs synchronously during startup, before any player can open a backpack, so
+     * nothing is saved while counting. Takes about as long as loading every backpack in
+     * eager mode, which is why it only runs when the counts are unknown or compaction
+     * is due.</p>
      * 
-     * <p>This ensures immediate persistence when a backpack is closed, so:</p>
-     * <ul>
-     *   <li>Server crashes after closing don't lose data</li>
-     *   <li>Player logouts after closing don't lose data</li>
-     *   <li>Memory is freed by removing tracking map entries</li>
-     *   <li>Player can immediately open another backpack</li>
-     * </ul>
+     * @return true if every backpack was read - only then may the item store be compacted
+     * @throws IOException If the backend can't list its backpacks
+     */
+    private boolean recountItemReferences() throws IOException {
+        Set<String> keys = backpackStore.listKeys();
+        getLogger().info("Counting item references of " + keys.size() + " backpacks...");
+        int unreadable = 0;
+        itemBlobs.beginRecount();
+        try {
+            for (String key : keys) {
+                try {
+                    backpackStore.load(key);
+                } catch (IOException e) {
+                    getLogger().warning("Failed to count item references of backpack " + key + ": " + e.getMessage());
+                    unreadable++;
+                }
+            }
+        } finally {
+            itemBlobs.endRecount(unreadable == 0);
+        }
+        if (unreadable > 0) {
+            getLogger().warning(unreadable + " backpacks could not be read; items/blobs.dat will not be compacted this time");
+        }
+        return unreadable == 0;
+    }
+    
+    /**
+     * Creates the storage backend with the given name, importing playerdata/ files into
+     * an empty pack-file, MVStore or SQLite backend.
      * 
-     * @param event The InventoryCloseEvent from Bukkit
+     * @param backend One of {@link #STORAGE_BACKENDS}
+     * @param durability When saves are forced to disk
+     * @return The open backend
+     * @throws IOException If the backend can't be opened
      */
-    @EventHandler
-    public void onInventoryClose(InventoryCloseEvent event) {
-        // Verify the closer is a player (entities can have inventories closed too)
-        if (!(event.getPlayer() instanceof Player)) {
-            return;
+    private BackpackStore createBackpackStore(String backend, Durability durability) throws IOException {
+        // Binary is the default write format; anything other than "yaml" means binary
+        binaryFormat = !"yaml".equalsIgnoreCase(getConfig().getString("storage.format", "binary"));
+        boolean sharded = "sharded".equalsIgnoreCase(getConfig().getString("storage.files.layout", "flat"));
+        FileBackpackStore fileStore = new FileBackpackStore(getBackpacksDirectory(), binaryFormat,
+            durability, groupCommitter, getConfig().getInt("storage.journal-fold-percent", 50), sharded, getLogger());
+        if (backend.equals("files")) {
+            // Files left in the other layout by a layout switch move in the background
+            fileStore.startMigration(Math.max(1, getConfig().getInt("storage.files.migration-rate", 500)));
+            return fileStore;
         }
         
-        Player player = (Player) event.getPlayer();
-        UUID playerId = player.getUniqueId();
+        BackpackStore store;
+        if (backend.equals("sqlite")) {
+            store = new SQLiteBackpackStore(
+                new File(getDataFolder(), "backpacks.db"),
+                getConfig().getBoolean("storage.sqlite.index-slots", true),
+                durability, getLogger());
+        } else if (backend.equals("mvstore")) {
+            store = new MVStoreBackpackStore(
+                new File(getDataFolder(), "backpacks.mv.db"),
+                Math.max(1, getConfig().getInt("storage.mvstore.cache-size-mb", 16)),
+                durability,
+                Math.max(1, getConfig().getInt("storage.group-commit-interval-ms", 50)),
+                getLogger());
+        } else {
+            store = new PackFileBackpackStore(
+                new File(getDataFolder(), "packs"),
+                Math.max(1, getConfig().getInt("storage.packfile.segment-size-mb", 64)) * 1024L * 1024L,
+                getConfig().getDouble("storage.packfile.compaction-threshold", 0.5),
+                Math.max(1, getConfig().getInt("storage.packfile.compaction-interval-minutes", 10)),
+                durability, groupCommitter, getLogger());
+        }
         
-        // Check if this player had a backpack open (vs. a chest, furnace, etc.)
-        if (activeBackpacks.containsKey(playerId)) {
-            // Save the backpack contents to disk immediately
-            // This writes to YAML file, not just memory
-            saveBackpackContents(player);
-            
-            // Clean up tracking maps to free memory and allow new backpack opens
-            activeBackpacks.remove(playerId);
-            openBackpackUUIDs.remove(playerId);
-            
-            // Confirm to the player that their items are saved
-            player.sendMessage(Component.text("Backpack saved!", NamedTextColor.GREEN));
+        // First start on the new backend: bring existing playerdata/ files along
+        if (store.listKeys().isEmpty() && !fileStore.listKeys().isEmpty()) {
+            importBackpacks(fileStore, store);
         }
+        return store;
     }
     
-    // ==================== COMMANDS ====================
-    // Command handling for /backpack and /bp commands.
-    
     /**
-     * Handles execution of /backpack and /bp commands.
-     * 
-     * <p>Command routing:</p>
-     * <ul>
-     *   <li><b>/bp</b> (no args) → Open personal backpack (requires backpacks.use, player only)</li>
-     *   <li><b>/backpack</b> (no args) → Display help menu</li>
-     *   <li><b>/backpack help</b> → Display help menu</li>
-     *   <li><b>/backpack give &lt;type&gt; &lt;player&gt;</b> → Route to {@link #handleGive(CommandSender, String[])}</li>
-     *   <li><b>/backpack reload</b> → Route to {@link #handleReload(CommandSender)}</li>
-     *   <li><b>/backpack &lt;unknown&gt;</b> → Display help menu</li>
-     * </ul>
+     * Copies every backpack from one storage backend into another.
      * 
-     * <p>Permission checks are delegated to sub-handlers, not performed here,
-     * except for /bp which requires player check and backpacks.use permission.</p>
+     * <p>Used for one-time imports when switching backends. Runs synchronously -
+     * it is only called during startup, before any player can open a backpack.
+     * Backpacks that fail to load are logged and skipped; the rest are still copied.
+     * Writes go to the target in batches of {@link #IMPORT_BATCH_SIZE}, so backends that
+     * sync per batch sync a few times instead of once per backpack.</p>
      * 
-     * @param sender The CommandSender (player or console)
-     * @param command The Command object containing command metadata
-     * @param label The alias used to execute the command (e.g., "bp" or "backpack")
-     * @param args The command arguments (split by spaces)
-     * @return true if the command was handled (always returns true)
+     * @param source Backend to read from
+     * @param target Backend to write to
+     * @throws IOException If the source's backpacks can't be listed
      */
-    @Override
-    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
-        // Handle /bp with no arguments - opens personal backpack
-        if (label.equalsIgnoreCase("bp") && args.length == 0) {
-            // Personal backpacks require a player (console can't have an inventory)
-            if (!(sender instanceof Player)) {
-                sender.sendMessage(Component.text("Only players can use personal backpacks!", NamedTextColor.RED));
-                return true;
+    private void importBackpacks(BackpackStore source, BackpackStore target) throws IOException {
+        Set<String> keys = source.listKeys();
+        getLogger().info("Importing " + keys.size() + " backpacks into the new storage backend...");
+        
+        int imported = 0;
+        int failed = 0;
+        Map<String, BackpackSnapshot> batch = new HashMap<>();
+        for (String key : keys) {
+            try {
+                BackpackSnapshot snapshot = source.load(key);
+                if (snapshot != null) {
+                    batch.put(key, snapshot);
+                }
+            } catch (IOException e) {
+                // One unreadable backpack shouldn't block the rest of the import
+                getLogger().warning("Failed to import backpack " + key + ": " + e.getMessage());
+                failed++;
             }
-            
-            Player player = (Player) sender;
-            
-            // Check permission for personal backpack access
-            if (!player.hasPermission("backpacks.use")) {
-                player.sendMessage(Component.text("You don't have permission to use personal backpacks!", NamedTextColor.RED));
-                return true;
+            if (batch.size() >= IMPORT_BATCH_SIZE) {
+                int written = writeImportBatch(target, batch);
+                imported += written;
+                failed += batch.size() - written;
+                batch.clear();
             }
-            
-            // Open the player's personal backpack (54 slots, stored by player UUID)
-            openPersonalBackpack(player);
-            return true;
-        }
-        
-        // No arguments provided for /backpack - show the help menu
-        if (args.length == 0) {
-            sendHelp(sender);
-            return true;
         }
+        int written = writeImportBatch(target, batch);
+        imported += written;
+        failed += batch.size() - written;
         
-        // Route to appropriate handler based on the first argument (subcommand)
-        switch (args[0].toLowerCase()) {
-            case "give":
-                // Delegate to give handler (handles permission check internally)
-                return handleGive(sender, args);
-            case "reload":
-                // Delegate to reload handler (handles permission check internally)
-                return handleReload(sender);
-            case "help":
-                // Show help menu
-                sendHelp(sender);
-                return true;
-            default:
-                // Unknown subcommand - show help as fallback
-                sendHelp(sender);
-                return true;
-        }
+        getLogger().info("Imported " + imported + " backpacks" + (failed > 0 ? " (" + failed + " failed)" : "")
+            + ". The original files were left in place and can be removed once you have verified the import.");
     }
     
     /**
-     * Displays the formatted help menu to a command sender.
+     * Writes one batch of an import, retrying backpack by backpack if the batch fails
+     * so a single unwritable backpack doesn't lose the rest.
      * 
-     * <p>Display format:</p>
-     * <ul>
-     *   <li>Top border: Gold line of ━ characters</li>
-     *   <li>Title: "Backpacks Commands" in gold, bold</li>
-     *   <li>Separator: Gold line of ━ characters</li>
-     *   <li>Commands: Yellow command + gray description (permission-filtered)</li>
-     *   <li>Bottom border: Gold line of ━ characters</li>
-     * </ul>
+     * @param target Backend to write to
+     * @param batch Key → snapshot to write
+     * @return Number of backpacks written
+     */
+    private int writeImportBatch(BackpackStore target, Map<String, BackpackSnapshot> batch) {
+        try {
+            saveWithItemReferences(target, batch);
+            return batch.size();
+        } catch (IOException batchFailure) {
+            int written = 0;
+            for (Map.Entry<String, BackpackSnapshot> entry : batch.entrySet()) {
+                try {
+                    saveWithItemReferences(target, Map.of(entry.getKey(), entry.getValue()));
+                    written++;
+                } catch (IOException e) {
+                    getLogger().warning("Failed to import backpack " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+            return written;
+        }
+    }
+    
+    /**
+     * Keeps {@link #backpackStorage} within "storage.cache.max-memory-mb". Runs every
+     * tick on the main thread; does nothing while the cache is within budget.
      * 
-     * <p>Permission-based visibility:</p>
-     * <ul>
-     *   <li>backpacks.use → Shows /bp command</li>
-     *   <li>backpacks.give → Shows give backpack and doubler commands</li>
-     *   <li>backpacks.admin → Shows reload command</li>
-     *   <li>No permission required → Shows help command</li>
-     * </ul>
+     * <p>Open backpacks and backpacks with a queued, in-flight or failed write are never
+     * evicted (see {@link BackpackCache}) - if that write failed after the eviction, its
+     * contents would exist nowhere. Everything else can be: storage holds the same
+     * contents, and {@link #getBackpackContents(String)} reads them from there.</p>
+     */
+    private void evictCachedBackpacks() {
+        if (backpackStorage.overBudget()) {
+            backpackStorage.evict(cachePinned());
+        }
+    }
+    
+    /**
+     * The backpacks {@link #backpackStorage} must keep: open ones and those with a write
+     * queued, in flight or failed. Main thread; the open set is taken when called.
+     */
+    private Predicate<String> cachePinned() {
+        Set<String> open = new HashSet<>(openBackpackUUIDs.values());
+        return key -> open.contains(key) || writeQueue.hasFailed(key) || writeQueue.peek(key) != null;
+    }
+    
+    /**
+     * Watches the old generation for heap pressure, unless
+     * "storage.cache.heap-pressure.enabled" is false.
      * 
-     * <p>This ensures players only see commands they can actually use,
-     * reducing confusion and clutter in the help output.</p>
+     * <p>The watched pool is the heap pool that supports both usage thresholds - the old
+     * generation in every HotSpot collector (G1 Old Gen, PS Old Gen, Tenured Gen, ...).
+     * Its collection usage threshold is set to "threshold-percent" of its maximum, and a
+     * listener on the MemoryMXBean hands every MEMORY_COLLECTION_THRESHOLD_EXCEEDED
+     * notification for it to {@link #relieveHeapPressure} on the main thread. The
+     * collection usage is what a GC left behind - live data, not garbage waiting for
+     * the next collection - so a crossing means real pressure.</p>
      * 
-     * @param sender The CommandSender to receive the help menu
+     * <p>The threshold is a JVM-wide setting of the pool; another plugin setting it too
+     * would replace ours.</p>
      */
-    private void sendHelp(CommandSender sender) {
-        // Top decorative border (gold ━ characters for visual separation)
-        sender.sendMessage(Component.text("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━", NamedTextColor.GOLD));
-        
-        // Title with bold gold text
-        sender.sendMessage(Component.text("Backpacks Commands", NamedTextColor.GOLD, TextDecoration.BOLD));
-        
-        // Separator border under title
-        sender.sendMessage(Component.text("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━", NamedTextColor.GOLD));
-        
-        // /bp command - only show if player has backpacks.use permission
-        if (sender.hasPermission("backpacks.use")) {
-            sender.sendMessage(Component.text("/bp", NamedTextColor.YELLOW)
-                .append(Component.text(" - Open your personal backpack (54 slots)", NamedTextColor.GRAY)));
+    private void startHeapPressureWatch() {
+        if (!getConfig().getBoolean("storage.cache.heap-pressure.enabled", true)) {
+            return;
+        }
+        MemoryPoolMXBean oldGen = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0
+                    && (oldGen == null || pool.getUsage().getMax() > oldGen.getUsage().getMax())) {
+                oldGen = pool;
+            }
+        }
+        if (oldGen == null) {
+            getLogger().info("No heap pool supports usage thresholds - heap pressure eviction is off");
+            return;
         }
         
-        // /backpack help - always visible (no permission required)
-        sender.sendMessage(Component.text("/backpack help", NamedTextColor.YELLOW)
-            .append(Component.text(" - Show this help menu", NamedTextColor.GRAY)));
+        int threshold = Math.max(1, Math.min(99, getConfig().getInt("storage.cache.heap-pressure.threshold-percent", 85)));
+        oldGen.setCollectionUsageThreshold(oldGen.getUsage().getMax() / 100 * threshold);
         
-        // Give commands - only show if sender has backpacks.give permission
-        if (sender.hasPermission("backpacks.give")) {
-            sender.sendMessage(Component.text("/backpack give backpack <player>", NamedTextColor.YELLOW)
-                .append(Component.text(" - Give a backpack", NamedTextColor.GRAY)));
-            sender.sendMessage(Component.text("/backpack give doubler <player>", NamedTextColor.YELLOW)
-                .append(Component.text(" - Give a capacity doubler", NamedTextColor.GRAY)));
+        String poolName = oldGen.getName();
+        heapPressurePool = oldGen;
+        heapPressureListener = (notification, handback) -> {
+            // JMX notification thread - only hand over to the main thread
+            if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+                return;
+            }
+            MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+            if (!info.getPoolName().equals(poolName) || !isEnabled()) {
+                return;
+            }
+            MemoryUsage usage = info.getUsage();
+            Bukkit.getScheduler().runTask(this, () -> relieveHeapPressure(usage));
+        };
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(heapPressureListener, null, null);
+    }
+    
+    /**
+     * Stops watching for heap pressure: removes the listener, clears the pool's threshold
+     * and stops {@link #checkHeapPressure}.
+     */
+    private void stopHeapPressureWatch() {
+        if (heapPressureTask != null) {
+            heapPressureTask.cancel();
+            heapPressureTask = null;
         }
-        
-        // Reload command - only show if sender has backpacks.admin permission
-        if (sender.hasPermission("backpacks.admin")) {
-            sender.sendMessage(Component.text("/backpack reload", NamedTextColor.YELLOW)
-                .append(Component.text(" - Reload configuration", NamedTextColor.GRAY)));
+        if (heapPressurePool == null) {
+            return;
         }
-        
-        // Bottom decorative border
-        sender.sendMessage(Component.text("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━", NamedTextColor.GOLD));
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(heapPressureListener);
+        } catch (ListenerNotFoundException e) {
+            // Already gone - nothing to remove
+        }
+        heapPressurePool.setCollectionUsageThreshold(0);
+        heapPressurePool = null;
+        heapPressureListener = null;
     }
     
     /**
-     * Handles the /backpack give command for distributing backpacks and doublers.
-     * 
-     * <p>Command syntax: /backpack give &lt;backpack|doubler&gt; &lt;player&gt;</p>
-     * <p>Permission required: backpacks.give</p>
+     * Frees memory after a GC left the old generation above its threshold: the cache
+     * limit drops to "storage.cache.heap-pressure.shrink-to-percent" of what the cache
+     * holds, and the backpacks used least (see {@link BackpackCache#evict}) are evicted
+     * down to it at once. Open backpacks and backpacks with an unfinished write stay.
+     * Main thread.
      * 
-     * <p>Argument structure:</p>
-     * <ul>
-     *   <li>args[0]: "give" (subcommand, already matched)</li>
-     *   <li>args[1]: Item type ("backpack" or "doubler")</li>
-     *   <li>args[2]: Target player name</li>
-     * </ul>
+     * <p>The lower limit holds until {@link #checkHeapPressure} sees the pressure end.
+     * Every GC above the threshold notifies, so this acts at most once per
+     * {@link #HEAP_RELIEF_INTERVAL_SECONDS}. Each relief is logged with the pool's usage,
+     * so it can be matched against GC logs, and counted in /backpack stats.</p>
      * 
-     * <p>Validation sequence:</p>
-     * <ol>
-     *   <li>Check backpacks.give permission</li>
-     *   <li>Validate argument count (need at least 3)</li>
-     *   <li>Parse item type (case-insensitive)</li>
-     *   <li>Find target player (must be online)</li>
-     * </ol>
-     * 
-     * <p>Success behavior:</p>
-     * <ul>
-     *   <li>Creates appropriate item via {@link #createBackpack()} or {@link #createDoubler()}</li>
-     *   <li>Adds to target player's inventory</li>
-     *   <li>Sends green confirmation to sender with player name in gold</li>
-     *   <li>Sends green notification to target player</li>
-     * </ul>
-     * 
-     * <p>Error cases:</p>
-     * <ul>
-     *   <li>No permission → Red error message</li>
-     *   <li>Missing arguments → Red usage message</li>
-     *   <li>Player not found → Red error message</li>
-     *   <li>Invalid item type → Red error message</li>
-     * </ul>
-     * 
-     * @param sender The CommandSender executing the command
-     * @param args Full command arguments (includes "give" as args[0])
-     * @return true (command was handled)
+     * @param usage The pool's usage after the GC that crossed the threshold
      */
-    private boolean handleGive(CommandSender sender, String[] args) {
-        // Check permission first
-        if (!sender.hasPermission("backpacks.give")) {
-            sender.sendMessage(Component.text("You don't have permission to give backpack items!", NamedTextColor.RED));
-            return true;
+    private void relieveHeapPressure(MemoryUsage usage) {
+        long now = System.currentTimeMillis();
+        if (heapPressurePool == null || now - lastHeapRelief < HEAP_RELIEF_INTERVAL_SECONDS * 1000L) {
+            return;
         }
+        lastHeapRelief = now;
+        heapPressureEvents++;
         
-        // Validate argument count
-        // Expected: args[0]="give", args[1]=type, args[2]=player
-        if (args.length < 3) {
-            sender.sendMessage(Component.text("Usage: /backpack give <backpack|doubler> <player>", NamedTextColor.RED));
-            return true;
-        }
+        int shrinkTo = Math.max(0, Math.min(99, getConfig().getInt("storage.cache.heap-pressure.shrink-to-percent", 50)));
+        long before = backpackStorage.weight();
+        backpackStorage.setLimit(Math.max(1, before / 100 * shrinkTo));
+        int evicted = backpackStorage.evict(cachePinned());
+        heapPressureEvictions += evicted;
         
-        // Parse arguments
-        String itemType = args[1].toLowerCase();  // Normalize to lowercase for matching
-        Player target = Bukkit.getPlayer(args[2]); // Look up player by name
+        getLogger().warning("Heap pressure: " + heapPressurePool.getName() + " at " + (usage.getUsed() / 1024 / 1024)
+            + " of " + (usage.getMax() / 1024 / 1024) + " MB after GC - evicted " + evicted + " backpacks, cache "
+            + (before / 1024) + " KB -> " + (backpackStorage.weight() / 1024) + " KB (estimated)");
         
-        // Validate target player exists and is online
-        if (target == null) {
-            sender.sendMessage(Component.text("Player not found!", NamedTextColor.RED));
-            return true;
+        if (heapPressureTask == null) {
+            long interval = HEAP_RELIEF_INTERVAL_SECONDS * 20L;
+            heapPressureTask = getServer().getScheduler().runTaskTimer(this, this::checkHeapPressure, interval, interval);
+        }
+    }
+    
+    /**
+     * Ends a period of heap pressure once the old generation's usage after the last GC
+     * is below "storage.cache.heap-pressure.recover-percent" of its maximum: the cache
+     * gets its configured budget back. Main thread, every
+     * {@link #HEAP_RELIEF_INTERVAL_SECONDS} while the pressure lasts.
+     */
+    private void checkHeapPressure() {
+        MemoryUsage usage = heapPressurePool != null ? heapPressurePool.getCollectionUsage() : null;
+        if (usage == null || usage.getMax() <= 0) {
+            return;
+        }
+        int recover = Math.max(1, Math.min(99, getConfig().getInt("storage.cache.heap-pressure.recover-percent", 70)));
+        if (usage.getUsed() > usage.getMax() / 100 * recover) {
+            return;
+        }
+        backpackStorage.setLimit(backpackStorage.maximum());
+        heapPressureTask.cancel();
+        heapPressureTask = null;
+        getLogger().info("Heap pressure over: " + heapPressurePool.getName() + " at " + (usage.getUsed() / 1024 / 1024)
+            + " of " + (usage.getMax() / 1024 / 1024) + " MB after GC - backpack cache budget restored");
+    }
+    
+    /**
+     * Starts loading, in the background, the backpacks most likely to be opened within
+     * the next hour, so the first opens after a lazy start find them in memory.
+     * 
+     * <p>Candidates come from the {@link #accessStatistics}: backpacks opened at least
+     * {@link #WARMUP_MIN_OPENS} times in the current and the next hour of the day over
+     * the last few weeks, most opened first - typically the backpacks of players who are
+     * usually online at this time. They are read in batches ({@link BackpackStore#loadAll})
+     * until their estimated size ({@link BackpackCache#weigh}) reaches
+     * "storage.cache.warmup-memory-mb", capped by the cache budget, and cached through
+     * {@link #cachePrefetched} on the main thread.</p>
+     * 
+     * <p>Only in lazy mode (eager mode loads everything anyway). A batch that can't be
+     * read is skipped; its backpacks are read, and quarantined if damaged, when opened.</p>
+     */
+    private void warmUpBackpacks() {
+        long budget = Math.max(0, getConfig().getLong("storage.cache.warmup-memory-mb", 16)) * 1024 * 1024;
+        if (backpackStorage.maximum() > 0) {
+            budget = Math.min(budget, backpackStorage.maximum());
+        }
+        if (!lazyLoading || budget == 0 || accessStatistics == null) {
+            return;
         }
         
-        // Handle different item types
-        switch (itemType) {
-            case "backpack":
-                // Create a new 27-slot backpack and add to target's inventory
-                target.getInventory().addItem(createBackpack());
-                
-                // Notify the command sender
-                sender.sendMessage(Component.text("Gave backpack to ", NamedTextColor.GREEN)
-                    .append(Component.text(target.getName(), NamedTextColor.GOLD)));
-                
-                // Notify the target player
-                target.sendMessage(Component.text("You received a backpack!", NamedTextColor.GREEN));
-                break;
-                
-            case "doubler":
-                // Create a capacity doubler and add to target's inventory
-                target.getInventory().addItem(createDoubler());
-                
-                // Notify the command sender
-                sender.sendMessage(Component.text("Gave capacity doubler to ", NamedTextColor.GREEN)
-                    .append(Component.text(target.getName(), NamedTextColor.GOLD)));
-                
-                // Notify the target player
-                target.sendMessage(Component.text("You received a backpack capacity doubler!", NamedTextColor.GREEN));
-                break;
-                
-            default:
-                // Unknown item type - show error
-                sender.sendMessage(Component.text("Invalid item type! Use 'backpack' or 'doubler'", NamedTextColor.RED));
-                return true;
+        Map<String, ManifestEntry> candidates = new LinkedHashMap<>();
+        for (String key : accessStatistics.likelyOpened(LocalTime.now().getHour(), 2, WARMUP_MIN_OPENS)) {
+            ManifestEntry entry = manifest.get(key);
+            if (entry != null && !quarantine.contains(key) && backpackStorage.peek(key) == null) {
+                candidates.put(key, entry);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
         }
         
-        return true;
+        long limit = budget;
+        long started = System.currentTimeMillis();
+        BackpackStore store = backpackStore;
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            List<String> keys = new ArrayList<>(candidates.keySet());
+            Map<String, BackpackSnapshot> loaded = new LinkedHashMap<>();
+            long weight = 0;
+            boolean full = false;
+            for (int i = 0; i < keys.size() && !full; i += WARMUP_BATCH) {
+                List<String> batch = keys.subList(i, Math.min(keys.size(), i + WARMUP_BATCH));
+                Map<String, BackpackSnapshot> snapshots;
+                try {
+                    snapshots = store.loadAll(batch);
+                } catch (IOException | RuntimeException e) {
+                    continue;
+                }
+                for (String key : batch) {
+                    BackpackSnapshot snapshot = snapshots.get(key);
+                    if (snapshot == null) {
+                        continue;
+                    }
+                    long size = BackpackCache.weigh(snapshot.contents());
+                    if (weight + size > limit) {
+                        full = true;
+                        break;
+                    }
+                    weight += size;
+                    loaded.put(key, snapshot);
+                }
+            }
+            long size = weight;
+            if (!isEnabled() || loaded.isEmpty()) {
+                return;
+            }
+            Bukkit.getScheduler().runTask(this, () -> {
+                int warmed = 0;
+                for (Map.Entry<String, BackpackSnapshot> entry : loaded.entrySet()) {
+                    if (cachePrefetched(entry.getKey(), candidates.get(entry.getKey()), false, entry.getValue())) {
+                        warmed++;
+                    }
+                }
+                backpacksWarmed += warmed;
+                getLogger().info("Warmed up " + warmed + " backpacks usually opened at this time of day ("
+                    + (size / 1024) + " KB) in " + (System.currentTimeMillis() - started) + "ms");
+            });
+        });
     }
     
     /**
-     * Handles the /backpack reload command for refreshing configuration.
-     * 
-     * <p>Command syntax: /backpack reload</p>
-     * <p>Permission required: backpacks.admin</p>
+     * Writes the {@link #accessStatistics} if they changed, logging a failure. Any thread.
+     */
+    private void saveAccessStatistics() {
+        if (accessStatistics == null) {
+            return;
+        }
+        try {
+            accessStatistics.save();
+        } catch (IOException e) {
+            getLogger().warning("Failed to save backpack access statistics: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Loads backpack data from the storage backend at startup.
      * 
-     * <p>Process:</p>
+     * <p>Loading process:</p>
      * <ol>
-     *   <li>Check backpacks.admin permission</li>
-     *   <li>Call Bukkit's reloadConfig() to re-read config.yml</li>
-     *   <li>Send confirmation message</li>
+     *   <li>Clear existing backpackStorage map (important for /reload scenarios)</li>
+     *   <li>Read the "storage.lazy-loading" setting</li>
+     *   <li>Take the list of stored backpacks from the {@link #manifest} - no directory
+     *       listing and no backpack read</li>
+     *   <li>Eager mode only: load every backpack in one {@link BackpackStore#loadAll} call
+     *       (one at a time via {@link #loadStoredBackpack(String)} if any of them fails)
+     *       and store it in backpackStorage, until the memory budget is reached</li>
+     *   <li>Log count of indexed or loaded backpacks</li>
      * </ol>
      * 
-     * <p>What gets reloaded:</p>
+     * <p>In lazy mode no backpack is read here, and each backpack is read by
+     * {@link #getBackpackContents(String)} when first opened.</p>
+     * 
+     * <p>Error handling:</p>
      * <ul>
-     *   <li>backpack-item: Material for new backpacks</li>
-     *   <li>allow-nested-backpacks: Nesting restriction setting</li>
+     *   <li>Nothing stored yet: Logs info and returns (fresh server)</li>
+     *   <li>Individual backpack can't be read: see {@link #loadStoredBackpack(String)}</li>
      * </ul>
      * 
-     * <p>What does NOT get reloaded:</p>
+     * <p>Storage key conventions:</p>
      * <ul>
-     *   <li>Backpack storage data (would require closing all open backpacks)</li>
-     *   <li>NamespacedKeys (immutable after plugin initialization)</li>
-     *   <li>Currently active backpack sessions</li>
+     *   <li>Item backpacks: Random UUID (e.g., "a1b2c3d4-e5f6-7890-abcd-ef1234567890")</li>
+     *   <li>Personal backpacks: "personal-{PlayerUUID}"</li>
      * </ul>
      * 
-     * <p>This command is safe to use while players have backpacks open.
-     * Config changes only affect new operations, not existing sessions.</p>
-     * 
-     * @param sender The CommandSender executing the command
-     * @return true (command was handled)
+     * <p>Called only during {@link #onEnable()} at server startup, after
+     * {@link #openBackpackStore()}.</p>
      */
-    private boolean handleReload(CommandSender sender) {
-        // Check admin permission
-        if (!sender.hasPermission("backpacks.admin")) {
-            sender.sendMessage(Component.text("You don't have permission to reload configuration!", NamedTextColor.RED));
-            return true;
+    private void loadBackpackStorage() {
+        // Clear any existing data - important if this is called during a reload
+        // (though currently only called in onEnable, this is defensive programming)
+        backpackStorage.clear();
+        
+        // Lazy loading is the default: only learn which backpacks exist at startup
+        lazyLoading = getConfig().getBoolean("storage.lazy-loading", true);
+        
+        if (manifest.size() == 0) {
+            // Nothing stored yet - normal for fresh server installations
+            getLogger().info("No stored backpacks found, starting fresh");
+            return;
         }
         
-        // Re-read config.yml from disk
-        // This updates getConfig() to return fresh values
-        reloadConfig();
+        // Track count for logging
+        int loaded = 0;
+        boolean budgetReached = false;
         
-        // Confirm successful reload
-        sender.sendMessage(Component.text("Backpacks configuration reloaded!", NamedTextColor.GREEN));
+        // Eager mode: deserialize everything now and keep it in the main storage map
+        // Lazy mode skips this - each backpack is read on first open
+        if (!lazyLoading) {
+            Set<String> keys = manifest.keys();
+            try {
+                // One batch read lets the backend order its reads
+                Map<String, BackpackSnapshot> snapshots = backpackStore.loadAll(keys);
+                for (String uuid : keys) {
+                    if (backpackStorage.full()) {
+                        // The rest load on first open, as in lazy mode
+                        budgetReached = true;
+                        break;
+                    }
+                    BackpackSnapshot snapshot = snapshots.get(uuid);
+                    backpackStorage.put(uuid, snapshot != null ? snapshot.contents() : Collections.emptyMap());
+                    loaded++;
+                }
+            } catch (IOException e) {
+                // Some backpack is unreadable - fall back to one at a time so the rest still load
+                for (String uuid : keys) {
+                    if (backpackStorage.full()) {
+                        budgetReached = true;
+                        break;
+                    }
+                    Map<Integer, ItemStack> contents = loadStoredBackpack(uuid);
+                    if (!quarantine.contains(uuid)) {
+                        backpackStorage.put(uuid, contents);
+                        loaded++;
+                    }
+                }
+            }
+        }
         
-        return true;
+        // Log the results for server operators
+        if (lazyLoading) {
+            getLogger().info("Indexed " + manifest.size() + " backpacks (contents load on first open)");
+        } else {
+            getLogger().info("Loaded " + loaded + " backpacks from storage"
+                + (budgetReached ? " (memory budget reached, the rest load on first open)" : ""));
+        }
     }
     
-    // ==================== TAB COMPLETION ====================
-    
     /**
-     * Provides intelligent tab completion suggestions for /backpack and /bp commands.
-     * 
-     * <p>Completion behavior by command and position:</p>
+     * Reads one backpack from the storage backend into a slot → item map.
      * 
-     * <h3>/bp command:</h3>
-     * <p>Returns empty list (no arguments needed or supported)</p>
+     * <p>A backpack that can't be read is logged and treated as empty, matching
+     * how unreadable YAML files have always been handled.</p>
      * 
-     * <h3>/backpack command:</h3>
-     * <p><b>Position 1 (subcommand):</b></p>
-     * <ul>
-     *   <li>Always: "help"</li>
-     *   <li>If has backpacks.give: "give"</li>
-     *   <li>If has backpacks.admin: "reload"</li>
-     * </ul>
+     * @param uuid The backpack's storage key
+     * @return Unmodifiable slot → item map (never null, may be empty)
+     */
+    private Map<Integer, ItemStack> loadStoredBackpack(String uuid) {
+        BackpackSnapshot snapshot = loadStoredSnapshot(uuid);
+        return snapshot != null ? snapshot.contents() : Collections.emptyMap();
+    }
+    
+    /**
+     * Reads one backpack from the storage backend, logging a failure like
+     * {@link #loadStoredBackpack(String)}. A damaged record also quarantines the backpack.
      * 
-     * <p><b>Position 2 (after "give"):</b></p>
-     * <ul>
-     *   <li>"backpack"</li>
-     *   <li>"doubler"</li>
-     * </ul>
+     * @param uuid The backpack's storage key
+     * @return The stored snapshot, or null if there is none or it can't be read
+     */
+    private BackpackSnapshot loadStoredSnapshot(String uuid) {
+        try {
+            return backpackStore.load(uuid);
+        } catch (CorruptRecordException e) {
+            byte[] record;
+            try {
+                record = backpackStore.readRecord(uuid);
+            } catch (IOException readFailure) {
+                record = null;
+            }
+            quarantineBackpack(uuid, record, e.getMessage());
+            return null;
+        } catch (IOException e) {
+            getLogger().warning("Failed to read backpack " + uuid + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Starts the {@link #upgradeTask} if the {@link #manifest} lists backpacks stored by an
+     * older Minecraft version.
      * 
-     * <p><b>Position 3 (after "give &lt;type&gt;"):</b></p>
-     * <ul>
-     *   <li>All online player names</li>
-     * </ul>
+     * <p>Configuration: "storage.upgrade.tick-budget-ms" (default 2) - the most time per
+     * tick spent reading and re-queuing outdated backpacks; 0 leaves them to be upgraded
+     * when they are opened.</p>
+     */
+    private void startDataVersionUpgrade() {
+        int budget = getConfig().getInt("storage.upgrade.tick-budget-ms", 2);
+        List<String> outdated = new ArrayList<>();
+        for (Map.Entry<String, ManifestEntry> entry : manifest.entries().entrySet()) {
+            if (BackpackCodec.isOutdated(entry.getValue().dataVersion())) {
+                outdated.add(entry.getKey());
+            }
+        }
+        if (outdated.isEmpty()) {
+            return;
+        }
+        if (budget <= 0) {
+            getLogger().info(outdated.size() + " backpacks were stored by an older Minecraft version;"
+                + " they are upgraded as they are opened");
+            return;
+        }
+        
+        getLogger().info("Upgrading " + outdated.size() + " backpacks stored by an older Minecraft version in the background");
+        upgradeBacklog = outdated.iterator();
+        long budgetNanos = budget * 1_000_000L;
+        // Starts after the first second, once the server is ticking normally
+        upgradeTask = getServer().getScheduler().runTaskTimer(this, () -> upgradeOutdatedBackpacks(budgetNanos), 20L, 1L);
+    }
+    
+    /**
+     * One tick of the background DataVersion upgrade: reads outdated backpacks and queues
+     * them for rewriting until the tick's time budget is spent.
      * 
-     * <p>Filtering behavior:</p>
-     * <p>All suggestions are filtered by the current partial input (case-insensitive).
-     * For example, typing "/backpack g" filters to suggestions starting with "g".</p>
+     * <p>Runs on the main thread, so nothing can open or save a backpack between reading
+     * it and queuing its rewrite. Backpacks already in memory are written from memory
+     * (their items were upgraded when they were loaded, and memory is never older than
+     * storage). Others are read without being kept in memory.</p>
      * 
-     * <p>Permission-aware completions ensure players only see options they can use.</p>
+     * <p>Stops for the tick when the write queue is half full, so saves of players'
+     * backpacks never wait behind upgrades; finishes when every backpack was visited.</p>
      * 
-     * @param sender The CommandSender typing the command
-     * @param command The Command being completed
-     * @param alias The alias used (e.g., "backpack" or "bp")
-     * @param args Current arguments being typed
-     * @return List of completion suggestions (may be empty, never null)
+     * @param budgetNanos Time this tick may spend, in nanoseconds
      */
-    @Override
-    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
-        List<String> completions = new ArrayList<>();
-        
-        // /bp has no tab completions (opens personal backpack directly)
-        if (alias.equalsIgnoreCase("bp")) {
-            return completions;
-        }
-        
-        // First argument: subcommand suggestions
-        if (args.length == 1) {
-            // Help is always available (no permission required)
-            completions.add("help");
+    private void upgradeOutdatedBackpacks(long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        int queueLimit = Math.max(1, getConfig().getInt("storage.max-pending-writes", 1024) / 2);
+        while (System.nanoTime() < deadline) {
+            if (!upgradeBacklog.hasNext()) {
+                getLogger().info("DataVersion upgrade finished (" + backpacksUpgraded + " backpacks rewritten)");
+                upgradeTask.cancel();
+                upgradeTask = null;
+                upgradeBacklog = null;
+                return;
+            }
+            if (writeQueue.pendingCount() >= queueLimit) {
+                return;
+            }
             
-            // Give command requires backpacks.give permission
-            if (sender.hasPermission("backpacks.give")) {
-                completions.add("give");
+            String key = upgradeBacklog.next();
+            ManifestEntry entry = manifest.get(key);
+            if (entry == null || !BackpackCodec.isOutdated(entry.dataVersion()) || writeQueue.peek(key) != null
+                    || quarantine.contains(key)) {
+                // Deleted, saved since startup, about to be written anyway, or damaged
+                continue;
             }
             
-            // Reload command requires backpacks.admin permission
-            if (sender.hasPermission("backpacks.admin")) {
-                completions.add("reload");
+            Map<Integer, ItemStack> inMemory = backpackStorage.peek(key);
+            if (inMemory != null) {
+                if (!inMemory.isEmpty()) {
+                    rewriteUpgraded(key, new BackpackSnapshot(entry.capacity(), inMemory));
+                }
+                continue;
             }
-        } 
-        // Second argument: item type (only after "give")
-        else if (args.length == 2 && args[0].equalsIgnoreCase("give")) {
-            completions.add("backpack");
-            completions.add("doubler");
-        } 
-        // Third argument: player name (only after "give <type>")
-        else if (args.length == 3 && args[0].equalsIgnoreCase("give")) {
-            // Return all online player names for selection
-            // No permission check here since give permission was already verified
-            return Bukkit.getOnlinePlayers().stream()
-                .map(Player::getName)
+            BackpackSnapshot stored = loadStoredSnapshot(key);
+            if (stored == null) {
+                continue;
+            }
+            if (stored.outdated()) {
+                rewriteUpgraded(key, stored);
+            } else {
+                // The manifest was behind (e.g. rebuilt) - the record is current already
+                manifest.recordDataVersion(key, BackpackCodec.currentDataVersion());
+            }
+        }
+    }
+    
+    /**
+     * Starts the {@link #scrubber} unless "storage.scrub.enabled" is false.
+     * 
+     * <p>Configuration: "storage.scrub.rate-mb-per-second" (default 2) bounds its reads,
+     * "storage.scrub.pass-interval-hours" (default 24) is the pause between passes. The
+     * first pass starts {@link #SCRUB_FIRST_PASS_DELAY_MINUTES} after startup.</p>
+     */
+    private void startIntegrityScrubber() {
+        if (!getConfig().getBoolean("storage.scrub.enabled", true)) {
+            return;
+        }
+        double rate = getConfig().getDouble("storage.scrub.rate-mb-per-second", 2);
+        long bytesPerSecond = Math.max(64 * 1024, (long) (rate * 1024 * 1024));
+        long passIntervalHours = Math.max(1, getConfig().getInt("storage.scrub.pass-interval-hours", 24));
+        scrubber = new IntegrityScrubber(backpackStore, manifest, quarantine, bytesPerSecond, passIntervalHours,
+            SCRUB_FIRST_PASS_DELAY_MINUTES, getLogger(), this::quarantineBackpack);
+    }
+    
+    /**
+     * Quarantines a backpack whose stored record is damaged, and tells online admins.
+     * 
+     * <p>May be called from any thread (the {@link #scrubber} calls it from its own). The
+     * damaged record is copied into quarantine/ right away; the rest happens on the main
+     * thread. If the backpack's contents are in {@link #backpackStorage}, they are the
+     * last good version - they are written back over the damaged record and the backpack
+     * is released again without anyone noticing.</p>
+     * 
+     * @param key The backpack's storage key
+     * @param record The damaged record as read, or null if it couldn't be read
+     * @param reason What is wrong with it
+     */
+    private void quarantineBackpack(String key, byte[] record, String reason) {
+        if (!quarantine.add(key, record, reason)) {
+            return;
+        }
+        getLogger().warning("Backpack " + key + " is damaged (" + reason + ") - quarantined, see quarantine/" + key + ".txt");
+        if (!isEnabled()) {
+            // Shutting down - the quarantine files are written, which is all that matters now
+            return;
+        }
+        
+        getServer().getScheduler().runTask(this, () -> {
+            Map<Integer, ItemStack> inMemory = backpackStorage.peek(key);
+            ManifestEntry entry = manifest.get(key);
+            if (inMemory != null && !inMemory.isEmpty() && entry != null) {
+                // Full snapshot - a delta would land on top of the damaged record
+                BackpackSnapshot repaired = new BackpackSnapshot(entry.capacity(), inMemory);
+                writeQueue.submit(key, repaired);
+                manifest.recordSave(key, repaired);
+                try {
+                    quarantine.release(key);
+                } catch (IOException e) {
+                    getLogger().warning("Failed to release backpack " + key + " from quarantine: " + e.getMessage());
+                }
+                getLogger().info("Backpack " + key + " was in memory and has been rewritten from there");
+                return;
+            }
+            
+            Component message = Component.text("[Backpacks] Backpack " + key + " is damaged and was quarantined: "
+                + reason + ". See /backpack quarantine", NamedTextColor.RED);
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                if (player.hasPermission("backpacks.admin")) {
+                    player.sendMessage(message);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Schedules archival passes unless "storage.archive.enabled" is false.
+     * 
+     * <p>Configuration: "storage.archive.after-days" (default 90) - how long a backpack
+     * must have gone without being opened or saved; "storage.archive.interval-hours"
+     * (default 24) - the time between passes. The first pass runs
+     * {@link #ARCHIVE_FIRST_PASS_DELAY_MINUTES} after startup.</p>
+     */
+    private void startArchival() {
+        if (!getConfig().getBoolean("storage.archive.enabled", true)) {
+            return;
+        }
+        int afterDays = Math.max(1, getConfig().getInt("storage.archive.after-days", 90));
+        long interval = Math.max(1, getConfig().getInt("storage.archive.interval-hours", 24)) * 72_000L;
+        long firstPass = Math.min(interval, ARCHIVE_FIRST_PASS_DELAY_MINUTES * 1_200L);
+        archiveTask = getServer().getScheduler().runTaskTimer(this, () -> archiveInactiveBackpacks(afterDays), firstPass, interval);
+    }
+    
+    /**
+     * Starts an archival pass: every stored backpack not opened or saved for
+     * {@code afterDays} is copied into a new {@link #coldStorage} segment by an
+     * {@link ArchivalJob} in the background. Main thread; does nothing while the previous
+     * pass is still running.
+     * 
+     * <p>Open, quarantined and queued backpacks are left alone. Loaded ones are copied
+     * from memory, the rest read from the backend. {@link #finishArchival} completes the
+     * pass.</p>
+     * 
+     * @param afterDays Days of inactivity before a backpack is archived
+     */
+    private void archiveInactiveBackpacks(int afterDays) {
+        if (activeArchival != null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - afterDays * 86_400_000L;
+        Set<String> open = new HashSet<>(openBackpackUUIDs.values());
+        Map<String, ManifestEntry> candidates = new HashMap<>();
+        Map<String, Map<Integer, ItemStack>> fromMemory = new HashMap<>();
+        for (Map.Entry<String, ManifestEntry> entry : manifest.entries().entrySet()) {
+            String key = entry.getKey();
+            // Rebuilt manifests may not know when a backpack was last opened - its last save counts then
+            long lastUsed = Math.max(entry.getValue().lastOpened(), entry.getValue().lastModified());
+            if (lastUsed == 0 || lastUsed >= cutoff || open.contains(key) || quarantine.contains(key)
+                    || writeQueue.peek(key) != null) {
+                continue;
+            }
+            candidates.put(key, entry.getValue());
+            Map<Integer, ItemStack> inMemory = backpackStorage.peek(key);
+            if (inMemory != null) {
+                fromMemory.put(key, inMemory);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        
+        ArchivalJob job;
+        try {
+            int segment = coldStorage.newSegment();
+            job = new ArchivalJob(segment, coldStorage.segmentPath(segment), candidates, fromMemory,
+                backpackStore, getLogger());
+        } catch (IOException e) {
+            getLogger().warning("Failed to start archiving backpacks: " + e.getMessage());
+            return;
+        }
+        activeArchival = job;
+        getLogger().info("Archiving " + candidates.size() + " backpacks not opened in " + afterDays + " days...");
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            Set<String> written;
+            try {
+                written = job.run();
+            } catch (IOException e) {
+                getLogger().warning("Archiving backpacks failed: " + e.getMessage());
+                written = Collections.emptySet();
+            }
+            if (isEnabled()) {
+                Set<String> archived = written;
+                Bukkit.getScheduler().runTask(this, () -> finishArchival(job, archived));
+            }
+        });
+    }
+    
+    /**
+     * Completes an archival pass once its segment is on disk. Main thread.
+     * 
+     * <p>A backpack that was opened, saved or loaded while the segment was written keeps
+     * living in the backend (its entry in the segment is dead). Every other one becomes
+     * archived: it leaves {@link #backpackStorage} and the {@link #manifest}, and is
+     * deleted from the backend through the write queue - logged like any delete, so a
+     * replay after a crash can't put an older version back over the archived one.</p>
+     * 
+     * @param job The finished pass
+     * @param written Backpacks in its segment
+     */
+    private void finishArchival(ArchivalJob job, Set<String> written) {
+        activeArchival = null;
+        Set<String> open = new HashSet<>(openBackpackUUIDs.values());
+        List<String> archived = new ArrayList<>();
+        List<String> superseded = new ArrayList<>();
+        for (String key : written) {
+            ManifestEntry chosen = job.candidate(key);
+            ManifestEntry current = manifest.get(key);
+            boolean untouched = current != null && current.lastModified() == chosen.lastModified()
+                && current.lastOpened() == chosen.lastOpened() && backpackStorage.peek(key) == job.memory(key)
+                && !open.contains(key) && !quarantine.contains(key) && writeQueue.peek(key) == null;
+            (untouched ? archived : superseded).add(key);
+        }
+        coldStorage.archived(job.segment(), archived, superseded);
+        
+        for (String key : archived) {
+            BackpackSnapshot removed = new BackpackSnapshot(manifest.get(key).capacity(), Collections.emptyMap());
+            backpackStorage.remove(key);
+            manifest.recordDelete(key);
+            logBackpackArchival(key, removed.capacity());
+            writeQueue.submit(key, removed);
+        }
+        backpacksArchived += archived.size();
+        if (!written.isEmpty()) {
+            getLogger().info("Archived " + archived.size() + " backpacks into archive/"
+                + coldStorage.segmentPath(job.segment()).getFileName() + " (" + (job.size() / 1024) + " KB)"
+                + (superseded.isEmpty() ? "" : ", " + superseded.size() + " were used meanwhile and stay")
+                + (job.failedCount() > 0 ? ", " + job.failedCount() + " unreadable" : ""));
+        }
+    }
+    
+    /**
+     * Loads an archived backpack off the main thread, brings it back and then runs
+     * {@code reopen} - the short delay when opening a backpack nobody has used in a long
+     * time. Main thread.
+     * 
+     * <p>Each backpack is loaded once at a time; a player opening it meanwhile is asked to
+     * wait. An archived copy that can't be read quarantines the backpack.</p>
+     * 
+     * @param player The player opening it
+     * @param key The backpack's storage key
+     * @param reopen Opens it once it is back - run only if the player is still online
+     *        and has no other backpack open
+     */
+    private void loadArchivedBackpack(Player player, String key, Runnable reopen) {
+        if (!archiveLoads.add(key)) {
+            player.sendMessage(Component.text("This backpack is still being unpacked...", NamedTextColor.YELLOW));
+            return;
+        }
+        player.sendMessage(Component.text("Unpacking backpack...", NamedTextColor.GRAY));
+        ColdStorage cold = coldStorage;
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            BackpackSnapshot archived = null;
+            IOException failure = null;
+            try {
+                archived = cold.read(key);
+            } catch (IOException e) {
+                failure = e;
+            }
+            BackpackSnapshot loaded = archived;
+            IOException error = failure;
+            if (!isEnabled()) {
+                // Nothing changed - it stays archived
+                return;
+            }
+            Bukkit.getScheduler().runTask(this, () -> {
+                archiveLoads.remove(key);
+                if (error != null) {
+                    quarantineBackpack(key, null, "archived copy can't be read: " + error.getMessage());
+                    player.sendMessage(Component.text("This backpack's stored data is damaged. It is locked until an admin restores it.", NamedTextColor.RED));
+                    return;
+                }
+                if (loaded != null) {
+                    unarchiveBackpack(key, loaded);
+                }
+                // Null: brought back by another read in the meantime
+                if (player.isOnline() && !activeBackpacks.containsKey(player.getUniqueId())) {
+                    reopen.run();
+                }
+            });
+        });
+    }
+    
+    /**
+     * Brings an archived backpack back: it is cached in {@link #backpackStorage} and
+     * written to the backend in full, logged like a save, so from now on it is an
+     * ordinary stored backpack. Its archive entry stays on disk until it is dead for
+     * good (see {@link ColdStorage}). Main thread.
+     * 
+     * @param key The backpack's storage key
+     * @param archived Its contents, as read from the archive
+     * @return Its contents - the ones already loaded if another read brought it back first
+     */
+    private Map<Integer, ItemStack> unarchiveBackpack(String key, BackpackSnapshot archived) {
+        if (!coldStorage.release(key)) {
+            return getBackpackContents(key);
+        }
+        // No changedSlots: the backend holds nothing for this key to apply a delta to
+        BackpackSnapshot full = new BackpackSnapshot(archived.capacity(), archived.contents());
+        backpackStorage.put(key, full.contents());
+        logBackpackChange(key, full);
+        writeQueue.submit(key, full);
+        manifest.recordSave(key, full);
+        backpacksUnarchived++;
+        return full.contents();
+    }
+    
+    /**
+     * Periodic async task: writes the {@link #manifest} back if it changed, hands the
+     * open times recorded since the last run to the backend and writes the
+     * {@link #accessStatistics}.
+     * 
+     * <p>Runs every "storage.manifest-save-interval-seconds" on a Bukkit async thread.</p>
+     */
+    private void syncManifest() {
+        manifest.flush();
+        pushOpenTimes();
+        saveAccessStatistics();
+    }
+    
+    /**
+     * Hands the open times recorded since the last call to
+     * {@link BackpackStore#recordOpens(Map)}. A failure is logged; the times stay in the
+     * manifest either way.
+     */
+    private void pushOpenTimes() {
+        Map<String, Long> opened = manifest.drainOpened();
+        if (opened.isEmpty()) {
+            return;
+        }
+        try {
+            backpackStore.recordOpens(opened);
+        } catch (IOException e) {
+            getLogger().warning("Failed to record backpack open times: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Trains a new compression dictionary from a random sample of stored backpacks and
+     * makes it the one new records are written with. Records already stored keep their
+     * dictionary and are rewritten with the new one on their next save.
+     * 
+     * <p>Runs on a Bukkit async thread; the sample size is
+     * "storage.compression.sample-size". Does nothing if a training is already running.</p>
+     * 
+     * @return A line describing the outcome, for /backpack dictionary train
+     */
+    private String trainDictionary() {
+        if (!trainingDictionary.compareAndSet(false, true)) {
+            return "A dictionary is already being trained";
+        }
+        try {
+            List<String> keys = new ArrayList<>(manifest.entries().keySet());
+            Collections.shuffle(keys);
+            int sampleSize = Math.max(1, getConfig().getInt("storage.compression.sample-size", 1000));
+            
+            List<BackpackSnapshot> samples = new ArrayList<>();
+            for (String key : keys.subList(0, Math.min(sampleSize, keys.size()))) {
+                try {
+                    BackpackSnapshot snapshot = backpackStore.load(key);
+                    if (snapshot != null) {
+                        samples.add(snapshot);
+                    }
+                } catch (IOException e) {
+                    // A damaged backpack just isn't part of the sample
+                }
+            }
+            
+            byte[] dictionary = CompressionDictionaries.train(samples);
+            if (dictionary == null) {
+                return "Not enough repeated items in " + samples.size() + " backpacks to train a dictionary";
+            }
+            int id = dictionaries.add(dictionary);
+            String result = "Trained compression dictionary " + id + " (" + dictionary.length
+                + " bytes) from " + samples.size() + " backpacks";
+            getLogger().info(result);
+            return result;
+        } catch (IOException e) {
+            getLogger().warning("Failed to train a compression dictionary: " + e.getMessage());
+            return "Training failed - see the server log";
+        } finally {
+            trainingDictionary.set(false);
+        }
+    }
+    
+    // ==================== EVENT HANDLERS ====================
+    // These methods respond to Bukkit events for player interactions and inventory management.
+    
+    /**
+     * Handles right-click interactions for opening backpack items.
+     * 
+     * <p>Event: {@link PlayerInteractEvent}
+     * <br>Priority: {@link EventPriority#HIGHEST} (processes after most other plugins)</p>
+     * 
+     * <p>Trigger conditions:</p>
+     * <ul>
+     *   <li>Action is RIGHT_CLICK_AIR or RIGHT_CLICK_BLOCK</li>
+     *   <li>Player is holding a backpack item (in main or off hand)</li>
+     * </ul>
+     * 
+     * <p>Behavior when triggered:</p>
+     * <ol>
+     *   <li>Cancel the event to prevent default item/block behavior</li>
+     *   <li>Open the backpack GUI via {@link #openBackpack(Player, ItemStack)}</li>
+     * </ol>
+     * 
+     * <p>Important notes:</p>
+     * <ul>
+     *   <li>NO permission check - backpack items work for all players</li>
+     *   <li>HIGHEST priority lets protection plugins cancel first if needed</li>
+     *   <li>Event is cancelled to prevent placing the backpack item as a block</li>
+     *   <li>Works with both main hand and off-hand (event.getItem() handles both)</li>
+     * </ul>
+     * 
+     * @param event The PlayerInteractEvent from Bukkit
+     */
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onPlayerInteract(PlayerInteractEvent event) {
+        Player player = event.getPlayer();
+        // Get the item the player is interacting with (main or off hand)
+        ItemStack item = event.getItem();
+        
+        // Only process right-click actions
+        // LEFT_CLICK actions and PHYSICAL (pressure plates) are ignored
+        if (event.getAction() != Action.RIGHT_CLICK_AIR && event.getAction() != Action.RIGHT_CLICK_BLOCK) {
+            return;
+        }
+        
+        // Check if the held item is a backpack
+        // Note: NO permission check here - backpack items given via /backpack give
+        // are usable by any player, regardless of permissions
+        if (isBackpack(item)) {
+            // Cancel the event to prevent:
+            // - Placing the backpack item as a block (if it's a BARREL, etc.)
+            // - Opening containers the player might be looking at
+            // - Any other default right-click behavior
+            event.setCancelled(true);
+            // Open the backpack's inventory GUI
+            openBackpack(player, item);
+            return;
+        }
+    }
+    
+    /**
+     * Handles inventory clicks for backpack upgrades and nested backpack prevention.
+     * 
+     * <p>Event: {@link InventoryClickEvent}
+     * <br>Priority: NORMAL (default)</p>
+     * 
+     * <p>This handler manages two distinct scenarios:</p>
+     * 
+     * <h3>Scenario 1: Doubler Application</h3>
+     * <p>When a player has a doubler on their cursor and clicks a backpack:</p>
+     * <ol>
+     *   <li>Validate backpack is not stacked (amount must be 1)</li>
+     *   <li>Validate backpack is not already at 54 slots</li>
+     *   <li>Upgrade the backpack via {@link #upgradeBackpack(ItemStack)}</li>
+     *   <li>Consume one doubler from cursor</li>
+     *   <li>Play ENTITY_PLAYER_LEVELUP sound</li>
+     *   <li>Send success message</li>
+     *   <li>Cancel event to prevent normal click behavior</li>
+     * </ol>
+     * <p>This works in ANY inventory - player inventory, chests, etc.</p>
+     * 
+     * <h3>Scenario 2: Nested Backpack Prevention</h3>
+     * <p>When a player has a backpack open and tries to place another backpack inside:</p>
+     * <ol>
+     *   <li>Check if player has an active backpack session</li>
+     *   <li>Check if clicking in the backpack inventory (not player inventory)</li>
+     *   <li>Check if cursor contains a backpack</li>
+     *   <li>Check config "allow-nested-backpacks" setting (default: false)</li>
+     *   <li>If nested backpacks disallowed, cancel event and notify player</li>
+     * </ol>
+     * 
+     * @param event The InventoryClickEvent from Bukkit
+     */
+    @EventHandler
+    public void onInventoryClick(InventoryClickEvent event) {
+        // Verify the clicker is a player (not a hopper, dropper, etc.)
+        if (!(event.getWhoClicked() instanceof Player)) {
+            return;
+        }
+        
+        Player player = (Player) event.getWhoClicked();
+        UUID playerId = player.getUniqueId();
+        
+        // Get the items involved in this click event
+        ItemStack cursor = event.getCursor();       // Item currently on the player's cursor (being held)
+        ItemStack clicked = event.getCurrentItem(); // Item in the slot that was clicked
+        
+        // ===== DOUBLER APPLICATION HANDLING =====
+        // Check if player is clicking a doubler (cursor) onto a backpack (clicked slot)
+        if (isDoubler(cursor) && isBackpack(clicked)) {
+            // Safety check: backpack must not be stacked
+            // Stacked backpacks could lead to duplication exploits if upgraded
+            if (clicked.getAmount() > 1) {
+                player.sendMessage(Component.text("The doubler only works on a single backpack!", NamedTextColor.RED));
+                event.setCancelled(true);
+                return;
+            }
+            
+            // Check current capacity to see if upgrade is possible
+            int currentCapacity = getBackpackCapacity(clicked);
+            
+            // Prevent upgrading an already-upgraded backpack
+            if (currentCapacity >= 54) {
+                player.sendMessage(Component.text("This backpack is already at maximum capacity!", NamedTextColor.RED));
+                event.setCancelled(true);
+                return;
+            }
+            
+            // Perform the upgrade - modifies the ItemStack's NBT and lore
+            ItemStack upgraded = upgradeBackpack(clicked);
+            // Update the slot with the upgraded backpack
+            event.setCurrentItem(upgraded);
+            
+            // The event is cancelled below, so the change tracker won't see this click -
+            // if the upgraded backpack sits inside an open backpack, that one changed
+            Inventory openBackpack = activeBackpacks.get(playerId);
+            if (openBackpack != null && event.getClickedInventory() == openBackpack) {
+                markSlotsDirty(playerId, event.getSlot(), event.getSlot() + 1);
+            }
+            
+            // Consume one doubler from the cursor stack
+            if (cursor.getAmount() > 1) {
+                // Multiple doublers on cursor: decrease stack by 1
+                cursor.setAmount(cursor.getAmount() - 1);
+                event.setCursor(cursor);
+            } else {
+                // Single doubler on cursor: remove it entirely
+                event.setCursor(null);
+            }
+            
+            // Provide feedback to the player
+            // Magenta/light purple text with stars for a premium upgrade feel
+            player.sendMessage(Component.text("✦ Backpack upgraded to 54 slots! ✦", NamedTextColor.LIGHT_PURPLE, TextDecoration.BOLD));
+            // Play the level-up sound for satisfying audio feedback
+            // Pitch 1.5f makes it slightly higher than normal (more "upgrade-y")
+            player.playSound(player.getLocation(), org.bukkit.Sound.ENTITY_PLAYER_LEVELUP, 1.0f, 1.5f);
+            
+            // Cancel the event to prevent the normal click behavior
+            event.setCancelled(true);
+            return;
+        }
+        
+        // ===== NESTED BACKPACK PREVENTION =====
+        // Only applies if player has an open backpack
+        if (!activeBackpacks.containsKey(playerId)) {
+            // Player doesn't have a backpack open, no restrictions apply
+            return;
+        }
+        
+        // Check if the player is clicking in the backpack inventory (top) not their own (bottom)
+        if (event.getClickedInventory() == activeBackpacks.get(playerId)) {
+            // Player is clicking in the backpack GUI
+            // Check if they're trying to place a backpack inside
+            if (isBackpack(cursor) && !getConfig().getBoolean("allow-nested-backpacks", false)) {
+                // Nested backpacks are disabled in config
+                event.setCancelled(true);
+                player.sendMessage(Component.text("You cannot put a backpack inside another backpack!", NamedTextColor.RED));
+            }
+        }
+    }
+    
+    /**
+     * Marks an open backpack as changed when a click can alter its contents.
+     * 
+     * <p>Event: {@link InventoryClickEvent}
+     * <br>Priority: MONITOR, ignoring cancelled events - runs after every other handler
+     * (including {@link #onInventoryClick(InventoryClickEvent)}) has decided, and only for
+     * clicks that actually happen.</p>
+     * 
+     * <p>Clicks that can change the backpack, and the slots they mark:</p>
+     * <ul>
+     *   <li>Any click inside the backpack inventory (pick up, place, swap, drop, hotbar swap) -
+     *       the clicked slot</li>
+     *   <li>Shift-click in the player inventory (moves items into the backpack) - every slot,
+     *       since the items can spread over any of them</li>
+     *   <li>Double-click collect (can gather matching items out of the backpack) - every slot</li>
+     * </ul>
+     * <p>Everything else (clicks in the player's own inventory) leaves the backpack as it was.</p>
+     * 
+     * @param event The InventoryClickEvent from Bukkit
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBackpackClick(InventoryClickEvent event) {
+        UUID playerId = event.getWhoClicked().getUniqueId();
+        Inventory backpack = activeBackpacks.get(playerId);
+        
+        // Only clicks in an open backpack's window that do something
+        if (backpack == null || event.getInventory() != backpack || event.getAction() == InventoryAction.NOTHING) {
+            return;
+        }
+        
+        if (event.getAction() == InventoryAction.MOVE_TO_OTHER_INVENTORY && event.getClickedInventory() != backpack
+                || event.getAction() == InventoryAction.COLLECT_TO_CURSOR) {
+            markSlotsDirty(playerId, 0, backpack.getSize());
+        } else if (event.getClickedInventory() == backpack) {
+            markSlotsDirty(playerId, event.getSlot(), event.getSlot() + 1);
+        }
+    }
+    
+    /**
+     * Marks an open backpack as changed when a drag places items into it.
+     * 
+     * <p>Event: {@link InventoryDragEvent}
+     * <br>Priority: MONITOR, ignoring cancelled events</p>
+     * 
+     * <p>Raw slots below the top inventory's size belong to the backpack and are marked;
+     * a drag that only covers the player's own inventory doesn't change it.</p>
+     * 
+     * @param event The InventoryDragEvent from Bukkit
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBackpackDrag(InventoryDragEvent event) {
+        UUID playerId = event.getWhoClicked().getUniqueId();
+        Inventory backpack = activeBackpacks.get(playerId);
+        if (backpack == null || event.getInventory() != backpack) {
+            return;
+        }
+        
+        for (int rawSlot : event.getRawSlots()) {
+            if (rawSlot < backpack.getSize()) {
+                markSlotsDirty(playerId, rawSlot, rawSlot + 1);
+            }
+        }
+    }
+    
+    /**
+     * Marks a range of slots of a player's open backpack as changed, see {@link #dirtySlots}.
+     * 
+     * @param playerId The player whose open backpack changed
+     * @param fromSlot First changed slot (inclusive)
+     * @param toSlot Last changed slot (exclusive)
+     */
+    private void markSlotsDirty(UUID playerId, int fromSlot, int toSlot) {
+        dirtySlots.computeIfAbsent(playerId, id -> new BitSet()).set(fromSlot, toSlot);
+        if (writeAheadLog != null) {
+            walPendingSlots.computeIfAbsent(playerId, id -> new BitSet()).set(fromSlot, toSlot);
+        }
+    }
+    
+    /**
+     * Handles saving backpack contents when the inventory GUI is closed.
+     * 
+     * <p>Event: {@link InventoryCloseEvent}
+     * <br>Priority: NORMAL (default)</p>
+     * 
+     * <p>Process:</p>
+     * <ol>
+     *   <li>Verify closer is a player (not console or other entity)</li>
+     *   <li>Check if this player has an active backpack session</li>
+     *   <li>If yes:
+     *     <ul>
+     *       <li>Save contents via {@link #saveBackpackContents(Player)}</li>
+     *       <li>Remove from {@link #activeBackpacks} map</li>
+     *       <li>Remove from {@link #openBackpackUUIDs} map</li>
+     *       <li>Send "Backpack saved!" confirmation</li>
+     *     </ul>
+     *   </li>
+     * </ol>
+     * 
+     * <p>This ensures immediate persistence when a backpack is closed, so:</p>
+     * <ul>
+     *   <li>Server crashes after closing don't lose data</li>
+     *   <li>Player logouts after closing don't lose data</li>
+     *   <li>Memory is freed by removing tracking map entries</li>
+     *   <li>Player can immediately open another backpack</li>
+     * </ul>
+     * 
+     * @param event The InventoryCloseEvent from Bukkit
+     */
+    @EventHandler
+    public void onInventoryClose(InventoryCloseEvent event) {
+        // Verify the closer is a player (entities can have inventories closed too)
+        if (!(event.getPlayer() instanceof Player)) {
+            return;
+        }
+        
+        Player player = (Player) event.getPlayer();
+        UUID playerId = player.getUniqueId();
+        
+        // Check if this player had a backpack open (vs. a chest, furnace, etc.)
+        if (activeBackpacks.containsKey(playerId)) {
+            // Save the backpack contents (memory now, file via the write queue)
+            // Skipped entirely if nothing in the backpack changed
+            saveBackpackContents(player);
+            
+            // Clean up tracking maps to free memory and allow new backpack opens
+            activeBackpacks.remove(playerId);
+            openBackpackUUIDs.remove(playerId);
+            
+            // Confirm to the player that their items are saved
+            player.sendMessage(Component.text("Backpack saved!", NamedTextColor.GREEN));
+        }
+    }
+    
+    /**
+     * Reads a player's personal backpack while they log in, so /bp finds it in memory.
+     * 
+     * <p>Runs on the login thread, which Paper lets block: the backpack is read there
+     * (from the archive if it is archived) and handed to the main thread, which caches it
+     * with {@link #cachePrefetched}. Nothing is read for players who never saved a
+     * personal backpack, for logins another plugin refused, or for quarantined backpacks.
+     * A read that fails is dropped silently - /bp reads the backpack again on the main
+     * thread, which quarantines it if it is damaged.</p>
+     * 
+     * <p>Disabled by "storage.cache.preload-personal: false".</p>
+     * 
+     * @param event The AsyncPlayerPreLoginEvent from Paper (async thread)
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onAsyncPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (!preloadPersonalBackpacks || event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+        String key = PERSONAL_BACKPACK_PREFIX + event.getUniqueId();
+        if (quarantine.contains(key)) {
+            return;
+        }
+        
+        // Remember which version was read - the main thread discards the read if it changed
+        ManifestEntry entry = manifest.get(key);
+        boolean archived = entry == null && coldStorage.contains(key);
+        if (entry == null && !archived) {
+            // Never saved - /bp opens it empty without reading anything
+            return;
+        }
+        BackpackSnapshot snapshot;
+        try {
+            snapshot = readForPrefetch(key, archived);
+        } catch (IOException | RuntimeException e) {
+            return;
+        }
+        if (!isEnabled()) {
+            return;
+        }
+        getServer().getScheduler().runTask(this, () -> {
+            if (cachePrefetched(key, entry, archived, snapshot)) {
+                personalPreloads++;
+            }
+        });
+    }
+    
+    /**
+     * Prefetches the backpacks a player joins with: every backpack item in their
+     * inventory, and their personal backpack if the login preload didn't cache it.
+     * 
+     * @param event The PlayerJoinEvent from Bukkit
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        Player player = event.getPlayer();
+        if (preloadPersonalBackpacks) {
+            prefetchBackpack(PERSONAL_BACKPACK_PREFIX + player.getUniqueId());
+        }
+        if (!prefetchItemBackpacks) {
+            return;
+        }
+        for (ItemStack item : player.getInventory().getContents()) {
+            String key = getBackpackUUID(item);
+            if (key != null) {
+                prefetchBackpack(key);
+            }
+        }
+    }
+    
+    /**
+     * Prefetches a backpack item as soon as it is selected in the hotbar - the open
+     * usually follows with the next right-click.
+     * 
+     * <p>Only the newly selected slot is looked at, and items without metadata are
+     * rejected before their metadata is copied ({@link #isBackpack(ItemStack)}), so a
+     * hotbar change costs one slot check.</p>
+     * 
+     * @param event The PlayerItemHeldEvent from Bukkit
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemHeld(PlayerItemHeldEvent event) {
+        if (!prefetchItemBackpacks) {
+            return;
+        }
+        String key = getBackpackUUID(event.getPlayer().getInventory().getItem(event.getNewSlot()));
+        if (key != null) {
+            prefetchBackpack(key);
+        }
+    }
+    
+    /**
+     * Reads a backpack into memory in the background, ahead of the open that would
+     * otherwise read it on the main thread. Main thread; returns at once.
+     * 
+     * <p>Nothing is read if the backpack is in memory, quarantined, never saved, has a
+     * save queued (its contents come from the queue without a read), or is already being
+     * read - here or by {@link #loadArchivedBackpack}. An open that arrives while the read
+     * runs waits for it ({@link #awaitPrefetch}) instead of reading the backpack a second
+     * time. A read that fails caches nothing; the open then reads as usual.</p>
+     * 
+     * @param key The backpack's storage key
+     */
+    private void prefetchBackpack(String key) {
+        if (backpackStorage.peek(key) != null || quarantine.contains(key) || writeQueue.peek(key) != null
+                || prefetching.containsKey(key) || archiveLoads.contains(key)) {
+            return;
+        }
+        ManifestEntry entry = manifest.get(key);
+        boolean archived = entry == null && coldStorage.contains(key);
+        if (entry == null && !archived) {
+            return;
+        }
+        
+        prefetching.put(key, new ArrayList<>());
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            BackpackSnapshot snapshot;
+            boolean read;
+            try {
+                snapshot = readForPrefetch(key, archived);
+                read = true;
+            } catch (IOException | RuntimeException e) {
+                snapshot = null;
+                read = false;
+            }
+            BackpackSnapshot loaded = snapshot;
+            boolean succeeded = read;
+            if (!isEnabled()) {
+                return;
+            }
+            Bukkit.getScheduler().runTask(this, () -> {
+                List<Runnable> waiting = prefetching.remove(key);
+                if (succeeded && cachePrefetched(key, entry, archived, loaded)) {
+                    backpacksPrefetched++;
+                }
+                waiting.forEach(Runnable::run);
+            });
+        });
+    }
+    
+    /**
+     * Runs {@code reopen} once a running {@link #prefetchBackpack} of a backpack has
+     * finished. Main thread.
+     * 
+     * @param player The player opening it
+     * @param key The backpack's storage key
+     * @param reopen Opens it - run only if the player is still online and has no other
+     *        backpack open
+     * @return false if the backpack isn't being prefetched - open it right away
+     */
+    private boolean awaitPrefetch(Player player, String key, Runnable reopen) {
+        List<Runnable> waiting = prefetching.get(key);
+        if (waiting == null) {
+            return false;
+        }
+        waiting.add(() -> {
+            if (player.isOnline() && !activeBackpacks.containsKey(player.getUniqueId())) {
+                reopen.run();
+            }
+        });
+        return true;
+    }
+    
+    /**
+     * Reads a backpack for a prefetch, from the archive or the storage backend. Any thread.
+     * 
+     * @param key The backpack's storage key
+     * @param archived Whether it is in the {@link #coldStorage} archive
+     * @return Its stored contents, or null if nothing is stored (any more)
+     * @throws IOException If it can't be read
+     */
+    private BackpackSnapshot readForPrefetch(String key, boolean archived) throws IOException {
+        return archived ? coldStorage.read(key) : backpackStore.load(key);
+    }
+    
+    /**
+     * Caches a backpack read ahead of its open. Main thread.
+     * 
+     * <p>The read is discarded if the backpack is already in memory or changed while it
+     * was read (its manifest entry was replaced, or a save for it is queued); the open
+     * then loads it the usual way, without a disk read if the save is still queued.
+     * Archived backpacks are brought back with {@link #unarchiveBackpack}.</p>
+     * 
+     * @param key The backpack's storage key
+     * @param entry Its manifest entry when the read started, or null if it was archived
+     * @param archived Whether it was read from the archive
+     * @param snapshot What was read (null: nothing stored)
+     * @return true if the read was cached
+     */
+    private boolean cachePrefetched(String key, ManifestEntry entry, boolean archived, BackpackSnapshot snapshot) {
+        if (backpackStorage.peek(key) != null || quarantine.contains(key)) {
+            return false;
+        }
+        if (archived) {
+            if (snapshot == null || !coldStorage.contains(key) || archiveLoads.contains(key)) {
+                return false;
+            }
+            unarchiveBackpack(key, snapshot);
+            return true;
+        }
+        // Identity, not equality: any change to the backpack replaces its manifest entry
+        if (manifest.get(key) != entry || writeQueue.peek(key) != null) {
+            return false;
+        }
+        backpackStorage.put(key, snapshot != null ? snapshot.contents() : Collections.emptyMap());
+        if (snapshot != null && snapshot.outdated()) {
+            rewriteUpgraded(key, snapshot);
+        }
+        return true;
+    }
+    
+    /**
+     * Drops a player's personal backpack from memory "storage.cache.personal-grace-seconds"
+     * after they leave, so memory follows the players online rather than every player
+     * who ever joined.
+     * 
+     * <p>Paper closes the player's inventory after this event, so an open personal
+     * backpack is saved (queued for writing) as usual before the grace period starts.
+     * See {@link #releasePersonalBackpack(UUID)} for what is kept.</p>
+     * 
+     * @param event The PlayerQuitEvent from Bukkit
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        UUID playerId = event.getPlayer().getUniqueId();
+        getServer().getScheduler().runTaskLater(this, () -> releasePersonalBackpack(playerId),
+            Math.max(1, personalGraceTicks));
+    }
+    
+    /**
+     * Removes a personal backpack from {@link #backpackStorage} once its owner's grace
+     * period ends. Main thread.
+     * 
+     * <p>Kept if the owner is back online, if it is open (an admin may have opened it)
+     * or if a write is queued, in flight or failed - should it fail, memory holds the only
+     * current copy. The cache evicts it later once nothing pins it.</p>
+     * 
+     * @param playerId The owner's UUID
+     */
+    private void releasePersonalBackpack(UUID playerId) {
+        String key = PERSONAL_BACKPACK_PREFIX + playerId;
+        if (Bukkit.getPlayer(playerId) != null || openBackpackUUIDs.containsValue(key)
+                || writeQueue.hasFailed(key) || writeQueue.peek(key) != null || backpackStorage.peek(key) == null) {
+            return;
+        }
+        backpackStorage.remove(key);
+        personalReleases++;
+    }
+    
+    // ==================== COMMANDS ====================
+    // Command handling for /backpack and /bp commands.
+    
+    /**
+     * Handles execution of /backpack and /bp commands.
+     * 
+     * <p>Command routing:</p>
+     * <ul>
+     *   <li><b>/bp</b> (no args) → Open personal backpack (requires backpacks.use, player only)</li>
+     *   <li><b>/backpack</b> (no args) → Display help menu</li>
+     *   <li><b>/backpack help</b> → Display help menu</li>
+     *   <li><b>/backpack give &lt;type&gt; &lt;player&gt;</b> → Route to {@link #handleGive(CommandSender, String[])}</li>
+     *   <li><b>/backpack reload</b> → Route to {@link #handleReload(CommandSender)}</li>
+     *   <li><b>/backpack stats</b> → Route to {@link #handleStats(CommandSender)}</li>
+     *   <li><b>/backpack find &lt;material&gt; [min]</b> → Route to {@link #handleFind(CommandSender, String[])}</li>
+     *   <li><b>/backpack unused &lt;days&gt;</b> → Route to {@link #handleUnused(CommandSender, String[])}</li>
+     *   <li><b>/backpack dictionary [train]</b> → Route to {@link #handleDictionary(CommandSender, String[])}</li>
+     *   <li><b>/backpack quarantine [clear &lt;id&gt;]</b> → Route to {@link #handleQuarantine(CommandSender, String[])}</li>
+     *   <li><b>/backpack history &lt;uuid|player&gt;</b> → Route to {@link #handleHistory(CommandSender, String[])}</li>
+     *   <li><b>/backpack rollback &lt;uuid|player&gt; &lt;version&gt;</b> → Route to {@link #handleRollback(CommandSender, String[])}</li>
+     *   <li><b>/backpack backup</b> → Route to {@link #handleBackup(CommandSender)}</li>
+     *   <li><b>/backpack restore &lt;uuid|player&gt; &lt;backup&gt;</b> → Route to {@link #handleRestore(CommandSender, String[])}</li>
+     *   <li><b>/backpack &lt;unknown&gt;</b> → Display help menu</li>
+     * </ul>
+     * 
+     * <p>Permission checks are delegated to sub-handlers, not performed here,
+     * except for /bp which requires player check and backpacks.use permission.</p>
+     * 
+     * @param sender The CommandSender (player or console)
+     * @param command The Command object containing command metadata
+     * @param label The alias used to execute the command (e.g., "bp" or "backpack")
+     * @param args The command arguments (split by spaces)
+     * @return true if the command was handled (always returns true)
+     */
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        // Handle /bp with no arguments - opens personal backpack
+        if (label.equalsIgnoreCase("bp") && args.length == 0) {
+            // Personal backpacks require a player (console can't have an inventory)
+            if (!(sender instanceof Player)) {
+                sender.sendMessage(Component.text("Only players can use personal backpacks!", NamedTextColor.RED));
+                return true;
+            }
+            
+            Player player = (Player) sender;
+            
+            // Check permission for personal backpack access
+            if (!player.hasPermission("backpacks.use")) {
+                player.sendMessage(Component.text("You don't have permission to use personal backpacks!", NamedTextColor.RED));
+                return true;
+            }
+            
+            // Open the player's personal backpack (54 slots, stored by player UUID)
+            openPersonalBackpack(player);
+            return true;
+        }
+        
+        // No arguments provided for /backpack - show the help menu
+        if (args.length == 0) {
+            sendHelp(sender);
+            return true;
+        }
+        
+        // Route to appropriate handler based on the first argument (subcommand)
+        switch (args[0].toLowerCase()) {
+            case "give":
+                // Delegate to give handler (handles permission check internally)
+                return handleGive(sender, args);
+            case "reload":
+                // Delegate to reload handler (handles permission check internally)
+                return handleReload(sender);
+            case "stats":
+                // Delegate to stats handler (handles permission check internally)
+                return handleStats(sender);
+            case "find":
+                // Delegate to find handler (handles permission check internally)
+                return handleFind(sender, args);
+            case "unused":
+                // Delegate to unused handler (handles permission check internally)
+                return handleUnused(sender, args);
+            case "dictionary":
+                // Delegate to dictionary handler (handles permission check internally)
+                return handleDictionary(sender, args);
+            case "quarantine":
+                // Delegate to quarantine handler (handles permission check internally)
+                return handleQuarantine(sender, args);
+            case "history":
+                // Delegate to history handler (handles permission check internally)
+                return handleHistory(sender, args);
+            case "rollback":
+                // Delegate to rollback handler (handles permission check internally)
+                return handleRollback(sender, args);
+            case "backup":
+                // Delegate to backup handler (handles permission check internally)
+                return handleBackup(sender);
+            case "restore":
+                // Delegate to restore handler (handles permission check internally)
+                return handleRestore(sender, args);
+            case "help":
+                // Show help menu
+                sendHelp(sender);
+                return true;
+            default:
+                // Unknown subcommand - show help as fallback
+                sendHelp(sender);
+                return true;
+        }
+    }
+    
+    /**
+     * Displays the formatted help menu to a command sender.
+     * 
+     * <p>Display format:</p>
+     * <ul>
+     *   <li>Top border: Gold line of ━ characters</li>
+     *   <li>Title: "Backpacks Commands" in gold, bold</li>
+     *   <li>Separator: Gold line of ━ characters</li>
+     *   <li>Commands: Yellow command + gray description (permission-filtered)</li>
+     *   <li>Bottom border: Gold line of ━ characters</li>
+     * </ul>
+     * 
+     * <p>Permission-based visibility:</p>
+     * <ul>
+     *   <li>backpacks.use → Shows /bp command</li>
+     *   <li>backpacks.give → Shows give backpack and doubler commands</li>
+     *   <li>backpacks.admin → Shows reload, stats, find, unused, dictionary, quarantine, history, rollback,
+     *       backup and restore commands</li>
+     *   <li>No permission required → Shows help command</li>
+     * </ul>
+     * 
+     * <p>This ensures players only see commands they can actually use,
+     * reducing confusion and clutter in the help output.</p>
+     * 
+     * @param sender The CommandSender to receive the help menu
+     */
+    private void sendHelp(CommandSender sender) {
+        // Top decorative border (gold ━ characters for visual separation)
+        sender.sendMessage(Component.text("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━", NamedTextColor.GOLD));
+        
+        // Title with bold gold text
+        sender.sendMessage(Component.text("Backpacks Commands", NamedTextColor.GOLD, TextDecoration.BOLD));
+        
+        // Separator border under title
+        sender.sendMessage(Component.text("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━", NamedTextColor.GOLD));
+        
+        // /bp command - only show if player has backpacks.use permission
+        if (sender.hasPermission("backpacks.use")) {
+            sender.sendMessage(Component.text("/bp", NamedTextColor.YELLOW)
+                .append(Component.text(" - Open your personal backpack (54 slots)", NamedTextColor.GRAY)));
+        }
+        
+        // /backpack help - always visible (no permission required)
+        sender.sendMessage(Component.text("/backpack help", NamedTextColor.YELLOW)
+            .append(Component.text(" - Show this help menu", NamedTextColor.GRAY)));
+        
+        // Give commands - only show if sender has backpacks.give permission
+        if (sender.hasPermission("backpacks.give")) {
+            sender.sendMessage(Component.text("/backpack give backpack <player>", NamedTextColor.YELLOW)
+                .append(Component.text(" - Give a backpack", NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("/backpack give doubler <player>", NamedTextColor.YELLOW)
+                .append(Component.text(" - Give a capacity doubler", NamedTextColor.GRAY)));
+        }
+        
+        // Reload command - only show if sender has backpacks.admin permission
+        if (sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("/backpack reload", NamedTextColor.YELLOW)
+                .append(Component.text(" - Reload configuration", NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("/backpack stats", NamedTextColor.YELLOW)
+                .append(Component.text(" - Show storage statistics", NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("/backpack find <material> [min]", NamedTextColor.YELLOW)
+                .append(Component.text(" - Find backpacks holding an item (sqlite)", NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("/backpack unused <days>", NamedTextColor.YELLOW)
+                .append(Component.text(" - List backpacks not opened for a while", NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("/backpack dictionary [train]", NamedTextColor.YELLOW)
+                .append(Component.text(" - Show or retrain the compression dictionary", NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("/backpack quarantine [clear <id>]", NamedTextColor.YELLOW)
+                .append(Component.text(" - List or unlock damaged backpacks", NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("/backpack history <uuid|player>", NamedTextColor.YELLOW)
+                .append(Component.text(" - List a backpack's earlier versions", NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("/backpack rollback <uuid|player> <version>", NamedTextColor.YELLOW)
+                .append(Component.text(" - Restore an earlier version", NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("/backpack backup", NamedTextColor.YELLOW)
+                .append(Component.text(" - Back up every backpack without stopping the server", NamedTextColor.GRAY)));
+            sender.sendMessage(Component.text("/backpack restore <uuid|player> <backup>", NamedTextColor.YELLOW)
+                .append(Component.text(" - Restore one backpack from a backup", NamedTextColor.GRAY)));
+        }
+        
+        // Bottom decorative border
+        sender.sendMessage(Component.text("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━", NamedTextColor.GOLD));
+    }
+    
+    /**
+     * Handles the /backpack give command for distributing backpacks and doublers.
+     * 
+     * <p>Command syntax: /backpack give &lt;backpack|doubler&gt; &lt;player&gt;</p>
+     * <p>Permission required: backpacks.give</p>
+     * 
+     * <p>Argument structure:</p>
+     * <ul>
+     *   <li>args[0]: "give" (subcommand, already matched)</li>
+     *   <li>args[1]: Item type ("backpack" or "doubler")</li>
+     *   <li>args[2]: Target player name</li>
+     * </ul>
+     * 
+     * <p>Validation sequence:</p>
+     * <ol>
+     *   <li>Check backpacks.give permission</li>
+     *   <li>Validate argument count (need at least 3)</li>
+     *   <li>Parse item type (case-insensitive)</li>
+     *   <li>Find target player (must be online)</li>
+     * </ol>
+     * 
+     * <p>Success behavior:</p>
+     * <ul>
+     *   <li>Creates appropriate item via {@link #createBackpack()} or {@link #createDoubler()}</li>
+     *   <li>Adds to target player's inventory</li>
+     *   <li>Sends green confirmation to sender with player name in gold</li>
+     *   <li>Sends green notification to target player</li>
+     * </ul>
+     * 
+     * <p>Error cases:</p>
+     * <ul>
+     *   <li>No permission → Red error message</li>
+     *   <li>Missing arguments → Red usage message</li>
+     *   <li>Player not found → Red error message</li>
+     *   <li>Invalid item type → Red error message</li>
+     * </ul>
+     * 
+     * @param sender The CommandSender executing the command
+     * @param args Full command arguments (includes "give" as args[0])
+     * @return true (command was handled)
+     */
+    private boolean handleGive(CommandSender sender, String[] args) {
+        // Check permission first
+        if (!sender.hasPermission("backpacks.give")) {
+            sender.sendMessage(Component.text("You don't have permission to give backpack items!", NamedTextColor.RED));
+            return true;
+        }
+        
+        // Validate argument count
+        // Expected: args[0]="give", args[1]=type, args[2]=player
+        if (args.length < 3) {
+            sender.sendMessage(Component.text("Usage: /backpack give <backpack|doubler> <player>", NamedTextColor.RED));
+            return true;
+        }
+        
+        // Parse arguments
+        String itemType = args[1].toLowerCase();  // Normalize to lowercase for matching
+        Player target = Bukkit.getPlayer(args[2]); // Look up player by name
+        
+        // Validate target player exists and is online
+        if (target == null) {
+            sender.sendMessage(Component.text("Player not found!", NamedTextColor.RED));
+            return true;
+        }
+        
+        // Handle different item types
+        switch (itemType) {
+            case "backpack":
+                // Create a new 27-slot backpack and add to target's inventory
+                target.getInventory().addItem(createBackpack());
+                
+                // Notify the command sender
+                sender.sendMessage(Component.text("Gave backpack to ", NamedTextColor.GREEN)
+                    .append(Component.text(target.getName(), NamedTextColor.GOLD)));
+                
+                // Notify the target player
+                target.sendMessage(Component.text("You received a backpack!", NamedTextColor.GREEN));
+                break;
+                
+            case "doubler":
+                // Create a capacity doubler and add to target's inventory
+                target.getInventory().addItem(createDoubler());
+                
+                // Notify the command sender
+                sender.sendMessage(Component.text("Gave capacity doubler to ", NamedTextColor.GREEN)
+                    .append(Component.text(target.getName(), NamedTextColor.GOLD)));
+                
+                // Notify the target player
+                target.sendMessage(Component.text("You received a backpack capacity doubler!", NamedTextColor.GREEN));
+                break;
+                
+            default:
+                // Unknown item type - show error
+                sender.sendMessage(Component.text("Invalid item type! Use 'backpack' or 'doubler'", NamedTextColor.RED));
+                return true;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Handles the /backpack reload command for refreshing configuration.
+     * 
+     * <p>Command syntax: /backpack reload</p>
+     * <p>Permission required: backpacks.admin</p>
+     * 
+     * <p>Process:</p>
+     * <ol>
+     *   <li>Check backpacks.admin permission</li>
+     *   <li>Call Bukkit's reloadConfig() to re-read config.yml</li>
+     *   <li>Send confirmation message</li>
+     * </ol>
+     * 
+     * <p>What gets reloaded:</p>
+     * <ul>
+     *   <li>backpack-item: Material for new backpacks</li>
+     *   <li>allow-nested-backpacks: Nesting restriction setting</li>
+     * </ul>
+     * 
+     * <p>What does NOT get reloaded:</p>
+     * <ul>
+     *   <li>Backpack storage data (would require closing all open backpacks)</li>
+     *   <li>NamespacedKeys (immutable after plugin initialization)</li>
+     *   <li>Currently active backpack sessions</li>
+     * </ul>
+     * 
+     * <p>This command is safe to use while players have backpacks open.
+     * Config changes only affect new operations, not existing sessions.</p>
+     * 
+     * @param sender The CommandSender executing the command
+     * @return true (command was handled)
+     */
+    private boolean handleReload(CommandSender sender) {
+        // Check admin permission
+        if (!sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("You don't have permission to reload configuration!", NamedTextColor.RED));
+            return true;
+        }
+        
+        // Re-read config.yml from disk
+        // This updates getConfig() to return fresh values
+        reloadConfig();
+        
+        // Confirm successful reload
+        sender.sendMessage(Component.text("Backpacks configuration reloaded!", NamedTextColor.GREEN));
+        
+        return true;
+    }
+    
+    /**
+     * Handles the /backpack stats command, showing storage activity since startup.
+     * 
+     * <p>Command syntax: /backpack stats</p>
+     * <p>Permission required: backpacks.admin</p>
+     * 
+     * <p>Shows:</p>
+     * <ul>
+     *   <li>Saves performed vs. skipped because the backpack was unchanged</li>
+     *   <li>Open, in-memory and stored backpack counts</li>
+     *   <li>Write queue activity: pending, submitted, merged, written and failed writes</li>
+     *   <li>Item store size and unreferenced share, when deduplicated records exist</li>
+     *   <li>Backpacks still stored by an older Minecraft version, and how many were upgraded</li>
+     *   <li>Quarantined backpacks and integrity scrubber progress</li>
+     *   <li>Write-ahead log size, records, checkpoints and changes replayed at startup</li>
+     *   <li>Backpack versions recorded since startup</li>
+     * </ul>
+     * 
+     * @param sender The CommandSender executing the command
+     * @return true (command was handled)
+     */
+    private boolean handleStats(CommandSender sender) {
+        // Check admin permission
+        if (!sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("You don't have permission to view storage statistics!", NamedTextColor.RED));
+            return true;
+        }
+        
+        long closes = savesPerformed + savesSkipped;
+        long skippedPercent = closes == 0 ? 0 : savesSkipped * 100 / closes;
+        
+        sender.sendMessage(Component.text("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━", NamedTextColor.GOLD));
+        sender.sendMessage(Component.text("Backpacks Storage Stats", NamedTextColor.GOLD, TextDecoration.BOLD));
+        sender.sendMessage(Component.text("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━", NamedTextColor.GOLD));
+        
+        sender.sendMessage(statLine("Saves", savesPerformed + " written, " + savesSkipped
+            + " skipped unchanged (" + skippedPercent + "%)"));
+        sender.sendMessage(statLine("Backpacks", activeBackpacks.size() + " open, "
+            + backpackStorage.size() + " in memory, " + manifest.size() + " stored"));
+        long lookups = backpackStorage.hitCount() + backpackStorage.missCount();
+        sender.sendMessage(statLine("Cache", (backpackStorage.weight() / 1024 / 1024) + " MB of "
+            + (backpackStorage.maximum() > 0 ? (backpackStorage.maximum() / 1024 / 1024) + " MB" : "unlimited") + ", "
+            + (lookups == 0 ? 0 : backpackStorage.hitCount() * 100 / lookups) + "% hits ("
+            + backpackStorage.hitCount() + " hits, " + backpackStorage.missCount() + " misses), "
+            + backpackStorage.evictionCount() + " evicted"));
+        if (heapPressurePool != null) {
+            sender.sendMessage(statLine("Heap pressure", heapPressureEvents + " reliefs, " + heapPressureEvictions
+                + " backpacks evicted" + (heapPressureTask != null ? ", cache limited to "
+                + (backpackStorage.limit() / 1024 / 1024) + " MB now" : "")));
+        }
+        sender.sendMessage(statLine("Personal", personalPreloads + " loaded at login, "
+            + personalReleases + " dropped after logout"));
+        sender.sendMessage(statLine("Prefetch", backpacksPrefetched + " backpacks read before they were opened, "
+            + backpacksWarmed + " warmed up at startup (" + accessStatistics.size() + " with open statistics)"));
+        sender.sendMessage(statLine("Write queue", writeQueue.pendingCount() + " pending, "
+            + writeQueue.submittedCount() + " submitted, " + writeQueue.mergedCount() + " merged"));
+        sender.sendMessage(statLine("Writes", writeQueue.writtenCount() + " written in "
+            + writeQueue.batchCount() + " batches, " + writeQueue.failedCount() + " failed"));
+        if (itemBlobs != null) {
+            long size = itemBlobs.fileSize();
+            long garbagePercent = size == 0 ? 0 : itemBlobs.garbageBytes() * 100 / size;
+            sender.sendMessage(statLine("Item store", itemBlobs.count() + " distinct items, "
+                + (size / 1024) + " KB, ~" + garbagePercent + "% unreferenced"));
+        }
+        sender.sendMessage(statLine("DataVersion", manifest.outdatedCount() + " backpacks outdated, "
+            + backpacksUpgraded + " upgraded" + (upgradeTask != null ? " (upgrade running)" : "")));
+        sender.sendMessage(statLine("Integrity", quarantine.size() + " quarantined, "
+            + (scrubber != null ? "scrubber: " + scrubber.describe() : "scrubber off")));
+        if (writeAheadLog != null) {
+            sender.sendMessage(statLine("Write-ahead log", (writeAheadLog.size() / 1024) + " KB, "
+                + writeAheadLog.recordsAppended() + " records, " + walCheckpoints + " checkpoints, "
+                + walReplayed + " replayed at startup"));
+        }
+        if (history != null) {
+            sender.sendMessage(statLine("History", history.recordedCount() + " versions recorded"));
+        }
+        sender.sendMessage(statLine("Archive", coldStorage.size() + " backpacks in " + coldStorage.segmentCount()
+            + " segments, " + backpacksArchived + " archived and " + backpacksUnarchived + " brought back since startup"
+            + (activeArchival != null ? " (archiving)" : "")));
+        
+        sender.sendMessage(Component.text("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━", NamedTextColor.GOLD));
+        return true;
+    }
+    
+    /**
+     * Handles the /backpack find command, listing backpacks that hold a material.
+     * 
+     * <p>Command syntax: /backpack find &lt;material&gt; [min-amount]</p>
+     * <p>Permission required: backpacks.admin</p>
+     * 
+     * <p>Only available with the sqlite backend and "storage.sqlite.index-slots" enabled -
+     * the query is answered from the backpack_slots index without loading any backpack.
+     * It runs off the main thread; results (at most {@link #QUERY_RESULT_LIMIT}, largest
+     * amount first) are sent back on the main thread.</p>
+     * 
+     * <p>Backpacks that are open right now are searched as of their last save.</p>
+     * 
+     * @param sender The CommandSender executing the command
+     * @param args Full command arguments (includes "find" as args[0])
+     * @return true (command was handled)
+     */
+    private boolean handleFind(CommandSender sender, String[] args) {
+        // Check admin permission
+        if (!sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("You don't have permission to search backpacks!", NamedTextColor.RED));
+            return true;
+        }
+        
+        if (args.length < 2) {
+            sender.sendMessage(Component.text("Usage: /backpack find <material> [min-amount]", NamedTextColor.RED));
+            return true;
+        }
+        
+        // Only the SQLite backend indexes slot contents
+        if (!(backpackStore instanceof SQLiteBackpackStore) || !((SQLiteBackpackStore) backpackStore).indexesSlots()) {
+            sender.sendMessage(Component.text("Searching needs storage.backend: sqlite with storage.sqlite.index-slots enabled", NamedTextColor.RED));
+            return true;
+        }
+        SQLiteBackpackStore store = (SQLiteBackpackStore) backpackStore;
+        
+        Material material = Material.matchMaterial(args[1]);
+        if (material == null) {
+            sender.sendMessage(Component.text("Unknown material: " + args[1], NamedTextColor.RED));
+            return true;
+        }
+        
+        int minAmount = 1;
+        if (args.length >= 3) {
+            try {
+                minAmount = Math.max(1, Integer.parseInt(args[2]));
+            } catch (NumberFormatException e) {
+                sender.sendMessage(Component.text("Invalid amount: " + args[2], NamedTextColor.RED));
+                return true;
+            }
+        }
+        int threshold = minAmount;
+        
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            List<SQLiteBackpackStore.MaterialCount> results;
+            try {
+                results = store.findContaining(material.name(), threshold, QUERY_RESULT_LIMIT);
+            } catch (IOException e) {
+                getLogger().warning("Backpack search failed: " + e.getMessage());
+                Bukkit.getScheduler().runTask(this, () ->
+                    sender.sendMessage(Component.text("Search failed - see the server log", NamedTextColor.RED)));
+                return;
+            }
+            
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (results.isEmpty()) {
+                    sender.sendMessage(Component.text("No backpacks hold " + threshold + " or more "
+                        + material.name().toLowerCase(), NamedTextColor.YELLOW));
+                    return;
+                }
+                sender.sendMessage(Component.text("Backpacks holding " + material.name().toLowerCase()
+                    + " (top " + QUERY_RESULT_LIMIT + "):", NamedTextColor.GOLD));
+                for (SQLiteBackpackStore.MaterialCount result : results) {
+                    sender.sendMessage(statLine(result.key(), String.valueOf(result.amount())));
+                }
+            });
+        });
+        return true;
+    }
+    
+    /**
+     * Handles the /backpack unused command, listing backpacks nobody has touched lately.
+     * 
+     * <p>Command syntax: /backpack unused &lt;days&gt;</p>
+     * <p>Permission required: backpacks.admin</p>
+     * 
+     * <p>A backpack counts as unused when it was neither opened nor saved within the given
+     * number of days. Answered from the {@link StorageManifest}, so it works with every
+     * backend and reads no backpack data. Shows the count and the
+     * {@link #QUERY_RESULT_LIMIT} longest-unused backpacks.</p>
+     * 
+     * @param sender The CommandSender executing the command
+     * @param args Full command arguments (includes "unused" as args[0])
+     * @return true (command was handled)
+     */
+    private boolean handleUnused(CommandSender sender, String[] args) {
+        // Check admin permission
+        if (!sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("You don't have permission to search backpacks!", NamedTextColor.RED));
+            return true;
+        }
+        
+        int days;
+        try {
+            days = args.length >= 2 ? Integer.parseInt(args[1]) : -1;
+        } catch (NumberFormatException e) {
+            days = -1;
+        }
+        if (days < 0) {
+            sender.sendMessage(Component.text("Usage: /backpack unused <days>", NamedTextColor.RED));
+            return true;
+        }
+        
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+        List<Map.Entry<String, Long>> unused = new ArrayList<>();
+        for (Map.Entry<String, ManifestEntry> entry : manifest.entries().entrySet()) {
+            long lastUsed = Math.max(entry.getValue().lastOpened(), entry.getValue().lastModified());
+            if (lastUsed < cutoff) {
+                unused.add(Map.entry(entry.getKey(), lastUsed));
+            }
+        }
+        unused.sort(Map.Entry.comparingByValue());
+        
+        sender.sendMessage(Component.text(unused.size() + " backpacks unused for " + days + " days", NamedTextColor.GOLD));
+        for (Map.Entry<String, Long> entry : unused.subList(0, Math.min(QUERY_RESULT_LIMIT, unused.size()))) {
+            long idleDays = TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis() - entry.getValue());
+            sender.sendMessage(statLine(entry.getKey(), idleDays + " days"));
+        }
+        return true;
+    }
+    
+    /**
+     * Handles the /backpack dictionary command, showing or retraining the compression
+     * dictionary.
+     * 
+     * <p>Command syntax: /backpack dictionary [train]</p>
+     * <p>Permission required: backpacks.admin</p>
+     * 
+     * <p>Without arguments, shows whether compression is on and which dictionary new
+     * records use. "train" trains a new dictionary from a sample of stored backpacks
+     * off the main thread (see {@link #trainDictionary()}) and reports back when done.</p>
+     * 
+     * @param sender The CommandSender executing the command
+     * @param args Full command arguments (includes "dictionary" as args[0])
+     * @return true (command was handled)
+     */
+    private boolean handleDictionary(CommandSender sender, String[] args) {
+        // Check admin permission
+        if (!sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("You don't have permission to manage compression!", NamedTextColor.RED));
+            return true;
+        }
+        
+        if (args.length >= 2 && args[1].equalsIgnoreCase("train")) {
+            if (!BackpackCodec.compressionEnabled()) {
+                sender.sendMessage(Component.text("Compression is off - set storage.compression.enabled: true first", NamedTextColor.RED));
+                return true;
+            }
+            sender.sendMessage(Component.text("Training a compression dictionary in the background...", NamedTextColor.YELLOW));
+            Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+                String result = trainDictionary();
+                Bukkit.getScheduler().runTask(this, () ->
+                    sender.sendMessage(Component.text(result, NamedTextColor.GREEN)));
+            });
+            return true;
+        }
+        
+        int current = dictionaries.currentId();
+        sender.sendMessage(statLine("Compression", BackpackCodec.compressionEnabled() ? "on" : "off"));
+        sender.sendMessage(statLine("Dictionary", current == 0 ? "none (plain Deflate)"
+            : "#" + current + ", " + dictionaries.size(current) + " bytes"));
+        sender.sendMessage(statLine("Stored dictionaries", String.valueOf(dictionaries.count())));
+        return true;
+    }
+    
+    /**
+     * Handles the /backpack quarantine command, listing or unlocking damaged backpacks.
+     * 
+     * <p>Command syntax: /backpack quarantine [clear &lt;id&gt;]</p>
+     * <p>Permission required: backpacks.admin</p>
+     * 
+     * <p>Without arguments, lists the quarantined backpacks (at most
+     * {@link #QUERY_RESULT_LIMIT}) with the reason each was locked.</p>
+     * 
+     * <p>"clear" reads the backpack's record again off the main thread and checks it:</p>
+     * <ul>
+     *   <li>Intact (for example restored from a backup by hand) - the backpack is unlocked</li>
+     *   <li>Still damaged - the record is deleted, so the backpack opens empty, and then
+     *       unlocked. The damaged copy is kept in quarantine/released/</li>
+     * </ul>
+     * 
+     * @param sender The CommandSender executing the command
+     * @param args Full command arguments (includes "quarantine" as args[0])
+     * @return true (command was handled)
+     */
+    private boolean handleQuarantine(CommandSender sender, String[] args) {
+        // Check admin permission
+        if (!sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("You don't have permission to manage damaged backpacks!", NamedTextColor.RED));
+            return true;
+        }
+        
+        if (args.length < 2) {
+            SortedMap<String, String> entries = quarantine.entries();
+            if (entries.isEmpty()) {
+                sender.sendMessage(Component.text("No backpacks are quarantined", NamedTextColor.GREEN));
+                return true;
+            }
+            sender.sendMessage(Component.text(entries.size() + " quarantined backpacks:", NamedTextColor.GOLD));
+            entries.entrySet().stream().limit(QUERY_RESULT_LIMIT)
+                .forEach(entry -> sender.sendMessage(statLine(entry.getKey(), entry.getValue())));
+            return true;
+        }
+        
+        if (!args[1].equalsIgnoreCase("clear") || args.length < 3) {
+            sender.sendMessage(Component.text("Usage: /backpack quarantine [clear <id>]", NamedTextColor.RED));
+            return true;
+        }
+        String key = args[2];
+        if (!quarantine.contains(key)) {
+            sender.sendMessage(Component.text("Backpack " + key + " is not quarantined", NamedTextColor.RED));
+            return true;
+        }
+        
+        BackpackStore store = backpackStore;
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            boolean intact;
+            try {
+                byte[] record = store.readRecord(key);
+                if (record != null) {
+                    BackpackCodec.verify(record);
+                }
+                intact = true;
+            } catch (CorruptRecordException e) {
+                intact = false;
+            } catch (IOException e) {
+                getLogger().warning("Failed to check quarantined backpack " + key + ": " + e.getMessage());
+                Bukkit.getScheduler().runTask(this, () ->
+                    sender.sendMessage(Component.text("Could not read the backpack - see the server log", NamedTextColor.RED)));
+                return;
+            }
+            
+            boolean restored = intact;
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (!restored) {
+                    // Deleting goes through the write queue like an emptied backpack
+                    ManifestEntry entry = manifest.get(key);
+                    int capacity = entry != null ? entry.capacity() : PERSONAL_BACKPACK_SIZE;
+                    BackpackSnapshot emptied = new BackpackSnapshot(capacity, Collections.emptyMap());
+                    logBackpackChange(key, emptied);
+                    writeQueue.submit(key, emptied);
+                    manifest.recordDelete(key);
+                }
+                try {
+                    quarantine.release(key);
+                } catch (IOException e) {
+                    getLogger().warning("Failed to release backpack " + key + " from quarantine: " + e.getMessage());
+                    sender.sendMessage(Component.text("Could not release the backpack - see the server log", NamedTextColor.RED));
+                    return;
+                }
+                backpackStorage.remove(key);
+                if (restored) {
+                    sender.sendMessage(Component.text("Backpack " + key + " is intact again and has been unlocked", NamedTextColor.GREEN));
+                } else {
+                    sender.sendMessage(Component.text("Backpack " + key + " was still damaged: its record was deleted and it opens empty."
+                        + " The damaged copy is in quarantine/released/", NamedTextColor.YELLOW));
+                }
+            });
+        });
+        return true;
+    }
+    
+    /**
+     * Handles the /backpack history command, listing a backpack's earlier versions.
+     * 
+     * <p>Command syntax: /backpack history &lt;uuid|player&gt;</p>
+     * <p>Permission required: backpacks.admin</p>
+     * 
+     * <p>Version 1 is the contents before the latest save, version 2 before the one
+     * before it, and so on. Each line shows when that version was replaced, by whom,
+     * and how many items it held - worked out off the main thread by rolling the current
+     * contents back one version at a time, like {@link #handleRollback} does.</p>
+     * 
+     * @param sender The CommandSender executing the command
+     * @param args Command arguments: ["history", backpack]
+     * @return true (command was handled)
+     */
+    private boolean handleHistory(CommandSender sender, String[] args) {
+        // Check admin permission
+        if (!sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("You don't have permission to view backpack history!", NamedTextColor.RED));
+            return true;
+        }
+        if (history == null) {
+            sender.sendMessage(Component.text("Backpack history is disabled (storage.history.enabled)", NamedTextColor.RED));
+            return true;
+        }
+        if (args.length < 2) {
+            sender.sendMessage(Component.text("Usage: /backpack history <uuid|player>", NamedTextColor.RED));
+            return true;
+        }
+        String key = resolveBackpackKey(args[1]);
+        if (key == null) {
+            sender.sendMessage(Component.text("No backpack or known player named " + args[1], NamedTextColor.RED));
+            return true;
+        }
+        Map<Integer, ItemStack> current = currentContentsForHistory(sender, key);
+        if (current == null) {
+            return true;
+        }
+        
+        Future<List<VersionHistory.Version>> versions = history.versions(key);
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            List<String> lines = new ArrayList<>();
+            try {
+                Map<Integer, ItemStack> contents = new HashMap<>(current);
+                long now = System.currentTimeMillis();
+                int number = 1;
+                for (VersionHistory.Version version : versions.get()) {
+                    BackpackCodec.applyDelta(ByteBuffer.wrap(version.reverseDelta()), contents);
+                    int items = 0;
+                    for (ItemStack item : contents.values()) {
+                        items += item.getAmount();
+                    }
+                    lines.add("#" + number++ + ": replaced " + formatAge(now - version.savedAt()) + " ago by "
+                        + version.savedBy() + " - " + items + " items in " + contents.size() + " slots");
+                }
+            } catch (IOException | ExecutionException | RuntimeException e) {
+                getLogger().warning("Failed to read the history of backpack " + key + ": " + e.getMessage());
+                lines.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (lines.contains(null)) {
+                    sender.sendMessage(Component.text("Could not read the history - see the server log", NamedTextColor.RED));
+                } else if (lines.isEmpty()) {
+                    sender.sendMessage(Component.text("Backpack " + key + " has no earlier versions", NamedTextColor.GREEN));
+                } else {
+                    sender.sendMessage(Component.text("Earlier versions of backpack " + key + ":", NamedTextColor.GOLD));
+                    lines.forEach(line -> sender.sendMessage(Component.text(line, NamedTextColor.GRAY)));
+                    sender.sendMessage(Component.text("Restore one with /backpack rollback " + args[1] + " <#>", NamedTextColor.YELLOW));
+                }
+            });
+        });
+        return true;
+    }
+    
+    /**
+     * Handles the /backpack rollback command, restoring an earlier version of a backpack.
+     * 
+     * <p>Command syntax: /backpack rollback &lt;uuid|player&gt; &lt;version&gt;</p>
+     * <p>Permission required: backpacks.admin</p>
+     * 
+     * <p>The version number is the one /backpack history shows. The reverse deltas are
+     * applied off the main thread; back on it, the result is saved like any other save -
+     * memory, write-ahead log, write queue, manifest - and recorded as a version itself,
+     * so a rollback can be rolled back. Takes effect immediately, no restart needed.</p>
+     * 
+     * <p>Refused while someone has the backpack open, and abandoned if it was opened or
+     * saved while the versions were being applied (run it again).</p>
+     * 
+     * @param sender The CommandSender executing the command
+     * @param args Command arguments: ["rollback", backpack, version]
+     * @return true (command was handled)
+     */
+    private boolean handleRollback(CommandSender sender, String[] args) {
+        // Check admin permission
+        if (!sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("You don't have permission to roll back backpacks!", NamedTextColor.RED));
+            return true;
+        }
+        if (history == null) {
+            sender.sendMessage(Component.text("Backpack history is disabled (storage.history.enabled)", NamedTextColor.RED));
+            return true;
+        }
+        int steps;
+        try {
+            steps = args.length >= 3 ? Integer.parseInt(args[2]) : 0;
+        } catch (NumberFormatException e) {
+            steps = 0;
+        }
+        if (steps < 1) {
+            sender.sendMessage(Component.text("Usage: /backpack rollback <uuid|player> <version>", NamedTextColor.RED));
+            return true;
+        }
+        String key = resolveBackpackKey(args[1]);
+        if (key == null) {
+            sender.sendMessage(Component.text("No backpack or known player named " + args[1], NamedTextColor.RED));
+            return true;
+        }
+        Map<Integer, ItemStack> current = currentContentsForHistory(sender, key);
+        if (current == null) {
+            return true;
+        }
+        Map<Integer, ItemStack> cached = backpackStorage.peek(key);
+        ManifestEntry entry = manifest.get(key);
+        int storedCapacity = entry != null ? entry.capacity() : 0;
+        
+        int count = steps;
+        Future<List<VersionHistory.Version>> versions = history.versions(key);
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            Map<Integer, ItemStack> contents = new HashMap<>(current);
+            int capacity = storedCapacity;
+            int available;
+            try {
+                List<VersionHistory.Version> list = versions.get();
+                available = list.size();
+                for (int i = 0; i < Math.min(count, available); i++) {
+                    capacity = Math.max(capacity, BackpackCodec.applyDelta(ByteBuffer.wrap(list.get(i).reverseDelta()), contents));
+                }
+            } catch (IOException | ExecutionException | RuntimeException e) {
+                getLogger().warning("Failed to roll back backpack " + key + ": " + e.getMessage());
+                Bukkit.getScheduler().runTask(this, () ->
+                    sender.sendMessage(Component.text("Could not read the history - see the server log", NamedTextColor.RED)));
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            
+            int restoredCapacity = capacity;
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (available < count) {
+                    sender.sendMessage(Component.text("Backpack " + key + " has only " + available + " earlier versions", NamedTextColor.RED));
+                    return;
+                }
+                if (openBackpackUUIDs.containsValue(key) || backpackStorage.peek(key) != cached) {
+                    sender.sendMessage(Component.text("Backpack " + key + " changed during the rollback - try again", NamedTextColor.RED));
+                    return;
+                }
+                restoreBackpack(key, restoredCapacity, current, contents, "rollback by " + sender.getName());
+                sender.sendMessage(Component.text("Backpack " + key + " rolled back to version #" + count, NamedTextColor.GREEN));
+            });
+        });
+        return true;
+    }
+    
+    /**
+     * Reads the contents a history command starts from, telling the sender why if it can't.
+     * 
+     * @param sender Who gets the explanation
+     * @param key The backpack's storage key
+     * @return The current contents (empty for a backpack that isn't stored), or null if
+     *         the backpack is open or quarantined
+     */
+    private Map<Integer, ItemStack> currentContentsForHistory(CommandSender sender, String key) {
+        if (openBackpackUUIDs.containsValue(key)) {
+            sender.sendMessage(Component.text("Backpack " + key + " is open right now - try again once it is closed", NamedTextColor.RED));
+            return null;
+        }
+        if (quarantine.contains(key)) {
+            sender.sendMessage(Component.text("Backpack " + key + " is quarantined - see /backpack quarantine", NamedTextColor.RED));
+            return null;
+        }
+        Map<Integer, ItemStack> contents = getBackpackContents(key);
+        if (contents == null && quarantine.contains(key)) {
+            // Its archived copy turned out to be damaged
+            sender.sendMessage(Component.text("Backpack " + key + " is quarantined - see /backpack quarantine", NamedTextColor.RED));
+            return null;
+        }
+        return contents != null ? contents : Collections.emptyMap();
+    }
+    
+    /**
+     * Turns a command argument into a backpack storage key: a backpack item's UUID, a
+     * "personal-{PlayerUUID}" key, or a player name for that player's personal
+     * backpack. Offline players are looked up in the server's name cache only, so this
+     * never blocks on a profile lookup.
+     * 
+     * <p>Keys name files (history, storage), so only keys rebuilt from a parsed UUID
+     * come back - "personal-../x" must not reach outside the data folder.</p>
+     * 
+     * @param argument What the sender typed
+     * @return The storage key, or null if the name belongs to no known player or the
+     *         personal key's UUID is malformed
+     */
+    private String resolveBackpackKey(String argument) {
+        if (argument.startsWith(PERSONAL_BACKPACK_PREFIX)) {
+            try {
+                return PERSONAL_BACKPACK_PREFIX + UUID.fromString(argument.substring(PERSONAL_BACKPACK_PREFIX.length()));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        try {
+            return UUID.fromString(argument).toString();
+        } catch (IllegalArgumentException e) {
+            // Not a UUID - a player name
+        }
+        Player online = Bukkit.getPlayerExact(argument);
+        if (online != null) {
+            return PERSONAL_BACKPACK_PREFIX + online.getUniqueId();
+        }
+        OfflinePlayer offline = Bukkit.getOfflinePlayerIfCached(argument);
+        return offline != null ? PERSONAL_BACKPACK_PREFIX + offline.getUniqueId() : null;
+    }
+    
+    /**
+     * Formats a duration for chat as its largest unit: "45s", "12m", "3h" or "5d".
+     * 
+     * @param millis The duration in milliseconds
+     * @return The formatted duration
+     */
+    private static String formatAge(long millis) {
+        long seconds = Math.max(0, millis / 1000);
+        if (seconds < 60) {
+            return seconds + "s";
+        } else if (seconds < 3600) {
+            return (seconds / 60) + "m";
+        } else if (seconds < 86400) {
+            return (seconds / 3600) + "h";
+        }
+        return (seconds / 86400) + "d";
+    }
+    
+    /**
+     * Handles the /backpack backup command, writing a consistent copy of every backpack.
+     * 
+     * <p>Command syntax: /backpack backup</p>
+     * <p>Permission required: backpacks.admin</p>
+     * 
+     * <p>The point in time is captured here on the main thread - a reference copy of
+     * {@link #backpackStorage}, the list of other stored backpacks and the segment of
+     * each archived one, no item is cloned or read - and a {@link BackupJob} writes the archive in the background. Backpacks
+     * the job still has to read are protected by {@link #writeBackpacks}, which has the
+     * job read them before overwriting them. Once the archive is complete, backups beyond
+     * "storage.backup.keep" are deleted, oldest first.</p>
+     * 
+     * @param sender The CommandSender executing the command
+     * @return true (command was handled)
+     */
+    private boolean handleBackup(CommandSender sender) {
+        // Check admin permission
+        if (!sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("You don't have permission to back up backpacks!", NamedTextColor.RED));
+            return true;
+        }
+        if (activeBackup != null) {
+            sender.sendMessage(Component.text("A backup is already running", NamedTextColor.RED));
+            return true;
+        }
+        
+        // The point in time: what memory holds, and what storage holds for everything else
+        Map<String, BackpackSnapshot> fromMemory = new HashMap<>();
+        for (Map.Entry<String, Map<Integer, ItemStack>> entry : backpackStorage.entries().entrySet()) {
+            if (entry.getValue().isEmpty() || quarantine.contains(entry.getKey())) {
+                continue;
+            }
+            ManifestEntry stored = manifest.get(entry.getKey());
+            int capacity = stored != null ? stored.capacity() : PERSONAL_BACKPACK_SIZE;
+            fromMemory.put(entry.getKey(), new BackpackSnapshot(capacity, entry.getValue()));
+        }
+        Set<String> fromStorage = new HashSet<>(manifest.entries().keySet());
+        fromStorage.removeAll(backpackStorage.keys());
+        fromStorage.removeIf(quarantine::contains);
+        // Backpacks not in memory may have a save still queued (an archival's delete) - it is newer than storage
+        for (Iterator<String> it = fromStorage.iterator(); it.hasNext(); ) {
+            String key = it.next();
+            BackpackSnapshot queued = writeQueue.peek(key);
+            if (queued != null) {
+                it.remove();
+                if (!queued.contents().isEmpty()) {
+                    fromMemory.put(key, queued);
+                }
+            }
+        }
+        Map<String, Integer> fromArchive = coldStorage.entries();
+        fromArchive.keySet().removeIf(quarantine::contains);
+        
+        String name = "backup-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        Path directory = getBackupsDirectory();
+        BackupJob job;
+        try {
+            Files.createDirectories(directory);
+            job = new BackupJob(directory.resolve(name + BackupArchive.EXTENSION), fromMemory, fromStorage,
+                fromArchive, backpackStore, coldStorage, getLogger());
+        } catch (IOException e) {
+            getLogger().warning("Failed to start backup: " + e.getMessage());
+            sender.sendMessage(Component.text("Could not start the backup - see the server log", NamedTextColor.RED));
+            return true;
+        }
+        activeBackup = job;
+        sender.sendMessage(Component.text("Backing up " + job.size() + " backpacks to " + name + "...", NamedTextColor.YELLOW));
+        
+        int keep = Math.max(0, getConfig().getInt("storage.backup.keep", 10));
+        long started = System.currentTimeMillis();
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            long size;
+            try {
+                size = job.run();
+            } catch (IOException e) {
+                getLogger().warning("Backup " + name + " failed: " + e.getMessage());
+                size = -2;
+            } finally {
+                activeBackup = null;
+            }
+            if (size >= 0 && keep > 0) {
+                List<String> backups = BackupArchive.list(directory);
+                for (String old : backups.subList(0, Math.max(0, backups.size() - keep))) {
+                    try {
+                        Files.deleteIfExists(directory.resolve(old + BackupArchive.EXTENSION));
+                    } catch (IOException e) {
+                        getLogger().warning("Failed to delete old backup " + old + ": " + e.getMessage());
+                    }
+                }
+            }
+            
+            long archiveSize = size;
+            long seconds = (System.currentTimeMillis() - started) / 1000;
+            getLogger().info(archiveSize >= 0
+                ? "Backup " + name + " finished: " + (archiveSize / 1024) + " KB in " + seconds + "s"
+                    + (job.failedCount() > 0 ? ", " + job.failedCount() + " backpacks left out" : "")
+                : "Backup " + name + " did not complete");
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (archiveSize >= 0) {
+                    sender.sendMessage(Component.text("Backup " + name + " finished: " + (archiveSize / 1024) + " KB in "
+                        + seconds + "s" + (job.failedCount() > 0 ? " (" + job.failedCount() + " backpacks left out - see the server log)" : ""),
+                        job.failedCount() > 0 ? NamedTextColor.YELLOW : NamedTextColor.GREEN));
+                } else {
+                    sender.sendMessage(Component.text("Backup " + name + " did not complete - see the server log", NamedTextColor.RED));
+                }
+            });
+        });
+        return true;
+    }
+    
+    /**
+     * Handles the /backpack restore command, putting one backpack back from a backup.
+     * 
+     * <p>Command syntax: /backpack restore &lt;uuid|player&gt; &lt;backup&gt;</p>
+     * <p>Permission required: backpacks.admin</p>
+     * 
+     * <p>Only that backpack's entry is read from the archive (see {@link BackupArchive#read}),
+     * off the main thread. The restored contents are saved through {@link #restoreBackpack},
+     * so the replaced contents become a history version. Restoring a quarantined backpack
+     * replaces its damaged record and unlocks it. Refused while the backpack is open.</p>
+     * 
+     * @param sender The CommandSender executing the command
+     * @param args Command arguments: ["restore", backpack, backup]
+     * @return true (command was handled)
+     */
+    private boolean handleRestore(CommandSender sender, String[] args) {
+        // Check admin permission
+        if (!sender.hasPermission("backpacks.admin")) {
+            sender.sendMessage(Component.text("You don't have permission to restore backpacks!", NamedTextColor.RED));
+            return true;
+        }
+        if (args.length < 3) {
+            sender.sendMessage(Component.text("Usage: /backpack restore <uuid|player> <backup>", NamedTextColor.RED));
+            return true;
+        }
+        String key = resolveBackpackKey(args[1]);
+        if (key == null) {
+            sender.sendMessage(Component.text("No backpack or known player named " + args[1], NamedTextColor.RED));
+            return true;
+        }
+        String name = args[2].endsWith(BackupArchive.EXTENSION)
+            ? args[2].substring(0, args[2].length() - BackupArchive.EXTENSION.length()) : args[2];
+        Path archive = getBackupsDirectory().resolve(name + BackupArchive.EXTENSION);
+        if (!name.matches("[A-Za-z0-9._-]+") || !Files.isRegularFile(archive)) {
+            sender.sendMessage(Component.text("No backup named " + args[2] + " in backups/", NamedTextColor.RED));
+            return true;
+        }
+        if (openBackpackUUIDs.containsValue(key)) {
+            sender.sendMessage(Component.text("Backpack " + key + " is open right now - try again once it is closed", NamedTextColor.RED));
+            return true;
+        }
+        
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            BackpackSnapshot snapshot;
+            try {
+                snapshot = BackupArchive.read(archive, key);
+            } catch (IOException e) {
+                getLogger().warning("Failed to read backpack " + key + " from backup " + name + ": " + e.getMessage());
+                Bukkit.getScheduler().runTask(this, () ->
+                    sender.sendMessage(Component.text("Could not read the backup - see the server log", NamedTextColor.RED)));
+                return;
+            }
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (snapshot == null) {
+                    sender.sendMessage(Component.text("Backpack " + key + " is not in backup " + name, NamedTextColor.RED));
+                    return;
+                }
+                if (openBackpackUUIDs.containsValue(key)) {
+                    sender.sendMessage(Component.text("Backpack " + key + " was opened in the meantime - try again once it is closed", NamedTextColor.RED));
+                    return;
+                }
+                Map<Integer, ItemStack> current = quarantine.contains(key) ? null : getBackpackContents(key);
+                // Also true if its archived copy just turned out to be damaged
+                boolean damaged = quarantine.contains(key);
+                restoreBackpack(key, snapshot.capacity(), current != null ? current : Collections.emptyMap(),
+                    snapshot.contents(), "restore from " + name + " by " + sender.getName());
+                if (damaged) {
+                    try {
+                        quarantine.release(key);
+                    } catch (IOException e) {
+                        getLogger().warning("Failed to release backpack " + key + " from quarantine: " + e.getMessage());
+                    }
+                }
+                sender.sendMessage(Component.text("Backpack " + key + " restored from " + name
+                    + (damaged ? " and unlocked" : ""), NamedTextColor.GREEN));
+            });
+        });
+        return true;
+    }
+    
+    /**
+     * Returns the directory holding /backpack backup archives: plugins/Backpacks/backups/.
+     */
+    private Path getBackupsDirectory() {
+        return new File(getDataFolder(), "backups").toPath();
+    }
+    
+    /**
+     * Formats one line of /backpack stats: yellow label, gray value.
+     * 
+     * @param label The statistic's name
+     * @param value The statistic's value
+     * @return The formatted line
+     */
+    private Component statLine(String label, String value) {
+        return Component.text(label + ": ", NamedTextColor.YELLOW)
+            .append(Component.text(value, NamedTextColor.GRAY));
+    }
+    
+    // ==================== TAB COMPLETION ====================
+    
+    /**
+     * Provides intelligent tab completion suggestions for /backpack and /bp commands.
+     * 
+     * <p>Completion behavior by command and position:</p>
+     * 
+     * <h3>/bp command:</h3>
+     * <p>Returns empty list (no arguments needed or supported)</p>
+     * 
+     * <h3>/backpack command:</h3>
+     * <p><b>Position 1 (subcommand):</b></p>
+     * <ul>
+     *   <li>Always: "help"</li>
+     *   <li>If has backpacks.give: "give"</li>
+     *   <li>If has backpacks.admin: "reload", "stats", "find", "unused", "dictionary", "quarantine"</li>
+     * </ul>
+     * 
+     * <p><b>Position 2 (after "dictionary"):</b></p>
+     * <ul>
+     *   <li>"train"</li>
+     * </ul>
+     * 
+     * <p><b>Position 2 (after "quarantine"):</b></p>
+     * <ul>
+     *   <li>"clear"</li>
+     * </ul>
+     * 
+     * <p><b>Position 3 (after "quarantine clear"):</b></p>
+     * <ul>
+     *   <li>IDs of quarantined backpacks</li>
+     * </ul>
+     * 
+     * <p><b>Position 2 (after "find"):</b></p>
+     * <ul>
+     *   <li>Item material names</li>
+     * </ul>
+     * 
+     * <p><b>Position 2 (after "give"):</b></p>
+     * <ul>
+     *   <li>"backpack"</li>
+     *   <li>"doubler"</li>
+     * </ul>
+     * 
+     * <p><b>Position 3 (after "give &lt;type&gt;"):</b></p>
+     * <ul>
+     *   <li>All online player names</li>
+     * </ul>
+     * 
+     * <p>Filtering behavior:</p>
+     * <p>All suggestions are filtered by the current partial input (case-insensitive).
+     * For example, typing "/backpack g" filters to suggestions starting with "g".</p>
+     * 
+     * <p>Permission-aware completions ensure players only see options they can use.</p>
+     * 
+     * @param sender The CommandSender typing the command
+     * @param command The Command being completed
+     * @param alias The alias used (e.g., "backpack" or "bp")
+     * @param args Current arguments being typed
+     * @return List of completion suggestions (may be empty, never null)
+     */
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        List<String> completions = new ArrayList<>();
+        
+        // /bp has no tab completions (opens personal backpack directly)
+        if (alias.equalsIgnoreCase("bp")) {
+            return completions;
+        }
+        
+        // First argument: subcommand suggestions
+        if (args.length == 1) {
+            // Help is always available (no permission required)
+            completions.add("help");
+            
+            // Give command requires backpacks.give permission
+            if (sender.hasPermission("backpacks.give")) {
+                completions.add("give");
+            }
+            
+            // Admin commands require backpacks.admin permission
+            if (sender.hasPermission("backpacks.admin")) {
+                completions.add("reload");
+                completions.add("stats");
+                completions.add("find");
+                completions.add("unused");
+                completions.add("dictionary");
+                completions.add("quarantine");
+                completions.add("history");
+                completions.add("rollback");
+                completions.add("backup");
+                completions.add("restore");
+            }
+        } 
+        // Second argument: action (only after "dictionary")
+        else if (args.length == 2 && args[0].equalsIgnoreCase("dictionary") && sender.hasPermission("backpacks.admin")) {
+            completions.add("train");
+        } 
+        // Second argument: action (only after "quarantine")
+        else if (args.length == 2 && args[0].equalsIgnoreCase("quarantine") && sender.hasPermission("backpacks.admin")) {
+            completions.add("clear");
+        } 
+        // Third argument: backpack ID (only after "quarantine clear")
+        else if (args.length == 3 && args[0].equalsIgnoreCase("quarantine") && args[1].equalsIgnoreCase("clear")
+                && sender.hasPermission("backpacks.admin")) {
+            completions.addAll(quarantine.entries().keySet());
+        } 
+        // Second argument: player name (after "history", "rollback" or "restore" - their personal backpack)
+        else if (args.length == 2 && (args[0].equalsIgnoreCase("history") || args[0].equalsIgnoreCase("rollback")
+                || args[0].equalsIgnoreCase("restore")) && sender.hasPermission("backpacks.admin")) {
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                completions.add(player.getName());
+            }
+        } 
+        // Third argument: backup name, newest first (only after "restore <backpack>")
+        else if (args.length == 3 && args[0].equalsIgnoreCase("restore") && sender.hasPermission("backpacks.admin")) {
+            completions.addAll(BackupArchive.list(getBackupsDirectory()));
+            Collections.reverse(completions);
+        } 
+        // Second argument: material (only after "find")
+        else if (args.length == 2 && args[0].equalsIgnoreCase("find") && sender.hasPermission("backpacks.admin")) {
+            for (Material material : Material.values()) {
+                if (material.isItem() && !material.isLegacy()) {
+                    completions.add(material.name().toLowerCase());
+                }
+            }
+        } 
+        // Second argument: item type (only after "give")
+        else if (args.length == 2 && args[0].equalsIgnoreCase("give")) {
+            completions.add("backpack");
+            completions.add("doubler");
+        } 
+        // Third argument: player name (only after "give <type>")
+        else if (args.length == 3 && args[0].equalsIgnoreCase("give")) {
+            // Return all online player names for selection
+            // No permission check here since give permission was already verified
+            return Bukkit.getOnlinePlayers().stream()
+                .map(Player::getName)
                 .collect(Collectors.toList());
         }
         
-        // Filter suggestions by partial input (what the player has typed so far)
-        // This provides standard tab-completion behavior where typing narrows the options
-        // toLowerCase() on both sides ensures case-insensitive matching
-        return completions.stream()
-            .filter(s -> s.toLowerCase().startsWith(args[args.length - 1].toLowerCase()))
-            .collect(Collectors.toList());
+        // Filter suggestions by partial input (what the player has typed so far)
+        // This provides standard tab-completion behavior where typing narrows the options
+        // toLowerCase() on both sides ensures case-insensitive matching
+        return completions.stream()
+            .filter(s -> s.toLowerCase().startsWith(args[args.length - 1].toLowerCase()))
+            .collect(Collectors.toList());
+    }
+    
+    // ==================== STORAGE FORMAT ====================
+    // The unit of persistence and its compact binary encoding.
+    
+    /**
+     * Immutable point-in-time copy of a backpack, as handed from the main thread to storage.
+     * 
+     * <p>The contents map must be unmodifiable and its ItemStacks must be clones that
+     * nothing else mutates - the snapshot is read by writer threads after the main
+     * thread has moved on. The same applies to changedSlots.</p>
+     * 
+     * <p>A snapshot always carries the complete contents. changedSlots additionally says
+     * which slots differ from the previous save, which lets a backend store just those
+     * slots (see {@link FileBackpackStore}); null means "treat everything as changed".</p>
+     * 
+     * <p>Snapshots read from storage set outdated when their record was written by an
+     * older Minecraft version (see {@link BackpackCodec#currentDataVersion()}). Their items
+     * were upgraded while deserializing; storing the snapshot again saves that work
+     * on every later load.</p>
+     * 
+     * @param capacity Inventory size in slots when the snapshot was taken (27 or 54)
+     * @param contents Unmodifiable slot → item map of non-empty slots
+     * @param changedSlots Slots changed since the previous save, or null if unknown
+     * @param outdated Whether the contents were read from a record of an older DataVersion
+     */
+    private record BackpackSnapshot(int capacity, Map<Integer, ItemStack> contents, BitSet changedSlots, boolean outdated) {
+        
+        /**
+         * A snapshot with change information, as taken from an inventory.
+         */
+        BackpackSnapshot(int capacity, Map<Integer, ItemStack> contents, BitSet changedSlots) {
+            this(capacity, contents, changedSlots, false);
+        }
+        
+        /**
+         * A snapshot without change information - stored in full.
+         */
+        BackpackSnapshot(int capacity, Map<Integer, ItemStack> contents) {
+            this(capacity, contents, null, false);
+        }
+        
+        /**
+         * Combines this snapshot with an older one that was never written. The contents
+         * are this snapshot's; the changed slots are the union of both, since the older
+         * snapshot's changes have not reached storage either.
+         * 
+         * @param older The snapshot this one replaces
+         * @return A snapshot covering both saves
+         */
+        BackpackSnapshot mergedAfter(BackpackSnapshot older) {
+            if (changedSlots == null || older.changedSlots == null) {
+                return changedSlots == null ? this : new BackpackSnapshot(capacity, contents);
+            }
+            BitSet union = (BitSet) changedSlots.clone();
+            union.or(older.changedSlots);
+            return new BackpackSnapshot(capacity, contents, union);
+        }
+        
+        /**
+         * Total number of items across all slots (sum of stack amounts).
+         */
+        int itemCount() {
+            int count = 0;
+            for (ItemStack item : contents.values()) {
+                count += item.getAmount();
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Thrown when a stored record's bytes are damaged - a checksum mismatch, a truncated
+     * record or an impossible structure - as opposed to an I/O failure or a missing
+     * dictionary, where the record itself may be fine.
+     * 
+     * <p>Backpacks whose record throws this are quarantined (see {@link Quarantine}).</p>
+     */
+    private static final class CorruptRecordException extends IOException {
+        
+        CorruptRecordException(String message) {
+            super(message);
+        }
+        
+        CorruptRecordException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+    
+    /**
+     * Versioned binary record format for backpack contents.
+     * 
+     * <p>Layout (big-endian):</p>
+     * <pre>
+     * int    magic        0x4250434B ("BPCK")
+     * byte   version      1 = plain, 2 = compressed, 3 = item references;
+     *                     +0x80 when a dataVersion follows the header,
+     *                     +0x40 when the record ends with a checksum
+     * ushort capacity     inventory size in slots
+     * ushort slotCount    number of slot entries that follow
+     * int    itemCount    total items (sum of stack amounts) - lets tools read
+     *                     totals from the header without decoding any item
+     * int    dataVersion  Minecraft DataVersion the record was written with (optional)
+     * 
+     * version 1:
+     * slotCount x {
+     *   ushort slot       slot index
+     *   int    length     byte length of the item data
+     *   byte[] item       ItemStack.serializeAsBytes() output
+     * }
+     * 
+     * version 2:
+     * int    dictionary   {@link CompressionDictionaries} ID, 0 = none
+     * int    bodyLength   uncompressed body length
+     * byte[] body         raw Deflate, with the dictionary as preset dictionary:
+     *   slotCount x {
+     *     ushort slot
+     *     byte   flags    1 = item NBT stored without its GZIP wrapper
+     *     int    length
+     *     byte[] item
+     *   }
+     * 
+     * version 3:
+     * slotCount x {
+     *   ushort slot
+     *   long   hashHigh   {@link ItemHash} of the item, stored in {@link ItemBlobStore}
+     *   long   hashLow
+     * }
+     * 
+     * int    checksum     CRC32C of every byte before it (optional, always written)
+     * </pre>
+     * 
+     * <p>Items are encoded with Paper's {@link ItemStack#serializeAsBytes()}, which
+     * stores the full item NBT (including its DataVersion) in a compact form, so
+     * the record is typically several times smaller than the equivalent YAML and
+     * needs no YAML parsing or ConfigurationSerializable round trip to read.</p>
+     * 
+     * <p>Compression ("storage.compression.enabled"): serializeAsBytes GZIPs each item on
+     * its own, which hides the strings items have in common (material IDs, enchantment
+     * names, lore). Version 2 records store the bare NBT instead and Deflate the whole
+     * body at once against a preset dictionary trained from this server's backpacks, so
+     * even a record holding a single item can refer back to dictionary text. Decoding
+     * wraps the NBT in a stored (uncompressed) GZIP frame again, which is what Paper
+     * expects. A record that doesn't get smaller is written as version 1. Both versions
+     * are always readable; records change version on their next save.</p>
+     * 
+     * <p>Deduplication ("storage.deduplication.enabled"): version 3 records hold 18 bytes
+     * per slot - the slot and the hash of its item - and the items themselves go to the
+     * shared {@link ItemBlobStore}. Deduplication takes precedence over compression.
+     * Because the item store keeps track of which records refer to which items,
+     * {@link #encode} and {@link #decode} take the backpack's storage key.</p>
+     * 
+     * <p>Checksum: every record written by this version of the plugin ends with a CRC32C
+     * of the whole record, checked by {@link #decode} before anything else is read.
+     * A damaged record fails with {@link CorruptRecordException} instead of loading as a
+     * partly empty backpack. CRC32C is computed by a dedicated CPU instruction on current
+     * hardware, so the check costs next to nothing on the main thread.
+     * {@link #verify(byte[])} checks a record without deserializing its items.</p>
+     * 
+     * <p>DataVersion: every record written by this version of the plugin carries the
+     * running server's DataVersion. A record with an older one (or none) still loads -
+     * Paper upgrades each item as it is deserialized - but decodes as
+     * {@link BackpackSnapshot#outdated()}, so the plugin can store the upgraded items
+     * once instead of upgrading them again on every load.</p>
+     * 
+     * <p>Stateless apart from the settings installed once by {@link #configure} - all
+     * methods are static and thread-safe.</p>
+     */
+    private static final class BackpackCodec {
+        
+        /** "BPCK" - identifies a binary backpack record. */
+        static final int MAGIC = 0x4250434B;
+        
+        /** Record format version of uncompressed records. */
+        static final int FORMAT_VERSION = 1;
+        
+        /** Record format version of Deflate-compressed records. */
+        static final int COMPRESSED_VERSION = 2;
+        
+        /** Record format version of records referring to {@link ItemBlobStore} items. */
+        static final int REFERENCE_VERSION = 3;
+        
+        /** magic + version + capacity + slotCount + itemCount */
+        static final int HEADER_SIZE = 4 + 1 + 2 + 2 + 4;
+        
+        /** Header including the optional dataVersion - enough for {@link #describe} */
+        static final int MAX_HEADER_SIZE = HEADER_SIZE + 4;
+        
+        /** Version byte flag: a dataVersion int follows the fixed header */
+        private static final int FLAG_DATA_VERSION = 0x80;
+        
+        /** Version byte flag: the record ends with a CRC32C of everything before it */
+        private static final int FLAG_CHECKSUM = 0x40;
+        
+        /** Version byte bits holding the layout version */
+        private static final int VERSION_MASK = 0x3F;
+        
+        /** Compression level meaning "write uncompressed records" */
+        static final int NO_COMPRESSION = -1;
+        
+        /** Slot entry flag: the item is bare NBT, GZIP it again before deserializing */
+        private static final int FLAG_UNWRAPPED = 1;
+        
+        /** Dictionaries compressed records refer to, null until {@link #configure} */
+        private static volatile CompressionDictionaries dictionaries;
+        
+        /** Deflate level for new records, or {@link #NO_COMPRESSION} */
+        private static volatile int compressionLevel = NO_COMPRESSION;
+        
+        /** Item store version 3 records refer to, null if there is none */
+        private static volatile ItemBlobStore itemBlobs;
+        
+        /** Whether new records are written as version 3 */
+        private static volatile boolean deduplicate;
+        
+        /** The running server's DataVersion, 0 if unknown (records are then not stamped) */
+        private static volatile int dataVersion;
+        
+        private BackpackCodec() {
+        }
+        
+        /**
+         * Installs the storage format settings. Called at startup before any record is read.
+         * 
+         * @param dictionaryStore Dictionaries for reading and writing compressed records
+         * @param level Deflate level 1-9 for new records, or {@link #NO_COMPRESSION}
+         * @param blobStore Item store for version 3 records, or null if there is none
+         * @param deduplicateItems Whether new records are written as version 3
+         * @param serverDataVersion The running server's DataVersion
+         */
+        static void configure(CompressionDictionaries dictionaryStore, int level,
+                              ItemBlobStore blobStore, boolean deduplicateItems, int serverDataVersion) {
+            dictionaries = dictionaryStore;
+            compressionLevel = level;
+            itemBlobs = blobStore;
+            deduplicate = deduplicateItems && blobStore != null;
+            dataVersion = serverDataVersion;
+        }
+        
+        /** DataVersion new records are stamped with, 0 if unknown */
+        static int currentDataVersion() {
+            return dataVersion;
+        }
+        
+        /** Whether a record written with this DataVersion (0 = not stamped) predates the server */
+        static boolean isOutdated(int recordDataVersion) {
+            int current = dataVersion;
+            return current > 0 && recordDataVersion < current;
+        }
+        
+        /**
+         * Tells the item store that some of a backpack's slots changed without a new record
+         * being encoded, so their old hashes can't be reused. No-op without deduplication.
+         * 
+         * @param key The backpack's storage key
+         * @param slots The changed slots, or null for all of them
+         */
+        static void forgetSlots(String key, BitSet slots) {
+            ItemBlobStore blobStore = itemBlobs;
+            if (blobStore != null) {
+                blobStore.forget(key, slots);
+            }
+        }
+        
+        /** Whether new records are written compressed */
+        static boolean compressionEnabled() {
+            return compressionLevel != NO_COMPRESSION;
+        }
+        
+        /**
+         * Encodes a snapshot into a binary record - item references with deduplication
+         * on, otherwise compressed when compression is on and it makes the record smaller.
+         * 
+         * <p>Slots are written in ascending order so identical contents always
+         * produce identical bytes.</p>
+         * 
+         * @param key The backpack's storage key
+         * @param snapshot The snapshot to encode
+         * @return The complete record, header and checksum included
+         * @throws IOException If an item can't be serialized or stored
+         */
+        static byte[] encode(String key, BackpackSnapshot snapshot) throws IOException {
+            return seal(encodeRecord(key, snapshot));
+        }
+        
+        /**
+         * Builds the record in the configured layout, see {@link #encode}.
+         */
+        private static byte[] encodeRecord(String key, BackpackSnapshot snapshot) throws IOException {
+            ItemBlobStore blobStore = itemBlobs;
+            if (deduplicate && blobStore != null) {
+                return encodeReferences(key, snapshot, blobStore);
+            }
+            
+            // Serialize every item once; both layouts are built from these bytes
+            TreeMap<Integer, byte[]> items = new TreeMap<>();
+            int plainSize = MAX_HEADER_SIZE;
+            for (Map.Entry<Integer, ItemStack> entry : snapshot.contents().entrySet()) {
+                byte[] item = entry.getValue().serializeAsBytes();
+                items.put(entry.getKey(), item);
+                plainSize += 6 + item.length;
+            }
+            
+            CompressionDictionaries dictionaryStore = dictionaries;
+            int level = compressionLevel;
+            if (dictionaryStore != null && level != NO_COMPRESSION && !items.isEmpty()) {
+                byte[] compressed = encodeCompressed(snapshot, items, dictionaryStore, level);
+                if (compressed.length < plainSize) {
+                    return compressed;
+                }
+            }
+            
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(plainSize);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeHeader(out, FORMAT_VERSION, snapshot);
+            
+            // Slot entries in ascending slot order
+            for (Map.Entry<Integer, byte[]> entry : items.entrySet()) {
+                out.writeShort(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            
+            out.flush();
+            return bytes.toByteArray();
+        }
+        
+        /**
+         * Builds a version 3 record, storing items the item store doesn't have yet.
+         * 
+         * <p>Slots that the snapshot's changedSlots say are unchanged keep the hash they
+         * had in the backpack's last confirmed write, without serializing the item.</p>
+         * 
+         * @param key The backpack's storage key
+         * @param snapshot The snapshot to encode
+         * @param blobStore The item store
+         * @return The complete record
+         */
+        private static byte[] encodeReferences(String key, BackpackSnapshot snapshot, ItemBlobStore blobStore) throws IOException {
+            Map<Integer, ItemHash> previous = blobStore.reusable(key);
+            BitSet changed = snapshot.changedSlots();
+            TreeMap<Integer, ItemHash> slots = new TreeMap<>();
+            for (Map.Entry<Integer, ItemStack> entry : snapshot.contents().entrySet()) {
+                ItemHash hash = changed != null && !changed.get(entry.getKey()) ? previous.get(entry.getKey()) : null;
+                if (hash == null) {
+                    hash = blobStore.put(entry.getValue().serializeAsBytes());
+                }
+                slots.put(entry.getKey(), hash);
+            }
+            // New items must be on disk before a record that refers to them can be
+            blobStore.sync();
+            blobStore.encoded(key, slots);
+            
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + slots.size() * (2 + ItemHash.SIZE));
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeHeader(out, REFERENCE_VERSION, snapshot);
+            for (Map.Entry<Integer, ItemHash> entry : slots.entrySet()) {
+                out.writeShort(entry.getKey());
+                out.writeLong(entry.getValue().high());
+                out.writeLong(entry.getValue().low());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+        
+        /**
+         * Builds a version 2 record with the current dictionary.
+         * 
+         * @param snapshot The snapshot (for the header)
+         * @param items Serialized items by slot, ascending
+         * @param dictionaryStore Dictionaries to compress with
+         * @param level Deflate level
+         * @return The complete record
+         */
+        private static byte[] encodeCompressed(BackpackSnapshot snapshot, SortedMap<Integer, byte[]> items,
+                                               CompressionDictionaries dictionaryStore, int level) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(items.size() * 128);
+            DataOutputStream bodyOut = new DataOutputStream(body);
+            for (Map.Entry<Integer, byte[]> entry : items.entrySet()) {
+                byte[] nbt = gunzip(entry.getValue());
+                byte[] item = nbt != null ? nbt : entry.getValue();
+                bodyOut.writeShort(entry.getKey());
+                bodyOut.writeByte(nbt != null ? FLAG_UNWRAPPED : 0);
+                bodyOut.writeInt(item.length);
+                bodyOut.write(item);
+            }
+            bodyOut.flush();
+            byte[] raw = body.toByteArray();
+            
+            int dictionaryId = dictionaryStore.currentId();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + 8 + raw.length / 2);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeHeader(out, COMPRESSED_VERSION, snapshot);
+            out.writeInt(dictionaryId);
+            out.writeInt(raw.length);
+            
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionaryId != 0) {
+                    deflater.setDictionary(dictionaryStore.get(dictionaryId));
+                }
+                deflater.setInput(raw);
+                deflater.finish();
+                byte[] buffer = new byte[4096];
+                while (!deflater.finished()) {
+                    int written = deflater.deflate(buffer);
+                    out.write(buffer, 0, written);
+                }
+            } finally {
+                deflater.end();
+            }
+            
+            out.flush();
+            return bytes.toByteArray();
+        }
+        
+        /** Writes the header shared by all record versions, stamped with the server's DataVersion */
+        private static void writeHeader(DataOutputStream out, int version, BackpackSnapshot snapshot) throws IOException {
+            int stamp = dataVersion;
+            out.writeInt(MAGIC);
+            out.writeByte(stamp > 0 ? version | FLAG_DATA_VERSION : version);
+            out.writeShort(snapshot.capacity());
+            out.writeShort(snapshot.contents().size());
+            out.writeInt(snapshot.itemCount());
+            if (stamp > 0) {
+                out.writeInt(stamp);
+            }
+        }
+        
+        /**
+         * Appends the CRC32C of a record and flags it in the version byte.
+         */
+        private static byte[] seal(byte[] record) {
+            byte[] sealed = Arrays.copyOf(record, record.length + 4);
+            sealed[4] |= FLAG_CHECKSUM;
+            CRC32C crc = new CRC32C();
+            crc.update(sealed, 0, record.length);
+            ByteBuffer.wrap(sealed, record.length, 4).putInt((int) crc.getValue());
+            return sealed;
+        }
+        
+        /**
+         * Checks a record's checksum, if it has one.
+         * 
+         * @param record The complete record bytes
+         * @return The record without its checksum, positioned at the start
+         * @throws CorruptRecordException If the checksum doesn't match
+         */
+        private static ByteBuffer checkedBody(byte[] record) throws CorruptRecordException {
+            if (record.length < HEADER_SIZE + 4 || (record[4] & FLAG_CHECKSUM) == 0) {
+                // Records written before checksums were added are read unchecked
+                return ByteBuffer.wrap(record);
+            }
+            int bodyLength = record.length - 4;
+            CRC32C crc = new CRC32C();
+            crc.update(record, 0, bodyLength);
+            if (ByteBuffer.wrap(record, bodyLength, 4).getInt() != (int) crc.getValue()) {
+                throw new CorruptRecordException("Checksum mismatch - the stored record is damaged");
+            }
+            return ByteBuffer.wrap(record, 0, bodyLength).slice();
+        }
+        
+        /**
+         * Decodes a binary record back into a snapshot.
+         * 
+         * @param key The backpack's storage key, or null if the record is only inspected
+         *        (its item references are then not recorded)
+         * @param record The complete record bytes
+         * @return The decoded snapshot (contents map is unmodifiable)
+         * @throws CorruptRecordException If the record is damaged: bad checksum, not a backpack
+         *         record, unsupported version, truncated, or refers to a missing item
+         * @throws IOException If it needs a dictionary that is missing
+         */
+        static BackpackSnapshot decode(String key, byte[] record) throws IOException {
+            ByteBuffer in = checkedBody(record);
+            try {
+                // Header
+                if (in.getInt() != MAGIC) {
+                    throw new CorruptRecordException("Not a backpack record (bad magic)");
+                }
+                int versionByte = in.get() & 0xFF;
+                int version = versionByte & VERSION_MASK;
+                if (version < FORMAT_VERSION || version > REFERENCE_VERSION) {
+                    throw new CorruptRecordException("Unsupported backpack record version " + version);
+                }
+                int capacity = in.getShort() & 0xFFFF;
+                int slotCount = in.getShort() & 0xFFFF;
+                in.getInt(); // itemCount - derived from the items themselves when decoding
+                boolean outdated = isOutdated((versionByte & FLAG_DATA_VERSION) != 0 ? in.getInt() : 0);
+                
+                if (version == REFERENCE_VERSION) {
+                    return decodeReferences(key, in, capacity, slotCount, outdated);
+                }
+                
+                boolean compressed = version == COMPRESSED_VERSION;
+                if (compressed) {
+                    in = ByteBuffer.wrap(inflate(in));
+                }
+                
+                // Slot entries
+                Map<Integer, ItemStack> contents = new HashMap<>(slotCount * 2);
+                for (int i = 0; i < slotCount; i++) {
+                    int slot = in.getShort() & 0xFFFF;
+                    int flags = compressed ? in.get() : 0;
+                    int length = in.getInt();
+                    if (length < 0 || length > in.remaining()) {
+                        throw new CorruptRecordException("Corrupt slot entry " + slot + " (length " + length + ")");
+                    }
+                    byte[] item = new byte[length];
+                    in.get(item);
+                    if ((flags & FLAG_UNWRAPPED) != 0) {
+                        item = gzipStored(item);
+                    }
+                    contents.put(slot, deserializeItem(slot, item));
+                }
+                return new BackpackSnapshot(capacity, Collections.unmodifiableMap(contents), null, outdated);
+            } catch (BufferUnderflowException e) {
+                throw new CorruptRecordException("Truncated backpack record", e);
+            }
+        }
+        
+        /**
+         * Decodes the slot entries of a version 3 record, reading each item from the item store.
+         * 
+         * @param key The backpack's storage key, or null
+         * @param in Positioned after the header
+         * @param capacity Capacity from the header
+         * @param slotCount Slot count from the header
+         * @param outdated Whether the record predates the server's DataVersion
+         * @return The decoded snapshot
+         */
+        private static BackpackSnapshot decodeReferences(String key, ByteBuffer in, int capacity, int slotCount,
+                                                         boolean outdated) throws IOException {
+            ItemBlobStore blobStore = itemBlobs;
+            if (blobStore == null) {
+                throw new IOException("Record refers to stored items but items/blobs.dat is missing");
+            }
+            Map<Integer, ItemHash> slots = new HashMap<>(slotCount * 2);
+            Map<Integer, ItemStack> contents = new HashMap<>(slotCount * 2);
+            for (int i = 0; i < slotCount; i++) {
+                int slot = in.getShort() & 0xFFFF;
+                ItemHash hash = ItemHash.read(in);
+                if (!blobStore.contains(hash)) {
+                    throw new CorruptRecordException("Slot " + slot + " refers to an item missing from items/blobs.dat");
+                }
+                slots.put(slot, hash);
+                contents.put(slot, deserializeItem(slot, blobStore.get(hash)));
+            }
+            if (key != null) {
+                // Items of an outdated record must not be reused as they are - they get upgraded
+                blobStore.loaded(key, slots, !outdated);
+            }
+            return new BackpackSnapshot(capacity, Collections.unmodifiableMap(contents), null, outdated);
+        }
+        
+        /**
+         * Inflates a version 2 record's body.
+         * 
+         * @param in Positioned at the dictionary ID
+         * @return The uncompressed body
+         */
+        private static byte[] inflate(ByteBuffer in) throws IOException {
+            int dictionaryId = in.getInt();
+            int bodyLength = in.getInt();
+            if (bodyLength < 0) {
+                throw new CorruptRecordException("Corrupt compressed record (body length " + bodyLength + ")");
+            }
+            CompressionDictionaries dictionaryStore = dictionaries;
+            if (dictionaryId != 0 && dictionaryStore == null) {
+                throw new IOException("Compressed record needs dictionary " + dictionaryId + " but none are loaded");
+            }
+            
+            byte[] body = new byte[bodyLength];
+            Inflater inflater = new Inflater(true);
+            try {
+                if (dictionaryId != 0) {
+                    inflater.setDictionary(dictionaryStore.get(dictionaryId));
+                }
+                inflater.setInput(in);
+                int filled = 0;
+                while (filled < bodyLength) {
+                    int read = inflater.inflate(body, filled, bodyLength - filled);
+                    if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new CorruptRecordException("Truncated compressed record");
+                    }
+                    filled += read;
+                }
+            } catch (DataFormatException e) {
+                throw new CorruptRecordException("Corrupt compressed record: " + e.getMessage(), e);
+            } finally {
+                inflater.end();
+            }
+            return body;
+        }
+        
+        /**
+         * Returns the bare NBT inside an item's GZIP wrapper, or null if the bytes aren't GZIP.
+         * Also used to prepare dictionary training samples.
+         */
+        static byte[] gunzip(byte[] item) {
+            if (item.length < 18 || item[0] != (byte) 0x1f || item[1] != (byte) 0x8b) {
+                return null;
+            }
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(item))) {
+                return in.readAllBytes();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        
+        /**
+         * Deserializes one stored item. Damaged NBT makes the server throw whatever its
+         * parser hits (not only an underflow), so any failure counts as a corrupt record -
+         * callers quarantine it instead of failing the open that read it.
+         * 
+         * @param slot The item's slot, for the message
+         * @param item Serialized item bytes
+         * @return The item
+         * @throws CorruptRecordException If the bytes aren't a valid item
+         */
+        private static ItemStack deserializeItem(int slot, byte[] item) throws CorruptRecordException {
+            try {
+                return ItemStack.deserializeBytes(item);
+            } catch (RuntimeException e) {
+                throw new CorruptRecordException("Corrupt item in slot " + slot + ": " + e.getMessage(), e);
+            }
+        }
+        
+        /** Wraps bare NBT in a GZIP frame of stored blocks - valid GZIP at almost no CPU cost */
+        private static byte[] gzipStored(byte[] nbt) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(nbt.length + 32);
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes) {
+                {
+                    def.setLevel(Deflater.NO_COMPRESSION);
+                }
+            }) {
+                out.write(nbt);
+            }
+            return bytes.toByteArray();
+        }
+        
+        /**
+         * Checks a record as far as possible without deserializing any item: checksum,
+         * header, every slot entry's bounds (inflating version 2 bodies), and for
+         * version 3 that each referenced item is in the item store.
+         * 
+         * <p>Used by the {@link IntegrityScrubber} off the main thread. Records written
+         * before checksums were added get the structural checks only.</p>
+         * 
+         * @param record The complete record bytes
+         * @throws CorruptRecordException If the record is damaged
+         * @throws IOException If it can't be checked (a dictionary is missing)
+         */
+        static void verify(byte[] record) throws IOException {
+            ByteBuffer in = checkedBody(record);
+            try {
+                if (in.getInt() != MAGIC) {
+                    throw new CorruptRecordException("Not a backpack record (bad magic)");
+                }
+                int versionByte = in.get() & 0xFF;
+                int version = versionByte & VERSION_MASK;
+                if (version < FORMAT_VERSION || version > REFERENCE_VERSION) {
+                    throw new CorruptRecordException("Unsupported backpack record version " + version);
+                }
+                in.getShort(); // capacity
+                int slotCount = in.getShort() & 0xFFFF;
+                in.getInt(); // itemCount
+                if ((versionByte & FLAG_DATA_VERSION) != 0) {
+                    in.getInt();
+                }
+                
+                if (version == REFERENCE_VERSION) {
+                    ItemBlobStore blobStore = itemBlobs;
+                    for (int i = 0; i < slotCount; i++) {
+                        int slot = in.getShort() & 0xFFFF;
+                        ItemHash hash = ItemHash.read(in);
+                        if (blobStore == null || !blobStore.contains(hash)) {
+                            throw new CorruptRecordException("Slot " + slot + " refers to an item missing from items/blobs.dat");
+                        }
+                    }
+                    return;
+                }
+                
+                boolean compressed = version == COMPRESSED_VERSION;
+                if (compressed) {
+                    in = ByteBuffer.wrap(inflate(in));
+                }
+                for (int i = 0; i < slotCount; i++) {
+                    int slot = in.getShort() & 0xFFFF;
+                    if (compressed) {
+                        in.get(); // flags
+                    }
+                    int length = in.getInt();
+                    if (length < 0 || length > in.remaining()) {
+                        throw new CorruptRecordException("Corrupt slot entry " + slot + " (length " + length + ")");
+                    }
+                    in.position(in.position() + length);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new CorruptRecordException("Truncated backpack record", e);
+            }
+        }
+        
+        /**
+         * Encodes only a snapshot's changed slots as a delta.
+         * 
+         * <p>Layout (big-endian):</p>
+         * <pre>
+         * ushort capacity     inventory size in slots
+         * ushort entryCount
+         * entryCount x {
+         *   ushort slot
+         *   int    length     -1 if the slot is now empty
+         *   byte[] item       ItemStack.serializeAsBytes() output
+         * }
+         * </pre>
+         * 
+         * @param snapshot A snapshot with non-null changedSlots
+         * @return The encoded delta
+         * @throws IOException If an item can't be serialized
+         */
+        static byte[] encodeDelta(BackpackSnapshot snapshot) throws IOException {
+            BitSet changed = snapshot.changedSlots();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + changed.cardinality() * 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            
+            out.writeShort(snapshot.capacity());
+            out.writeShort(changed.cardinality());
+            for (int slot = changed.nextSetBit(0); slot >= 0; slot = changed.nextSetBit(slot + 1)) {
+                ItemStack item = snapshot.contents().get(slot);
+                out.writeShort(slot);
+                if (item == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] data = item.serializeAsBytes();
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+            }
+            
+            out.flush();
+            return bytes.toByteArray();
+        }
+        
+        /**
+         * Applies a delta written by {@link #encodeDelta(BackpackSnapshot)} to a contents map.
+         * 
+         * @param delta The encoded delta
+         * @param contents Slot → item map to update in place
+         * @return The capacity recorded in the delta
+         * @throws IOException If the delta is truncated or malformed
+         */
+        static int applyDelta(ByteBuffer delta, Map<Integer, ItemStack> contents) throws IOException {
+            try {
+                int capacity = delta.getShort() & 0xFFFF;
+                int entryCount = delta.getShort() & 0xFFFF;
+                for (int i = 0; i < entryCount; i++) {
+                    int slot = delta.getShort() & 0xFFFF;
+                    int length = delta.getInt();
+                    if (length == -1) {
+                        contents.remove(slot);
+                        continue;
+                    }
+                    if (length < 0 || length > delta.remaining()) {
+                        throw new IOException("Corrupt delta entry for slot " + slot + " (length " + length + ")");
+                    }
+                    byte[] item = new byte[length];
+                    delta.get(item);
+                    contents.put(slot, deserializeItem(slot, item));
+                }
+                return capacity;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated backpack delta", e);
+            }
+        }
+        
+        /**
+         * Reads a record's metadata from its header alone, without decoding any item.
+         * 
+         * @param header The first {@link #MAX_HEADER_SIZE} bytes of a record (at least
+         *        {@link #HEADER_SIZE})
+         * @param byteSize Size of the whole stored record
+         * @param lastModified When the record was written, in epoch milliseconds
+         * @return Manifest metadata for the record (lastOpened = 0)
+         * @throws IOException If the header is not a supported backpack record header
+         */
+        static ManifestEntry describe(byte[] header, int byteSize, long lastModified) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(header);
+            if (header.length < HEADER_SIZE || in.getInt() != MAGIC) {
+                throw new IOException("Not a backpack record (bad magic)");
+            }
+            int versionByte = in.get() & 0xFF;
+            int version = versionByte & VERSION_MASK;
+            if (version < FORMAT_VERSION || version > REFERENCE_VERSION) {
+                throw new IOException("Unsupported backpack record version " + version);
+            }
+            int capacity = in.getShort() & 0xFFFF;
+            in.getShort(); // slotCount
+            int itemCount = in.getInt();
+            int recordDataVersion = (versionByte & FLAG_DATA_VERSION) != 0 && in.remaining() >= 4 ? in.getInt() : 0;
+            return new ManifestEntry(capacity, itemCount, byteSize, lastModified, 0, recordDataVersion);
+        }
+    }
+    
+    /**
+     * Versioned preset dictionaries for compressed backpack records, one file each in
+     * plugins/Backpacks/dictionaries/.
+     * 
+     * <p>A preset dictionary is up to 32 KB of sample data that Deflate may refer back to
+     * as if it had preceded the record. Trained from this server's backpacks it holds
+     * the item NBT that shows up again and again (the common materials, enchantments,
+     * custom names and lore), so a record can encode those as short back-references.</p>
+     * 
+     * <p>Dictionaries are never changed or deleted: every compressed record names the
+     * dictionary it was written with, and retraining adds a new file with the next ID.
+     * New records use the highest ID. File layout:</p>
+     * <pre>
+     * int    magic "BPDC"
+     * int    id
+     * int    length
+     * byte[] dictionary
+     * int    CRC32 of the dictionary
+     * </pre>
+     * 
+     * <p>Thread-safe: lookups are lock-free, {@link #add(byte[])} is synchronized.</p>
+     */
+    private static final class CompressionDictionaries {
+        
+        /** Dictionary file magic - "BPDC" in ASCII */
+        private static final int MAGIC = 0x42504443;
+        
+        /** Deflate's window size - bytes of a dictionary further back can't be referenced */
+        static final int MAX_SIZE = 32 * 1024;
+        
+        /** Directory holding the dictionary files */
+        private final Path directory;
+        
+        /** Every loaded dictionary, by ID */
+        private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+        
+        /** ID new records are written with - 0 means plain Deflate without a dictionary */
+        private volatile int currentId;
+        
+        private CompressionDictionaries(Path directory) {
+            this.directory = directory;
+        }
+        
+        /**
+         * Loads every dictionary in a directory. Damaged files are logged and skipped;
+         * records that need them fail to load with a clear error rather than decode wrongly.
+         * 
+         * @param directory The dictionaries directory (created on the first {@link #add})
+         * @param logger Plugin logger
+         * @return The loaded dictionaries
+         */
+        static CompressionDictionaries open(Path directory, Logger logger) {
+            CompressionDictionaries store = new CompressionDictionaries(directory);
+            File[] files = directory.toFile().listFiles((dir, name) -> name.startsWith("dict-") && name.endsWith(".bin"));
+            if (files == null) {
+                return store;
+            }
+            for (File file : files) {
+                try {
+                    ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                    if (in.getInt() != MAGIC) {
+                        throw new IOException("bad magic");
+                    }
+                    int id = in.getInt();
+                    byte[] dictionary = new byte[in.getInt()];
+                    in.get(dictionary);
+                    CRC32 crc = new CRC32();
+                    crc.update(dictionary);
+                    if (in.getInt() != (int) crc.getValue()) {
+                        throw new IOException("checksum mismatch");
+                    }
+                    store.dictionaries.put(id, dictionary);
+                    store.currentId = Math.max(store.currentId, id);
+                } catch (IOException | BufferUnderflowException | NegativeArraySizeException e) {
+                    logger.warning("Ignoring damaged compression dictionary " + file.getName() + ": " + e.getMessage());
+                }
+            }
+            if (!store.dictionaries.isEmpty()) {
+                logger.info("Loaded " + store.dictionaries.size() + " compression dictionaries (current: " + store.currentId + ")");
+            }
+            return store;
+        }
+        
+        /** ID of the dictionary new records are written with, 0 if there is none yet */
+        int currentId() {
+            return currentId;
+        }
+        
+        /** Number of stored dictionaries */
+        int count() {
+            return dictionaries.size();
+        }
+        
+        /** Size of a dictionary in bytes, 0 if it isn't loaded */
+        int size(int id) {
+            byte[] dictionary = dictionaries.get(id);
+            return dictionary != null ? dictionary.length : 0;
+        }
+        
+        /**
+         * Returns a dictionary by ID.
+         * 
+         * @throws IOException If it isn't loaded - the records written with it can't be read
+         */
+        byte[] get(int id) throws IOException {
+            byte[] dictionary = dictionaries.get(id);
+            if (dictionary == null) {
+                throw new IOException("Compression dictionary " + id + " is missing from " + directory.getFileName() + "/");
+            }
+            return dictionary;
+        }
+        
+        /**
+         * Stores a new dictionary under the next ID and makes it current. The file is
+         * forced to disk before any record can be written with it.
+         * 
+         * @param dictionary The dictionary bytes (at most {@link #MAX_SIZE})
+         * @return The new dictionary's ID
+         * @throws IOException If the file can't be written
+         */
+        synchronized int add(byte[] dictionary) throws IOException {
+            int id = dictionaries.keySet().stream().mapToInt(Integer::intValue).max().orElse(0) + 1;
+            CRC32 crc = new CRC32();
+            crc.update(dictionary);
+            ByteBuffer out = ByteBuffer.allocate(16 + dictionary.length);
+            out.putInt(MAGIC).putInt(id).putInt(dictionary.length).put(dictionary).putInt((int) crc.getValue());
+            
+            Files.createDirectories(directory);
+            Path target = directory.resolve("dict-" + id + ".bin");
+            Path temp = directory.resolve(target.getFileName() + ".tmp");
+            Files.write(temp, out.array());
+            AtomicFiles.force(temp);
+            AtomicFiles.move(temp, target);
+            AtomicFiles.forceDirectory(directory);
+            
+            dictionaries.put(id, dictionary);
+            currentId = id;
+            return id;
+        }
+        
+        /**
+         * Builds a dictionary from sample backpacks.
+         * 
+         * <p>Counts how often each exact item (as bare NBT) occurs across the samples and
+         * keeps the items worth the most - occurrences times size - that occur at least
+         * twice, up to {@link #MAX_SIZE}. The most valuable item goes last: Deflate codes
+         * nearer back-references more cheaply. Items that differ only in amount or
+         * damage still share almost all their bytes with a kept one.</p>
+         * 
+         * @param samples Backpacks to learn from
+         * @return The dictionary, or null if nothing repeats often enough to be worth one
+         */
+        static byte[] train(Collection<BackpackSnapshot> samples) throws IOException {
+            Map<ByteBuffer, Integer> counts = new HashMap<>();
+            for (BackpackSnapshot sample : samples) {
+                for (ItemStack item : sample.contents().values()) {
+                    byte[] serialized = item.serializeAsBytes();
+                    byte[] nbt = BackpackCodec.gunzip(serialized);
+                    counts.merge(ByteBuffer.wrap(nbt != null ? nbt : serialized), 1, Integer::sum);
+                }
+            }
+            
+            List<Map.Entry<ByteBuffer, Integer>> ranked = new ArrayList<>();
+            for (Map.Entry<ByteBuffer, Integer> entry : counts.entrySet()) {
+                if (entry.getValue() >= 2 && entry.getKey().remaining() < MAX_SIZE) {
+                    ranked.add(entry);
+                }
+            }
+            if (ranked.isEmpty()) {
+                return null;
+            }
+            ranked.sort(Comparator.comparingLong(
+                (Map.Entry<ByteBuffer, Integer> entry) -> (long) entry.getValue() * entry.getKey().remaining()).reversed());
+            
+            // Most valuable first, then written in reverse so it ends up nearest the data
+            List<ByteBuffer> chosen = new ArrayList<>();
+            int size = 0;
+            for (Map.Entry<ByteBuffer, Integer> entry : ranked) {
+                int length = entry.getKey().remaining();
+                if (size + length <= MAX_SIZE) {
+                    chosen.add(entry.getKey());
+                    size += length;
+                }
+            }
+            ByteBuffer dictionary = ByteBuffer.allocate(size);
+            for (int i = chosen.size() - 1; i >= 0; i--) {
+                dictionary.put(chosen.get(i).duplicate());
+            }
+            return dictionary.array();
+        }
+    }
+    
+    /**
+     * Content hash of one serialized item: the first 128 bits of its SHA-256.
+     * 
+     * <p>128 bits keep the in-memory index small while making an accidental collision
+     * between two different items practically impossible, even across billions of items.</p>
+     * 
+     * @param high First 8 bytes of the digest
+     * @param low Next 8 bytes of the digest
+     */
+    private record ItemHash(long high, long low) {
+        
+        /** Bytes an ItemHash takes in a record or blob frame */
+        static final int SIZE = 16;
+        
+        /** MessageDigest isn't thread-safe - one per writer thread */
+        private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java runtime is required to provide SHA-256
+                throw new IllegalStateException(e);
+            }
+        });
+        
+        /** Hashes a serialized item */
+        static ItemHash of(byte[] item) {
+            ByteBuffer digest = ByteBuffer.wrap(SHA_256.get().digest(item));
+            return new ItemHash(digest.getLong(), digest.getLong());
+        }
+        
+        /** Reads a hash written by {@link #write(ByteBuffer)} */
+        static ItemHash read(ByteBuffer in) {
+            return new ItemHash(in.getLong(), in.getLong());
+        }
+        
+        void write(ByteBuffer out) {
+            out.putLong(high).putLong(low);
+        }
+    }
+    
+    /**
+     * Content-addressed store of serialized items shared by every backpack, in
+     * plugins/Backpacks/items/.
+     * 
+     * <p>With "storage.deduplication.enabled" a backpack record holds only slot →
+     * {@link ItemHash} references (record version 3, see {@link BackpackCodec}) and
+     * each distinct item is stored here once, however many backpacks hold a copy of
+     * it. Stacks of the same item with the same amount - the typical contents of a
+     * storage backpack - are written and kept once for the whole server.</p>
+     * 
+     * <p>Files:</p>
+     * <ul>
+     *   <li><b>blobs.dat</b>: append-only, one frame per distinct item:
+     *       <pre>
+     * int    magic "BPIB"
+     * long   hash high
+     * long   hash low
+     * int    length
+     * int    CRC32 of the item
+     * byte[] item        ItemStack.serializeAsBytes() output
+     *       </pre></li>
+     *   <li><b>index.dat</b>: hash → position and reference count of every blob. Written
+     *       on a clean shutdown and deleted as soon as it has been read, so finding it
+     *       at startup means the previous run ended cleanly.</li>
+     * </ul>
+     * 
+     * <p>Reference counting: a record's references are counted when the write queue
+     * reports its write as done ({@link #committed}), and the references of the record it
+     * replaced are released at the same time. A failed write keeps both sets counted,
+     * since either may be what is on disk. Counts can therefore run high but never
+     * low. Without index.dat (crash) the index is rebuilt by scanning blobs.dat and the
+     * counts are unknown until the plugin recounts them by loading every record.</p>
+     * 
+     * <p>Compaction: unreferenced blobs are only removed at startup, by rewriting
+     * blobs.dat without them, and only right after a recount that read every record
+     * successfully - so a blob is never dropped on the strength of a count alone.</p>
+     * 
+     * <p>Unchanged slots: the store remembers which hash every slot of a backpack had in
+     * its last confirmed write (or load). A save whose changedSlots say a slot didn't
+     * change reuses that hash without serializing or hashing the item again.</p>
+     * 
+     * <p>Thread-safe: appends are synchronized, reads use positional reads on the shared
+     * channel, and the bookkeeping maps are concurrent.</p>
+     */
+    private static final class ItemBlobStore {
+        
+        /** Blob frame magic - "BPIB" in ASCII */
+        private static final int BLOB_MAGIC = 0x42504942;
+        
+        /** Index file magic - "BPIX" in ASCII */
+        private static final int INDEX_MAGIC = 0x42504958;
+        
+        /** magic + hash + length + CRC */
+        private static final int FRAME_HEADER_SIZE = 4 + ItemHash.SIZE + 4 + 4;
+        
+        /** Index entry: hash + offset + length + references */
+        private static final int INDEX_ENTRY_SIZE = ItemHash.SIZE + 8 + 4 + 4;
+        
+        /** blobs.dat is only worth compacting once it is at least this large */
+        private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+        
+        /**
+         * Where a blob's item bytes are in blobs.dat.
+         * 
+         * @param offset Position of the item bytes (after the frame header)
+         * @param length Length of the item bytes
+         */
+        private record Blob(long offset, int length) {}
+        
+        /** The items directory */
+        private final Path directory;
+        
+        /** Whether appended blobs are forced to disk before the records that use them */
+        private final boolean forceAppends;
+        
+        private final Logger logger;
+        
+        /** Open channel on blobs.dat - replaced by {@link #compact()} */
+        private volatile FileChannel channel;
+        
+        /** Every stored blob, by hash */
+        private final Map<ItemHash, Blob> blobs = new ConcurrentHashMap<>();
+        
+        /** Reference count of every blob, by hash (0 = garbage) */
+        private final Map<ItemHash, Integer> references = new ConcurrentHashMap<>();
+        
+        /** End of the last complete frame in blobs.dat, guarded by this */
+        private long end;
+        
+        /**
+         * End of blobs.dat known to be on disk, guarded by {@link #syncLock}. Blobs past it
+         * (up to {@link #end}) still need a force.
+         */
+        private long synced;
+        
+        /** Serializes forces, which run outside this store's lock so appends don't wait */
+        private final Object syncLock = new Object();
+        
+        /** False until the counts were read from index.dat or recounted */
+        private volatile boolean countsKnown;
+        
+        /** Set while {@link #beginRecount()} is counting references of loaded records */
+        private volatile boolean recounting;
+        
+        /** References of each backpack's record on disk - more than one record's after a failed write */
+        private final Map<String, List<ItemHash>> stored = new ConcurrentHashMap<>();
+        
+        /** References of each backpack's record encoded but not confirmed written yet */
+        private final Map<String, Map<Integer, ItemHash>> pending = new ConcurrentHashMap<>();
+        
+        /** Slot → hash of each backpack's contents as of its last confirmed write or load */
+        private final Map<String, Map<Integer, ItemHash>> reusable = new ConcurrentHashMap<>();
+        
+        private ItemBlobStore(Path directory, boolean forceAppends, Logger logger) {
+            this.directory = directory;
+            this.forceAppends = forceAppends;
+            this.logger = logger;
+        }
+        
+        /**
+         * Opens the item store, reading index.dat or rebuilding the index from blobs.dat.
+         * 
+         * @param directory The items directory
+         * @param create Whether to create the store if it doesn't exist yet
+         * @param durability Whether new blobs must be forced to disk before records refer to them
+         * @param logger Plugin logger
+         * @return The open store, or null if it doesn't exist and create is false
+         * @throws IOException If blobs.dat can't be opened
+         */
+        static ItemBlobStore open(Path directory, boolean create, Durability durability, Logger logger) throws IOException {
+            Path blobFile = directory.resolve("blobs.dat");
+            if (!create && !Files.exists(blobFile)) {
+                return null;
+            }
+            Files.createDirectories(directory);
+            ItemBlobStore store = new ItemBlobStore(directory, durability != Durability.NONE, logger);
+            store.channel = FileChannel.open(blobFile,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            
+            Path indexFile = directory.resolve("index.dat");
+            if (!store.readIndex(indexFile)) {
+                store.scan();
+            }
+            // From here until close() a crash must lead to a rebuild, never to this index
+            Files.deleteIfExists(indexFile);
+            AtomicFiles.forceDirectory(directory);
+            return store;
+        }
+        
+        /**
+         * Loads index.dat written by the last clean shutdown.
+         * 
+         * @return false if there is none or it doesn't match blobs.dat
+         */
+        private boolean readIndex(Path indexFile) {
+            byte[] data;
+            try {
+                data = Files.readAllBytes(indexFile);
+            } catch (IOException e) {
+                return false;
+            }
+            try {
+                ByteBuffer in = ByteBuffer.wrap(data);
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length - 4);
+                if (in.getInt() != INDEX_MAGIC || in.getInt(data.length - 4) != (int) crc.getValue()) {
+                    throw new IOException("bad magic or checksum");
+                }
+                long blobsEnd = in.getLong();
+                if (blobsEnd > channel.size()) {
+                    throw new IOException("blobs.dat is shorter than indexed");
+                }
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    ItemHash hash = ItemHash.read(in);
+                    blobs.put(hash, new Blob(in.getLong(), in.getInt()));
+                    references.put(hash, in.getInt());
+                }
+                // Anything past the indexed end was never referenced by a written record
+                channel.truncate(blobsEnd);
+                end = blobsEnd;
+                countsKnown = true;
+                return true;
+            } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+                logger.warning("Ignoring damaged item index (" + e.getMessage() + "), rebuilding it from blobs.dat");
+                blobs.clear();
+                references.clear();
+                return false;
+            }
+        }
+        
+        /**
+         * Rebuilds the index from blobs.dat frame by frame, cutting off a torn last frame.
+         * Reference counts are unknown afterwards.
+         */
+        private void scan() throws IOException {
+            long size = channel.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            while (position + FRAME_HEADER_SIZE <= size) {
+                header.clear();
+                readFully(position, header);
+                header.flip();
+                if (header.getInt() != BLOB_MAGIC) {
+                    break;
+                }
+                ItemHash hash = ItemHash.read(header);
+                int length = header.getInt();
+                int checksum = header.getInt();
+                long offset = position + FRAME_HEADER_SIZE;
+                if (length < 0 || offset + length > size) {
+                    break;
+                }
+                ByteBuffer item = ByteBuffer.allocate(length);
+                readFully(offset, item);
+                CRC32 crc = new CRC32();
+                crc.update(item.array());
+                if (checksum != (int) crc.getValue()) {
+                    break;
+                }
+                blobs.put(hash, new Blob(offset, length));
+                references.put(hash, 0);
+                position = offset + length;
+            }
+            if (position < size) {
+                logger.warning("Discarding " + (size - position) + " damaged bytes at the end of items/blobs.dat");
+                channel.truncate(position);
+            }
+            end = position;
+            countsKnown = blobs.isEmpty();
+        }
+        
+        /** Fills a buffer from blobs.dat starting at a position */
+        private void readFully(long position, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of items/blobs.dat");
+                }
+                position += read;
+            }
+        }
+        
+        /**
+         * Stores a serialized item unless an identical one is stored already.
+         * 
+         * @param item ItemStack.serializeAsBytes() output
+         * @return The item's hash, for the record to refer to
+         * @throws IOException If the item has to be appended and can't be
+         */
+        ItemHash put(byte[] item) throws IOException {
+            ItemHash hash = ItemHash.of(item);
+            if (blobs.containsKey(hash)) {
+                return hash;
+            }
+            synchronized (this) {
+                if (blobs.containsKey(hash)) {
+                    return hash;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(item);
+                ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + item.length);
+                frame.putInt(BLOB_MAGIC);
+                hash.write(frame);
+                frame.putInt(item.length).putInt((int) crc.getValue()).put(item);
+                frame.flip();
+                long position = end;
+                while (frame.hasRemaining()) {
+                    position += channel.write(frame, position);
+                }
+                blobs.put(hash, new Blob(end + FRAME_HEADER_SIZE, item.length));
+                references.putIfAbsent(hash, 0);
+                end = position;
+            }
+            return hash;
+        }
+        
+        /**
+         * Forces blobs appended by {@link #put} to disk, so no record written afterwards
+         * can refer to an item that a crash loses. No-op with "storage.durability: none".
+         */
+        void sync() throws IOException {
+            if (!forceAppends) {
+                return;
+            }
+            long appended;
+            synchronized (this) {
+                appended = end;
+            }
+            synchronized (syncLock) {
+                // Covers blobs another thread appended, even if it hasn't synced them yet
+                if (synced < appended) {
+                    channel.force(false);
+                    synced = appended;
+                }
+            }
+        }
+        
+        /**
+         * Reads a stored item.
+         * 
+         * @throws IOException If the item isn't stored or its bytes are damaged
+         */
+        byte[] get(ItemHash hash) throws IOException {
+            Blob blob = blobs.get(hash);
+            if (blob == null) {
+                throw new IOException("Item " + Long.toHexString(hash.high()) + " is missing from items/blobs.dat");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_SIZE + blob.length());
+            readFully(blob.offset() - FRAME_HEADER_SIZE, buffer);
+            buffer.flip();
+            buffer.position(FRAME_HEADER_SIZE - 4);
+            int checksum = buffer.getInt();
+            byte[] item = new byte[blob.length()];
+            buffer.get(item);
+            CRC32 crc = new CRC32();
+            crc.update(item);
+            if (checksum != (int) crc.getValue()) {
+                throw new IOException("Item " + Long.toHexString(hash.high()) + " in items/blobs.dat is damaged");
+            }
+            return item;
+        }
+        
+        // ----- Reference bookkeeping -----
+        
+        /** Slot → hash of a backpack's last confirmed contents, empty if unknown */
+        Map<Integer, ItemHash> reusable(String key) {
+            return reusable.getOrDefault(key, Collections.emptyMap());
+        }
+        
+        /**
+         * Records the references of a record just encoded for a backpack. They count
+         * from now on; whether they replace the backpack's previous references is
+         * settled by {@link #committed} or {@link #failed}.
+         */
+        void encoded(String key, Map<Integer, ItemHash> slots) {
+            Map<Integer, ItemHash> earlier = pending.put(key, slots);
+            if (earlier != null) {
+                // Encoded again without a verdict on the earlier record - either may be on disk
+                keepBoth(key, earlier);
+            }
+            slots.values().forEach(this::increment);
+        }
+        
+        /**
+         * Records the references of a record read from storage.
+         * 
+         * <p>While recounting they are counted; otherwise they are remembered as the
+         * backpack's references on disk (counted already) and, if allowed, as reusable slots.</p>
+         * 
+         * @param key The backpack's storage key
+         * @param slots Slot → hash of the record
+         * @param reusableSlots Whether later saves may reuse these hashes for unchanged slots
+         */
+        void loaded(String key, Map<Integer, ItemHash> slots, boolean reusableSlots) {
+            if (recounting) {
+                slots.values().forEach(this::increment);
+                return;
+            }
+            stored.putIfAbsent(key, new ArrayList<>(slots.values()));
+            if (reusableSlots) {
+                reusable.put(key, slots);
+            } else {
+                reusable.remove(key);
+            }
+        }
+        
+        /**
+         * Drops reusable slots whose contents changed without a new record being encoded
+         * (a delta journal entry, see {@link FileBackpackStore}).
+         * 
+         * @param key The backpack's storage key
+         * @param slots The changed slots, or null for all of them
+         */
+        void forget(String key, BitSet slots) {
+            if (slots == null) {
+                reusable.remove(key);
+                return;
+            }
+            reusable.computeIfPresent(key, (k, current) -> {
+                Map<Integer, ItemHash> kept = new HashMap<>(current);
+                kept.keySet().removeIf(slots::get);
+                return kept;
+            });
+        }
+        
+        /**
+         * The records of these backpacks were written: their new references replace the
+         * old ones, which are released.
+         */
+        void committed(Collection<String> keys) {
+            for (String key : keys) {
+                Map<Integer, ItemHash> written = pending.remove(key);
+                if (written == null) {
+                    // Nothing encoded for it (a delta journal append) - the record on disk is unchanged
+                    continue;
+                }
+                List<ItemHash> replaced = stored.put(key, new ArrayList<>(written.values()));
+                if (replaced != null) {
+                    replaced.forEach(this::decrement);
+                }
+                reusable.put(key, written);
+            }
+        }
+        
+        /**
+         * Writing these backpacks failed: nobody knows whether the old or the new record
+         * is on disk, so both stay counted until the next confirmed write.
+         */
+        void failed(Collection<String> keys) {
+            for (String key : keys) {
+                reusable.remove(key);
+                Map<Integer, ItemHash> written = pending.remove(key);
+                if (written != null) {
+                    keepBoth(key, written);
+                }
+            }
+        }
+        
+        /** The backpack's record was deleted: its references are released */
+        void deleted(String key) {
+            reusable.remove(key);
+            Map<Integer, ItemHash> unwritten = pending.remove(key);
+            if (unwritten != null) {
+                unwritten.values().forEach(this::decrement);
+            }
+            List<ItemHash> released = stored.remove(key);
+            if (released != null) {
+                released.forEach(this::decrement);
+            }
+        }
+        
+        /** Adds references that may or may not be on disk to a backpack's stored references */
+        private void keepBoth(String key, Map<Integer, ItemHash> slots) {
+            stored.compute(key, (k, current) -> {
+                List<ItemHash> both = current != null ? new ArrayList<>(current) : new ArrayList<>();
+                both.addAll(slots.values());
+                return both;
+            });
+        }
+        
+        private void increment(ItemHash hash) {
+            references.merge(hash, 1, Integer::sum);
+        }
+        
+        private void decrement(ItemHash hash) {
+            references.computeIfPresent(hash, (k, count) -> Math.max(0, count - 1));
+        }
+        
+        // ----- Recount and compaction (startup only) -----
+        
+        /** Whether the reference counts are unknown (the index was rebuilt) */
+        boolean needsRecount() {
+            return !countsKnown;
+        }
+        
+        /**
+         * Starts counting references from scratch: every count is reset, and each record
+         * decoded until {@link #endRecount(boolean)} adds its references.
+         */
+        void beginRecount() {
+            references.replaceAll((hash, count) -> 0);
+            stored.clear();
+            reusable.clear();
+            recounting = true;
+        }
+        
+        /**
+         * Ends a recount.
+         * 
+         * @param complete Whether every record was read - only then are the counts exact
+         */
+        void endRecount(boolean complete) {
+            recounting = false;
+            countsKnown = complete;
+        }
+        
+        /** Bytes of blobs.dat taken by unreferenced blobs (an estimate unless just recounted) */
+        long garbageBytes() {
+            long garbage = 0;
+            for (Map.Entry<ItemHash, Blob> entry : blobs.entrySet()) {
+                if (references.getOrDefault(entry.getKey(), 0) == 0) {
+                    garbage += FRAME_HEADER_SIZE + entry.getValue().length();
+                }
+            }
+            return garbage;
+        }
+        
+        /** Whether at least half of a sizeable blobs.dat is unreferenced */
+        boolean worthCompacting() {
+            long size = fileSize();
+            return countsKnown && size >= MIN_COMPACTION_SIZE && garbageBytes() * 2 >= size;
+        }
+        
+        /**
+         * Rewrites blobs.dat with only the referenced blobs. Must only be called right
+         * after a complete recount, before any backpack is saved.
+         * 
+         * @return Bytes reclaimed
+         * @throws IOException If the new file can't be written - the old one is kept
+         */
+        synchronized long compact() throws IOException {
+            if (!countsKnown || recounting) {
+                throw new IllegalStateException("Item references must be recounted before compacting");
+            }
+            long before = end;
+            Path blobFile = directory.resolve("blobs.dat");
+            Path temp = directory.resolve("blobs.dat.tmp");
+            Map<ItemHash, Blob> moved = new HashMap<>();
+            long position = 0;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                // In file order, so the copy reads blobs.dat sequentially
+                List<Map.Entry<ItemHash, Blob>> live = new ArrayList<>();
+                for (Map.Entry<ItemHash, Blob> entry : blobs.entrySet()) {
+                    if (references.getOrDefault(entry.getKey(), 0) > 0) {
+                        live.add(entry);
+                    }
+                }
+                live.sort(Comparator.comparingLong(entry -> entry.getValue().offset()));
+                for (Map.Entry<ItemHash, Blob> entry : live) {
+                    Blob blob = entry.getValue();
+                    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + blob.length());
+                    readFully(blob.offset() - FRAME_HEADER_SIZE, frame);
+                    frame.flip();
+                    moved.put(entry.getKey(), new Blob(position + FRAME_HEADER_SIZE, blob.length()));
+                    while (frame.hasRemaining()) {
+                        position += out.write(frame, position);
+                    }
+                }
+                out.force(true);
+            }
+            
+            channel.close();
+            AtomicFiles.move(temp, blobFile);
+            AtomicFiles.forceDirectory(directory);
+            channel = FileChannel.open(blobFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            
+            references.keySet().retainAll(moved.keySet());
+            blobs.clear();
+            blobs.putAll(moved);
+            end = position;
+            synchronized (syncLock) {
+                // The copy was forced; later appends start below the old watermark
+                synced = position;
+            }
+            return before - position;
+        }
+        
+        // ----- Statistics and shutdown -----
+        
+        /** Whether an item is stored (no disk access) */
+        boolean contains(ItemHash hash) {
+            return blobs.containsKey(hash);
+        }
+        
+        /** Number of distinct stored items */
+        int count() {
+            return blobs.size();
+        }
+        
+        /** Size of blobs.dat in bytes */
+        synchronized long fileSize() {
+            return end;
+        }
+        
+        /**
+         * Writes index.dat and closes blobs.dat. Called after the storage backend closed,
+         * so no record can be written after the index.
+         */
+        synchronized void close() throws IOException {
+            channel.force(false);
+            channel.close();
+            
+            List<Map.Entry<ItemHash, Blob>> entries = new ArrayList<>(blobs.entrySet());
+            ByteBuffer out = ByteBuffer.allocate(4 + 8 + 4 + entries.size() * INDEX_ENTRY_SIZE + 4);
+            out.putInt(INDEX_MAGIC).putLong(end).putInt(entries.size());
+            for (Map.Entry<ItemHash, Blob> entry : entries) {
+                entry.getKey().write(out);
+                out.putLong(entry.getValue().offset()).putInt(entry.getValue().length())
+                    .putInt(references.getOrDefault(entry.getKey(), 0));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(out.array(), 0, out.position());
+            out.putInt((int) crc.getValue());
+            
+            Path target = directory.resolve("index.dat");
+            Path temp = directory.resolve("index.dat.tmp");
+            Files.write(temp, out.array());
+            AtomicFiles.force(temp);
+            AtomicFiles.move(temp, target);
+            AtomicFiles.forceDirectory(directory);
+        }
+    }
+    
+    // ==================== MEMORY CACHE ====================
+    // Backpack contents kept in memory, bounded by an estimated size. Whatever is
+    // evicted is still in storage (or queued for it) and is read again when needed.
+    
+    /**
+     * The in-memory backpack contents ({@link #backpackStorage}), kept within a memory
+     * budget ("storage.cache.max-memory-mb").
+     * 
+     * <p>Weights: each entry is weighed when it is stored ({@link #weigh}) - a fixed
+     * overhead per backpack and per item, more for items with metadata, and much more
+     * for shulker boxes, bundles and written books, whose NBT holds whole inventories
+     * or pages. These are estimates, not measurements; the budget is approximate.</p>
+     * 
+     * <p>Policy (W-TinyLFU): a new entry goes into a small LRU window (1% of the budget).
+     * Entries pushed out of the window compete for the main space - an SLRU of a
+     * probation and a protected segment - against its eviction victim, and whichever was
+     * requested less often according to the {@link FrequencySketch} is evicted. A scan
+     * over many backpacks that are used once (a backup, an admin checking every player)
+     * only passes through the window and can't flush the backpacks players use daily.
+     * An entry requested again while on probation moves to the protected segment (80% of
+     * the main space); entries pushed out of that go back to probation.</p>
+     * 
+     * <p>Eviction never happens inside a call that adds an entry - it runs once per tick
+     * ({@link #evict}), and skips pinned entries: backpacks with an open session (their
+     * saves start from the cached contents) and backpacks with a write queued, in flight
+     * or failed (memory holds their only current copy should it fail). A backpack loaded
+     * to be opened is pinned before the tick ends.</p>
+     * 
+     * <p>A budget of 0 disables eviction; hits and misses are still counted. Under heap
+     * pressure the plugin lowers the effective limit below the budget ({@link #setLimit})
+     * until the pressure is over.</p>
+     * 
+     * <p>Main thread only.</p>
+     */
+    private static final class BackpackCache {
+        
+        /** Share of the budget for the admission window, in percent */
+        private static final int WINDOW_PERCENT = 1;
+        
+        /** Share of the main space for the protected segment, in percent */
+        private static final int PROTECTED_PERCENT = 80;
+        
+        // Weight estimates in bytes (see weigh)
+        private static final long ENTRY_BYTES = 256;      // key, slot map, cache node
+        private static final long ITEM_BYTES = 160;       // map node, boxed slot, ItemStack
+        private static final long META_BYTES = 512;       // ItemMeta: names, lore, enchantments
+        private static final long CONTAINER_BYTES = 8192; // nested inventory or book pages
+        
+        /** Average weight assumed when sizing the frequency sketch */
+        private static final long AVERAGE_ENTRY_BYTES = 4096;
+        
+        private enum Region { WINDOW, PROBATION, PROTECTED }
+        
+        /**
+         * One cached backpack.
+         */
+        private static final class Node {
+            final String key;
+            Map<Integer, ItemStack> contents;
+            long weight;
+            Region region;
+            
+            Node(String key) {
+                this.key = key;
+            }
+        }
+        
+        private final long maximum;
+        private long limit;
+        private long windowMaximum;
+        private long protectedMaximum;
+        private final FrequencySketch sketch;
+        
+        private final Map<String, Node> nodes = new HashMap<>();
+        // Insertion-ordered: the first entry is the least recently used
+        private final LinkedHashMap<String, Node> window = new LinkedHashMap<>();
+        private final LinkedHashMap<String, Node> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<String, Node> protectedSegment = new LinkedHashMap<>();
+        private long windowWeight;
+        private long probationWeight;
+        private long protectedWeight;
+        
+        // Statistics for /backpack stats
+        private long hits;
+        private long misses;
+        private long evictions;
+        
+        /**
+         * @param maximumBytes The memory budget in estimated bytes, 0 for no limit
+         */
+        BackpackCache(long maximumBytes) {
+            this.maximum = maximumBytes;
+            // Sized even without a budget - heap pressure can impose a limit later
+            this.sketch = new FrequencySketch(maximumBytes / AVERAGE_ENTRY_BYTES);
+            setLimit(maximumBytes);
+        }
+        
+        /**
+         * Changes the size the cache is kept within, without evicting anything yet - the
+         * next {@link #evict} does that.
+         * 
+         * @param limitBytes Estimated bytes, 0 for no limit; {@link #maximum()} restores the budget
+         */
+        void setLimit(long limitBytes) {
+            this.limit = limitBytes;
+            this.windowMaximum = limitBytes * WINDOW_PERCENT / 100;
+            this.protectedMaximum = (limitBytes - windowMaximum) * PROTECTED_PERCENT / 100;
+        }
+        
+        /**
+         * Estimates the memory an entry takes.
+         * 
+         * @param contents The backpack's slot → item map
+         * @return Estimated bytes
+         */
+        static long weigh(Map<Integer, ItemStack> contents) {
+            long weight = ENTRY_BYTES;
+            for (ItemStack item : contents.values()) {
+                weight += ITEM_BYTES;
+                if (item.hasItemMeta()) {
+                    String type = item.getType().name();
+                    boolean container = type.endsWith("SHULKER_BOX") || type.equals("BUNDLE")
+                        || type.equals("WRITTEN_BOOK") || type.equals("WRITABLE_BOOK");
+                    weight += container ? CONTAINER_BYTES : META_BYTES;
+                }
+            }
+            return weight;
+        }
+        
+        /**
+         * Returns a backpack's contents and counts the request (hit or miss) towards its
+         * frequency and the statistics. Use {@link #peek} for internal checks.
+         * 
+         * @param key The backpack storage key
+         * @return The cached contents, or null if they aren't in memory
+         */
+        Map<Integer, ItemStack> get(String key) {
+            sketch.increment(key);
+            Node node = nodes.get(key);
+            if (node == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            touch(node);
+            return node.contents;
+        }
+        
+        /**
+         * Returns a backpack's contents without counting a request or changing its position.
+         * 
+         * @param key The backpack storage key
+         * @return The cached contents, or null if they aren't in memory
+         */
+        Map<Integer, ItemStack> peek(String key) {
+            Node node = nodes.get(key);
+            return node != null ? node.contents : null;
+        }
+        
+        /**
+         * Caches a backpack's contents, replacing what was cached for it. May leave the
+         * cache over budget until the next {@link #evict}.
+         * 
+         * @param key The backpack storage key
+         * @param contents The slot → item map (kept by reference)
+         */
+        void put(String key, Map<Integer, ItemStack> contents) {
+            long weight = weigh(contents);
+            Node node = nodes.get(key);
+            if (node == null) {
+                node = new Node(key);
+                node.contents = contents;
+                node.weight = weight;
+                node.region = Region.WINDOW;
+                nodes.put(key, node);
+                window.put(key, node);
+                windowWeight += weight;
+                return;
+            }
+            addWeight(node.region, weight - node.weight);
+            node.contents = contents;
+            node.weight = weight;
+            // A save is a use of the backpack like a read
+            sketch.increment(key);
+            touch(node);
+        }
+        
+        /**
+         * Drops a backpack from the cache.
+         * 
+         * @param key The backpack storage key
+         */
+        void remove(String key) {
+            Node node = nodes.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        }
+        
+        /**
+         * Drops every entry. Statistics are kept.
+         */
+        void clear() {
+            nodes.clear();
+            window.clear();
+            probation.clear();
+            protectedSegment.clear();
+            windowWeight = 0;
+            probationWeight = 0;
+            protectedWeight = 0;
+        }
+        
+        int size() { return nodes.size(); }
+        long weight() { return windowWeight + probationWeight + protectedWeight; }
+        long maximum() { return maximum; }
+        long limit() { return limit; }
+        long hitCount() { return hits; }
+        long missCount() { return misses; }
+        long evictionCount() { return evictions; }
+        
+        /**
+         * @return The keys of every cached backpack (a copy)
+         */
+        Set<String> keys() {
+            return new HashSet<>(nodes.keySet());
+        }
+        
+        /**
+         * @return Every cached backpack's contents by key (a copy of the mapping; the
+         *         contents maps are shared)
+         */
+        Map<String, Map<Integer, ItemStack>> entries() {
+            Map<String, Map<Integer, ItemStack>> entries = new HashMap<>();
+            for (Node node : nodes.values()) {
+                entries.put(node.key, node.contents);
+            }
+            return entries;
+        }
+        
+        /**
+         * Whether the whole budget is used - used to stop filling the cache.
+         */
+        boolean full() {
+            return limit > 0 && weight() >= limit;
+        }
+        
+        /**
+         * Whether the cache holds more than it should - in total, or in the window.
+         */
+        boolean overBudget() {
+            return limit > 0 && (weight() > limit || windowWeight > windowMaximum);
+        }
+        
+        /**
+         * Brings the cache back within its budget, never evicting a pinned entry.
+         * 
+         * <p>Entries pushed out of the window move to probation. While the total is over
+         * budget, each of them then faces the main space's least recently used unpinned
+         * entry, and the less frequently requested of the two is evicted (ties evict the
+         * newcomer). Whatever is still over budget after that - a single huge entry, say -
+         * is evicted oldest first.</p>
+         * 
+         * @param pinned Keys that must stay in memory
+         * @return Number of entries evicted
+         */
+        int evict(Predicate<String> pinned) {
+            if (!overBudget()) {
+                return 0;
+            }
+            long before = evictions;
+            
+            while (windowWeight > windowMaximum) {
+                Node candidate = oldest(window, pinned, null);
+                if (candidate == null) {
+                    break;
+                }
+                move(candidate, Region.PROBATION);
+                // Admission: the newcomer only stays if it is wanted more than the victim
+                while (weight() > limit) {
+                    Node victim = oldest(probation, pinned, candidate);
+                    if (victim == null) {
+                        victim = oldest(protectedSegment, pinned, null);
+                    }
+                    if (victim == null) {
+                        break;
+                    }
+                    if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                        evict(victim);
+                    } else {
+                        evict(candidate);
+                        break;
+                    }
+                }
+            }
+            
+            // Still over: everything left is pinned, in the window or oversized
+            while (weight() > limit) {
+                Node victim = oldest(probation, pinned, null);
+                if (victim == null) {
+                    victim = oldest(protectedSegment, pinned, null);
+                }
+                if (victim == null) {
+                    victim = oldest(window, pinned, null);
+                }
+                if (victim == null) {
+                    break;
+                }
+                evict(victim);
+            }
+            return (int) (evictions - before);
+        }
+        
+        /**
+         * Records a request for a cached entry: moves it to the most recently used end of
+         * its segment, and from probation to protected.
+         */
+        private void touch(Node node) {
+            if (node.region == Region.PROBATION) {
+                move(node, Region.PROTECTED);
+                // Protected overflow goes back on probation, where it can be evicted again
+                while (protectedWeight > protectedMaximum && limit > 0) {
+                    Node demoted = protectedSegment.values().iterator().next();
+                    if (demoted == node) {
+                        break;
+                    }
+                    move(demoted, Region.PROBATION);
+                }
+            } else {
+                move(node, node.region);
+            }
+        }
+        
+        /**
+         * Moves an entry to the most recently used end of a segment.
+         */
+        private void move(Node node, Region region) {
+            unlink(node);
+            node.region = region;
+            segment(region).put(node.key, node);
+            addWeight(region, node.weight);
+        }
+        
+        private void evict(Node node) {
+            nodes.remove(node.key);
+            unlink(node);
+            evictions++;
+        }
+        
+        private void unlink(Node node) {
+            segment(node.region).remove(node.key);
+            addWeight(node.region, -node.weight);
+        }
+        
+        /**
+         * The least recently used entry of a segment that isn't pinned or excluded.
+         */
+        private static Node oldest(LinkedHashMap<String, Node> segment, Predicate<String> pinned, Node excluded) {
+            for (Node node : segment.values()) {
+                if (node != excluded && !pinned.test(node.key)) {
+                    return node;
+                }
+            }
+            return null;
+        }
+        
+        private LinkedHashMap<String, Node> segment(Region region) {
+            switch (region) {
+                case WINDOW:
+                    return window;
+                case PROBATION:
+                    return probation;
+                default:
+                    return protectedSegment;
+            }
+        }
+        
+        private void addWeight(Region region, long delta) {
+            switch (region) {
+                case WINDOW:
+                    windowWeight += delta;
+                    break;
+                case PROBATION:
+                    probationWeight += delta;
+                    break;
+                default:
+                    protectedWeight += delta;
+                    break;
+            }
+        }
+    }
+    
+    /**
+     * Approximate request counts per backpack key (a count-min sketch), used by
+     * {@link BackpackCache} to decide which of two backpacks is wanted more.
+     * 
+     * <p>Four hashes pick four 4-bit counters per key; a key's frequency is the smallest
+     * of them, so collisions can only overestimate it. Counters saturate at 15. After
+     * ten times as many increments as there are table words, every counter is halved,
+     * so the counts follow recent popularity instead of growing forever.</p>
+     * 
+     * <p>Not thread-safe.</p>
+     */
+    private static final class FrequencySketch {
+        
+        private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+        };
+        
+        /** Keeps the low three bits of every 4-bit counter - halves them all at once */
+        private static final long HALF_MASK = 0x7777777777777777L;
+        
+        /** Sixteen 4-bit counters per word */
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+        
+        /**
+         * @param expectedEntries Roughly how many keys compete for the cache
+         */
+        FrequencySketch(long expectedEntries) {
+            int size = 64;
+            while (size < expectedEntries && size < (1 << 22)) {
+                size <<= 1;
+            }
+            this.table = new long[size];
+            this.mask = size - 1;
+            this.sampleSize = 10 * size;
+        }
+        
+        /**
+         * @return The estimated number of recent requests for a key, 0 to 15
+         */
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = mix(hash, i);
+                frequency = Math.min(frequency, (int) ((table[index(h)] >>> offset(h)) & 0xF));
+            }
+            return frequency;
+        }
+        
+        /**
+         * Counts one request for a key.
+         */
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = mix(hash, i);
+                int index = index(h);
+                int offset = offset(h);
+                if (((table[index] >>> offset) & 0xF) != 0xF) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                // Age every count so yesterday's favourites don't stay forever
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & HALF_MASK;
+                }
+                additions /= 2;
+            }
+        }
+        
+        private static long mix(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            return h ^ (h >>> 29);
+        }
+        
+        private int index(long h) {
+            return (int) h & mask;
+        }
+        
+        private static int offset(long h) {
+            // Counter 0-15 within the word, from bits the index doesn't use
+            return (int) ((h >>> 58) & 0xF) << 2;
+        }
+    }
+    
+    // ==================== ACCESS STATISTICS ====================
+    // When backpacks are opened, by hour of day - used to warm the cache at startup.
+    
+    /**
+     * How often each backpack is opened at each hour of the day, kept in
+     * plugins/Backpacks/access.dat. {@link #warmUpBackpacks} uses it at startup to load
+     * the backpacks likely to be opened within the next hour.
+     * 
+     * <p>Each backpack has 24 one-byte counters, one per hour in the server's time zone,
+     * saturating at 255. Every week all counters are halved, so the histogram follows the
+     * last few weeks rather than all time; a backpack whose counters all reach zero is
+     * dropped. Halving daily would undo a daily open before it could add up - one open a
+     * day at the same hour settles between 7 and 14 instead.</p>
+     * 
+     * <p>File format: magic, version, the time of the last halving, the number of
+     * backpacks, then per backpack its key (UTF) and its 24 counters, and a CRC32 of
+     * everything before it. Written via temp file + rename, not forced - losing the file
+     * loses predictions, nothing else.</p>
+     * 
+     * <p>Thread-safe: opens are recorded on the main thread, the file is written by the
+     * manifest sync task and on shutdown.</p>
+     */
+    private static final class AccessStatistics {
+        
+        private static final int MAGIC = 0x42504143; // "BPAC"
+        private static final int VERSION = 1;
+        private static final int HOURS = 24;
+        private static final long AGING_INTERVAL_MILLIS = 7 * 86_400_000L;
+        
+        /** Halvings after which every counter is zero */
+        private static final int MAX_HALVINGS = 8;
+        
+        private final Path file;
+        
+        /** Open counts by hour of day (unsigned bytes) per backpack key */
+        private final Map<String, byte[]> opens = new HashMap<>();
+        
+        /** When the counters were last halved */
+        private long lastAged;
+        
+        /** Whether anything changed since the file was last written */
+        private boolean modified;
+        
+        /** Serializes file writes, which happen outside the counters' lock */
+        private final Object writeLock = new Object();
+        
+        private AccessStatistics(Path file) {
+            this.file = file;
+        }
+        
+        /**
+         * Reads the statistics file, or starts empty if it is missing or unreadable.
+         * 
+         * @param file Path of access.dat
+         * @param logger Logger for an unreadable file
+         * @return The statistics
+         */
+        static AccessStatistics open(Path file, Logger logger) {
+            AccessStatistics statistics = new AccessStatistics(file);
+            if (Files.exists(file)) {
+                try {
+                    statistics.read();
+                } catch (IOException e) {
+                    logger.warning("Failed to read backpack access statistics, starting over: " + e.getMessage());
+                    statistics.opens.clear();
+                    statistics.lastAged = 0;
+                }
+            }
+            statistics.age(System.currentTimeMillis());
+            return statistics;
+        }
+        
+        /**
+         * Counts one open of a backpack.
+         * 
+         * @param key The backpack's storage key
+         * @param hour Hour of day of the open, 0-23
+         */
+        synchronized void recordOpen(String key, int hour) {
+            byte[] counts = opens.computeIfAbsent(key, k -> new byte[HOURS]);
+            if ((counts[hour] & 0xFF) < 0xFF) {
+                counts[hour]++;
+            }
+            modified = true;
+        }
+        
+        /**
+         * Ranks backpacks by how often they were opened in a range of hours.
+         * 
+         * @param fromHour First hour of the range, 0-23
+         * @param hours Number of hours in the range (wrapping past midnight)
+         * @param minOpens Fewest opens in the range for a backpack to be listed
+         * @return Backpack keys, most opened first
+         */
+        synchronized List<String> likelyOpened(int fromHour, int hours, int minOpens) {
+            Map<String, Integer> scores = new HashMap<>();
+            for (Map.Entry<String, byte[]> entry : opens.entrySet()) {
+                int score = 0;
+                for (int i = 0; i < hours; i++) {
+                    score += entry.getValue()[(fromHour + i) % HOURS] & 0xFF;
+                }
+                if (score >= minOpens) {
+                    scores.put(entry.getKey(), score);
+                }
+            }
+            List<String> ranked = new ArrayList<>(scores.keySet());
+            ranked.sort(Comparator.comparing((String key) -> scores.get(key)).reversed());
+            return ranked;
+        }
+        
+        /** Number of backpacks with recorded opens */
+        synchronized int size() {
+            return opens.size();
+        }
+        
+        /**
+         * Halves the counters for every week that passed, then writes the file if anything
+         * changed. A failed write is retried by the next call.
+         * 
+         * @throws IOException If the file can't be written
+         */
+        void save() throws IOException {
+            synchronized (writeLock) {
+                byte[] data;
+                synchronized (this) {
+                    age(System.currentTimeMillis());
+                    if (!modified) {
+                        return;
+                    }
+                    data = encode();
+                    modified = false;
+                }
+                try {
+                    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                    Files.write(temp, data);
+                    AtomicFiles.move(temp, file);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        modified = true;
+                    }
+                    throw e;
+                }
+            }
+        }
+        
+        /**
+         * Halves every counter once per week passed since the last halving.
+         */
+        private synchronized void age(long now) {
+            if (lastAged == 0 || now < lastAged) {
+                // New file, or the clock went back - start counting weeks from now
+                lastAged = now;
+                return;
+            }
+            long weeks = (now - lastAged) / AGING_INTERVAL_MILLIS;
+            if (weeks == 0) {
+                return;
+            }
+            int shift = (int) Math.min(weeks, MAX_HALVINGS);
+            for (Iterator<byte[]> it = opens.values().iterator(); it.hasNext(); ) {
+                byte[] counts = it.next();
+                boolean any = false;
+                for (int i = 0; i < HOURS; i++) {
+                    counts[i] = (byte) ((counts[i] & 0xFF) >>> shift);
+                    any |= counts[i] != 0;
+                }
+                if (!any) {
+                    it.remove();
+                }
+            }
+            lastAged += weeks * AGING_INTERVAL_MILLIS;
+            modified = true;
+        }
+        
+        private byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + opens.size() * 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(lastAged);
+            out.writeInt(opens.size());
+            for (Map.Entry<String, byte[]> entry : opens.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.write(entry.getValue());
+            }
+            out.flush();
+            CRC32 checksum = new CRC32();
+            checksum.update(bytes.toByteArray());
+            out.writeInt((int) checksum.getValue());
+            out.flush();
+            return bytes.toByteArray();
+        }
+        
+        private void read() throws IOException {
+            byte[] data = Files.readAllBytes(file);
+            if (data.length < 4) {
+                throw new IOException("file is truncated");
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(data, 0, data.length - 4);
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (in.getInt(data.length - 4) != (int) checksum.getValue()) {
+                throw new IOException("checksum mismatch");
+            }
+            try {
+                if (in.getInt() != MAGIC || (in.get() & 0xFF) != VERSION) {
+                    throw new IOException("not an access statistics file");
+                }
+                lastAged = in.getLong();
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    byte[] key = new byte[in.getShort() & 0xFFFF];
+                    in.get(key);
+                    byte[] counts = new byte[HOURS];
+                    in.get(counts);
+                    opens.put(new String(key, StandardCharsets.UTF_8), counts);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("file is truncated", e);
+            }
+        }
+    }
+    
+    // ==================== WRITE-BEHIND PERSISTENCE ====================
+    // Moves file writes off the main thread. The main thread only hands over an
+    // immutable snapshot; worker threads serialize it and write it to disk.
+    
+    /**
+     * Asynchronous write-behind queue for backpack saves.
+     * 
+     * <p>Guarantees:</p>
+     * <ul>
+     *   <li><b>Per-key ordering:</b> every backpack key is bound to one worker thread
+     *       (by hash), so writes for the same backpack run one after another in
+     *       submission order</li>
+     *   <li><b>Merging:</b> a submit for a key that is still waiting replaces the waiting
+     *       snapshot instead of adding a second write - ten quick open/close cycles
+     *       produce one write of the latest contents, with the changed slots of all ten
+     *       (see {@link BackpackSnapshot#mergedAfter(BackpackSnapshot)})</li>
+     *   <li><b>Back-pressure:</b> at most {@code maxPending} distinct keys may wait at once.
+     *       When the bound is reached, {@link #submit(String, BackpackSnapshot)} blocks until a worker
+     *       picks up a key, so the queue can never grow without limit</li>
+     *   <li><b>Read-through:</b> {@link #peek(String)} returns a snapshot that is waiting
+     *       or being written, which is always newer than the file on disk</li>
+     *   <li><b>Batching:</b> a worker that picks up a key also takes up to
+     *       {@link #MAX_BATCH} other keys waiting for the same worker and hands them to the
+     *       {@link Writer} together ({@link BackpackStore#saveAll}); if the batch fails,
+     *       each key is retried on its own so one bad backpack can't fail the others</li>
+     *   <li><b>Full drain:</b> {@link #shutdownAndDrain()} returns only after every
+     *       accepted snapshot has been written</li>
+     * </ul>
+     * 
+     * <p>Snapshots must be immutable - the queue keeps a reference and writes it later.</p>
+     */
+    private static final class WriteBehindQueue {
+        
+        /**
+         * The actual persistence step, run on a worker thread.
+         */
+        interface Writer {
+            void write(Map<String, BackpackSnapshot> batch) throws Exception;
+        }
+        
+        /** Most keys handed to the writer in one batch */
+        private static final int MAX_BATCH = 64;
+        
+        /** Snapshots waiting for a worker, keyed by backpack key (at most one per key). */
+        private final ConcurrentHashMap<String, BackpackSnapshot> pending = new ConcurrentHashMap<>();
+        
+        /** Snapshots a worker has taken and is currently writing. */
+        private final ConcurrentHashMap<String, BackpackSnapshot> inFlight = new ConcurrentHashMap<>();
+        
+        /**
+         * Key → snapshot whose write failed last. Memory (or the write-ahead log) holds the
+         * only current copy until a write of the key succeeds.
+         */
+        private final ConcurrentHashMap<String, BackpackSnapshot> failedWrites = new ConcurrentHashMap<>();
+        
+        /** One permit per key that may be pending - this is the back-pressure bound. */
+        private final Semaphore pendingSlots;
+        
+        /** Single-threaded executors; a key always maps to the same one. */
+        private final ExecutorService[] workers;
+        
+        private final Writer writer;
+        private final Logger logger;
+        
+        // Statistics (read by admins to verify merging and throughput)
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong merged = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+        
+        /**
+         * Creates the queue and starts its worker threads.
+         * 
+         * @param threads Number of worker threads (at least 1)
+         * @param maxPending Maximum number of distinct keys waiting to be written
+         * @param logger Logger for write failures and drain progress
+         * @param writer Persistence step executed for each write
+         */
+        WriteBehindQueue(int threads, int maxPending, Logger logger, Writer writer) {
+            this.pendingSlots = new Semaphore(maxPending);
+            this.logger = logger;
+            this.writer = writer;
+            this.workers = new ExecutorService[threads];
+            for (int i = 0; i < threads; i++) {
+                String name = "Backpacks-Writer-" + i;
+                workers[i] = Executors.newSingleThreadExecutor(r -> new Thread(r, name));
+            }
+        }
+        
+        /**
+         * Queues a snapshot to be written for the given key.
+         * 
+         * <p>If a write for this key is already waiting, the waiting snapshot is replaced
+         * and no new work is scheduled. Otherwise a slot is acquired (blocking while the
+         * queue is full) and a write task is scheduled on the key's worker.</p>
+         * 
+         * @param key The backpack storage key
+         * @param snapshot Immutable contents to persist
+         */
+        void submit(String key, BackpackSnapshot snapshot) {
+            submitted.incrementAndGet();
+            
+            // Merge into a write that hasn't started yet - the worker will pick up the newest
+            if (pending.computeIfPresent(key, (k, waiting) -> snapshot.mergedAfter(waiting)) != null) {
+                merged.incrementAndGet();
+                return;
+            }
+            
+            // New key: wait for room (back-pressure), then schedule its write
+            pendingSlots.acquireUninterruptibly();
+            AtomicBoolean alreadyQueued = new AtomicBoolean();
+            pending.merge(key, snapshot, (waiting, fresh) -> {
+                alreadyQueued.set(true);
+                return fresh.mergedAfter(waiting);
+            });
+            if (alreadyQueued.get()) {
+                // Another submitter queued this key in the meantime - its task covers us
+                pendingSlots.release();
+                merged.incrementAndGet();
+                return;
+            }
+            workerFor(key).execute(() -> drain(key));
+        }
+        
+        /**
+         * Returns the newest snapshot for a key that has not reached disk yet.
+         * 
+         * @param key The backpack storage key
+         * @return The waiting or in-flight snapshot, or null if nothing is queued
+         */
+        BackpackSnapshot peek(String key) {
+            // Waiting snapshots are newer than in-flight ones, so check them first.
+            // drain() publishes to inFlight before removing from pending, so a key
+            // is never invisible to this method while its write is outstanding.
+            BackpackSnapshot snapshot = pending.get(key);
+            if (snapshot == null) {
+                snapshot = inFlight.get(key);
+            }
+            // A write that failed hasn't reached disk either
+            return snapshot != null ? snapshot : failedWrites.get(key);
+        }
+        
+        /**
+         * Number of keys currently waiting for a worker.
+         */
+        int pendingCount() {
+            return pending.size();
+        }
+        
+        long submittedCount() { return submitted.get(); }
+        long mergedCount() { return merged.get(); }
+        long writtenCount() { return written.get(); }
+        long failedCount() { return failed.get(); }
+        long batchCount() { return batches.get(); }
+        
+        /**
+         * Whether the last write of a key failed. Cleared by the key's next successful write.
+         * 
+         * @param key The backpack storage key
+         * @return true while storage holds an older copy than memory
+         */
+        boolean hasFailed(String key) {
+            return failedWrites.containsKey(key);
+        }
+        
+        /**
+         * Marks a key failed after its write was reported done - a group commit that
+         * couldn't put the staged file in place. Its next successful write clears it.
+         * 
+         * @param key The backpack storage key
+         * @param snapshot The contents that were lost
+         */
+        void markFailed(String key, BackpackSnapshot snapshot) {
+            failed.incrementAndGet();
+            failedWrites.put(key, snapshot);
+        }
+        
+        /**
+         * The keys whose last write failed, with the snapshot that failed.
+         * 
+         * @return A copy, empty when storage is up to date with every write so far
+         */
+        Map<String, BackpackSnapshot> failedWrites() {
+            return new HashMap<>(failedWrites);
+        }
+        
+        /**
+         * Worker task: takes the newest snapshot for a key, plus other keys waiting for
+         * this worker, and writes them as one batch.
+         * 
+         * <p>Keys taken along with this one still have their own task queued on this
+         * worker; it finds nothing pending and only returns its pending slot.</p>
+         */
+        private void drain(String key) {
+            Map<String, BackpackSnapshot> batch = new LinkedHashMap<>();
+            take(key, batch);
+            // The key no longer occupies a pending slot, even while it is being written
+            pendingSlots.release();
+            if (batch.isEmpty()) {
+                return;
+            }
+            
+            ExecutorService worker = workerFor(key);
+            for (String other : pending.keySet()) {
+                if (batch.size() >= MAX_BATCH) {
+                    break;
+                }
+                if (workerFor(other) == worker) {
+                    take(other, batch);
+                }
+            }
+            
+            try {
+                writer.write(batch);
+                written.addAndGet(batch.size());
+                batches.incrementAndGet();
+                batch.keySet().forEach(failedWrites::remove);
+            } catch (Throwable t) {
+                if (batch.size() == 1) {
+                    // The contents are still in memory; the next save of this backpack retries
+                    failed.incrementAndGet();
+                    failedWrites.put(key, batch.get(key));
+                    logger.log(Level.WARNING, "Failed to write backpack " + key, t);
+                } else {
+                    // Find out which backpacks the failure belongs to
+                    batch.forEach(this::writeSingle);
+                }
+            } finally {
+                // Only clear our own entries - newer writes may already be in flight
+                batch.forEach(inFlight::remove);
+            }
+        }
+        
+        /**
+         * Atomically moves a key's snapshot from pending to in-flight and adds it to a batch.
+         */
+        private void take(String key, Map<String, BackpackSnapshot> batch) {
+            pending.computeIfPresent(key, (k, snapshot) -> {
+                inFlight.put(k, snapshot);
+                batch.put(k, snapshot);
+                return null;
+            });
+        }
+        
+        /**
+         * Writes one key of a failed batch on its own.
+         */
+        private void writeSingle(String key, BackpackSnapshot snapshot) {
+            try {
+                writer.write(Map.of(key, snapshot));
+                written.incrementAndGet();
+                batches.incrementAndGet();
+                failedWrites.remove(key);
+            } catch (Throwable t) {
+                // The contents are still in memory; the next save of this backpack retries
+                failed.incrementAndGet();
+                failedWrites.put(key, snapshot);
+                logger.log(Level.WARNING, "Failed to write backpack " + key, t);
+            }
+        }
+        
+        /**
+         * Blocks until every snapshot submitted before the call has been written or has
+         * failed. A marker task queued behind each worker's tasks is enough: every
+         * accepted snapshot is written by a task queued when it was submitted.
+         * 
+         * @return false if the queue is shutting down (its drain takes over)
+         */
+        boolean flush() {
+            List<Future<?>> markers = new ArrayList<>(workers.length);
+            try {
+                for (ExecutorService worker : workers) {
+                    markers.add(worker.submit(() -> { }));
+                }
+                for (Future<?> marker : markers) {
+                    marker.get();
+                }
+                return true;
+            } catch (RejectedExecutionException | ExecutionException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        
+        /**
+         * Stops accepting work and blocks until every queued write has completed.
+         * 
+         * <p>Already scheduled tasks still run after {@code shutdown()}, so waiting for
+         * termination drains the queue completely. Progress is logged while waiting so a
+         * slow disk during shutdown is visible in the console.</p>
+         */
+        void shutdownAndDrain() {
+            for (ExecutorService worker : workers) {
+                worker.shutdown();
+            }
+            for (ExecutorService worker : workers) {
+                try {
+                    while (!worker.awaitTermination(10, TimeUnit.SECONDS)) {
+                        logger.info("Waiting for " + (pending.size() + inFlight.size()) + " backpack writes to finish...");
+                    }
+                } catch (InterruptedException e) {
+                    // Restore the flag and stop waiting; report what may still be unwritten
+                    Thread.currentThread().interrupt();
+                    logger.warning("Interrupted while draining backpack writes; " 
+                        + (pending.size() + inFlight.size()) + " may not have been written");
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Picks the worker responsible for a key (stable for the key's lifetime).
+         */
+        private ExecutorService workerFor(String key) {
+            return workers[Math.floorMod(key.hashCode(), workers.length)];
+        }
+    }
+    
+    // ==================== STORAGE BACKENDS ====================
+    // Everything that touches backpack data on disk goes through BackpackStore.
+    // The plugin only ever sees snapshots; how they are laid out in files is up
+    // to the backend selected by "storage.backend".
+    
+    /**
+     * A place where backpack snapshots are persisted - the storage SPI every backend
+     * implements. The plugin never touches backpack files directly; adding a backend
+     * means implementing this interface and adding its name to {@link #STORAGE_BACKENDS}
+     * and {@link #createBackpackStore(String, Durability)}.
+     * 
+     * <p>Contract:</p>
+     * <ul>
+     *   <li>{@link #save}, {@link #saveAll} and {@link #delete} may be called from any
+     *       {@link WriteBehindQueue} worker thread, but never concurrently for the same key</li>
+     *   <li>{@link #load}, {@link #exists} and {@link #listKeys} may be called from the main
+     *       thread while saves run in the background</li>
+     *   <li>A key that was never saved, or was deleted, loads as null</li>
+     * </ul>
+     * 
+     * <p>The batch operations have default implementations that loop over the single-key
+     * ones; backends override them where a batch is cheaper than its parts.</p>
+     */
+    private interface BackpackStore {
+        
+        /**
+         * Returns the keys of every stored backpack.
+         * 
+         * @return A new, mutable set of storage keys
+         * @throws IOException If the backend can't be listed
+         */
+        Set<String> listKeys() throws IOException;
+        
+        /**
+         * Reads one backpack.
+         * 
+         * @param key The backpack's storage key
+         * @return The stored snapshot, or null if nothing is stored under this key
+         * @throws IOException If the stored data can't be read or decoded
+         */
+        BackpackSnapshot load(String key) throws IOException;
+        
+        /**
+         * Reads a backpack's metadata without decoding its items where the backend allows.
+         * Used to rebuild the {@link StorageManifest}.
+         * 
+         * @param key The backpack's storage key
+         * @return Metadata (lastOpened = 0 unless the backend records open times), or null
+         *         if nothing is stored under this key
+         * @throws IOException If the stored data can't be read
+         */
+        ManifestEntry stat(String key) throws IOException;
+        
+        /**
+         * Reads a backpack's stored record without decoding it. Used by the
+         * {@link IntegrityScrubber} and to copy damaged records into quarantine.
+         * 
+         * @param key The backpack's storage key
+         * @return The record in {@link BackpackCodec} format, or null if nothing is stored
+         *         under this key or it isn't stored as a binary record (YAML files)
+         * @throws CorruptRecordException If the backend's own framing around the record is damaged
+         * @throws IOException If the stored data can't be read
+         */
+        byte[] readRecord(String key) throws IOException;
+        
+        /**
+         * Replaces a backpack's stored contents.
+         * 
+         * @param key The backpack's storage key
+         * @param snapshot The contents to store
+         * @return Bytes the stored record occupies
+         * @throws IOException If the data can't be written
+         */
+        int save(String key, BackpackSnapshot snapshot) throws IOException;
+        
+        /**
+         * Removes a backpack. Deleting a key that isn't stored does nothing.
+         * 
+         * @param key The backpack's storage key
+         * @throws IOException If the data can't be removed
+         */
+        void delete(String key) throws IOException;
+        
+        /**
+         * Checks whether anything is stored under a key, without reading it.
+         * 
+         * @param key The backpack's storage key
+         * @return true if {@link #load} would return a snapshot
+         * @throws IOException If the backend can't be queried
+         */
+        boolean exists(String key) throws IOException;
+        
+        /**
+         * Reads several backpacks.
+         * 
+         * @param keys Storage keys to read
+         * @return Key → snapshot for every key that is stored (missing keys are left out)
+         * @throws IOException If any stored backpack can't be read
+         */
+        default Map<String, BackpackSnapshot> loadAll(Collection<String> keys) throws IOException {
+            Map<String, BackpackSnapshot> snapshots = new HashMap<>();
+            for (String key : keys) {
+                BackpackSnapshot snapshot = load(key);
+                if (snapshot != null) {
+                    snapshots.put(key, snapshot);
+                }
+            }
+            return snapshots;
+        }
+        
+        /**
+         * Stores several backpacks. Not atomic as a whole: if it fails, some of the
+         * snapshots may already be stored.
+         * 
+         * @param snapshots Key → contents to store
+         * @return Key → bytes the stored record occupies
+         * @throws IOException If any snapshot can't be written
+         */
+        default Map<String, Integer> saveAll(Map<String, BackpackSnapshot> snapshots) throws IOException {
+            Map<String, Integer> sizes = new HashMap<>();
+            for (Map.Entry<String, BackpackSnapshot> entry : snapshots.entrySet()) {
+                sizes.put(entry.getKey(), save(entry.getKey(), entry.getValue()));
+            }
+            return sizes;
+        }
+        
+        /**
+         * Persists when backpacks were last opened, for backends that index it. Called
+         * periodically off the main thread; the default ignores it, since the
+         * {@link StorageManifest} keeps open times for every backend.
+         * 
+         * @param lastOpened Key → time of the latest open (epoch millis)
+         * @throws IOException If the times can't be written
+         */
+        default void recordOpens(Map<String, Long> lastOpened) throws IOException {
+        }
+        
+        /**
+         * Releases the backend's resources. Called once, after the last save.
+         * 
+         * @throws IOException If buffered data can't be flushed
+         */
+        void close() throws IOException;
+    }
+    
+    /**
+     * One file per backpack in plugins/Backpacks/playerdata/ (the original layout).
+     * 
+     * <p>Files: {key}.bin in the binary record format ({@link BackpackCodec}, default)
+     * or {key}.yml in the original YAML format:</p>
+     * <pre>
+     * slot:
+     *   0: {ItemStack data}
+     *   5: {ItemStack data}
+     * </pre>
+     * 
+     * <p>Both formats are always readable; .bin is preferred when both exist. Each save
+     * deletes the key's file in the other format, which is how YAML files migrate to
+     * binary one by one (and back, if the format is switched).</p>
+     * 
+     * <p>Each backpack having its own file prevents total data loss if one file
+     * corrupts, and allows easy per-backpack backup and manual editing (YAML format).</p>
+     * 
+     * <p>Delta journal (binary format only): when a save changed only a few slots, just
+     * those slots are appended to {key}.journal instead of rewriting {key}.bin. The
+     * journal is folded back - the next save is written in full and the journal deleted -
+     * once it would grow past "storage.journal-fold-percent" of the .bin file's size, or
+     * when a save changed half the slots or more. Layout:</p>
+     * <pre>
+     * int    magic "BPJN"
+     * byte   version
+     * int    CRC32 of the .bin file the journal applies to
+     * records: int length, int CRC32 of the body, body ({@link BackpackCodec#encodeDelta})
+     * </pre>
+     * 
+     * <p>The base checksum ties a journal to one exact .bin file: a journal left behind
+     * by a crash between a full save and the journal's deletion no longer matches and is
+     * ignored. Reading stops at the first record whose CRC doesn't match (a torn append).
+     * The first save of each backpack in a server run is always a full save, so a
+     * journal is only ever appended to by the run that started it.</p>
+     * 
+     * <p>Layout ("storage.files.layout"): flat puts every file directly in playerdata/;
+     * sharded puts each key's files in playerdata/ab/cd/, where abcd are the first four
+     * hex digits of the CRC32 of the key. Hashing the whole key spreads personal-
+     * backpacks as evenly as UUID ones, and 65536 leaf directories keep each one small
+     * even with millions of backpacks. Temporary files always go directly in
+     * playerdata/, so startup cleanup stays a single listing.</p>
+     * 
+     * <p>Switching layout: files still in the other layout are found at startup and
+     * {@link #startMigration(int) moved} by a background thread ("Backpacks-Migrator").
+     * Until it finishes, reads look in the configured layout first and then the other
+     * one; saves always write the configured layout and delete the key's old files. A
+     * move hard-links the file into place (which fails rather than overwrite a newer
+     * save), syncs the new directories, and only then deletes the old file - a crash at
+     * any point leaves at least one complete copy.</p>
+     */
+    private static final class FileBackpackStore implements BackpackStore {
+        
+        /** Slot count of a backpack with every slot index below this is a normal backpack */
+        private static final int SMALL_CAPACITY = 27;
+        
+        /** Journal header magic - "BPJN" in ASCII */
+        private static final int JOURNAL_MAGIC = 0x42504A4E;
+        
+        /** Journal layout version */
+        private static final byte JOURNAL_VERSION = 1;
+        
+        /** Bytes before the first journal record: magic, version, base CRC */
+        private static final int JOURNAL_HEADER_SIZE = 9;
+        
+        /** Bytes before a journal record's body: length, CRC */
+        private static final int RECORD_HEADER_SIZE = 8;
+        
+        /** File extensions of a key's files, journal first - the order files are moved in */
+        private static final List<String> EXTENSIONS = List.of(".journal", ".yml", ".bin");
+        
+        /** Number of {@link #keyLocks} stripes */
+        private static final int LOCK_STRIPES = 64;
+        
+        /** Directory holding the per-backpack files (created on first save) */
+        private final File directory;
+        
+        /** Whether saves are written as .bin (true) or .yml (false) */
+        private final boolean binaryFormat;
+        
+        /** When saves are forced to disk, see {@link Durability} */
+        private final Durability durability;
+        
+        /** Commits staged files in GROUP mode, null otherwise */
+        private final GroupCommitter committer;
+        
+        /** Plugin logger, for invalid YAML slot numbers */
+        private final Logger logger;
+        
+        /** Makes temporary file names unique when a key is saved again before its last save committed */
+        private final AtomicLong tempCounter = new AtomicLong();
+        
+        /** Largest journal allowed, as a fraction of its .bin file's size - 0 disables deltas */
+        private final double journalFoldRatio;
+        
+        /** Whether files are written to playerdata/ab/cd/ (true) or playerdata/ (false) */
+        private final boolean sharded;
+        
+        /** True while files of the other layout may exist - reads then check both */
+        private volatile boolean migrating;
+        
+        /**
+         * Serialize moves of a key's files with reads and deletes of the same key, by
+         * key hash. Saves don't need them: a move never replaces an existing file.
+         */
+        private final Object[] keyLocks = new Object[LOCK_STRIPES];
+        
+        /** Moves files to the configured layout, null unless a migration is running */
+        private ScheduledExecutorService migrator;
+        
+        /** Keys moved by the running migration */
+        private final AtomicLong migrated = new AtomicLong();
+        
+        /**
+         * Journals this run may append to, by key. An entry is created by each full binary
+         * save and removed when a save fails, which forces the next save to be full.
+         */
+        private final Map<String, JournalState> journals = new ConcurrentHashMap<>();
+        
+        /**
+         * Where a key's newest data is.
+         * 
+         * @param path File to read - a staged temporary file awaiting its group commit,
+         *        or the backpack's file itself
+         * @param target The backpack's file (read instead if the staged file was committed meanwhile)
+         * @param binary Whether the data is in the binary format
+         */
+        private record StoredFile(Path path, Path target, boolean binary) {}
+        
+        /**
+         * A journal's binding to its .bin file.
+         * 
+         * @param baseChecksum CRC32 of the .bin file the journal applies to
+         * @param length Bytes of the journal written so far - 0 if it doesn't exist yet
+         */
+        private record JournalState(int baseChecksum, long length) {}
+        
+        /**
+         * Opens the directory and removes temporary files left by an interrupted run.
+         * 
+         * @param directory Directory holding the per-backpack files
+         * @param binaryFormat Whether saves are written in the binary format
+         * @param durability When saves are forced to disk
+         * @param committer Group committer, required for {@link Durability#GROUP}
+         * @param journalFoldPercent Largest journal as a percentage of its .bin file - 0 disables deltas
+         * @param sharded Whether files are written to hash subdirectories
+         * @param logger Plugin logger
+         */
+        FileBackpackStore(File directory, boolean binaryFormat, Durability durability,
+                          GroupCommitter committer, int journalFoldPercent, boolean sharded, Logger logger) {
+            this.directory = directory;
+            this.binaryFormat = binaryFormat;
+            this.journalFoldRatio = Math.max(0, journalFoldPercent) / 100.0;
+            this.durability = durability;
+            this.committer = durability == Durability.GROUP ? committer : null;
+            this.sharded = sharded;
+            this.logger = logger;
+            for (int i = 0; i < keyLocks.length; i++) {
+                keyLocks[i] = new Object();
+            }
+            this.migrating = hasFilesInOtherLayout();
+            
+            // A temporary file still here was never renamed into place; the backpack's
+            // own file still holds its previous save
+            File[] leftovers = directory.listFiles((dir, name) -> name.endsWith(".tmp"));
+            if (leftovers != null && leftovers.length > 0) {
+                for (File leftover : leftovers) {
+                    leftover.delete();
+                }
+                logger.info("Removed " + leftovers.length + " incomplete backpack writes left by an interrupted shutdown");
+            }
+        }
+        
+        /**
+         * Lists keys from directory listings alone - no file is opened. Covers both
+         * layouts while a migration is running.
+         */
+        @Override
+        public Set<String> listKeys() {
+            Set<String> keys = new HashSet<>();
+            if (!sharded || migrating) {
+                addKeys(directory, keys);
+            }
+            if (sharded || migrating) {
+                for (File outer : shardDirectories(directory)) {
+                    for (File inner : shardDirectories(outer)) {
+                        addKeys(inner, keys);
+                    }
+                }
+            }
+            return keys;
+        }
+        
+        /** Adds the keys of the .bin and .yml files in one directory */
+        private static void addKeys(File folder, Set<String> keys) {
+            // listFiles returns null if the directory doesn't exist yet
+            File[] files = folder.listFiles((dir, name) -> name.endsWith(".bin") || name.endsWith(".yml"));
+            if (files != null) {
+                for (File file : files) {
+                    // Both extensions are 4 characters; a key with both files is listed once
+                    String name = file.getName();
+                    keys.add(name.substring(0, name.length() - 4));
+                }
+            }
+        }
+        
+        /** Subdirectories of a folder named like a shard level ("00" to "ff") */
+        private static File[] shardDirectories(File folder) {
+            File[] shards = folder.listFiles(file -> file.isDirectory() && isShardName(file.getName()));
+            return shards != null ? shards : new File[0];
+        }
+        
+        /** Whether a directory name is a two-digit lowercase hex shard name */
+        private static boolean isShardName(String name) {
+            return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0
+                && Character.digit(name.charAt(1), 16) >= 0 && name.equals(name.toLowerCase());
+        }
+        
+        @Override
+        public BackpackSnapshot load(String key) throws IOException {
+            StoredFile file;
+            byte[] data;
+            byte[] journal;
+            // Locked so a migration can't move the files between finding and reading them
+            synchronized (lockFor(key)) {
+                file = locate(key);
+                if (file == null) {
+                    return null;
+                }
+                // One read of the whole file, then decode from memory
+                data = readBytes(file);
+                journal = file.binary() ? readJournal(file.target(), key) : null;
+            }
+            if (!file.binary()) {
+                return loadYaml(key, data);
+            }
+            BackpackSnapshot snapshot = applyJournal(key, data, journal, BackpackCodec.decode(key, data));
+            if (journal != null) {
+                // The journal's deltas changed slots after the .bin file's item references
+                BackpackCodec.forgetSlots(key, null);
+            }
+            return snapshot;
+        }
+        
+        /**
+         * Reads the .bin file only - a pending journal has its own per-delta CRC32.
+         */
+        @Override
+        public byte[] readRecord(String key) throws IOException {
+            synchronized (lockFor(key)) {
+                StoredFile file = locate(key);
+                return file != null && file.binary() ? readBytes(file) : null;
+            }
+        }
+        
+        @Override
+        public ManifestEntry stat(String key) throws IOException {
+            // Only used to rebuild the manifest at startup, before anything is staged,
+            // so the backpack's own files are authoritative
+            Path folder;
+            synchronized (lockFor(key)) {
+                folder = folderOf(key);
+            }
+            if (folder == null) {
+                return null;
+            }
+            File binaryFile = folder.resolve(key + ".bin").toFile();
+            File journalFile = folder.resolve(key + ".journal").toFile();
+            if (binaryFile.exists() && journalFile.exists()) {
+                // The header's counts predate the journal's deltas - load to count
+                BackpackSnapshot snapshot = load(key);
+                return new ManifestEntry(snapshot.capacity(), snapshot.itemCount(),
+                    (int) (binaryFile.length() + journalFile.length()),
+                    Math.max(binaryFile.lastModified(), journalFile.lastModified()), 0,
+                    snapshot.outdated() ? 0 : BackpackCodec.currentDataVersion());
+            }
+            if (binaryFile.exists()) {
+                // Only the header is read - no item is decoded
+                byte[] header = new byte[BackpackCodec.MAX_HEADER_SIZE];
+                try (java.io.InputStream in = Files.newInputStream(binaryFile.toPath())) {
+                    int read = in.readNBytes(header, 0, header.length);
+                    if (read < BackpackCodec.HEADER_SIZE) {
+                        throw new IOException("Truncated backpack record");
+                    }
+                    header = Arrays.copyOf(header, read);
+                }
+                return BackpackCodec.describe(header, (int) binaryFile.length(), binaryFile.lastModified());
+            }
+            File yamlFile = folder.resolve(key + ".yml").toFile();
+            if (yamlFile.exists()) {
+                // YAML has no header to peek at - parse the file. It has no DataVersion stamp
+                // either, so it is not tracked for upgrades; it turns binary on its next save
+                BackpackSnapshot snapshot = loadYaml(key, Files.readAllBytes(yamlFile.toPath()));
+                return new ManifestEntry(snapshot.capacity(), snapshot.itemCount(),
+                    (int) yamlFile.length(), yamlFile.lastModified(), 0, BackpackCodec.currentDataVersion());
+            }
+            return null;
+        }
+        
+        /**
+         * Writes a backpack's file crash-safely.
+         * 
+         * <p>The data is written to a temporary file next to the target, which is then
+         * renamed over the target in one atomic step - a crash leaves either the old or
+         * the new file, never a half-written one. What happens after the temporary file is
+         * written depends on {@link #durability}:</p>
+         * <ul>
+         *   <li>NONE: renamed immediately, nothing is forced to disk</li>
+         *   <li>GROUP: handed to the {@link GroupCommitter}, which forces and renames it
+         *       together with every other save of the same window</li>
+         *   <li>ALWAYS: forced, renamed, and the directory forced before returning</li>
+         * </ul>
+         * 
+         * <p>The key's file in the other format and its delta journal are deleted once the
+         * new file is in place - this is how YAML files migrate to binary one by one.</p>
+         * 
+         * <p>A snapshot with changed slots is appended to the delta journal instead when
+         * {@link #appendDelta(String, BackpackSnapshot)} allows it.</p>
+         */
+        @Override
+        public int save(String key, BackpackSnapshot snapshot) throws IOException {
+            try {
+                if (binaryFormat && snapshot.changedSlots() != null) {
+                    int size = appendDelta(key, snapshot);
+                    if (size >= 0) {
+                        return size;
+                    }
+                }
+                return saveFull(key, snapshot);
+            } catch (IOException | RuntimeException e) {
+                // Whatever this save changed is not on disk - the next save must be full
+                journals.remove(key);
+                throw e;
+            }
+        }
+        
+        /**
+         * Writes a backpack's complete file, see {@link #save(String, BackpackSnapshot)}.
+         */
+        private int saveFull(String key, BackpackSnapshot snapshot) throws IOException {
+            Path folder = folderFor(key, sharded);
+            // Ensure the directory exists - creates parent directories too
+            Files.createDirectories(folder);
+            
+            Path binaryPath = folder.resolve(key + ".bin");
+            Path yamlPath = folder.resolve(key + ".yml");
+            Path target = binaryFormat ? binaryPath : yamlPath;
+            // Binary files are read first, so a stale one would shadow a YAML save;
+            // in binary mode the legacy YAML copy is simply no longer needed.
+            // The journal's deltas are included in the snapshot being written.
+            List<Path> obsolete = new ArrayList<>(List.of(binaryFormat ? yamlPath : binaryPath, journalPath(key)));
+            if (migrating) {
+                // This save moves the backpack to the configured layout
+                Path oldFolder = folderFor(key, !sharded);
+                for (String extension : EXTENSIONS) {
+                    obsolete.add(oldFolder.resolve(key + extension));
+                }
+            }
+            // Temporary files live directly in the data directory; the rename moves them
+            // into the shard directory
+            Path temp = directory.toPath().resolve(target.getFileName() + "." + tempCounter.incrementAndGet() + ".tmp");
+            
+            if (binaryFormat && !journals.containsKey(key)) {
+                // This run didn't start the journal - don't let the save delete one it can't account for
+                keepOrphanedJournal(key, binaryPath);
+            }
+            
+            int size;
+            int baseChecksum = 0;
+            if (binaryFormat) {
+                // One buffer, one write - no per-slot YAML tree to build
+                byte[] record = BackpackCodec.encode(key, snapshot);
+                Files.write(temp, record);
+                size = record.length;
+                baseChecksum = checksum(record, 0, record.length);
+            } else {
+                // A fresh config each save (not loading existing) because we're
+                // replacing all content, not updating individual entries
+                org.bukkit.configuration.file.FileConfiguration config = 
+                    new org.bukkit.configuration.file.YamlConfiguration();
+                
+                // Store each ItemStack at "slot.{index}" - Bukkit handles ItemStack → YAML
+                for (Map.Entry<Integer, ItemStack> entry : snapshot.contents().entrySet()) {
+                    config.set("slot." + entry.getKey(), entry.getValue());
+                }
+                config.save(temp.toFile());
+                size = (int) Files.size(temp);
+            }
+            
+            // Later saves of this run may append deltas against exactly these bytes - but only
+            // once they are the .bin file; a journal against a file that never landed is lost
+            JournalState base = binaryFormat ? new JournalState(baseChecksum, 0) : null;
+            if (durability == Durability.GROUP) {
+                committer.stage(key, snapshot, temp, target, obsolete, committed -> {
+                    if (committed && base != null) {
+                        journals.put(key, base);
+                    } else {
+                        journals.remove(key);
+                    }
+                });
+            } else {
+                if (durability == Durability.ALWAYS) {
+                    AtomicFiles.force(temp);
+                }
+                AtomicFiles.move(temp, target);
+                for (Path file : obsolete) {
+                    Files.deleteIfExists(file);
+                }
+                if (durability == Durability.ALWAYS) {
+                    // Makes the rename (and the delete) themselves durable
+                    AtomicFiles.forceDirectory(folder);
+                }
+                if (base != null) {
+                    journals.put(key, base);
+                }
+            }
+            return size;
+        }
+        
+        /**
+         * Moves a journal with records that doesn't belong to the key's .bin file aside,
+         * to {key}.journal.{time}.orphaned, before a full save would delete it. Such a
+         * journal was started against a full save that never reached disk, so its deltas
+         * may be the only copy of what that save and the ones after it held. Runs on the
+         * key's writer thread, the only one that writes its journal.
+         * 
+         * @param key The backpack's storage key
+         * @param binaryPath The key's .bin file
+         * @throws IOException If the journal can't be read or moved
+         */
+        private void keepOrphanedJournal(String key, Path binaryPath) throws IOException {
+            Path journal = journalPath(key);
+            byte[] header = new byte[JOURNAL_HEADER_SIZE];
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+                if (channel.size() <= JOURNAL_HEADER_SIZE) {
+                    // No records - nothing to lose
+                    return;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(header);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, buffer.position()) < 0) {
+                        return;
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            byte[] base;
+            try {
+                base = Files.readAllBytes(binaryPath);
+            } catch (NoSuchFileException e) {
+                base = null;
+            }
+            if (base != null && journalBelongsTo(header, base)) {
+                // Its deltas are in the snapshot being saved
+                return;
+            }
+            Path kept = journal.resolveSibling(key + ".journal." + System.currentTimeMillis() + ".orphaned");
+            Files.move(journal, kept);
+            logger.warning("Delta journal of backpack " + key + " doesn't belong to its .bin file (a full save of it"
+                + " was lost) - kept as " + kept.getFileName() + " for manual recovery");
+        }
+        
+        /** Whether a journal's header names the given .bin file's bytes as its base */
+        private static boolean journalBelongsTo(byte[] journal, byte[] base) {
+            ByteBuffer buffer = ByteBuffer.wrap(journal);
+            return journal.length >= JOURNAL_HEADER_SIZE
+                && buffer.getInt() == JOURNAL_MAGIC
+                && buffer.get() == JOURNAL_VERSION
+                && buffer.getInt() == checksum(base, 0, base.length);
+        }
+        
+        /**
+         * Deletes a backpack's files in both formats and its journal. A save of the key
+         * still waiting for its group commit is discarded first, so it can't bring the
+         * backpack back afterwards.
+         */
+        @Override
+        public void delete(String key) throws IOException {
+            Path folder = folderFor(key, sharded);
+            if (committer != null) {
+                committer.discard(folder.resolve(key + (binaryFormat ? ".bin" : ".yml")));
+            }
+            journals.remove(key);
+            
+            List<Path> folders = new ArrayList<>();
+            synchronized (lockFor(key)) {
+                if (deleteFiles(folder, key)) {
+                    folders.add(folder);
+                }
+                // Also the old layout's files, or the migration would bring them back
+                Path oldFolder = folderFor(key, !sharded);
+                if (migrating && deleteFiles(oldFolder, key)) {
+                    folders.add(oldFolder);
+                }
+            }
+            
+            // A lost deletion would bring the old contents back, so it is made as
+            // durable as a save
+            for (Path deletedIn : folders) {
+                if (durability == Durability.ALWAYS) {
+                    AtomicFiles.forceDirectory(deletedIn);
+                } else if (durability == Durability.GROUP) {
+                    committer.markDirectoryDirty(deletedIn);
+                }
+            }
+        }
+        
+        /** Deletes a key's files of every kind from one folder, returning whether any existed */
+        private static boolean deleteFiles(Path folder, String key) throws IOException {
+            boolean deleted = false;
+            for (String extension : EXTENSIONS) {
+                deleted |= Files.deleteIfExists(folder.resolve(key + extension));
+            }
+            return deleted;
+        }
+        
+        @Override
+        public boolean exists(String key) {
+            synchronized (lockFor(key)) {
+                return locate(key) != null;
+            }
+        }
+        
+        /**
+         * Appends a snapshot's changed slots to the key's delta journal.
+         * 
+         * <p>Declines (returns -1, the caller writes a full save) when:</p>
+         * <ul>
+         *   <li>deltas are disabled, or no full save of this key succeeded yet in this run</li>
+         *   <li>a full save of the key is still staged for its group commit - the journal
+         *       on disk belongs to the previous .bin file</li>
+         *   <li>half the slots or more changed - the delta would be about as large as the file</li>
+         *   <li>the journal would grow past the fold threshold - the full save folds it</li>
+         * </ul>
+         * 
+         * @param key The backpack's storage key
+         * @param snapshot Snapshot with non-null changedSlots
+         * @return Bytes of .bin file plus journal, or -1 if a full save is needed
+         * @throws IOException If the journal can't be written
+         */
+        private int appendDelta(String key, BackpackSnapshot snapshot) throws IOException {
+            JournalState state = journals.get(key);
+            if (state == null || journalFoldRatio <= 0) {
+                return -1;
+            }
+            Path binaryPath = folderFor(key, sharded).resolve(key + ".bin");
+            if (committer != null && committer.stagedFile(binaryPath) != null) {
+                return -1;
+            }
+            if (snapshot.changedSlots().cardinality() * 2 >= snapshot.capacity()) {
+                return -1;
+            }
+            
+            long baseSize = Files.size(binaryPath);
+            byte[] delta = BackpackCodec.encodeDelta(snapshot);
+            boolean newJournal = state.length() == 0;
+            int frameSize = (newJournal ? JOURNAL_HEADER_SIZE : 0) + RECORD_HEADER_SIZE + delta.length;
+            long journalSize = state.length() + frameSize;
+            if (journalSize > baseSize * journalFoldRatio) {
+                return -1;
+            }
+            
+            ByteBuffer frame = ByteBuffer.allocate(frameSize);
+            if (newJournal) {
+                frame.putInt(JOURNAL_MAGIC).put(JOURNAL_VERSION).putInt(state.baseChecksum());
+            }
+            frame.putInt(delta.length).putInt(checksum(delta, 0, delta.length)).put(delta);
+            frame.flip();
+            
+            Path journal = journalPath(key);
+            try (FileChannel channel = FileChannel.open(journal,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // Cut off anything past the last complete record (a torn append) before writing
+                channel.truncate(state.length());
+                long position = state.length();
+                while (frame.hasRemaining()) {
+                    position += channel.write(frame, position);
+                }
+                if (durability == Durability.ALWAYS) {
+                    channel.force(false);
+                }
+            }
+            if (durability == Durability.ALWAYS && newJournal) {
+                // A new file is only durable once its directory entry is
+                AtomicFiles.forceDirectory(journal.getParent());
+            }
+            if (committer != null) {
+                committer.markDirty(journal);
+                if (newJournal) {
+                    committer.markDirectoryDirty(journal.getParent());
+                }
+            }
+            
+            journals.put(key, new JournalState(state.baseChecksum(), journalSize));
+            // These slots no longer hold what the .bin file's item references say
+            BackpackCodec.forgetSlots(key, snapshot.changedSlots());
+            return (int) (baseSize + journalSize);
+        }
+        
+        /**
+         * Reads the delta journal next to a .bin file.
+         * 
+         * @param binaryFile The .bin file the journal belongs to
+         * @param key The backpack's storage key
+         * @return The journal's bytes, or null if there is none
+         * @throws IOException If the journal exists but can't be read
+         */
+        private static byte[] readJournal(Path binaryFile, String key) throws IOException {
+            try {
+                return Files.readAllBytes(binaryFile.resolveSibling(key + ".journal"));
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+        
+        /**
+         * Applies a delta journal, if it belongs to the .bin file just read.
+         * 
+         * <p>A journal left by an earlier version of the .bin file was folded into it - unless
+         * the full save that should have replaced the .bin file was lost. One with records
+         * is reported rather than dropped silently; the next full save keeps it
+         * ({@link #keepOrphanedJournal}).</p>
+         * 
+         * @param key The backpack's storage key, for the warning
+         * @param base The .bin file's bytes
+         * @param journal The journal's bytes, or null if there is none
+         * @param snapshot The decoded .bin file
+         * @return The snapshot with every intact journal record applied
+         * @throws IOException If an intact record is malformed
+         */
+        private BackpackSnapshot applyJournal(String key, byte[] base, byte[] journal, BackpackSnapshot snapshot) throws IOException {
+            if (journal == null) {
+                return snapshot;
+            }
+            
+            if (!journalBelongsTo(journal, base)) {
+                if (journal.length > JOURNAL_HEADER_SIZE) {
+                    logger.warning("Ignoring the delta journal of backpack " + key + " - it was written against"
+                        + " another version of its .bin file (possibly a full save that failed to commit)");
+                }
+                return snapshot;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(journal);
+            buffer.position(JOURNAL_HEADER_SIZE);
+            
+            Map<Integer, ItemStack> contents = new HashMap<>(snapshot.contents());
+            int capacity = snapshot.capacity();
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()
+                        || checksum(journal, buffer.position(), length) != crc) {
+                    // Torn append - nothing after it was acknowledged
+                    break;
+                }
+                capacity = BackpackCodec.applyDelta(buffer.slice(buffer.position(), length), contents);
+                buffer.position(buffer.position() + length);
+            }
+            return new BackpackSnapshot(capacity, Collections.unmodifiableMap(contents), null, snapshot.outdated());
+        }
+        
+        /** The key's delta journal file in the configured layout */
+        private Path journalPath(String key) {
+            return folderFor(key, sharded).resolve(key + ".journal");
+        }
+        
+        /**
+         * The folder holding a key's files in a layout.
+         * 
+         * @param key The backpack's storage key
+         * @param shardedLayout True for playerdata/ab/cd/, false for playerdata/
+         * @return The folder (may not exist yet)
+         */
+        private Path folderFor(String key, boolean shardedLayout) {
+            Path root = directory.toPath();
+            if (!shardedLayout) {
+                return root;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(key.getBytes(StandardCharsets.UTF_8));
+            String hash = String.format("%08x", crc.getValue());
+            return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4));
+        }
+        
+        /**
+         * The folder holding a key's .bin or .yml file - the configured layout's, else the
+         * other layout's while a migration is running. Callers hold the key's lock.
+         * 
+         * @return The folder, or null if neither layout has the key
+         */
+        private Path folderOf(String key) {
+            Path folder = folderFor(key, sharded);
+            if (Files.exists(folder.resolve(key + ".bin")) || Files.exists(folder.resolve(key + ".yml"))) {
+                return folder;
+            }
+            if (migrating) {
+                Path oldFolder = folderFor(key, !sharded);
+                if (Files.exists(oldFolder.resolve(key + ".bin")) || Files.exists(oldFolder.resolve(key + ".yml"))) {
+                    return oldFolder;
+                }
+            }
+            return null;
+        }
+        
+        /** The lock serializing migration moves of a key with its reads and deletes */
+        private Object lockFor(String key) {
+            return keyLocks[Math.floorMod(key.hashCode(), keyLocks.length)];
+        }
+        
+        /** CRC32 of a byte range, as stored in journals */
+        private static int checksum(byte[] data, int offset, int length) {
+            CRC32 crc = new CRC32();
+            crc.update(data, offset, length);
+            return (int) crc.getValue();
+        }
+        
+        /**
+         * Stops a running migration (it resumes at the next start). Nothing else is held
+         * open between calls; staged files are committed by the GroupCommitter.
+         */
+        @Override
+        public void close() {
+            ScheduledExecutorService running;
+            synchronized (this) {
+                running = migrator;
+                migrator = null;
+            }
+            if (running != null) {
+                running.shutdown();
+                try {
+                    running.awaitTermination(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        // -------------------- layout migration --------------------
+        
+        /**
+         * Checks whether files of the other layout exist: backpack files directly in
+         * playerdata/ for the sharded layout, shard directories for the flat one. Stops at
+         * the first match, so a directory with many files is not listed in full.
+         */
+        private boolean hasFilesInOtherLayout() {
+            if (!directory.isDirectory()) {
+                return false;
+            }
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath())) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (sharded ? keyOf(name) != null : Files.isDirectory(entry) && isShardName(name)) {
+                        return true;
+                    }
+                }
+            } catch (IOException e) {
+                logger.warning("Failed to check the backpack directory layout: " + e.getMessage());
+                // Checking both places costs only an extra lookup per read
+                return true;
+            }
+            return false;
+        }
+        
+        /**
+         * Starts moving files of the other layout to the configured one in the background,
+         * if there are any. Until it finishes, reads check both layouts.
+         * 
+         * @param keysPerSecond Most backpacks moved per second
+         */
+        synchronized void startMigration(int keysPerSecond) {
+            if (!migrating || migrator != null) {
+                return;
+            }
+            logger.info("Moving backpack files to the " + (sharded ? "sharded" : "flat")
+                + " layout in the background (" + keysPerSecond + " per second)");
+            migrator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread migratorThread = new Thread(runnable, "Backpacks-Migrator");
+                migratorThread.setDaemon(true);
+                return migratorThread;
+            });
+            migrator.scheduleWithFixedDelay(() -> migrateBatch(keysPerSecond), 1, 1, TimeUnit.SECONDS);
+        }
+        
+        /**
+         * Moves up to one batch of keys to the configured layout. Runs on the migrator
+         * thread once a second; ends the migration when nothing is left to move.
+         * 
+         * <p>Three passes, so one directory sync covers the whole batch: hard-link every
+         * file into its new folder, sync the new folders, delete the old files.</p>
+         */
+        private void migrateBatch(int batchSize) {
+            try {
+                Set<String> keys = keysInOtherLayout(batchSize);
+                if (keys.isEmpty()) {
+                    migrating = false;
+                    logger.info("Backpack file migration finished: " + migrated.get() + " backpacks moved to the "
+                        + (sharded ? "sharded" : "flat") + " layout");
+                    synchronized (this) {
+                        if (migrator != null) {
+                            migrator.shutdown();
+                            migrator = null;
+                        }
+                    }
+                    return;
+                }
+                
+                Set<Path> newFolders = new HashSet<>();
+                for (String key : keys) {
+                    Path folder = folderFor(key, sharded);
+                    Files.createDirectories(folder);
+                    synchronized (lockFor(key)) {
+                        linkIntoLayout(key, folderFor(key, !sharded), folder);
+                    }
+                    newFolders.add(folder);
+                }
+                // The links must be durable before the only other copy is deleted
+                for (Path folder : newFolders) {
+                    AtomicFiles.forceDirectory(folder);
+                }
+                for (String key : keys) {
+                    synchronized (lockFor(key)) {
+                        deleteFiles(folderFor(key, !sharded), key);
+                    }
+                }
+                migrated.addAndGet(keys.size());
+            } catch (UnsupportedOperationException | IOException e) {
+                // Unsupported: no hard links on this file system. Reads keep checking
+                // both layouts, and every save still moves its backpack
+                logger.warning("Backpack file migration stopped: " + e.getMessage()
+                    + " - backpacks will move to the new layout as they are saved");
+                synchronized (this) {
+                    if (migrator != null) {
+                        migrator.shutdown();
+                        migrator = null;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Hard-links a key's files from the old folder into the new one. Nothing is linked
+         * when the new folder already has the key's data - it was saved after the switch
+         * and is newer. A link never replaces an existing file, so a save that lands
+         * between the check and the link still wins.
+         */
+        private static void linkIntoLayout(String key, Path oldFolder, Path newFolder) throws IOException {
+            if (Files.exists(newFolder.resolve(key + ".bin")) || Files.exists(newFolder.resolve(key + ".yml"))) {
+                return;
+            }
+            for (String extension : EXTENSIONS) {
+                Path source = oldFolder.resolve(key + extension);
+                if (!Files.exists(source)) {
+                    continue;
+                }
+                try {
+                    Files.createLink(newFolder.resolve(key + extension), source);
+                } catch (FileAlreadyExistsException e) {
+                    // Written by a save meanwhile (or linked by an interrupted earlier run)
+                }
+            }
+        }
+        
+        /**
+         * Finds keys that still have files in the other layout. Empty shard directories
+         * passed on the way are removed when migrating to the flat layout.
+         * 
+         * @param limit Most keys to return
+         * @return Up to limit keys
+         */
+        private Set<String> keysInOtherLayout(int limit) throws IOException {
+            Set<String> keys = new LinkedHashSet<>();
+            if (sharded) {
+                collectKeys(directory.toPath(), keys, limit);
+                return keys;
+            }
+            for (File outer : shardDirectories(directory)) {
+                for (File inner : shardDirectories(outer)) {
+                    collectKeys(inner.toPath(), keys, limit);
+                    if (keys.size() >= limit) {
+                        return keys;
+                    }
+                    // Fails harmlessly if anything is left in it
+                    inner.delete();
+                }
+                outer.delete();
+            }
+            return keys;
+        }
+        
+        /** Adds the keys of a folder's backpack files until limit keys are collected */
+        private static void collectKeys(Path folder, Set<String> keys, int limit) throws IOException {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+                for (Path entry : entries) {
+                    String key = keyOf(entry.getFileName().toString());
+                    if (key != null) {
+                        keys.add(key);
+                        if (keys.size() >= limit) {
+                            return;
+                        }
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // Nothing stored yet
+            }
+        }
+        
+        /** The key a backpack file name belongs to, or null if it isn't a backpack file */
+        private static String keyOf(String fileName) {
+            for (String extension : EXTENSIONS) {
+                if (fileName.endsWith(extension)) {
+                    return fileName.substring(0, fileName.length() - extension.length());
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Finds a key's newest data, preferring a staged file that is still waiting for
+         * its group commit over the file on disk, and the configured layout over the
+         * other one. Callers hold the key's lock.
+         * 
+         * @param key The backpack's storage key
+         * @return The file to read, or null if nothing is stored under this key
+         */
+        private StoredFile locate(String key) {
+            Path binaryPath = folderFor(key, sharded).resolve(key + ".bin");
+            Path yamlPath = folderFor(key, sharded).resolve(key + ".yml");
+            
+            if (committer != null) {
+                // Within one run only the configured format is written, so only its file can be staged
+                Path target = binaryFormat ? binaryPath : yamlPath;
+                Path staged = committer.stagedFile(target);
+                if (staged != null) {
+                    return new StoredFile(staged, target, binaryFormat);
+                }
+            }
+            
+            // The binary file is preferred; backpacks written before the binary format
+            // keep loading from YAML until their next save converts them
+            if (Files.exists(binaryPath)) {
+                return new StoredFile(binaryPath, binaryPath, true);
+            }
+            if (Files.exists(yamlPath)) {
+                return new StoredFile(yamlPath, yamlPath, false);
+            }
+            
+            // Not moved to the configured layout yet
+            if (migrating) {
+                Path oldFolder = folderFor(key, !sharded);
+                Path oldBinary = oldFolder.resolve(key + ".bin");
+                if (Files.exists(oldBinary)) {
+                    return new StoredFile(oldBinary, oldBinary, true);
+                }
+                Path oldYaml = oldFolder.resolve(key + ".yml");
+                if (Files.exists(oldYaml)) {
+                    return new StoredFile(oldYaml, oldYaml, false);
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Reads a located file. A staged file can be committed (renamed away) between
+         * {@link #locate(String)} and the read; the target then holds the same data.
+         */
+        private static byte[] readBytes(StoredFile file) throws IOException {
+            try {
+                return Files.readAllBytes(file.path());
+            } catch (NoSuchFileException e) {
+                if (file.path().equals(file.target())) {
+                    throw e;
+                }
+                return Files.readAllBytes(file.target());
+            }
+        }
+        
+        /**
+         * Reads one YAML backpack file.
+         * 
+         * <p>Invalid slot numbers are logged and skipped; an unreadable file yields an
+         * empty backpack (YamlConfiguration handles read errors gracefully). YAML files
+         * don't record the backpack's size, so capacity is inferred from the highest
+         * occupied slot - it is informational only.</p>
+         * 
+         * @param key The backpack's storage key (used for log messages)
+         * @param data The backpack's YAML file contents
+         * @return Snapshot of the file's contents
+         */
+        private BackpackSnapshot loadYaml(String key, byte[] data) {
+            org.bukkit.configuration.file.FileConfiguration config = 
+                org.bukkit.configuration.file.YamlConfiguration.loadConfiguration(
+                    new java.io.StringReader(new String(data, StandardCharsets.UTF_8)));
+            
+            Map<Integer, ItemStack> contents = new HashMap<>();
+            org.bukkit.configuration.ConfigurationSection section = config.getConfigurationSection("slot");
+            if (section != null) {
+                // Keys are slot numbers as strings: "0", "5", "10", etc.
+                for (String slotStr : section.getKeys(false)) {
+                    try {
+                        int slot = Integer.parseInt(slotStr);
+                        
+                        // Bukkit handles all NBT, enchantments, lore, etc. automatically
+                        ItemStack item = section.getItemStack(slotStr);
+                        if (item != null) {
+                            contents.put(slot, item);
+                        }
+                    } catch (NumberFormatException e) {
+                        // Corrupted slot key - skip this slot but keep loading the rest
+                        logger.warning("Invalid slot number in backpack " + key + ": " + slotStr);
+                    }
+                }
+            }
+            
+            int highestSlot = contents.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+            int capacity = highestSlot < SMALL_CAPACITY ? SMALL_CAPACITY : SMALL_CAPACITY * 2;
+            return new BackpackSnapshot(capacity, Collections.unmodifiableMap(contents));
+        }
+    }
+    
+    /**
+     * Append-only, segmented pack-file storage in plugins/Backpacks/packs/.
+     * 
+     * <p>Instead of one file per backpack, every save appends a record to the end of
+     * the current segment file (segment-00000001.pack, ...). A new segment is started
+     * when the current one reaches "storage.packfile.segment-size-mb". This keeps the
+     * file count tiny on servers with tens of thousands of backpacks and turns every
+     * save into a sequential append.</p>
+     * 
+     * <p>Segment layout: an 8-byte header (int magic "BPSG", int version) followed by
+     * frames. Each frame is:</p>
+     * <pre>
+     * int    magic "BPFR"
+     * int    body length
+     * int    CRC32 of the body
+     * body:  byte type (1 = put, 2 = delete), ushort key length, UTF-8 key,
+     *        BackpackCodec record (puts only)
+     * </pre>
+     * 
+     * <p>Index: an in-memory key → (segment, offset, length) map pointing at each key's
+     * newest frame. It is rebuilt on open by scanning the segments in order - later
+     * frames win. Only frame headers and keys are read for sealed segments; the last
+     * segment (the one that was being appended to) also has every CRC checked, and a
+     * torn frame left by a crash mid-append is truncated away.</p>
+     * 
+     * <p>Reads: one positional read of the frame using the index, with no locking.
+     * Appends are serialized by {@link #appendLock}. Depending on {@link Durability},
+     * appends are forced individually, in batches by the {@link GroupCommitter}, or not
+     * at all.</p>
+     * 
+     * <p>Compaction: superseded frames stay in their segment as garbage. Each segment
+     * tracks its live bytes; a background thread ("Backpacks-Compactor") periodically
+     * copies the live frames of sealed segments whose live ratio fell below
+     * "storage.packfile.compaction-threshold" to the end of the active segment,
+     * repoints the index, and deletes the old segment.</p>
+     * 
+     * <p>Deletes append a tombstone frame. A tombstone must outlive every older put of
+     * its key, so compaction copies it forward like a live frame - unless its segment
+     * is the oldest one, where no older put can remain.</p>
+     */
+    private static final class PackFileBackpackStore implements BackpackStore {
+        
+        /** Segment header magic - "BPSG" in ASCII */
+        private static final int SEGMENT_MAGIC = 0x42505347;
+        
+        /** Segment layout version */
+        private static final int SEGMENT_VERSION = 1;
+        
+        /** Bytes before the first frame of a segment */
+        private static final int SEGMENT_HEADER_SIZE = 8;
+        
+        /** Frame magic - "BPFR" in ASCII */
+        private static final int FRAME_MAGIC = 0x42504652;
+        
+        /** Bytes before a frame's body: magic, body length, CRC */
+        private static final int FRAME_HEADER_SIZE = 12;
+        
+        /** Frame type for a stored snapshot */
+        private static final byte TYPE_PUT = 1;
+        
+        /** Frame type for a deletion (tombstone) */
+        private static final byte TYPE_DELETE = 2;
+        
+        /** Longest key accepted (UTF-8 bytes) - keys are UUIDs, far below this */
+        private static final int MAX_KEY_BYTES = 512;
+        
+        /** Segment file name pattern, numbered in creation order */
+        private static final String SEGMENT_NAME = "segment-%08d.pack";
+        
+        /**
+         * Where a key's newest frame lives.
+         * 
+         * @param segment Segment id
+         * @param offset Byte offset of the frame header in the segment
+         * @param length Whole frame length including the header
+         */
+        private record Location(int segment, long offset, int length) {}
+        
+        /** One open segment file */
+        private static final class Segment {
+            final int id;
+            final Path path;
+            final FileChannel channel;
+            
+            /** Bytes of frames the index still points at */
+            final AtomicLong liveBytes = new AtomicLong();
+            
+            /** Logical end of the segment - the next append position (guarded by appendLock for writes) */
+            volatile long size;
+            
+            Segment(int id, Path path, FileChannel channel) {
+                this.id = id;
+                this.path = path;
+                this.channel = channel;
+            }
+        }
+        
+        private final Path directory;
+        private final long maxSegmentSize;
+        private final double compactionThreshold;
+        private final Durability durability;
+        private final GroupCommitter committer;
+        private final Logger logger;
+        
+        /** Key → newest frame */
+        private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+        
+        /** Deleted key → its tombstone frame, while older puts of the key may remain on disk */
+        private final ConcurrentHashMap<String, Location> tombstones = new ConcurrentHashMap<>();
+        
+        /** Open segments by id, oldest first */
+        private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+        
+        /** Serializes appends, segment rolls and index updates */
+        private final Object appendLock = new Object();
+        
+        /** Segment currently appended to - never compacted */
+        private volatile Segment active;
+        
+        /** Runs {@link #compact()} periodically */
+        private final ScheduledExecutorService compactor;
+        
+        /**
+         * Opens (or creates) the pack directory and rebuilds the index.
+         * 
+         * @param directory Directory holding the segment files
+         * @param maxSegmentSize Size at which a new segment is started, in bytes
+         * @param compactionThreshold Live-byte ratio below which a sealed segment is compacted
+         * @param compactionIntervalMinutes Minutes between compaction passes
+         * @param durability When appends are forced to disk
+         * @param committer Group committer, required for {@link Durability#GROUP}
+         * @param logger Plugin logger
+         * @throws IOException If the directory or a segment can't be opened
+         */
+        PackFileBackpackStore(File directory, long maxSegmentSize, double compactionThreshold,
+                              int compactionIntervalMinutes, Durability durability,
+                              GroupCommitter committer, Logger logger) throws IOException {
+            this.directory = directory.toPath();
+            this.maxSegmentSize = maxSegmentSize;
+            this.compactionThreshold = compactionThreshold;
+            this.durability = durability;
+            this.committer = committer;
+            this.logger = logger;
+            
+            Files.createDirectories(this.directory);
+            
+            // Open existing segments oldest first so later frames override earlier ones
+            List<Integer> ids = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "segment-*.pack")) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    try {
+                        ids.add(Integer.parseInt(name.substring("segment-".length(), name.length() - ".pack".length())));
+                    } catch (NumberFormatException e) {
+                        logger.warning("Ignoring unrecognized file in packs directory: " + name);
+                    }
+                }
+            }
+            Collections.sort(ids);
+            
+            for (int i = 0; i < ids.size(); i++) {
+                int id = ids.get(i);
+                Path path = this.directory.resolve(String.format(SEGMENT_NAME, id));
+                Segment segment = new Segment(id, path,
+                    FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+                segments.put(id, segment);
+                scanSegment(segment, i == ids.size() - 1);
+            }
+            
+            // Keep appending to the newest segment, or start the first one
+            active = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+            
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Backpacks-Compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compactQuietly,
+                compactionIntervalMinutes, compactionIntervalMinutes, TimeUnit.MINUTES);
+            
+            logger.info("Opened pack-file storage: " + index.size() + " backpacks in "
+                + segments.size() + " segment(s)");
+        }
+        
+        @Override
+        public Set<String> listKeys() {
+            return new HashSet<>(index.keySet());
+        }
+        
+        @Override
+        public BackpackSnapshot load(String key) throws IOException {
+            byte[] record = readRecord(key);
+            return record != null ? BackpackCodec.decode(key, record) : null;
+        }
+        
+        @Override
+        public byte[] readRecord(String key) throws IOException {
+            // Compaction may move the frame (and close its segment) between the index
+            // lookup and the read; the index then already points at the copy, so retry
+            for (int attempt = 0; attempt < 3; attempt++) {
+                Location location = index.get(key);
+                if (location == null) {
+                    return null;
+                }
+                Segment segment = segments.get(location.segment());
+                if (segment == null) {
+                    continue;
+                }
+                try {
+                    ByteBuffer frame = ByteBuffer.allocate(location.length());
+                    readFully(segment.channel, frame, location.offset());
+                    frame.flip();
+                    return frameRecord(key, frame);
+                } catch (ClosedChannelException e) {
+                    // Segment was compacted away mid-read
+                }
+            }
+            throw new IOException("Backpack " + key + " kept moving during compaction");
+        }
+        
+        @Override
+        public ManifestEntry stat(String key) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            int prefix = FRAME_HEADER_SIZE + 3 + keyBytes.length;
+            
+            // Same retry rule as load(): compaction may move the frame mid-read
+            for (int attempt = 0; attempt < 3; attempt++) {
+                Location location = index.get(key);
+                if (location == null) {
+                    return null;
+                }
+                Segment segment = segments.get(location.segment());
+                if (segment == null || location.length() < prefix + BackpackCodec.HEADER_SIZE) {
+                    continue;
+                }
+                try {
+                    // Read just the record header behind the frame header and key
+                    ByteBuffer header = ByteBuffer.allocate(
+                        Math.min(BackpackCodec.MAX_HEADER_SIZE, location.length() - prefix));
+                    readFully(segment.channel, header, location.offset() + prefix);
+                    // Frames carry no timestamp; the segment's modification time is the
+                    // closest upper bound
+                    return BackpackCodec.describe(header.array(), location.length(),
+                        Files.getLastModifiedTime(segment.path).toMillis());
+                } catch (ClosedChannelException e) {
+                    // Segment was compacted away mid-read
+                }
+            }
+            throw new IOException("Backpack " + key + " kept moving during compaction");
+        }
+        
+        @Override
+        public int save(String key, BackpackSnapshot snapshot) throws IOException {
+            return saveAll(Map.of(key, snapshot)).get(key);
+        }
+        
+        /**
+         * Appends all snapshots back to back under one lock, with one sync at the end
+         * instead of one per backpack.
+         */
+        @Override
+        public Map<String, Integer> saveAll(Map<String, BackpackSnapshot> snapshots) throws IOException {
+            // Build every frame in memory first so the lock is only held for the writes
+            Map<String, ByteBuffer> frames = new LinkedHashMap<>();
+            for (Map.Entry<String, BackpackSnapshot> entry : snapshots.entrySet()) {
+                frames.put(entry.getKey(), encodeFrame(TYPE_PUT, entry.getKey(), BackpackCodec.encode(entry.getKey(), entry.getValue())));
+            }
+            
+            Map<String, Integer> sizes = new HashMap<>();
+            synchronized (appendLock) {
+                for (Map.Entry<String, ByteBuffer> entry : frames.entrySet()) {
+                    Location location = append(entry.getValue());
+                    retarget(entry.getKey(), location);
+                    sizes.put(entry.getKey(), location.length());
+                }
+                syncAppends();
+            }
+            return sizes;
+        }
+        
+        @Override
+        public void delete(String key) throws IOException {
+            if (!index.containsKey(key)) {
+                return;
+            }
+            ByteBuffer frame = encodeFrame(TYPE_DELETE, key, new byte[0]);
+            synchronized (appendLock) {
+                Location location = append(frame);
+                Location previous = index.remove(key);
+                if (previous != null) {
+                    Segment old = segments.get(previous.segment());
+                    if (old != null) {
+                        old.liveBytes.addAndGet(-previous.length());
+                    }
+                }
+                tombstones.put(key, location);
+                syncAppends();
+            }
+        }
+        
+        @Override
+        public boolean exists(String key) {
+            return index.containsKey(key);
+        }
+        
+        /**
+         * Reads the frames in segment and offset order, so a full load reads each
+         * segment front to back instead of seeking around.
+         */
+        @Override
+        public Map<String, BackpackSnapshot> loadAll(Collection<String> keys) throws IOException {
+            List<String> ordered = new ArrayList<>();
+            for (String key : keys) {
+                if (index.containsKey(key)) {
+                    ordered.add(key);
+                }
+            }
+            ordered.sort(Comparator.comparing((String key) -> index.getOrDefault(key, new Location(0, 0, 0)),
+                Comparator.comparingInt(Location::segment).thenComparingLong(Location::offset)));
+            
+            Map<String, BackpackSnapshot> snapshots = new HashMap<>();
+            for (String key : ordered) {
+                BackpackSnapshot snapshot = load(key);
+                if (snapshot != null) {
+                    snapshots.put(key, snapshot);
+                }
+            }
+            return snapshots;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            compactor.shutdownNow();
+            try {
+                // Let a compaction pass that is mid-copy finish cleanly
+                compactor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
+            synchronized (appendLock) {
+                for (Segment segment : segments.values()) {
+                    segment.channel.force(true);
+                    segment.channel.close();
+                }
+                segments.clear();
+            }
+        }
+        
+        /**
+         * Appends a frame to the active segment, starting a new segment first if it
+         * wouldn't fit. Caller must hold {@link #appendLock}.
+         * 
+         * @param frame Complete frame, positioned at its start
+         * @return Where the frame was written
+         * @throws IOException If the write fails
+         */
+        private Location append(ByteBuffer frame) throws IOException {
+            int length = frame.remaining();
+            
+            // An empty segment always takes the frame, however large it is
+            if (active.size + length > maxSegmentSize && active.size > SEGMENT_HEADER_SIZE) {
+                active = createSegment(active.id + 1);
+            }
+            
+            long offset = active.size;
+            writeFully(active.channel, frame, offset);
+            active.size = offset + length;
+            return new Location(active.id, offset, length);
+        }
+        
+        /**
+         * Makes the appends since the last call durable according to {@link #durability}.
+         * Appends never overwrite data, so a crash before the sync at worst loses the
+         * newest frames - the scan on open drops them by their CRC. Caller must hold
+         * {@link #appendLock}.
+         */
+        private void syncAppends() throws IOException {
+            if (durability == Durability.ALWAYS) {
+                active.channel.force(false);
+            } else if (durability == Durability.GROUP) {
+                committer.markDirty(active.channel);
+            }
+        }
+        
+        /**
+         * Points a key at a newly written frame and updates the live-byte counts of the
+         * old and new segments. Caller must hold {@link #appendLock}.
+         */
+        private void retarget(String key, Location location) {
+            tombstones.remove(key);
+            Location previous = index.put(key, location);
+            segments.get(location.segment()).liveBytes.addAndGet(location.length());
+            if (previous != null) {
+                Segment old = segments.get(previous.segment());
+                if (old != null) {
+                    old.liveBytes.addAndGet(-previous.length());
+                }
+            }
+        }
+        
+        /**
+         * Creates an empty segment file with its header and registers it.
+         * 
+         * @param id Segment id (determines the file name)
+         * @return The new segment
+         * @throws IOException If the file can't be created
+         */
+        private Segment createSegment(int id) throws IOException {
+            Path path = directory.resolve(String.format(SEGMENT_NAME, id));
+            FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            header.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).flip();
+            writeFully(channel, header, 0);
+            
+            Segment segment = new Segment(id, path, channel);
+            segment.size = SEGMENT_HEADER_SIZE;
+            segments.put(id, segment);
+            return segment;
+        }
+        
+        /**
+         * Adds a segment's frames to the index.
+         * 
+         * <p>Stops at the first frame that doesn't parse. In the last segment that is a
+         * torn append from a crash, so the file is truncated there; in a sealed segment
+         * the rest of the file is left alone (and reclaimed by the next compaction).</p>
+         * 
+         * @param segment The segment to scan (already registered)
+         * @param last Whether this is the newest segment, which gets full CRC checks
+         * @throws IOException If the segment header is invalid or the file can't be read
+         */
+        private void scanSegment(Segment segment, boolean last) throws IOException {
+            long fileSize = segment.channel.size();
+            
+            ByteBuffer segmentHeader = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            readFully(segment.channel, segmentHeader, 0);
+            segmentHeader.flip();
+            if (segmentHeader.getInt() != SEGMENT_MAGIC) {
+                throw new IOException("Not a backpack pack segment: " + segment.path.getFileName());
+            }
+            int version = segmentHeader.getInt();
+            if (version != SEGMENT_VERSION) {
+                throw new IOException("Unsupported pack segment version " + version + " in " + segment.path.getFileName());
+            }
+            
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            long position = SEGMENT_HEADER_SIZE;
+            while (position + FRAME_HEADER_SIZE <= fileSize) {
+                header.clear();
+                readFully(segment.channel, header, position);
+                header.flip();
+                int magic = header.getInt();
+                int bodyLength = header.getInt();
+                int crc = header.getInt();
+                if (magic != FRAME_MAGIC || bodyLength < 3 || position + FRAME_HEADER_SIZE + bodyLength > fileSize) {
+                    break;
+                }
+                
+                // Sealed segments: only the type and key are needed for the index
+                // Last segment: read the whole body so the CRC catches a torn append
+                int readLength = last ? bodyLength : Math.min(bodyLength, 3 + MAX_KEY_BYTES);
+                ByteBuffer body = ByteBuffer.allocate(readLength);
+                readFully(segment.channel, body, position + FRAME_HEADER_SIZE);
+                body.flip();
+                if (last) {
+                    CRC32 checksum = new CRC32();
+                    checksum.update(body.array(), 0, bodyLength);
+                    if ((int) checksum.getValue() != crc) {
+                        break;
+                    }
+                }
+                
+                byte type = body.get();
+                int keyLength = body.getShort() & 0xFFFF;
+                if (keyLength > body.remaining()) {
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                body.get(keyBytes);
+                
+                int frameLength = FRAME_HEADER_SIZE + bodyLength;
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                Location location = new Location(segment.id, position, frameLength);
+                if (type == TYPE_PUT) {
+                    retarget(key, location);
+                } else if (type == TYPE_DELETE) {
+                    Location previous = index.remove(key);
+                    if (previous != null) {
+                        segments.get(previous.segment()).liveBytes.addAndGet(-previous.length());
+                    }
+                    tombstones.put(key, location);
+                }
+                position += frameLength;
+            }
+            
+            if (position < fileSize) {
+                if (last) {
+                    logger.warning("Truncating incomplete data at the end of " + segment.path.getFileName()
+                        + " (" + (fileSize - position) + " bytes, likely from a crash during a save)");
+                    segment.channel.truncate(position);
+                    fileSize = position;
+                } else {
+                    logger.warning("Ignoring unreadable data in " + segment.path.getFileName() + " after offset " + position);
+                }
+            }
+            segment.size = fileSize;
+        }
+        
+        /**
+         * Builds a frame.
+         * 
+         * @param type {@link #TYPE_PUT} or {@link #TYPE_DELETE}
+         * @param key Storage key
+         * @param record Encoded snapshot (empty for deletes)
+         * @return The frame, positioned at its start
+         * @throws IOException If the key is too long
+         */
+        private static ByteBuffer encodeFrame(byte type, String key, byte[] record) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (keyBytes.length > MAX_KEY_BYTES) {
+                throw new IOException("Backpack key too long: " + key);
+            }
+            
+            int bodyLength = 1 + 2 + keyBytes.length + record.length;
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + bodyLength);
+            frame.putInt(FRAME_MAGIC).putInt(bodyLength).putInt(0);
+            frame.put(type).putShort((short) keyBytes.length).put(keyBytes).put(record);
+            
+            // Fill in the CRC now that the body is in place
+            CRC32 checksum = new CRC32();
+            checksum.update(frame.array(), FRAME_HEADER_SIZE, bodyLength);
+            frame.putInt(8, (int) checksum.getValue());
+            frame.flip();
+            return frame;
+        }
+        
+        /**
+         * Verifies a frame read through the index and extracts its record.
+         * 
+         * @param key The key the frame is expected to hold
+         * @param frame The whole frame
+         * @return The record bytes
+         * @throws CorruptRecordException If the frame is damaged or belongs to another key
+         */
+        private static byte[] frameRecord(String key, ByteBuffer frame) throws IOException {
+            if (frame.getInt() != FRAME_MAGIC) {
+                throw new CorruptRecordException("Bad frame magic for backpack " + key);
+            }
+            int bodyLength = frame.getInt();
+            int crc = frame.getInt();
+            if (bodyLength != frame.remaining()) {
+                throw new CorruptRecordException("Bad frame length for backpack " + key);
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(frame.array(), FRAME_HEADER_SIZE, bodyLength);
+            if ((int) checksum.getValue() != crc) {
+                throw new CorruptRecordException("Checksum mismatch for backpack " + key);
+            }
+            
+            frame.get(); // type - the index only points at puts
+            byte[] keyBytes = new byte[frame.getShort() & 0xFFFF];
+            frame.get(keyBytes);
+            if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+                throw new CorruptRecordException("Index points at another backpack's frame for " + key);
+            }
+            byte[] record = new byte[frame.remaining()];
+            frame.get(record);
+            return record;
+        }
+        
+        /** Compactor entry point - a failed pass is logged and retried next interval */
+        private void compactQuietly() {
+            try {
+                compact();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Pack-file compaction failed", e);
+            }
+        }
+        
+        /**
+         * Compacts every sealed segment whose live ratio is below the threshold.
+         * 
+         * <p>The active segment is skipped - it is still filling up.</p>
+         * 
+         * @throws IOException If a segment can't be read or the copy can't be written
+         */
+        private void compact() throws IOException {
+            for (Segment segment : segments.values()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                if (segment == active) {
+                    continue;
+                }
+                long dataBytes = segment.size - SEGMENT_HEADER_SIZE;
+                double liveRatio = dataBytes <= 0 ? 0 : (double) segment.liveBytes.get() / dataBytes;
+                if (liveRatio < compactionThreshold) {
+                    compactSegment(segment);
+                }
+            }
+        }
+        
+        /**
+         * Copies a segment's live frames to the active segment and deletes it.
+         * 
+         * <p>Each frame is copied only if the index (or, for tombstones, the tombstone
+         * map) still points at it, checked under {@link #appendLock} so a concurrent save
+         * of the same key always wins. Tombstones in the oldest segment are dropped
+         * instead - no older put of their key is left. Every segment that received copies
+         * (appends may roll over to a new one mid-compaction) is forced to disk, and so is
+         * the directory, before the old segment is deleted.</p>
+         * 
+         * @param segment A sealed segment
+         * @throws IOException If the segment can't be read or the copy can't be written
+         */
+        private void compactSegment(Segment segment) throws IOException {
+            int moved = 0;
+            long reclaimed = segment.size - segment.liveBytes.get();
+            Set<Integer> copiedTo = new HashSet<>();
+            
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            long position = SEGMENT_HEADER_SIZE;
+            while (position + FRAME_HEADER_SIZE <= segment.size) {
+                header.clear();
+                readFully(segment.channel, header, position);
+                header.flip();
+                int magic = header.getInt();
+                int bodyLength = header.getInt();
+                if (magic != FRAME_MAGIC || bodyLength < 3 || position + FRAME_HEADER_SIZE + bodyLength > segment.size) {
+                    break;
+                }
+                int frameLength = FRAME_HEADER_SIZE + bodyLength;
+                
+                ByteBuffer frame = ByteBuffer.allocate(frameLength);
+                readFully(segment.channel, frame, position);
+                frame.position(FRAME_HEADER_SIZE);
+                byte type = frame.get();
+                byte[] keyBytes = new byte[frame.getShort() & 0xFFFF];
+                frame.get(keyBytes);
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                Location here = new Location(segment.id, position, frameLength);
+                
+                if (type == TYPE_PUT && here.equals(index.get(key))) {
+                    synchronized (appendLock) {
+                        // Re-check: a save may have replaced the key while we were reading
+                        if (here.equals(index.get(key))) {
+                            frame.position(0);
+                            Location copy = append(frame);
+                            copiedTo.add(copy.segment());
+                            retarget(key, copy);
+                            moved++;
+                        }
+                    }
+                } else if (type == TYPE_DELETE && here.equals(tombstones.get(key))) {
+                    synchronized (appendLock) {
+                        if (segment.id == segments.firstKey()) {
+                            tombstones.remove(key, here);
+                        } else if (here.equals(tombstones.get(key))) {
+                            frame.position(0);
+                            Location copy = append(frame);
+                            copiedTo.add(copy.segment());
+                            tombstones.put(key, copy);
+                        }
+                    }
+                }
+                position += frameLength;
+            }
+            
+            synchronized (appendLock) {
+                // The copies must be on disk before their originals disappear
+                for (int id : copiedTo) {
+                    Segment copy = segments.get(id);
+                    if (copy != null) {
+                        copy.channel.force(false);
+                    }
+                }
+                // ...and so must the entries of segments created for them
+                AtomicFiles.forceDirectory(directory);
+                segments.remove(segment.id);
+                segment.channel.close();
+            }
+            Files.deleteIfExists(segment.path);
+            
+            logger.info("Compacted " + segment.path.getFileName() + ": moved " + moved
+                + " backpacks, reclaimed " + (reclaimed / 1024) + " KB");
+        }
+        
+        /** Reads until the buffer is full, failing at end of file */
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of pack segment");
+                }
+                position += read;
+            }
+        }
+        
+        /** Writes the whole buffer at the given position */
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+    
+    /**
+     * All backpacks in one embedded MVStore file, plugins/Backpacks/backpacks.mv.db.
+     * 
+     * <p>MVStore (the storage engine under the H2 database, pure Java, shaded into the
+     * plugin jar) keeps a copy-on-write B-tree map of key → {@link BackpackCodec} record.
+     * Reads go through its page cache ("storage.mvstore.cache-size-mb"); writes change
+     * the in-memory tree and are persisted by a commit, which appends the changed pages
+     * as one chunk. An interrupted commit leaves the previous chunk as the newest valid
+     * one, so the file is always consistent. Opening the store reads only its header -
+     * the index of backpacks comes from the {@link StorageManifest} as for every backend.</p>
+     * 
+     * <p>Commits follow {@link Durability}:</p>
+     * <ul>
+     *   <li>NONE: MVStore's own background commit, about once a second</li>
+     *   <li>GROUP: the background commit runs every "storage.group-commit-interval-ms",
+     *       so all saves of a window share one commit</li>
+     *   <li>ALWAYS: every {@link #saveAll} and {@link #delete} commits and syncs before
+     *       returning - still one commit per write-queue batch</li>
+     * </ul>
+     * 
+     * <p>MVStore reports failures as unchecked {@link MVStoreException}s; they are
+     * rethrown as IOException so callers handle them like any other storage error.</p>
+     */
+    private static final class MVStoreBackpackStore implements BackpackStore {
+        
+        /** Name of the map holding the backpack records */
+        private static final String MAP_NAME = "backpacks";
+        
+        /** MVStore's own commit interval, used with {@link Durability#NONE} */
+        private static final int DEFAULT_COMMIT_DELAY_MS = 1000;
+        
+        private final File file;
+        private final MVStore store;
+        private final MVMap<String, byte[]> records;
+        private final Durability durability;
+        
+        /**
+         * Opens (or creates) the store file.
+         * 
+         * @param file The store file
+         * @param cacheSizeMb Page cache size in megabytes
+         * @param durability When commits happen, see the class description
+         * @param commitIntervalMillis Commit interval with {@link Durability#GROUP}
+         * @param logger Plugin logger
+         * @throws IOException If the file can't be opened (locked by another process or damaged)
+         */
+        MVStoreBackpackStore(File file, int cacheSizeMb, Durability durability,
+                             int commitIntervalMillis, Logger logger) throws IOException {
+            this.file = file;
+            this.durability = durability;
+            
+            MVStore.Builder builder = new MVStore.Builder()
+                .fileName(file.getPath())
+                .cacheSize(cacheSizeMb)
+                .compress();
+            if (durability == Durability.ALWAYS) {
+                // Commits happen explicitly after each write
+                builder.autoCommitDisabled();
+            }
+            
+            try {
+                store = builder.open();
+                if (durability != Durability.ALWAYS) {
+                    store.setAutoCommitDelay(durability == Durability.GROUP ? commitIntervalMillis : DEFAULT_COMMIT_DELAY_MS);
+                }
+                records = store.openMap(MAP_NAME);
+            } catch (MVStoreException e) {
+                throw new IOException("Failed to open " + file.getName() + ": " + e.getMessage(), e);
+            }
+            
+            logger.info("Opened MVStore storage: " + records.size() + " backpacks in " + file.getName());
+        }
+        
+        @Override
+        public Set<String> listKeys() throws IOException {
+            try {
+                return new HashSet<>(records.keySet());
+            } catch (MVStoreException e) {
+                throw new IOException("Failed to list backpacks: " + e.getMessage(), e);
+            }
+        }
+        
+        @Override
+        public BackpackSnapshot load(String key) throws IOException {
+            byte[] record = read(key);
+            return record != null ? BackpackCodec.decode(key, record) : null;
+        }
+        
+        @Override
+        public byte[] readRecord(String key) throws IOException {
+            return read(key);
+        }
+        
+        @Override
+        public ManifestEntry stat(String key) throws IOException {
+            byte[] record = read(key);
+            if (record == null) {
+                return null;
+            }
+            // Records carry no timestamp; the store file's modification time is the
+            // closest upper bound
+            return BackpackCodec.describe(record, record.length, file.lastModified());
+        }
+        
+        @Override
+        public int save(String key, BackpackSnapshot snapshot) throws IOException {
+            return saveAll(Map.of(key, snapshot)).get(key);
+        }
+        
+        /**
+         * Puts every record into the map, then commits once (ALWAYS) or leaves the
+         * batch to the next background commit.
+         */
+        @Override
+        public Map<String, Integer> saveAll(Map<String, BackpackSnapshot> snapshots) throws IOException {
+            // Encode first - a bad item fails the batch before anything changes
+            Map<String, byte[]> encoded = new HashMap<>();
+            for (Map.Entry<String, BackpackSnapshot> entry : snapshots.entrySet()) {
+                encoded.put(entry.getKey(), BackpackCodec.encode(entry.getKey(), entry.getValue()));
+            }
+            
+            Map<String, Integer> sizes = new HashMap<>();
+            try {
+                for (Map.Entry<String, byte[]> entry : encoded.entrySet()) {
+                    records.put(entry.getKey(), entry.getValue());
+                    sizes.put(entry.getKey(), entry.getValue().length);
+                }
+                commitIfRequired();
+            } catch (MVStoreException e) {
+                throw new IOException("Failed to write backpacks: " + e.getMessage(), e);
+            }
+            return sizes;
+        }
+        
+        @Override
+        public void delete(String key) throws IOException {
+            try {
+                if (records.remove(key) != null) {
+                    commitIfRequired();
+                }
+            } catch (MVStoreException e) {
+                throw new IOException("Failed to delete backpack " + key + ": " + e.getMessage(), e);
+            }
+        }
+        
+        @Override
+        public boolean exists(String key) throws IOException {
+            try {
+                return records.containsKey(key);
+            } catch (MVStoreException e) {
+                throw new IOException("Failed to query backpack " + key + ": " + e.getMessage(), e);
+            }
+        }
+        
+        /**
+         * Commits outstanding changes and closes the file. MVStore spends a short time
+         * compacting the file on close.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                store.close();
+            } catch (MVStoreException e) {
+                throw new IOException("Failed to close " + file.getName() + ": " + e.getMessage(), e);
+            }
+        }
+        
+        /** Reads a key's record from the map, or null */
+        private byte[] read(String key) throws IOException {
+            try {
+                return records.get(key);
+            } catch (MVStoreException e) {
+                throw new IOException("Failed to read backpack " + key + ": " + e.getMessage(), e);
+            }
+        }
+        
+        /** With {@link Durability#ALWAYS}, commits and syncs the changes made so far */
+        private void commitIfRequired() {
+            if (durability == Durability.ALWAYS) {
+                store.commit();
+                store.sync();
+            }
+        }
+    }
+    
+    /**
+     * All backpacks in one embedded SQLite database, plugins/Backpacks/backpacks.db.
+     * 
+     * <p>Unlike the other backends this one is queryable: next to each backpack's
+     * {@link BackpackCodec} record (a BLOB) it keeps metadata columns that admins can
+     * search with any SQLite client or the /backpack find command.</p>
+     * <pre>
+     * backpacks(id PRIMARY KEY, owner, capacity, item_count, byte_size,
+     *           last_modified, last_opened, contents BLOB)
+     *   indexed on owner, last_opened, item_count
+     * backpack_slots(backpack_id, slot, material, amount)    - optional
+     *   indexed on (material, backpack_id, amount)
+     * </pre>
+     * 
+     * <p>owner is the player UUID for personal backpacks. Item backpacks don't record who
+     * holds them, so their owner is NULL. backpack_slots has one row per occupied slot and
+     * is maintained only with "storage.sqlite.index-slots" enabled; it is cleared when the
+     * option is turned off and rebuilt from the records when it is turned back on.</p>
+     * 
+     * <p>Threading: every write ({@link #saveAll}, {@link #delete}, {@link #recordOpens})
+     * runs as one transaction on a dedicated "Backpacks-SQLite" thread that owns the write
+     * connection, so a whole write-queue batch is a single commit. Callers block until
+     * their transaction has committed. Reads use a second connection; with the database
+     * in WAL mode they never wait for a write in progress.</p>
+     * 
+     * <p>Commits follow {@link Durability} through SQLite's synchronous setting: NONE →
+     * OFF, GROUP → NORMAL (the WAL is synced at checkpoints rather than every commit),
+     * ALWAYS → FULL.</p>
+     * 
+     * <p>The SQLite JDBC driver ships with Paper, so nothing is shaded into the plugin.</p>
+     */
+    private static final class SQLiteBackpackStore implements BackpackStore {
+        
+        /**
+         * One backpack matching a {@link #findContaining} query.
+         * 
+         * @param key The backpack's storage key
+         * @param amount Total amount of the material across its slots
+         */
+        record MaterialCount(String key, int amount) {}
+        
+        private final File file;
+        private final boolean indexSlots;
+        private final Logger logger;
+        
+        /** Owned by {@link #writer}; never touched from another thread */
+        private final Connection writeConnection;
+        
+        /** Shared by readers; guarded by its own monitor */
+        private final Connection readConnection;
+        
+        /** The single thread that runs every write transaction */
+        private final ExecutorService writer;
+        
+        /**
+         * Opens (or creates) the database and its schema.
+         * 
+         * @param file The database file
+         * @param indexSlots Whether to maintain the backpack_slots table
+         * @param durability Commit durability, see the class description
+         * @param logger Plugin logger
+         * @throws IOException If the driver is missing or the database can't be opened
+         */
+        SQLiteBackpackStore(File file, boolean indexSlots, Durability durability, Logger logger) throws IOException {
+            this.file = file;
+            this.indexSlots = indexSlots;
+            this.logger = logger;
+            
+            try {
+                Class.forName("org.sqlite.JDBC");
+            } catch (ClassNotFoundException e) {
+                throw new IOException("SQLite JDBC driver not found - the sqlite backend needs a Paper server", e);
+            }
+            
+            String url = "jdbc:sqlite:" + file.getAbsolutePath();
+            Connection write = null;
+            try {
+                write = DriverManager.getConnection(url);
+                try (Statement statement = write.createStatement()) {
+                    statement.execute("PRAGMA journal_mode=WAL");
+                    statement.execute("PRAGMA synchronous=" + synchronousMode(durability));
+                    statement.execute("CREATE TABLE IF NOT EXISTS backpacks ("
+                        + "id TEXT PRIMARY KEY, "
+                        + "owner TEXT, "
+                        + "capacity INTEGER NOT NULL, "
+                        + "item_count INTEGER NOT NULL, "
+                        + "byte_size INTEGER NOT NULL, "
+                        + "last_modified INTEGER NOT NULL, "
+                        + "last_opened INTEGER NOT NULL DEFAULT 0, "
+                        + "contents BLOB NOT NULL)");
+                    statement.execute("CREATE INDEX IF NOT EXISTS backpacks_owner ON backpacks(owner)");
+                    statement.execute("CREATE INDEX IF NOT EXISTS backpacks_last_opened ON backpacks(last_opened)");
+                    statement.execute("CREATE INDEX IF NOT EXISTS backpacks_item_count ON backpacks(item_count)");
+                    statement.execute("CREATE TABLE IF NOT EXISTS backpack_slots ("
+                        + "backpack_id TEXT NOT NULL, "
+                        + "slot INTEGER NOT NULL, "
+                        + "material TEXT NOT NULL, "
+                        + "amount INTEGER NOT NULL, "
+                        + "PRIMARY KEY (backpack_id, slot)) WITHOUT ROWID");
+                    statement.execute("CREATE INDEX IF NOT EXISTS backpack_slots_material "
+                        + "ON backpack_slots(material, backpack_id, amount)");
+                }
+                write.setAutoCommit(false);
+                write.commit();
+                syncSlotIndex(write);
+                
+                readConnection = DriverManager.getConnection(url);
+            } catch (SQLException e) {
+                closeQuietly(write);
+                throw new IOException("Failed to open " + file.getName() + ": " + e.getMessage(), e);
+            }
+            writeConnection = write;
+            writer = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "Backpacks-SQLite"));
+            
+            logger.info("Opened SQLite storage: " + file.getName()
+                + (indexSlots ? " (slot index enabled)" : ""));
+        }
+        
+        /** SQLite's synchronous setting for a durability policy */
+        private static String synchronousMode(Durability durability) {
+            switch (durability) {
+                case NONE:
+                    return "OFF";
+                case ALWAYS:
+                    return "FULL";
+                default:
+                    return "NORMAL";
+            }
+        }
+        
+        /** Whether {@link #findContaining} is available */
+        boolean indexesSlots() {
+            return indexSlots;
+        }
+        
+        @Override
+        public Set<String> listKeys() throws IOException {
+            synchronized (readConnection) {
+                try (Statement statement = readConnection.createStatement();
+                     ResultSet rows = statement.executeQuery("SELECT id FROM backpacks")) {
+                    Set<String> keys = new HashSet<>();
+                    while (rows.next()) {
+                        keys.add(rows.getString(1));
+                    }
+                    return keys;
+                } catch (SQLException e) {
+                    throw new IOException("Failed to list backpacks: " + e.getMessage(), e);
+                }
+            }
+        }
+        
+        @Override
+        public BackpackSnapshot load(String key) throws IOException {
+            synchronized (readConnection) {
+                try (PreparedStatement query = readConnection.prepareStatement(
+                        "SELECT contents FROM backpacks WHERE id = ?")) {
+                    query.setString(1, key);
+                    try (ResultSet row = query.executeQuery()) {
+                        return row.next() ? BackpackCodec.decode(key, row.getBytes(1)) : null;
+                    }
+                } catch (SQLException e) {
+                    throw new IOException("Failed to read backpack " + key + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        
+        @Override
+        public byte[] readRecord(String key) throws IOException {
+            synchronized (readConnection) {
+                try (PreparedStatement query = readConnection.prepareStatement(
+                        "SELECT contents FROM backpacks WHERE id = ?")) {
+                    query.setString(1, key);
+                    try (ResultSet row = query.executeQuery()) {
+                        return row.next() ? row.getBytes(1) : null;
+                    }
+                } catch (SQLException e) {
+                    throw new IOException("Failed to read backpack " + key + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        
+        /**
+         * Reads the metadata columns and the record's header - the rest of the record is not fetched.
+         */
+        @Override
+        public ManifestEntry stat(String key) throws IOException {
+            synchronized (readConnection) {
+                try (PreparedStatement query = readConnection.prepareStatement(
+                        "SELECT capacity, item_count, byte_size, last_modified, last_opened, substr(contents, 1, "
+                            + BackpackCodec.MAX_HEADER_SIZE + ") FROM backpacks WHERE id = ?")) {
+                    query.setString(1, key);
+                    try (ResultSet row = query.executeQuery()) {
+                        if (!row.next()) {
+                            return null;
+                        }
+                        // The DataVersion has no column of its own; it is in the header
+                        int dataVersion = BackpackCodec.describe(row.getBytes(6), 0, 0).dataVersion();
+                        return new ManifestEntry(row.getInt(1), row.getInt(2), row.getInt(3),
+                            row.getLong(4), row.getLong(5), dataVersion);
+                    }
+                } catch (SQLException e) {
+                    throw new IOException("Failed to read backpack " + key + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        
+        @Override
+        public boolean exists(String key) throws IOException {
+            synchronized (readConnection) {
+                try (PreparedStatement query = readConnection.prepareStatement(
+                        "SELECT 1 FROM backpacks WHERE id = ?")) {
+                    query.setString(1, key);
+                    try (ResultSet row = query.executeQuery()) {
+                        return row.next();
+                    }
+                } catch (SQLException e) {
+                    throw new IOException("Failed to query backpack " + key + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        
+        @Override
+        public int save(String key, BackpackSnapshot snapshot) throws IOException {
+            return saveAll(Map.of(key, snapshot)).get(key);
+        }
+        
+        /**
+         * Upserts every backpack in one transaction. Records are encoded on the calling
+         * thread so the SQLite thread only runs SQL. last_opened is left as it was.
+         */
+        @Override
+        public Map<String, Integer> saveAll(Map<String, BackpackSnapshot> snapshots) throws IOException {
+            // Encode first - a bad item fails the batch before anything changes
+            Map<String, byte[]> encoded = new HashMap<>();
+            for (Map.Entry<String, BackpackSnapshot> entry : snapshots.entrySet()) {
+                encoded.put(entry.getKey(), BackpackCodec.encode(entry.getKey(), entry.getValue()));
+            }
+            long now = System.currentTimeMillis();
+            
+            return inTransaction("write backpacks", connection -> {
+                Map<String, Integer> sizes = new HashMap<>();
+                try (PreparedStatement upsert = connection.prepareStatement(
+                        "INSERT INTO backpacks (id, owner, capacity, item_count, byte_size, last_modified, contents) "
+                        + "VALUES (?, ?, ?, ?, ?, ?, ?) "
+                        + "ON CONFLICT(id) DO UPDATE SET owner = excluded.owner, capacity = excluded.capacity, "
+                        + "item_count = excluded.item_count, byte_size = excluded.byte_size, "
+                        + "last_modified = excluded.last_modified, contents = excluded.contents")) {
+                    for (Map.Entry<String, byte[]> entry : encoded.entrySet()) {
+                        BackpackSnapshot snapshot = snapshots.get(entry.getKey());
+                        upsert.setString(1, entry.getKey());
+                        upsert.setString(2, ownerOf(entry.getKey()));
+                        upsert.setInt(3, snapshot.capacity());
+                        upsert.setInt(4, snapshot.itemCount());
+                        upsert.setInt(5, entry.getValue().length);
+                        upsert.setLong(6, now);
+                        upsert.setBytes(7, entry.getValue());
+                        upsert.addBatch();
+                        sizes.put(entry.getKey(), entry.getValue().length);
+                    }
+                    upsert.executeBatch();
+                }
+                if (indexSlots) {
+                    for (Map.Entry<String, BackpackSnapshot> entry : snapshots.entrySet()) {
+                        indexSlots(connection, entry.getKey(), entry.getValue().contents());
+                    }
+                }
+                return sizes;
+            });
+        }
+        
+        @Override
+        public void delete(String key) throws IOException {
+            inTransaction("delete backpack " + key, connection -> {
+                try (PreparedStatement delete = connection.prepareStatement("DELETE FROM backpacks WHERE id = ?");
+                     PreparedStatement deleteSlots = connection.prepareStatement(
+                         "DELETE FROM backpack_slots WHERE backpack_id = ?")) {
+                    delete.setString(1, key);
+                    delete.executeUpdate();
+                    deleteSlots.setString(1, key);
+                    deleteSlots.executeUpdate();
+                }
+                return null;
+            });
+        }
+        
+        /**
+         * Stores the open times in the indexed last_opened column. A time older than the
+         * stored one is ignored.
+         */
+        @Override
+        public void recordOpens(Map<String, Long> lastOpened) throws IOException {
+            inTransaction("record open times", connection -> {
+                try (PreparedStatement update = connection.prepareStatement(
+                        "UPDATE backpacks SET last_opened = MAX(last_opened, ?) WHERE id = ?")) {
+                    for (Map.Entry<String, Long> entry : lastOpened.entrySet()) {
+                        update.setLong(1, entry.getValue());
+                        update.setString(2, entry.getKey());
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                }
+                return null;
+            });
+        }
+        
+        /**
+         * Finds the backpacks holding at least a given amount of a material, largest
+         * amount first. Answered from the backpack_slots index alone.
+         * 
+         * @param material Material name as stored (Material#name())
+         * @param minAmount Minimum total amount per backpack
+         * @param limit Maximum number of results
+         * @return Matching backpacks with their totals
+         * @throws IOException If the query fails
+         * @throws IllegalStateException If the slot index is disabled
+         */
+        List<MaterialCount> findContaining(String material, int minAmount, int limit) throws IOException {
+            if (!indexSlots) {
+                throw new IllegalStateException("storage.sqlite.index-slots is disabled");
+            }
+            synchronized (readConnection) {
+                try (PreparedStatement query = readConnection.prepareStatement(
+                        "SELECT backpack_id, SUM(amount) AS total FROM backpack_slots WHERE material = ? "
+                        + "GROUP BY backpack_id HAVING total >= ? ORDER BY total DESC LIMIT ?")) {
+                    query.setString(1, material);
+                    query.setInt(2, minAmount);
+                    query.setInt(3, limit);
+                    List<MaterialCount> results = new ArrayList<>();
+                    try (ResultSet rows = query.executeQuery()) {
+                        while (rows.next()) {
+                            results.add(new MaterialCount(rows.getString(1), rows.getInt(2)));
+                        }
+                    }
+                    return results;
+                } catch (SQLException e) {
+                    throw new IOException("Failed to search backpacks: " + e.getMessage(), e);
+                }
+            }
+        }
+        
+        /**
+         * Finishes the queued transactions, then closes both connections. The WAL is
+         * checkpointed into the database file when the last connection closes.
+         */
+        @Override
+        public void close() throws IOException {
+            writer.shutdown();
+            try {
+                if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                    logger.warning("SQLite writer did not finish within 30 seconds");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (readConnection) {
+                closeQuietly(readConnection);
+            }
+            try {
+                writeConnection.close();
+            } catch (SQLException e) {
+                throw new IOException("Failed to close " + file.getName() + ": " + e.getMessage(), e);
+            }
+        }
+        
+        /** A unit of work run inside a write transaction */
+        @FunctionalInterface
+        private interface Transaction<T> {
+            T run(Connection connection) throws SQLException, IOException;
+        }
+        
+        /**
+         * Runs work as one transaction on the SQLite thread and waits for it. Any failure
+         * rolls the whole transaction back.
+         * 
+         * @param description What the transaction does, for error messages
+         * @param work The statements to run
+         * @return The work's result
+         * @throws IOException If the transaction failed (nothing of it was committed)
+         */
+        private <T> T inTransaction(String description, Transaction<T> work) throws IOException {
+            Future<T> result;
+            try {
+                result = writer.submit(() -> {
+                    try {
+                        T value = work.run(writeConnection);
+                        writeConnection.commit();
+                        return value;
+                    } catch (SQLException | IOException | RuntimeException e) {
+                        try {
+                            writeConnection.rollback();
+                        } catch (SQLException rollbackFailure) {
+                            e.addSuppressed(rollbackFailure);
+                        }
+                        throw e;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                throw new IOException("Failed to " + description + ": storage is closed", e);
+            }
+            
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to " + description, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Failed to " + description + ": " + cause.getMessage(), cause);
+            }
+        }
+        
+        /** Replaces a backpack's rows in backpack_slots */
+        private static void indexSlots(Connection connection, String key, Map<Integer, ItemStack> contents) throws SQLException {
+            try (PreparedStatement clear = connection.prepareStatement(
+                    "DELETE FROM backpack_slots WHERE backpack_id = ?")) {
+                clear.setString(1, key);
+                clear.executeUpdate();
+            }
+            if (contents.isEmpty()) {
+                return;
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO backpack_slots (backpack_id, slot, material, amount) VALUES (?, ?, ?, ?)")) {
+                for (Map.Entry<Integer, ItemStack> entry : contents.entrySet()) {
+                    insert.setString(1, key);
+                    insert.setInt(2, entry.getKey());
+                    insert.setString(3, entry.getValue().getType().name());
+                    insert.setInt(4, entry.getValue().getAmount());
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+        
+        /**
+         * Brings backpack_slots in line with the index-slots setting at startup: cleared
+         * when disabled, rebuilt from every record when enabled but empty while backpacks
+         * hold items (first start with the option on, or after it was off).
+         */
+        private void syncSlotIndex(Connection connection) throws SQLException, IOException {
+            try (Statement statement = connection.createStatement()) {
+                if (!indexSlots) {
+                    if (statement.executeUpdate("DELETE FROM backpack_slots") > 0) {
+                        logger.info("Slot index disabled - cleared backpack_slots");
+                    }
+                    connection.commit();
+                    return;
+                }
+                
+                boolean indexEmpty;
+                try (ResultSet row = statement.executeQuery("SELECT 1 FROM backpack_slots LIMIT 1")) {
+                    indexEmpty = !row.next();
+                }
+                if (!indexEmpty) {
+                    return;
+                }
+                
+                int indexed = 0;
+                try (ResultSet rows = statement.executeQuery(
+                        "SELECT id, contents FROM backpacks WHERE item_count > 0")) {
+                    while (rows.next()) {
+                        indexSlots(connection, rows.getString(1), BackpackCodec.decode(null, rows.getBytes(2)).contents());
+                        indexed++;
+                    }
+                }
+                connection.commit();
+                if (indexed > 0) {
+                    logger.info("Built slot index for " + indexed + " backpacks");
+                }
+            } catch (SQLException | IOException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+        
+        /** The owning player's UUID for personal backpack keys, null for item backpacks */
+        private static String ownerOf(String key) {
+            return key.startsWith(PERSONAL_BACKPACK_PREFIX) ? key.substring(PERSONAL_BACKPACK_PREFIX.length()) : null;
+        }
+        
+        /** Closes a connection, ignoring failures (used on error paths) */
+        private static void closeQuietly(Connection connection) {
+            if (connection == null) {
+                return;
+            }
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+                // Already failing; the original error is the one worth reporting
+            }
+        }
+    }
+    
+    // ==================== INTEGRITY ====================
+    
+    /**
+     * Backpacks locked because their stored record is damaged: plugins/Backpacks/quarantine/.
+     * 
+     * <p>Files per quarantined backpack:</p>
+     * <ul>
+     *   <li>{key}.bin - a copy of the damaged record as it was read, for recovery by hand
+     *       (missing when the backend's own framing was already unreadable)</li>
+     *   <li>{key}.txt - why it was quarantined</li>
+     * </ul>
+     * 
+     * <p>A quarantined backpack can't be opened, so nothing ever saves over the damaged
+     * record. The set survives restarts: it is the list of .txt files, read at startup.
+     * {@link #release(String)} unlocks a backpack and moves its copy to released/, named
+     * {key}-{epoch millis}.bin.</p>
+     * 
+     * <p>Thread-safe: backpacks are quarantined by the main thread (on a failed load) and
+     * by the {@link IntegrityScrubber}.</p>
+     */
+    private static final class Quarantine {
+        
+        private final Path directory;
+        private final Logger logger;
+        
+        /** Key → reason for every quarantined backpack */
+        private final ConcurrentHashMap<String, String> locked = new ConcurrentHashMap<>();
+        
+        private Quarantine(Path directory, Logger logger) {
+            this.directory = directory;
+            this.logger = logger;
+        }
+        
+        /**
+         * Reads the quarantined backpacks from the directory, creating it if needed.
+         * 
+         * @param directory The quarantine directory
+         * @param logger Plugin logger
+         * @return The quarantine
+         * @throws IOException If the directory can't be created or listed
+         */
+        static Quarantine open(Path directory, Logger logger) throws IOException {
+            Files.createDirectories(directory);
+            Quarantine quarantine = new Quarantine(directory, logger);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.txt")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    quarantine.locked.put(name.substring(0, name.length() - 4), Files.readString(file).strip());
+                }
+            }
+            return quarantine;
+        }
+        
+        /**
+         * Locks a backpack and keeps a copy of its damaged record.
+         * 
+         * @param key The backpack's storage key
+         * @param record The record as read, or null if it couldn't be read at all
+         * @param reason Why the record is considered damaged
+         * @return false if the backpack was already quarantined
+         */
+        boolean add(String key, byte[] record, String reason) {
+            if (locked.putIfAbsent(key, reason) != null) {
+                return false;
+            }
+            try {
+                if (record != null) {
+                    Files.write(directory.resolve(key + ".bin"), record);
+                }
+                Files.writeString(directory.resolve(key + ".txt"), reason + System.lineSeparator());
+            } catch (IOException e) {
+                // Still locked until the server stops; the next failed read locks it again
+                logger.warning("Failed to write quarantine files for backpack " + key + ": " + e.getMessage());
+            }
+            return true;
+        }
+        
+        /** Whether a backpack is quarantined (no disk access) */
+        boolean contains(String key) {
+            return locked.containsKey(key);
+        }
+        
+        /** Key → reason for every quarantined backpack, sorted by key */
+        SortedMap<String, String> entries() {
+            return new TreeMap<>(locked);
+        }
+        
+        /** Number of quarantined backpacks */
+        int size() {
+            return locked.size();
+        }
+        
+        /**
+         * Unlocks a backpack, moving its damaged copy to released/.
+         * 
+         * @param key The backpack's storage key
+         * @return false if it wasn't quarantined
+         * @throws IOException If the quarantine files can't be moved or deleted
+         */
+        boolean release(String key) throws IOException {
+            if (!locked.containsKey(key)) {
+                return false;
+            }
+            Path copy = directory.resolve(key + ".bin");
+            if (Files.exists(copy)) {
+                Path released = directory.resolve("released");
+                Files.createDirectories(released);
+                AtomicFiles.move(copy, released.resolve(key + "-" + System.currentTimeMillis() + ".bin"));
+            }
+            Files.deleteIfExists(directory.resolve(key + ".txt"));
+            locked.remove(key);
+            return true;
+        }
+    }
+    
+    /**
+     * Background thread ("Backpacks-Scrubber") that reads every stored record and checks
+     * it with {@link BackpackCodec#verify(byte[])}, so damage is found before a player
+     * opens the backpack - and while backups still hold a good copy.
+     * 
+     * <p>One pass walks every backpack in the {@link StorageManifest}; the next pass starts
+     * "storage.scrub.pass-interval-hours" after the previous one ended. Skipped:</p>
+     * <ul>
+     *   <li>Backpacks opened or saved within the last {@link #HOT_MILLIS} - they may be in
+     *       memory and about to be saved, and a fresh write is the least likely to be damaged</li>
+     *   <li>Backpacks already quarantined</li>
+     *   <li>YAML files ({@link BackpackStore#readRecord} returns null for them)</li>
+     * </ul>
+     * 
+     * <p>Reads are throttled to "storage.scrub.rate-mb-per-second" so a pass never competes
+     * with saves for disk bandwidth. A record that fails verification is read and checked
+     * a second time - a save may have replaced it between the read and the check - before
+     * the {@link CorruptionHandler} is told. Read errors are only logged; the next pass
+     * tries again.</p>
+     */
+    private static final class IntegrityScrubber {
+        
+        /** Told about each damaged record, on the scrubber thread */
+        interface CorruptionHandler {
+            void corrupt(String key, byte[] record, String reason);
+        }
+        
+        /** Backpacks opened or saved more recently than this are left for the next pass */
+        private static final long HOT_MILLIS = TimeUnit.HOURS.toMillis(1);
+        
+        private final BackpackStore store;
+        private final StorageManifest manifest;
+        private final Quarantine quarantine;
+        private final long bytesPerSecond;
+        private final Logger logger;
+        private final CorruptionHandler handler;
+        private final ScheduledExecutorService executor;
+        
+        /** Set by {@link #stop()}; a running pass ends at the next record */
+        private volatile boolean stopped;
+        
+        private final AtomicLong recordsChecked = new AtomicLong();
+        private final AtomicLong bytesChecked = new AtomicLong();
+        private final AtomicLong corruptFound = new AtomicLong();
+        private final AtomicLong passesCompleted = new AtomicLong();
+        
+        /**
+         * Starts the scrubber; the first pass begins after one pass interval, or after
+         * {@code firstPassDelayMinutes} if that is shorter.
+         * 
+         * @param store Storage backend to read records from
+         * @param manifest Index of stored backpacks
+         * @param quarantine Backpacks to skip
+         * @param bytesPerSecond Most bytes read per second
+         * @param passIntervalHours Pause between passes
+         * @param firstPassDelayMinutes Delay before the first pass
+         * @param logger Plugin logger
+         * @param handler Told about each damaged record
+         */
+        IntegrityScrubber(BackpackStore store, StorageManifest manifest, Quarantine quarantine, long bytesPerSecond,
+                          long passIntervalHours, long firstPassDelayMinutes, Logger logger, CorruptionHandler handler) {
+            this.store = store;
+            this.manifest = manifest;
+            this.quarantine = quarantine;
+            this.bytesPerSecond = bytesPerSecond;
+            this.logger = logger;
+            this.handler = handler;
+            this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Backpacks-Scrubber");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            long intervalMinutes = TimeUnit.HOURS.toMinutes(passIntervalHours);
+            executor.scheduleWithFixedDelay(this::pass, Math.min(firstPassDelayMinutes, intervalMinutes),
+                intervalMinutes, TimeUnit.MINUTES);
+        }
+        
+        /**
+         * Stops the scrubber, waiting for the record being checked. The thread is never
+         * interrupted: an interrupt during a read would close the backend's file channels.
+         */
+        void stop() {
+            stopped = true;
+            synchronized (this) {
+                notifyAll();
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /** One pass over every stored backpack */
+        private void pass() {
+            long started = System.nanoTime();
+            long passBytes = 0;
+            int passRecords = 0;
+            try {
+                for (String key : manifest.keys()) {
+                    if (stopped) {
+                        return;
+                    }
+                    ManifestEntry entry = manifest.get(key);
+                    if (entry == null || quarantine.contains(key)
+                            || Math.max(entry.lastOpened(), entry.lastModified()) > System.currentTimeMillis() - HOT_MILLIS) {
+                        continue;
+                    }
+                    
+                    byte[] record = check(key);
+                    if (record == null) {
+                        continue;
+                    }
+                    passRecords++;
+                    passBytes += record.length;
+                    recordsChecked.incrementAndGet();
+                    bytesChecked.addAndGet(record.length);
+                    
+                    // Throttle: wait until the bytes read so far fit the configured rate
+                    long dueNanos = started + passBytes * 1_000_000_000L / bytesPerSecond;
+                    pause(dueNanos - System.nanoTime());
+                }
+                passesCompleted.incrementAndGet();
+                logger.info("Integrity scrub finished: " + passRecords + " records ("
+                    + (passBytes / 1024) + " KB) checked");
+            } catch (RuntimeException e) {
+                // Keep the schedule alive - the next pass starts over
+                logger.log(Level.WARNING, "Integrity scrub failed", e);
+            }
+        }
+        
+        /**
+         * Reads and verifies one record, reporting it if it is damaged.
+         * 
+         * @return The record as read, or null if there was nothing to check
+         */
+        private byte[] check(String key) {
+            byte[] record;
+            try {
+                record = store.readRecord(key);
+            } catch (CorruptRecordException e) {
+                report(key, null, e.getMessage());
+                return null;
+            } catch (IOException e) {
+                logger.warning("Integrity scrub couldn't read backpack " + key + ": " + e.getMessage());
+                return null;
+            }
+            if (record == null) {
+                return null;
+            }
+            String reason;
+            try {
+                BackpackCodec.verify(record);
+                return record;
+            } catch (CorruptRecordException e) {
+                reason = e.getMessage();
+            } catch (IOException e) {
+                // Not damage - e.g. a dictionary is missing
+                logger.warning("Integrity scrub couldn't check backpack " + key + ": " + e.getMessage());
+                return record;
+            }
+            
+            // Confirm with a second read - a save may have replaced the record meanwhile
+            try {
+                byte[] again = store.readRecord(key);
+                if (again == null) {
+                    // Deleted meanwhile
+                    return record;
+                }
+                if (!Arrays.equals(again, record)) {
+                    record = again;
+                    BackpackCodec.verify(record);
+                    return record;
+                }
+            } catch (CorruptRecordException e) {
+                reason = e.getMessage();
+            } catch (IOException e) {
+                logger.warning("Integrity scrub couldn't read backpack " + key + ": " + e.getMessage());
+                return record;
+            }
+            report(key, record, reason);
+            return record;
+        }
+        
+        private void report(String key, byte[] record, String reason) {
+            corruptFound.incrementAndGet();
+            handler.corrupt(key, record, reason);
+        }
+        
+        /** Sleeps without being interruptible by anything but {@link #stop()} */
+        private synchronized void pause(long nanos) {
+            long deadline = System.nanoTime() + nanos;
+            long remaining = nanos;
+            while (!stopped && remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+        }
+        
+        /** One line for /backpack stats */
+        String describe() {
+            return recordsChecked.get() + " records (" + (bytesChecked.get() / (1024 * 1024)) + " MB) checked, "
+                + corruptFound.get() + " damaged, " + passesCompleted.get() + " passes done";
+        }
+    }
+    
+    // ==================== VERSION HISTORY ====================
+    
+    /**
+     * The last few versions of every backpack: plugins/Backpacks/history/{key}.hist.
+     * 
+     * <p>Each save records how to get the version it replaced back - a reverse delta
+     * ({@link BackpackCodec#encodeDelta}) holding the previous items of the slots the save
+     * changed. A save touching three slots costs three items of history, not a copy of
+     * the backpack. Versions are kept newest first, at most "storage.history.versions"
+     * per backpack; the oldest drops off.</p>
+     * 
+     * <p>Rolling back n versions applies the n newest reverse deltas to the current
+     * contents, newest first. Deltas set slots rather than patch them, so a change that
+     * bypassed the history (a crash replay of an unsaved session) only stays in the slots
+     * no later save touched.</p>
+     * 
+     * <p>File layout (big-endian):</p>
+     * <pre>
+     * int    magic    "BPHS"
+     * byte   version
+     * ushort count
+     * count x {
+     *   long   savedAt    epoch milliseconds of the save that replaced this version
+     *   UTF    savedBy    who made that save
+     *   int    length
+     *   byte[] delta      reverse delta, capacity of this version in its header
+     * }
+     * int    CRC32C   of everything before it
+     * </pre>
+     * 
+     * <p>Files are rewritten to a temporary file and renamed into place but not forced to
+     * disk - history is a convenience, not a backup. Appends and reads run in order on one
+     * background thread ("Backpacks-History"), so a read sees every version recorded
+     * before it was requested.</p>
+     */
+    private static final class VersionHistory {
+        
+        /** History file magic - "BPHS" in ASCII */
+        private static final int MAGIC = 0x42504853;
+        
+        /** Current history file layout version */
+        private static final int VERSION = 1;
+        
+        /**
+         * One earlier version of a backpack.
+         * 
+         * @param savedAt When the save that replaced it happened, in epoch milliseconds
+         * @param savedBy Who made that save (player name, or what changed it)
+         * @param reverseDelta Delta turning the next-newer version back into this one
+         */
+        record Version(long savedAt, String savedBy, byte[] reverseDelta) {}
+        
+        private final Path directory;
+        private final int keep;
+        private final Logger logger;
+        private final ExecutorService thread;
+        private final AtomicLong recorded = new AtomicLong();
+        
+        private VersionHistory(Path directory, int keep, Logger logger) {
+            this.directory = directory;
+            this.keep = keep;
+            this.logger = logger;
+            this.thread = Executors.newSingleThreadExecutor(runnable -> {
+                Thread history = new Thread(runnable, "Backpacks-History");
+                history.setDaemon(true);
+                return history;
+            });
+        }
+        
+        /**
+         * Opens the history directory, creating it if needed.
+         * 
+         * @param directory The history directory
+         * @param keep Versions kept per backpack
+         * @param logger Plugin logger
+         * @return The history
+         * @throws IOException If the directory can't be created
+         */
+        static VersionHistory open(Path directory, int keep, Logger logger) throws IOException {
+            Files.createDirectories(directory);
+            return new VersionHistory(directory, keep, logger);
+        }
+        
+        /**
+         * Records the version a save replaces. Main thread; the work happens in the background.
+         * 
+         * @param key The backpack's storage key
+         * @param savedBy Who made the save
+         * @param previous The replaced contents, with the slots the save changed as
+         *        changedSlots and the replaced version's capacity
+         */
+        void record(String key, String savedBy, BackpackSnapshot previous) {
+            long savedAt = System.currentTimeMillis();
+            try {
+                thread.execute(() -> {
+                    try {
+                        List<Version> versions = new ArrayList<>(read(key));
+                        versions.add(0, new Version(savedAt, savedBy, BackpackCodec.encodeDelta(previous)));
+                        write(key, versions.subList(0, Math.min(keep, versions.size())));
+                        recorded.incrementAndGet();
+                    } catch (IOException | RuntimeException e) {
+                        logger.warning("Failed to record the history of backpack " + key + ": " + e.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down - this save goes without history
+            }
+        }
+        
+        /**
+         * Reads a backpack's versions, newest first, after every version already recorded.
+         * 
+         * @param key The backpack's storage key
+         * @return Future of the versions (empty if there are none)
+         */
+        Future<List<Version>> versions(String key) {
+            return thread.submit(() -> read(key));
+        }
+        
+        /** Versions recorded since startup */
+        long recordedCount() {
+            return recorded.get();
+        }
+        
+        /** Finishes recording whatever is queued, waiting up to 30 seconds */
+        void close() {
+            thread.shutdown();
+            try {
+                if (!thread.awaitTermination(30, TimeUnit.SECONDS)) {
+                    logger.warning("Timed out recording backpack history");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /** Reads a history file; a missing or damaged one reads as no versions */
+        private List<Version> read(String key) throws IOException {
+            Path file = historyFile(key);
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(file);
+            } catch (NoSuchFileException e) {
+                return Collections.emptyList();
+            }
+            try {
+                ByteBuffer in = ByteBuffer.wrap(bytes);
+                CRC32C checksum = new CRC32C();
+                checksum.update(bytes, 0, bytes.length - 4);
+                if (in.getInt() != MAGIC || in.get() != VERSION || (int) checksum.getValue() != in.getInt(bytes.length - 4)) {
+                    throw new IOException("not a valid history file");
+                }
+                int count = in.getShort() & 0xFFFF;
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes, in.position(), bytes.length - 4 - in.position()));
+                List<Version> versions = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long savedAt = data.readLong();
+                    String savedBy = data.readUTF();
+                    byte[] delta = new byte[data.readInt()];
+                    data.readFully(delta);
+                    versions.add(new Version(savedAt, savedBy, delta));
+                }
+                return versions;
+            } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+                // Overwritten with the next version recorded
+                logger.warning("History of backpack " + key + " is unreadable and starts over (" + e + ")");
+                return Collections.emptyList();
+            }
+        }
+        
+        /** Replaces a history file */
+        private void write(String key, List<Version> versions) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(versions.size());
+            for (Version version : versions) {
+                out.writeLong(version.savedAt());
+                out.writeUTF(version.savedBy());
+                out.writeInt(version.reverseDelta().length);
+                out.write(version.reverseDelta());
+            }
+            out.flush();
+            CRC32C checksum = new CRC32C();
+            checksum.update(bytes.toByteArray());
+            out.writeInt((int) checksum.getValue());
+            
+            Path target = historyFile(key);
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.write(temp, bytes.toByteArray());
+            AtomicFiles.move(temp, target);
+        }
+        
+        /**
+         * The history file of a key.
+         * 
+         * @throws IOException If the key would name a file outside the history directory
+         */
+        private Path historyFile(String key) throws IOException {
+            Path file = directory.resolve(key + ".hist").normalize();
+            if (!directory.normalize().equals(file.getParent())) {
+                throw new IOException("Not a backpack key: " + key);
+            }
+            return file;
+        }
+    }
+    
+    // ==================== BACKUPS ====================
+    
+    /**
+     * Single-file backup archive: plugins/Backpacks/backups/backup-{yyyyMMdd-HHmmss}.bpk.
+     * 
+     * <p>Layout (big-endian):</p>
+     * <pre>
+     * int    magic "BPBK", byte version, long createdAt
+     * entries, in the order they were written:
+     *   byte[] raw Deflate of a {@link BackpackCodec#encodeDelta} of every occupied slot
+     * index, sorted by key, {@link #INDEX_ENTRY_SIZE} bytes per entry:
+     *   ushort keyLength, byte[64] key (zero-padded), long offset, int length, int CRC32C
+     * long   indexOffset, int entryCount, int magic "BPBK"
+     * </pre>
+     * 
+     * <p>Entries are self-contained (no dictionary or item store references), so a backup
+     * restores into any configuration. The fixed-size sorted index lets
+     * {@link #read(Path, String)} find one backpack with a binary search - a few small
+     * reads however large the archive - and inflate only that entry.</p>
+     */
+    private static final class BackupArchive {
+        
+        /** "BPBK" in ASCII */
+        private static final int MAGIC = 0x4250424B;
+        
+        /** Current archive layout version */
+        private static final int VERSION = 1;
+        
+        /** Longest storage key an index entry holds ("personal-" + UUID is 45) */
+        private static final int MAX_KEY_LENGTH = 64;
+        
+        /** ushort keyLength + key + long offset + int length + int CRC32C */
+        private static final int INDEX_ENTRY_SIZE = 2 + MAX_KEY_LENGTH + 8 + 4 + 4;
+        
+        /** long indexOffset + int entryCount + int magic */
+        private static final int FOOTER_SIZE = 16;
+        
+        /** File name extension of backup archives */
+        static final String EXTENSION = ".bpk";
+        
+        private BackupArchive() {
+        }
+        
+        /**
+         * Writes an archive to a temporary file, renamed into place by {@link #finish()}.
+         * Thread-safe: the backup thread and write-behind workers add entries concurrently.
+         */
+        static final class Writer {
+            
+            private final Path target;
+            private final Path temp;
+            private final FileChannel channel;
+            private final Deflater deflater = new Deflater();
+            /** Key → {offset, length, CRC32C} */
+            private final TreeMap<String, long[]> index = new TreeMap<>();
+            private long position;
+            private boolean closed;
+            
+            Writer(Path target) throws IOException {
+                this.target = target;
+                this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+                this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+                ByteBuffer header = ByteBuffer.allocate(13);
+                header.putInt(MAGIC);
+                header.put((byte) VERSION);
+                header.putLong(System.currentTimeMillis());
+                header.flip();
+                writeFully(header);
+            }
+            
+            /**
+             * Adds one backpack.
+             * 
+             * @param key The backpack's storage key
+             * @param snapshot Its contents
+             * @throws IOException If an item can't be serialized or the archive can't be written
+             */
+            void add(String key, BackpackSnapshot snapshot) throws IOException {
+                if (key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_LENGTH) {
+                    throw new IOException("storage key too long for the backup index");
+                }
+                BitSet slots = new BitSet();
+                snapshot.contents().keySet().forEach(slots::set);
+                byte[] delta = BackpackCodec.encodeDelta(new BackpackSnapshot(snapshot.capacity(), snapshot.contents(), slots));
+                
+                synchronized (this) {
+                    if (closed) {
+                        throw new IOException("backup already finished");
+                    }
+                    deflater.reset();
+                    deflater.setInput(delta);
+                    deflater.finish();
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(delta.length / 2 + 64);
+                    byte[] buffer = new byte[8192];
+                    while (!deflater.finished()) {
+                        compressed.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                    byte[] entry = compressed.toByteArray();
+                    CRC32C checksum = new CRC32C();
+                    checksum.update(entry);
+                    
+                    long offset = position;
+                    writeFully(ByteBuffer.wrap(entry));
+                    index.put(key, new long[] {offset, entry.length, (int) checksum.getValue()});
+                }
+            }
+            
+            /** Number of backpacks added */
+            synchronized int size() {
+                return index.size();
+            }
+            
+            /**
+             * Writes the index, forces the archive to disk and renames it into place.
+             * 
+             * @return Size of the finished archive in bytes
+             * @throws IOException If the archive can't be completed
+             */
+            synchronized long finish() throws IOException {
+                long indexOffset = position;
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+                for (Map.Entry<String, long[]> item : index.entrySet()) {
+                    byte[] key = item.getKey().getBytes(StandardCharsets.UTF_8);
+                    entry.clear();
+                    entry.putShort((short) key.length);
+                    entry.put(key);
+                    entry.position(2 + MAX_KEY_LENGTH);
+                    entry.putLong(item.getValue()[0]);
+                    entry.putInt((int) item.getValue()[1]);
+                    entry.putInt((int) item.getValue()[2]);
+                    entry.flip();
+                    writeFully(entry);
+                }
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                footer.putLong(indexOffset);
+                footer.putInt(index.size());
+                footer.putInt(MAGIC);
+                footer.flip();
+                writeFully(footer);
+                
+                channel.force(true);
+                close();
+                AtomicFiles.move(temp, target);
+                AtomicFiles.forceDirectory(target.getParent());
+                return position;
+            }
+            
+            /** Abandons the archive, deleting the temporary file */
+            synchronized void abort() {
+                close();
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // A leftover .tmp file is ignored by restores
+                }
+            }
+            
+            private void close() {
+                closed = true;
+                deflater.end();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Nothing left to write
+                }
+            }
+            
+            private void writeFully(ByteBuffer buffer) throws IOException {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }
+        
+        /**
+         * Reads one backpack out of an archive.
+         * 
+         * @param archive The archive file
+         * @param key The backpack's storage key
+         * @return Its contents, or null if the archive doesn't hold it
+         * @throws IOException If the archive can't be read or is damaged
+         */
+        static BackpackSnapshot read(Path archive, String key) throws IOException {
+            byte[] wanted = key.getBytes(StandardCharsets.UTF_8);
+            try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+                ByteBuffer footer = readAt(channel, channel.size() - FOOTER_SIZE, FOOTER_SIZE);
+                long indexOffset = footer.getLong();
+                int count = footer.getInt();
+                if (footer.getInt() != MAGIC || indexOffset < 0
+                        || indexOffset + (long) count * INDEX_ENTRY_SIZE != channel.size() - FOOTER_SIZE) {
+                    throw new IOException("Not a complete backup archive");
+                }
+                
+                // Binary search of the sorted fixed-size index
+                int low = 0;
+                int high = count - 1;
+                while (low <= high) {
+                    int middle = (low + high) >>> 1;
+                    ByteBuffer entry = readAt(channel, indexOffset + (long) middle * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE);
+                    byte[] entryKey = new byte[Math.min(entry.getShort() & 0xFFFF, MAX_KEY_LENGTH)];
+                    entry.get(entryKey);
+                    int order = new String(entryKey, StandardCharsets.UTF_8).compareTo(key);
+                    if (order < 0) {
+                        low = middle + 1;
+                    } else if (order > 0) {
+                        high = middle - 1;
+                    } else {
+                        entry.position(2 + MAX_KEY_LENGTH);
+                        long offset = entry.getLong();
+                        int length = entry.getInt();
+                        int crc = entry.getInt();
+                        return readEntry(readAt(channel, offset, length).array(), crc);
+                    }
+                }
+                return null;
+            }
+        }
+        
+        /**
+         * Lists the backpacks in an archive, reading only its index.
+         * 
+         * @param archive The archive file
+         * @return Storage keys, sorted
+         * @throws IOException If the archive can't be read or is incomplete
+         */
+        static List<String> keys(Path archive) throws IOException {
+            try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+                if (channel.size() < FOOTER_SIZE) {
+                    throw new IOException("Not a complete archive");
+                }
+                ByteBuffer footer = readAt(channel, channel.size() - FOOTER_SIZE, FOOTER_SIZE);
+                long indexOffset = footer.getLong();
+                int count = footer.getInt();
+                if (footer.getInt() != MAGIC || indexOffset < 0 || count < 0
+                        || indexOffset + (long) count * INDEX_ENTRY_SIZE != channel.size() - FOOTER_SIZE) {
+                    throw new IOException("Not a complete archive");
+                }
+                // One sequential read of the whole index
+                ByteBuffer index = readAt(channel, indexOffset, count * INDEX_ENTRY_SIZE);
+                List<String> keys = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    index.position(i * INDEX_ENTRY_SIZE);
+                    byte[] key = new byte[Math.min(index.getShort() & 0xFFFF, MAX_KEY_LENGTH)];
+                    index.get(key);
+                    keys.add(new String(key, StandardCharsets.UTF_8));
+                }
+                return keys;
+            }
+        }
+        
+        /**
+         * Lists the backups in a directory, oldest first.
+         * 
+         * @param directory The backups directory
+         * @return Archive names without extension (empty if the directory doesn't exist)
+         */
+        static List<String> list(Path directory) {
+            List<String> names = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    names.add(name.substring(0, name.length() - EXTENSION.length()));
+                }
+            } catch (IOException e) {
+                // No backups yet
+            }
+            Collections.sort(names);
+            return names;
+        }
+        
+        private static BackpackSnapshot readEntry(byte[] entry, int crc) throws IOException {
+            CRC32C checksum = new CRC32C();
+            checksum.update(entry);
+            if ((int) checksum.getValue() != crc) {
+                throw new CorruptRecordException("Backup entry checksum mismatch");
+            }
+            Inflater inflater = new Inflater();
+            ByteArrayOutputStream delta = new ByteArrayOutputStream(entry.length * 3);
+            try {
+                inflater.setInput(entry);
+                byte[] buffer = new byte[8192];
+                while (!inflater.finished()) {
+                    int inflated = inflater.inflate(buffer);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new CorruptRecordException("Truncated backup entry");
+                    }
+                    delta.write(buffer, 0, inflated);
+                }
+            } catch (DataFormatException e) {
+                throw new CorruptRecordException("Corrupt backup entry", e);
+            } finally {
+                inflater.end();
+            }
+            Map<Integer, ItemStack> contents = new HashMap<>();
+            int capacity = BackpackCodec.applyDelta(ByteBuffer.wrap(delta.toByteArray()), contents);
+            return new BackpackSnapshot(capacity, Collections.unmodifiableMap(contents));
+        }
+        
+        private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+            if (position < 0 || length < 0) {
+                throw new CorruptRecordException("Bad backup archive offset");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new CorruptRecordException("Truncated backup archive");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+    
+    /**
+     * One running /backpack backup: a consistent point-in-time copy of every backpack,
+     * taken without pausing the server.
+     * 
+     * <p>The point in time is when the command ran. At that moment, on the main thread:</p>
+     * <ul>
+     *   <li>Backpacks in {@link #backpackStorage} are captured by reference - those maps
+     *       are never modified, a save replaces them (copy-on-write)</li>
+     *   <li>Every other stored backpack is still exactly what the backend holds, and stays
+     *       so until something writes it</li>
+     * </ul>
+     * 
+     * <p>The backup thread ({@link #run()}) archives the captured maps, then reads the other
+     * backpacks from the backend one by one. A write-behind worker about to overwrite or
+     * delete a backpack the backup hasn't read yet calls {@link #preserve(String)} first,
+     * which reads it right then - the backend's copy is saved before the write replaces
+     * it. Each backend read is a {@link FutureTask}, so whichever thread gets there first
+     * reads the backpack and the other waits for it.</p>
+     * 
+     * <p>Archived backpacks are read from their {@link ColdStorage} segments last. Segments
+     * never change, so they need no protection.</p>
+     * 
+     * <p>Unsaved changes in backpacks open at that moment are not included - they are
+     * backed up as of their last save.</p>
+     */
+    private static final class BackupJob {
+        
+        private final BackupArchive.Writer writer;
+        private final Map<String, BackpackSnapshot> fromMemory;
+        private final ConcurrentHashMap<String, FutureTask<Void>> fromStorage = new ConcurrentHashMap<>();
+        private final Map<String, Integer> fromArchive;
+        private final BackpackStore store;
+        private final ColdStorage archive;
+        private final Logger logger;
+        private final AtomicInteger failed = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled;
+        
+        /**
+         * Captures the point in time. Main thread.
+         * 
+         * @param target Archive file to write
+         * @param fromMemory Backpacks captured from memory
+         * @param storedKeys Backpacks to read from the backend
+         * @param fromArchive Archived backpacks, key → segment
+         * @param store The storage backend
+         * @param archive The archive of inactive backpacks
+         * @param logger Plugin logger
+         * @throws IOException If the archive can't be created
+         */
+        BackupJob(Path target, Map<String, BackpackSnapshot> fromMemory, Collection<String> storedKeys,
+                  Map<String, Integer> fromArchive, BackpackStore store, ColdStorage archive, Logger logger) throws IOException {
+            this.writer = new BackupArchive.Writer(target);
+            this.fromMemory = fromMemory;
+            this.fromArchive = fromArchive;
+            this.store = store;
+            this.archive = archive;
+            this.logger = logger;
+            for (String key : storedKeys) {
+                fromStorage.put(key, new FutureTask<>(() -> copyFromStorage(key), null));
+            }
+        }
+        
+        /** Number of backpacks in the backup */
+        int size() {
+            return fromMemory.size() + fromStorage.size() + fromArchive.size();
+        }
+        
+        /**
+         * Writes the archive. Runs on an async task.
+         * 
+         * @return Size of the archive in bytes, or -1 if the backup was cancelled
+         * @throws IOException If the archive can't be written
+         */
+        long run() throws IOException {
+            try {
+                for (Map.Entry<String, BackpackSnapshot> entry : fromMemory.entrySet()) {
+                    if (cancelled) {
+                        break;
+                    }
+                    try {
+                        writer.add(entry.getKey(), entry.getValue());
+                    } catch (IOException | RuntimeException e) {
+                        if (cancelled) {
+                            break;
+                        }
+                        logger.warning("Backpack " + entry.getKey() + " left out of the backup: " + e.getMessage());
+                        failed.incrementAndGet();
+                    }
+                }
+                for (String key : fromStorage.keySet()) {
+                    if (cancelled) {
+                        break;
+                    }
+                    preserve(key);
+                }
+                for (Map.Entry<String, Integer> entry : fromArchive.entrySet()) {
+                    if (cancelled) {
+                        break;
+                    }
+                    try {
+                        writer.add(entry.getKey(), archive.read(entry.getValue(), entry.getKey()));
+                    } catch (IOException | RuntimeException e) {
+                        if (cancelled) {
+                            break;
+                        }
+                        logger.warning("Backpack " + entry.getKey() + " left out of the backup: " + e.getMessage());
+                        failed.incrementAndGet();
+                    }
+                }
+                if (cancelled) {
+                    writer.abort();
+                    return -1;
+                }
+                return writer.finish();
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            } finally {
+                done.countDown();
+            }
+        }
+        
+        /**
+         * Makes sure the backup has read a backpack from the backend. Called by writers
+         * before they change it; returns at once if it isn't part of the backup or was read.
+         * 
+         * @param key The backpack's storage key
+         */
+        void preserve(String key) {
+            FutureTask<Void> read = fromStorage.get(key);
+            if (read == null) {
+                return;
+            }
+            read.run();
+            try {
+                read.get();
+            } catch (ExecutionException e) {
+                // copyFromStorage handles its own failures
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /** Backpacks that couldn't be read or written */
+        int failedCount() {
+            return failed.get();
+        }
+        
+        /**
+         * Stops the backup and waits (up to 30 seconds) for the backup thread to delete
+         * the unfinished archive. Called before the backend closes.
+         */
+        void cancel() {
+            cancelled = true;
+            try {
+                done.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private void copyFromStorage(String key) {
+            if (cancelled) {
+                return;
+            }
+            try {
+                BackpackSnapshot snapshot = store.load(key);
+                if (snapshot != null && !snapshot.contents().isEmpty()) {
+                    writer.add(key, snapshot);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!cancelled) {
+                    logger.warning("Backpack " + key + " left out of the backup: " + e.getMessage());
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+    
+    // ==================== COLD STORAGE ====================
+    // Backpacks nobody has opened for a long time, moved out of the storage backend
+    // into a few large compressed segments and brought back when they are opened.
+    
+    /**
+     * Archive of inactive backpacks: plugins/Backpacks/archive/cold-{number}.bpk.
+     * 
+     * <p>Each segment is a {@link BackupArchive} written by one archival pass
+     * ({@link ArchivalJob}): compressed, self-contained entries behind a sorted index. The
+     * backpacks of thousands of players who left long ago cost one file instead of one
+     * file (or row) each, and no {@link StorageManifest} entry or memory. Segments are
+     * never modified once written; a backpack is read back with a binary search of its
+     * segment's index.</p>
+     * 
+     * <p>A backpack is archived while a segment entry for it is live. At startup,
+     * {@link #open} and {@link #resolve} work out which entries are:</p>
+     * <ul>
+     *   <li>A newer segment's entry for a key replaces an older one's</li>
+     *   <li>Entries listed in released.log (one "{segment} {key}" line each) are dead</li>
+     *   <li>An entry for a key the storage backend still holds once the write-ahead log
+     *       has been replayed is dead - the backend's copy is newer (the backpack was
+     *       brought back). A pass that archived a backpack but didn't get to delete it
+     *       logged the archival, so the replay finishes the delete instead</li>
+     * </ul>
+     * 
+     * <p>Bringing a backpack back ({@link #release}) only forgets its entry in memory:
+     * the backpack is written to the backend again, which takes precedence. Only once it
+     * is deleted from the backend (emptied) could the old entry count again, so
+     * {@link #settle} appends the entry to released.log, forced to disk, right before the
+     * write-behind worker deletes it. Segments without live entries are deleted at startup.</p>
+     * 
+     * <p>Thread-safe: entries are added and released on the main thread, read by async
+     * loads and settled by write-behind workers.</p>
+     */
+    private static final class ColdStorage {
+        
+        /** File name prefix of archive segments */
+        private static final String SEGMENT_PREFIX = "cold-";
+        
+        /** Entries that are no longer live, appended before their backpack is deleted */
+        private static final String RELEASED_LOG = "released.log";
+        
+        private final Path directory;
+        private final Logger logger;
+        
+        /** Key → segment holding its live entry */
+        private final Map<String, Integer> live = new HashMap<>();
+        
+        /** Key → segments with entries for it that are no longer live but not in released.log yet */
+        private final Map<String, List<Integer>> unreleased = new HashMap<>();
+        
+        /** Highest segment number used (segments and released.log lines), never reused */
+        private int lastSegment;
+        
+        /** Serializes appends to released.log */
+        private final Object logLock = new Object();
+        
+        /** Segment files and released.log lines read by {@link #open}, until {@link #resolve} */
+        private TreeMap<Integer, Path> segmentFiles = new TreeMap<>();
+        private Map<Integer, Set<String>> releasedLines = new HashMap<>();
+        
+        /** Segments whose index can't be read - kept, never deleted */
+        private final Set<Integer> damaged = new HashSet<>();
+        
+        private ColdStorage(Path directory, Logger logger) {
+            this.directory = directory;
+            this.logger = logger;
+        }
+        
+        /**
+         * Reads the index of every segment and released.log.
+         * 
+         * <p>Entries aren't checked against the storage backend yet: the write-ahead log
+         * may still finish an archival whose backend delete a crash cut short, so nothing
+         * is deleted until {@link #resolve}. A segment whose index can't be read is kept
+         * (its backpacks aren't available until it is repaired) and reported.</p>
+         * 
+         * @param directory The archive directory (need not exist)
+         * @param logger Plugin logger
+         * @return The open archive
+         * @throws IOException If the directory or released.log can't be read
+         */
+        static ColdStorage open(Path directory, Logger logger) throws IOException {
+            ColdStorage cold = new ColdStorage(directory, logger);
+            if (!Files.isDirectory(directory)) {
+                return cold;
+            }
+            
+            // Segments in the order they were written; leftovers of an interrupted pass go
+            TreeMap<Integer, Path> segments = cold.segmentFiles;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".tmp")) {
+                        Files.deleteIfExists(file);
+                    } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(BackupArchive.EXTENSION)) {
+                        try {
+                            segments.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - BackupArchive.EXTENSION.length())), file);
+                        } catch (NumberFormatException e) {
+                            // Not a segment
+                        }
+                    }
+                }
+            }
+            
+            // A line torn by a crash matches no entry, which is what an unwritten line means
+            Map<Integer, Set<String>> released = cold.releasedLines;
+            Path log = directory.resolve(RELEASED_LOG);
+            if (Files.exists(log)) {
+                for (String line : Files.readAllLines(log, StandardCharsets.UTF_8)) {
+                    int space = line.indexOf(' ');
+                    try {
+                        int segment = Integer.parseInt(line.substring(0, Math.max(0, space)));
+                        released.computeIfAbsent(segment, s -> new HashSet<>()).add(line.substring(space + 1));
+                        cold.lastSegment = Math.max(cold.lastSegment, segment);
+                    } catch (NumberFormatException e) {
+                        // Torn line
+                    }
+                }
+            }
+            
+            for (Map.Entry<Integer, Path> segment : segments.entrySet()) {
+                int number = segment.getKey();
+                cold.lastSegment = Math.max(cold.lastSegment, number);
+                List<String> keys;
+                try {
+                    keys = BackupArchive.keys(segment.getValue());
+                } catch (IOException e) {
+                    logger.warning("Archive segment " + segment.getValue().getFileName() + " can't be read ("
+                        + e.getMessage() + ") - its backpacks are unavailable until it is restored from a backup");
+                    cold.damaged.add(number);
+                    continue;
+                }
+                Set<String> dead = released.getOrDefault(number, Collections.emptySet());
+                for (String key : keys) {
+                    if (!dead.contains(key)) {
+                        Integer older = cold.live.put(key, number);
+                        if (older != null) {
+                            cold.unrelease(key, older);
+                        }
+                    }
+                }
+            }
+            return cold;
+        }
+        
+        /**
+         * Drops the entries of backpacks the storage backend holds, once the write-ahead
+         * log has been replayed.
+         * 
+         * <p>Segments left with no live entry are deleted, and released.log is rewritten
+         * without their lines. Called once, after {@link #open}.</p>
+         * 
+         * @param stored Keys the storage backend holds - their entries are dead
+         * @throws IOException If a segment can't be deleted or released.log can't be written
+         */
+        synchronized void resolve(Set<String> stored) throws IOException {
+            TreeMap<Integer, Path> segments = segmentFiles;
+            Map<Integer, Set<String>> released = releasedLines;
+            segmentFiles = null;
+            releasedLines = null;
+            if (segments.isEmpty() && released.isEmpty()) {
+                return;
+            }
+            for (String key : stored) {
+                Integer segment = live.remove(key);
+                if (segment != null) {
+                    unrelease(key, segment);
+                }
+            }
+            
+            // Segments nothing lives in any more
+            Set<Integer> inUse = new HashSet<>(live.values());
+            Set<Integer> deleted = new HashSet<>();
+            for (Map.Entry<Integer, Path> segment : segments.entrySet()) {
+                if (!inUse.contains(segment.getKey()) && !damaged.contains(segment.getKey())) {
+                    Files.deleteIfExists(segment.getValue());
+                    deleted.add(segment.getKey());
+                }
+            }
+            if (!deleted.isEmpty() || released.keySet().stream().anyMatch(s -> !segments.containsKey(s))) {
+                // Their entries need no release any more - keep the lines of remaining segments
+                unreleased.values().forEach(list -> list.removeAll(deleted));
+                unreleased.values().removeIf(List::isEmpty);
+                StringBuilder kept = new StringBuilder();
+                for (Map.Entry<Integer, Set<String>> lines : released.entrySet()) {
+                    if (segments.containsKey(lines.getKey()) && !deleted.contains(lines.getKey())) {
+                        for (String key : lines.getValue()) {
+                            kept.append(lines.getKey()).append(' ').append(key).append('\n');
+                        }
+                    }
+                }
+                Path temp = directory.resolve(RELEASED_LOG + ".tmp");
+                Files.write(temp, kept.toString().getBytes(StandardCharsets.UTF_8));
+                AtomicFiles.move(temp, directory.resolve(RELEASED_LOG));
+            }
+            
+            if (!live.isEmpty()) {
+                logger.info("Archive: " + live.size() + " backpacks in " + inUse.size() + " segments");
+            }
+        }
+        
+        /** Whether a backpack is archived */
+        synchronized boolean contains(String key) {
+            return live.containsKey(key);
+        }
+        
+        /** Number of archived backpacks */
+        synchronized int size() {
+            return live.size();
+        }
+        
+        /** Number of segments holding archived backpacks */
+        synchronized int segmentCount() {
+            return new HashSet<>(live.values()).size();
+        }
+        
+        /** Key → segment of every archived backpack, for backups (segments never change) */
+        synchronized Map<String, Integer> entries() {
+            return new HashMap<>(live);
+        }
+        
+        /**
+         * Reserves the number of a new segment and creates the archive directory.
+         * 
+         * @return The segment number, for {@link #segmentPath(int)}
+         * @throws IOException If the directory can't be created
+         */
+        synchronized int newSegment() throws IOException {
+            Files.createDirectories(directory);
+            return ++lastSegment;
+        }
+        
+        /** The file of a segment */
+        Path segmentPath(int segment) {
+            return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segment, BackupArchive.EXTENSION));
+        }
+        
+        /**
+         * Reads an archived backpack. Any thread; the archive is left unchanged.
+         * 
+         * @param key The backpack's storage key
+         * @return Its contents, or null if it isn't archived
+         * @throws IOException If its segment can't be read or the entry is damaged
+         */
+        BackpackSnapshot read(String key) throws IOException {
+            Integer segment;
+            synchronized (this) {
+                segment = live.get(key);
+            }
+            return segment != null ? read(segment, key) : null;
+        }
+        
+        /**
+         * Reads one entry of a segment.
+         * 
+         * @param segment The segment number
+         * @param key The backpack's storage key
+         * @return Its contents
+         * @throws IOException If the segment can't be read, or doesn't hold the key
+         */
+        BackpackSnapshot read(int segment, String key) throws IOException {
+            BackpackSnapshot snapshot = BackupArchive.read(segmentPath(segment), key);
+            if (snapshot == null) {
+                throw new CorruptRecordException("Missing from archive segment " + segment);
+            }
+            return snapshot;
+        }
+        
+        /**
+         * Records the outcome of an archival pass once its segment is on disk. Main thread.
+         * 
+         * @param segment The new segment
+         * @param archived Keys whose entries are now live (deleted from the backend next)
+         * @param superseded Keys written to the segment but changed since - their entries are dead
+         */
+        synchronized void archived(int segment, Collection<String> archived, Collection<String> superseded) {
+            for (String key : archived) {
+                Integer older = live.put(key, segment);
+                if (older != null) {
+                    unrelease(key, older);
+                }
+            }
+            for (String key : superseded) {
+                unrelease(key, segment);
+            }
+        }
+        
+        /**
+         * Forgets a backpack's live entry because it is being written back to the
+         * backend. Main thread.
+         * 
+         * @param key The backpack's storage key
+         * @return false if it wasn't archived
+         */
+        synchronized boolean release(String key) {
+            Integer segment = live.remove(key);
+            if (segment == null) {
+                return false;
+            }
+            unrelease(key, segment);
+            return true;
+        }
+        
+        /**
+         * Appends a backpack's dead entries to released.log, forced to disk. Called by the
+         * write-behind worker before deleting the backpack from the backend; does nothing
+         * if it has none.
+         * 
+         * @param key The backpack's storage key
+         * @throws IOException If released.log can't be written - the delete must not happen
+         */
+        void settle(String key) throws IOException {
+            List<Integer> segments;
+            synchronized (this) {
+                segments = unreleased.remove(key);
+            }
+            if (segments == null) {
+                return;
+            }
+            try {
+                appendReleased(Map.of(key, segments));
+            } catch (IOException e) {
+                synchronized (this) {
+                    unreleased.computeIfAbsent(key, k -> new ArrayList<>()).addAll(segments);
+                }
+                throw e;
+            }
+        }
+        
+        /**
+         * Settles every dead entry, so the next start can delete segments they emptied.
+         * Called after the last write.
+         */
+        void close() {
+            Map<String, List<Integer>> remaining;
+            synchronized (this) {
+                remaining = new HashMap<>(unreleased);
+                unreleased.clear();
+            }
+            if (remaining.isEmpty()) {
+                return;
+            }
+            try {
+                appendReleased(remaining);
+            } catch (IOException e) {
+                // Harmless - the backend still holds these backpacks, so the next start finds them dead again
+                logger.warning("Failed to update archive/" + RELEASED_LOG + ": " + e.getMessage());
+            }
+        }
+        
+        private void unrelease(String key, int segment) {
+            unreleased.computeIfAbsent(key, k -> new ArrayList<>()).add(segment);
+        }
+        
+        private void appendReleased(Map<String, List<Integer>> entries) throws IOException {
+            StringBuilder lines = new StringBuilder();
+            for (Map.Entry<String, List<Integer>> entry : entries.entrySet()) {
+                for (int segment : entry.getValue()) {
+                    lines.append(segment).append(' ').append(entry.getKey()).append('\n');
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            synchronized (logLock) {
+                try (FileChannel channel = FileChannel.open(directory.resolve(RELEASED_LOG), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                }
+            }
+            synchronized (this) {
+                // Settled by the replay - keep the lines when resolve rewrites the file
+                if (releasedLines != null) {
+                    entries.forEach((key, segments) -> segments.forEach(segment ->
+                        releasedLines.computeIfAbsent(segment, s -> new HashSet<>()).add(key)));
+                }
+            }
+        }
+    }
+    
+    /**
+     * One archival pass: copies backpacks nobody opened for "storage.archive.after-days"
+     * into a new {@link ColdStorage} segment.
+     * 
+     * <p>Candidates are chosen on the main thread ({@link #archiveInactiveBackpacks}).
+     * {@link #run()} copies them into the segment in the background - from memory where
+     * they are loaded (those maps are never modified), otherwise from the backend - and
+     * forces the finished segment to disk. Only then, back on the main thread,
+     * {@link #finishArchival} archives the backpacks nothing touched in the meantime and
+     * deletes them from the backend. A crash before that leaves the backend's copy in
+     * place, which takes precedence over the segment.</p>
+     */
+    private static final class ArchivalJob {
+        
+        private final int segment;
+        private final BackupArchive.Writer writer;
+        private final Map<String, ManifestEntry> candidates;
+        private final Map<String, Map<Integer, ItemStack>> fromMemory;
+        private final BackpackStore store;
+        private final Logger logger;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled;
+        private volatile int failed;
+        private volatile long size;
+        
+        /**
+         * Creates the segment file. Main thread.
+         * 
+         * @param segment The segment number
+         * @param target The segment file
+         * @param candidates Key → manifest entry of each backpack to archive, as chosen
+         * @param fromMemory Contents of the candidates that are loaded
+         * @param store The storage backend, for the others
+         * @param logger Plugin logger
+         * @throws IOException If the segment can't be created
+         */
+        ArchivalJob(int segment, Path target, Map<String, ManifestEntry> candidates,
+                    Map<String, Map<Integer, ItemStack>> fromMemory, BackpackStore store, Logger logger) throws IOException {
+            this.segment = segment;
+            this.writer = new BackupArchive.Writer(target);
+            this.candidates = candidates;
+            this.fromMemory = fromMemory;
+            this.store = store;
+            this.logger = logger;
+        }
+        
+        int segment() {
+            return segment;
+        }
+        
+        /** The manifest entry a candidate was chosen with */
+        ManifestEntry candidate(String key) {
+            return candidates.get(key);
+        }
+        
+        /** The in-memory contents a candidate was copied from, or null if it was read from the backend */
+        Map<Integer, ItemStack> memory(String key) {
+            return fromMemory.get(key);
+        }
+        
+        /** Backpacks that couldn't be read and stay in the backend */
+        int failedCount() {
+            return failed;
+        }
+        
+        /** Size of the finished segment in bytes */
+        long size() {
+            return size;
+        }
+        
+        /**
+         * Writes the segment. Runs on an async task.
+         * 
+         * @return Keys in the finished segment - empty if the pass was cancelled or had
+         *         nothing to archive (no segment is left behind then)
+         * @throws IOException If the segment can't be written
+         */
+        Set<String> run() throws IOException {
+            Set<String> written = new HashSet<>();
+            try {
+                for (Map.Entry<String, ManifestEntry> candidate : candidates.entrySet()) {
+                    if (cancelled) {
+                        break;
+                    }
+                    String key = candidate.getKey();
+                    try {
+                        Map<Integer, ItemStack> memory = fromMemory.get(key);
+                        BackpackSnapshot snapshot = memory != null
+                            ? new BackpackSnapshot(candidate.getValue().capacity(), memory) : store.load(key);
+                        if (snapshot != null && !snapshot.contents().isEmpty()) {
+                            writer.add(key, snapshot);
+                            written.add(key);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        if (cancelled) {
+                            break;
+                        }
+                        // Stays in the backend, where opening it or the scrubber reports the damage
+                        logger.warning("Backpack " + key + " was not archived: " + e.getMessage());
+                        failed++;
+                    }
+                }
+                if (cancelled || written.isEmpty()) {
+                    writer.abort();
+                    return Collections.emptySet();
+                }
+                size = writer.finish();
+                return written;
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            } finally {
+                done.countDown();
+            }
+        }
+        
+        /**
+         * Stops the pass and waits (up to 30 seconds) for the unfinished segment to be
+         * deleted. Called before the backend closes.
+         */
+        void cancel() {
+            cancelled = true;
+            try {
+                done.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    // ==================== STORAGE MANIFEST ====================
+    // A single small file that answers "which backpacks exist and what are they like"
+    // without listing or opening any backpack data.
+    
+    /**
+     * Metadata kept in the {@link StorageManifest} for one stored backpack.
+     * 
+     * @param capacity Inventory size in slots at the last save
+     * @param itemCount Total items (sum of stack amounts) at the last save
+     * @param byteSize Size of the stored record in bytes (0 until the first write completes)
+     * @param lastModified Time of the last save, in epoch milliseconds
+     * @param lastOpened Time the backpack was last opened, in epoch milliseconds (0 = never
+     *        since the manifest was created)
+     * @param dataVersion Minecraft DataVersion the stored record was written with (0 = unknown,
+     *        treated as outdated)
+     */
+    private record ManifestEntry(int capacity, int itemCount, int byteSize, long lastModified, long lastOpened,
+                                 int dataVersion) {
+        
+        ManifestEntry withByteSize(int byteSize) {
+            return new ManifestEntry(capacity, itemCount, byteSize, lastModified, lastOpened, dataVersion);
+        }
+        
+        ManifestEntry withLastOpened(long lastOpened) {
+            return new ManifestEntry(capacity, itemCount, byteSize, lastModified, lastOpened, dataVersion);
+        }
+        
+        ManifestEntry withDataVersion(int dataVersion) {
+            return new ManifestEntry(capacity, itemCount, byteSize, lastModified, lastOpened, dataVersion);
+        }
+    }
+    
+    /**
+     * Persistent index of every stored backpack: plugins/Backpacks/manifest.dat.
+     * 
+     * <p>Startup reads this one file (a single sequential read) instead of listing the
+     * storage directory, and existence checks are a map lookup. The manifest is updated
+     * in memory with every save and open and written back periodically and on shutdown.</p>
+     * 
+     * <p>File layout (big-endian):</p>
+     * <pre>
+     * int    magic      0x42504D46 ("BPMF")
+     * byte   version    1
+     * byte   clean      1 if written by a clean shutdown, 0 while the server runs
+     * UTF    backend    storage backend the manifest describes
+     * int    count
+     * count x {
+     *   UTF    key
+     *   ushort capacity
+     *   int    itemCount
+     *   int    byteSize
+     *   long   lastModified
+     *   long   lastOpened
+     * }
+     * int    CRC32 of everything above
+     * </pre>
+     * 
+     * <p>Crash safety: right after opening, the manifest is rewritten with clean = 0, and
+     * only {@link #close()} writes clean = 1. A manifest that is missing, fails its
+     * checksum, describes another backend, or was not closed cleanly is rebuilt from the
+     * storage backend with {@link BackpackStore#stat(String)} - last-opened times, which
+     * the backend doesn't know, are carried over from the old manifest when it is readable.
+     * Every write goes to a temporary file that is then renamed over the old one.</p>
+     * 
+     * <p>Thread-safe: saves are recorded on the main thread, stored sizes on writer
+     * threads, and periodic writes run on a Bukkit async task.</p>
+     */
+    private static final class StorageManifest {
+        
+        /** "BPMF" - identifies a manifest file. */
+        private static final int MAGIC = 0x42504D46;
+        
+        /** Current manifest layout version. 2 added each entry's dataVersion. */
+        private static final int VERSION = 2;
+        
+        private final Path file;
+        private final String backend;
+        private final Logger logger;
+        
+        /** Key → metadata for every stored backpack */
+        private final ConcurrentHashMap<String, ManifestEntry> entries = new ConcurrentHashMap<>();
+        
+        /** Set whenever an entry changes; cleared when the manifest is written */
+        private final AtomicBoolean modified = new AtomicBoolean();
+        
+        /** Opens since the last {@link #drainOpened()}, key → time */
+        private final ConcurrentHashMap<String, Long> openedSinceDrain = new ConcurrentHashMap<>();
+        
+        /** Set once {@link #close()} wrote the clean marker - nothing may overwrite it. Guarded by this. */
+        private boolean closed;
+        
+        private StorageManifest(Path file, String backend, Logger logger) {
+            this.file = file;
+            this.backend = backend;
+            this.logger = logger;
+        }
+        
+        /**
+         * Reads the manifest, rebuilding it from the backend if it can't be trusted, and
+         * marks it as in use (clean = 0) on disk.
+         * 
+         * @param file The manifest file
+         * @param backend Name of the storage backend in use
+         * @param store The storage backend, used for rebuilds
+         * @param logger Plugin logger
+         * @return The open manifest
+         * @throws IOException If a rebuild is needed and the backend can't be listed
+         */
+        static StorageManifest open(Path file, String backend, BackpackStore store, Logger logger) throws IOException {
+            StorageManifest manifest = new StorageManifest(file, backend, logger);
+            
+            String rebuildReason = null;
+            if (!Files.exists(file)) {
+                rebuildReason = "no manifest found";
+            } else {
+                try {
+                    boolean clean = manifest.read();
+                    if (!clean) {
+                        rebuildReason = "server did not shut down cleanly";
+                    }
+                } catch (IOException e) {
+                    rebuildReason = e.getMessage();
+                }
+            }
+            
+            if (rebuildReason != null) {
+                manifest.rebuild(store, rebuildReason);
+            }
+            
+            // From here until close() the file on disk says "not cleanly closed"
+            manifest.write(false);
+            return manifest;
+        }
+        
+        /** Whether a backpack is stored under this key */
+        boolean contains(String key) {
+            return entries.containsKey(key);
+        }
+        
+        /** Metadata for a key, or null if nothing is stored under it */
+        ManifestEntry get(String key) {
+            return entries.get(key);
+        }
+        
+        /** Snapshot of all stored keys */
+        Set<String> keys() {
+            return new HashSet<>(entries.keySet());
+        }
+        
+        /** Number of stored backpacks */
+        int size() {
+            return entries.size();
+        }
+        
+        /**
+         * Records a save of a stored backpack as it is queued. A backpack storage doesn't
+         * hold yet is only recorded once its write completes
+         * ({@link #recordStored(String, BackpackSnapshot, int)}) - a write that fails must
+         * not leave the manifest claiming it exists.
+         */
+        void recordSave(String key, BackpackSnapshot snapshot) {
+            long now = System.currentTimeMillis();
+            if (entries.computeIfPresent(key, (k, old) -> new ManifestEntry(snapshot.capacity(), snapshot.itemCount(),
+                    old.byteSize(), now, old.lastOpened(), BackpackCodec.currentDataVersion())) != null) {
+                modified.set(true);
+            }
+        }
+        
+        /** Records that a backpack was emptied and is being removed from the backend */
+        void recordDelete(String key) {
+            if (entries.remove(key) != null) {
+                modified.set(true);
+            }
+        }
+        
+        /**
+         * Records a completed write and the size it occupies in the backend, adding the
+         * backpack if this was its first write. Writes of a key complete in order, so the
+         * last one decides whether it exists.
+         */
+        void recordStored(String key, BackpackSnapshot snapshot, int byteSize) {
+            long now = System.currentTimeMillis();
+            entries.compute(key, (k, old) -> old != null ? old.withByteSize(byteSize)
+                : new ManifestEntry(snapshot.capacity(), snapshot.itemCount(), byteSize, now, 0,
+                    BackpackCodec.currentDataVersion()));
+            modified.set(true);
+        }
+        
+        /** Records the DataVersion a stored backpack's record turned out to have when it was read */
+        void recordDataVersion(String key, int dataVersion) {
+            if (entries.computeIfPresent(key, (k, old) -> old.withDataVersion(dataVersion)) != null) {
+                modified.set(true);
+            }
+        }
+        
+        /** Number of stored backpacks whose records predate the server's DataVersion */
+        int outdatedCount() {
+            int outdated = 0;
+            for (ManifestEntry entry : entries.values()) {
+                if (BackpackCodec.isOutdated(entry.dataVersion())) {
+                    outdated++;
+                }
+            }
+            return outdated;
+        }
+        
+        /** Records that a stored backpack was opened */
+        void recordOpen(String key) {
+            long now = System.currentTimeMillis();
+            if (entries.computeIfPresent(key, (k, old) -> old.withLastOpened(now)) != null) {
+                modified.set(true);
+                openedSinceDrain.put(key, now);
+            }
+        }
+        
+        /**
+         * Takes the opens recorded since the last call, for backends that index them
+         * (see {@link BackpackStore#recordOpens(Map)}).
+         * 
+         * @return Key → time of the latest open
+         */
+        Map<String, Long> drainOpened() {
+            Map<String, Long> drained = new HashMap<>();
+            for (Iterator<Map.Entry<String, Long>> it = openedSinceDrain.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Long> entry = it.next();
+                drained.put(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+            return drained;
+        }
+        
+        /** Copy of every entry, for admin queries */
+        Map<String, ManifestEntry> entries() {
+            return new HashMap<>(entries);
+        }
+        
+        /**
+         * Writes the manifest if anything changed since the last write.
+         * Called periodically from an async task.
+         */
+        void flush() {
+            if (modified.getAndSet(false)) {
+                try {
+                    write(false);
+                } catch (IOException e) {
+                    // Try again next interval
+                    modified.set(true);
+                    logger.warning("Failed to save storage manifest: " + e.getMessage());
+                }
+            }
+        }
+        
+        /**
+         * Writes the manifest marked as cleanly closed. Must be called after the last
+         * save has reached the storage backend.
+         * 
+         * <p>A periodic {@link #flush()} still running (cancelling its task doesn't stop
+         * it) finishes its write first - both hold this manifest's lock - and any flush
+         * after this one writes nothing, so the clean marker stays.</p>
+         * 
+         * @throws IOException If the manifest can't be written
+         */
+        synchronized void close() throws IOException {
+            write(true);
+            closed = true;
+        }
+        
+        /**
+         * Loads the manifest file into {@link #entries}.
+         * 
+         * @return Whether the file was written by a clean shutdown
+         * @throws IOException If the file is unreadable, corrupt, or describes another backend
+         */
+        private boolean read() throws IOException {
+            // One sequential read of the whole file
+            byte[] data = Files.readAllBytes(file);
+            if (data.length < 4) {
+                throw new IOException("manifest is truncated");
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(data, 0, data.length - 4);
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (in.getInt(data.length - 4) != (int) checksum.getValue()) {
+                throw new IOException("manifest checksum mismatch");
+            }
+            
+            try {
+                if (in.getInt() != MAGIC) {
+                    throw new IOException("not a manifest file");
+                }
+                int version = in.get() & 0xFF;
+                if (version != 1 && version != VERSION) {
+                    throw new IOException("unsupported manifest version " + version);
+                }
+                boolean clean = in.get() == 1;
+                String fileBackend = readString(in);
+                
+                int count = in.getInt();
+                Map<String, ManifestEntry> loaded = new HashMap<>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    String key = readString(in);
+                    // Version 1 manifests predate DataVersion stamps - their records have none either
+                    loaded.put(key, new ManifestEntry(in.getShort() & 0xFFFF, in.getInt(), in.getInt(),
+                        in.getLong(), in.getLong(), version >= 2 ? in.getInt() : 0));
+                }
+                
+                // Keep what was read even if the backend differs, so a rebuild can
+                // carry last-opened times over
+                entries.putAll(loaded);
+                if (!fileBackend.equals(backend)) {
+                    throw new IOException("manifest describes the " + fileBackend + " backend");
+                }
+                return clean;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("manifest is truncated", e);
+            }
+        }
+        
+        /**
+         * Recreates every entry from the storage backend.
+         * 
+         * @param store The storage backend
+         * @param reason Why the rebuild is needed (logged)
+         * @throws IOException If the backend can't be listed
+         */
+        private void rebuild(BackpackStore store, String reason) throws IOException {
+            logger.info("Rebuilding storage manifest (" + reason + ")...");
+            long start = System.currentTimeMillis();
+            
+            Map<String, ManifestEntry> previous = new HashMap<>(entries);
+            entries.clear();
+            
+            for (String key : store.listKeys()) {
+                try {
+                    ManifestEntry entry = store.stat(key);
+                    if (entry == null) {
+                        continue;
+                    }
+                    // Most backends don't know when a backpack was last opened
+                    ManifestEntry old = previous.get(key);
+                    if (old != null && old.lastOpened() > entry.lastOpened()) {
+                        entry = entry.withLastOpened(old.lastOpened());
+                    }
+                    entries.put(key, entry);
+                } catch (IOException e) {
+                    // Still list the backpack - opening it reports the damage in detail
+                    logger.warning("Failed to read metadata of backpack " + key + ": " + e.getMessage());
+                    entries.put(key, new ManifestEntry(0, 0, 0, 0, 0, 0));
+                }
+            }
+            
+            logger.info("Rebuilt storage manifest: " + entries.size() + " backpacks in "
+                + (System.currentTimeMillis() - start) + "ms");
+        }
+        
+        /**
+         * Writes the manifest to a temporary file and renames it over the old one.
+         * 
+         * @param clean Whether to mark the manifest as cleanly closed
+         * @throws IOException If the file can't be written
+         */
+        private synchronized void write(boolean clean) throws IOException {
+            if (closed) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 80);
+            DataOutputStream out = new DataOutputStream(bytes);
+            
+            // Snapshot first so the count always matches the entries written
+            List<Map.Entry<String, ManifestEntry>> snapshot = new ArrayList<>(entries.entrySet());
+            
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(clean ? 1 : 0);
+            out.writeUTF(backend);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, ManifestEntry> e : snapshot) {
+                ManifestEntry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeShort(entry.capacity());
+                out.writeInt(entry.itemCount());
+                out.writeInt(entry.byteSize());
+                out.writeLong(entry.lastModified());
+                out.writeLong(entry.lastOpened());
+                out.writeInt(entry.dataVersion());
+            }
+            out.flush();
+            
+            CRC32 checksum = new CRC32();
+            checksum.update(bytes.toByteArray());
+            out.writeInt((int) checksum.getValue());
+            out.flush();
+            
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, bytes.toByteArray());
+            AtomicFiles.move(temp, file);
+        }
+        
+        /** Reads a string written by {@link DataOutputStream#writeUTF(String)} */
+        private static String readString(ByteBuffer in) throws IOException {
+            int length = in.getShort() & 0xFFFF;
+            byte[] utf = new byte[length];
+            in.get(utf);
+            // writeUTF uses modified UTF-8, identical to UTF-8 for keys and backend names
+            return new String(utf, StandardCharsets.UTF_8);
+        }
+    }
+    
+    // ==================== DURABILITY ====================
+    // Crash-safe file replacement and the policy for when writes are forced to disk.
+    
+    /**
+     * When saved data is forced from the OS cache to the disk.
+     * 
+     * <p>Configuration: "storage.durability" in config.yml.</p>
+     */
+    private enum Durability {
+        
+        /** Never force - a power loss can lose the last few seconds of saves (the OS decides) */
+        NONE,
+        
+        /** Force in batches every "storage.group-commit-interval-ms" - one directory sync per batch */
+        GROUP,
+        
+        /** Force every save before it is considered written - safest, slowest */
+        ALWAYS
+    }
+    
+    /**
+     * Static helpers for replacing files crash-safely.
+     * 
+     * <p>Pattern: write a temporary file next to the target, optionally {@link #force}
+     * it, {@link #move} it over the target, optionally {@link #forceDirectory} the parent
+     * so the rename itself survives a power loss.</p>
+     */
+    private static final class AtomicFiles {
+        
+        private AtomicFiles() {
+        }
+        
+        /**
+         * Renames a file over another in one atomic step, so readers and crashes see
+         * either the old or the new file. Falls back to a plain replace on file systems
+         * without atomic rename.
+         */
+        static void move(Path source, Path target) throws IOException {
+            try {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        
+        /** Forces a file's contents to disk */
+        static void force(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+        
+        /**
+         * Forces a directory's entries (creations, renames, deletions) to disk.
+         * 
+         * <p>Not possible on every platform (Windows can't open directories); there the
+         * call does nothing, and NTFS journals renames on its own.</p>
+         */
+        static void forceDirectory(Path directory) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Directory sync unsupported on this platform
+            }
+        }
+    }
+    
+    /**
+     * Batches the disk syncs of many saves into one commit per time window.
+     * 
+     * <p>Forcing every save to disk on its own costs a sync per save (often several
+     * milliseconds each). In {@link Durability#GROUP} mode saves instead hand their work
+     * here, and a dedicated thread ("Backpacks-Commit") commits everything that arrived
+     * during the last window at once:</p>
+     * <ol>
+     *   <li>Force every pack-file channel and delta journal written to since the last commit</li>
+     *   <li>Force every staged temporary file, then rename it over its target and delete
+     *       the files it makes obsolete (other-format file, delta journal)</li>
+     *   <li>Force each affected directory once - one directory sync covers every rename
+     *       and deletion of the window</li>
+     * </ol>
+     * 
+     * <p>A crash loses at most the saves of the last window; every backpack file is
+     * always either its previous or its new version. Until a staged file is committed,
+     * {@link #stagedFile(Path)} lets readers find it so nobody reads the older target.</p>
+     * 
+     * <p>If a key is staged again before its previous file was committed, only the
+     * newest version gets written. The previous temporary file is kept until that commit
+     * has put the newest one in place - a reader may have located it already, and once it
+     * is gone it falls back to the target, which must not be older by then.</p>
+     * 
+     * <p>A save counts as written once it is staged, so a file that fails to commit is
+     * reported to the failure listener (the {@link WriteBehindQueue}), which marks the
+     * key failed as if its write had thrown - unless a newer version is already staged.</p>
+     */
+    private static final class GroupCommitter {
+        
+        /**
+         * A written temporary file waiting to replace its target.
+         * 
+         * @param key The backpack the file holds
+         * @param snapshot The contents written to it
+         * @param temp The temporary file
+         * @param target The file it replaces
+         * @param obsolete Files to delete once the target is in place
+         * @param superseded Temporary files of older versions, deleted after this one's commit
+         * @param outcome Told whether the commit put the file in place
+         */
+        private record StagedFile(String key, BackpackSnapshot snapshot, Path temp, Path target,
+                                  List<Path> obsolete, List<Path> superseded, Consumer<Boolean> outcome) {}
+        
+        private final Logger logger;
+        
+        /** Told about every staged file that couldn't be committed */
+        private final BiConsumer<String, BackpackSnapshot> failureListener;
+        
+        /** Guards {@link #staged} and {@link #committing} */
+        private final Object lock = new Object();
+        
+        /** Files staged since the last commit started, by target */
+        private Map<Path, StagedFile> staged = new LinkedHashMap<>();
+        
+        /** Files of the commit in progress, by target - still visible to readers */
+        private Map<Path, StagedFile> committing = Collections.emptyMap();
+        
+        /** Pack-file channels written to since the last commit */
+        private final Set<FileChannel> dirtyChannels = ConcurrentHashMap.newKeySet();
+        
+        /** Files appended to (delta journals) since the last commit */
+        private final Set<Path> dirtyFiles = ConcurrentHashMap.newKeySet();
+        
+        /** Directories with deletions since the last commit */
+        private final Set<Path> dirtyDirectories = ConcurrentHashMap.newKeySet();
+        
+        /** Runs {@link #commit()} every interval */
+        private final ScheduledExecutorService thread;
+        
+        /**
+         * @param intervalMillis Length of one commit window in milliseconds
+         * @param failureListener Told the key and contents of each staged file that
+         *        couldn't be committed, on the committing thread
+         * @param logger Plugin logger
+         */
+        GroupCommitter(long intervalMillis, BiConsumer<String, BackpackSnapshot> failureListener, Logger logger) {
+            this.logger = logger;
+            this.failureListener = failureListener;
+            this.thread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread commitThread = new Thread(runnable, "Backpacks-Commit");
+                commitThread.setDaemon(true);
+                return commitThread;
+            });
+            thread.scheduleWithFixedDelay(this::commit, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        
+        /**
+         * Queues a written temporary file to be forced and renamed over its target in
+         * the next commit.
+         * 
+         * @param key The backpack the file holds
+         * @param snapshot The contents written to it, reported if the commit fails
+         * @param temp The temporary file
+         * @param target The file it replaces
+         * @param obsolete Files to delete once the target is in place
+         * @param outcome Told on the committing thread whether the file was put in place,
+         *        while readers still find it staged; not called if a newer version or a
+         *        discard replaces it first
+         */
+        void stage(String key, BackpackSnapshot snapshot, Path temp, Path target, List<Path> obsolete,
+                   Consumer<Boolean> outcome) {
+            synchronized (lock) {
+                List<Path> superseded = new ArrayList<>();
+                StagedFile previous = staged.get(target);
+                if (previous != null) {
+                    superseded.addAll(previous.superseded());
+                    superseded.add(previous.temp());
+                }
+                staged.put(target, new StagedFile(key, snapshot, temp, target, obsolete, superseded, outcome));
+            }
+        }
+        
+        /** Queues a channel to be forced in the next commit */
+        void markDirty(FileChannel channel) {
+            dirtyChannels.add(channel);
+        }
+        
+        /** Queues a file to be forced in the next commit */
+        void markDirty(Path file) {
+            dirtyFiles.add(file);
+        }
+        
+        /** Queues a directory to be forced in the next commit (makes deletions durable) */
+        void markDirectoryDirty(Path directory) {
+            dirtyDirectories.add(directory);
+        }
+        
+        /**
+         * Drops a staged file without committing it. Synchronized like {@link #commit()},
+         * so a commit already renaming the file finishes first and the caller can then
+         * delete the target safely.
+         */
+        synchronized void discard(Path target) {
+            StagedFile dropped;
+            synchronized (lock) {
+                dropped = staged.remove(target);
+            }
+            if (dropped != null) {
+                deleteTemporary(dropped.temp());
+                dropped.superseded().forEach(GroupCommitter::deleteTemporary);
+            }
+        }
+        
+        /** Deletes a temporary file nobody needs any more */
+        private static void deleteTemporary(Path temp) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                // Removed at the next startup
+            }
+        }
+        
+        /**
+         * Returns the staged temporary file that will replace a target, or null if
+         * nothing is waiting for it. The file may be renamed away right after this
+         * returns; callers fall back to the target.
+         */
+        Path stagedFile(Path target) {
+            synchronized (lock) {
+                StagedFile file = staged.get(target);
+                if (file == null) {
+                    file = committing.get(target);
+                }
+                return file != null ? file.temp() : null;
+            }
+        }
+        
+        /**
+         * Commits right away on the calling thread, for callers that need their writes on
+         * disk before they continue (write-ahead log checkpoints).
+         */
+        void commitNow() {
+            commit();
+        }
+        
+        /**
+         * Stops the commit thread and commits whatever is still staged. Called on
+         * shutdown after the last save.
+         */
+        void close() {
+            thread.shutdown();
+            try {
+                thread.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            commit();
+        }
+        
+        /**
+         * Commits everything staged and marked dirty since the last commit.
+         * Synchronized so the final commit from {@link #close()} can't overlap a
+         * periodic one.
+         */
+        private synchronized void commit() {
+            Map<Path, StagedFile> batch;
+            synchronized (lock) {
+                batch = staged;
+                staged = new LinkedHashMap<>();
+                committing = batch;
+            }
+            
+            for (Iterator<FileChannel> it = dirtyChannels.iterator(); it.hasNext(); ) {
+                FileChannel channel = it.next();
+                it.remove();
+                try {
+                    channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // Segment was compacted away (its live data was forced when copied) or the store closed
+                } catch (IOException e) {
+                    logger.warning("Failed to sync pack segment: " + e.getMessage());
+                }
+            }
+            
+            for (Iterator<Path> it = dirtyFiles.iterator(); it.hasNext(); ) {
+                Path file = it.next();
+                it.remove();
+                try {
+                    AtomicFiles.force(file);
+                } catch (NoSuchFileException e) {
+                    // Journal was folded into a full save and deleted meanwhile
+                } catch (IOException e) {
+                    logger.warning("Failed to sync " + file.getFileName() + ": " + e.getMessage());
+                }
+            }
+            
+            Set<Path> directories = new HashSet<>();
+            for (Iterator<Path> it = dirtyDirectories.iterator(); it.hasNext(); ) {
+                directories.add(it.next());
+                it.remove();
+            }
+            for (StagedFile file : batch.values()) {
+                try {
+                    AtomicFiles.force(file.temp());
+                    AtomicFiles.move(file.temp(), file.target());
+                    for (Path obsolete : file.obsolete()) {
+                        Files.deleteIfExists(obsolete);
+                    }
+                    directories.add(file.target().getParent());
+                    file.outcome().accept(true);
+                } catch (IOException e) {
+                    // The target keeps its previous version; the temp file is removed at next startup
+                    logger.warning("Failed to commit " + file.target().getFileName() + ": " + e.getMessage());
+                    file.outcome().accept(false);
+                    boolean newerStaged;
+                    synchronized (lock) {
+                        newerStaged = staged.containsKey(file.target());
+                    }
+                    if (!newerStaged) {
+                        failureListener.accept(file.key(), file.snapshot());
+                    }
+                }
+                // Readers that found an older version now find this one (or the target)
+                file.superseded().forEach(GroupCommitter::deleteTemporary);
+            }
+            
+            // One directory sync per window, however many files were renamed
+            for (Path directory : directories) {
+                AtomicFiles.forceDirectory(directory);
+            }
+            
+            synchronized (lock) {
+                committing = Collections.emptyMap();
+            }
+        }
+    }
+    
+    /**
+     * Write-ahead log of backpack changes: plugins/Backpacks/wal/wal-NNNNNNNN.log.
+     * 
+     * <p>Saves only reach storage when a backpack is closed, so a crash used to lose
+     * everything changed in backpacks that were open at the time. Every change is now
+     * appended here first - small sequential writes, cheap enough to make often:</p>
+     * <ul>
+     *   <li>The slots players changed in open backpacks, every
+     *       "storage.wal.flush-interval-ticks"</li>
+     *   <li>Every save handed to the {@link WriteBehindQueue}</li>
+     * </ul>
+     * 
+     * <p>Segment layout (big-endian): int magic "BPWL", byte version, then records:</p>
+     * <pre>
+     * int    length     of everything after the checksum
+     * int    CRC32C     of everything after it
+     * long   sequence   one higher than the previous record's
+     * byte   type       1 = full contents, 2 = changed slots only, 3 = archived
+     * ushort keyLength
+     * byte[] key        UTF-8
+     * byte[] delta      {@link BackpackCodec#encodeDelta} - for type 1 every occupied slot,
+     *                   for type 3 no slots (the backpack left storage for the archive)
+     * </pre>
+     * 
+     * <p>Records are self-contained (no dictionary or item store references), so a log
+     * replays even after those change. On startup, {@link #recover()} reads the segments
+     * of the previous run; the plugin applies them on top of storage and writes the
+     * results before anything is opened. Reading stops at the first damaged or
+     * out-of-sequence record - everything before it is intact.</p>
+     * 
+     * <p>Ordering: a log record must never be replayed over a newer write, so
+     * {@link #sync()} runs before every storage write - the write-behind workers force
+     * the log before they write, which makes one fsync cover all records appended
+     * since the previous one (group commit). Periodic records are forced in the
+     * background after each flush. With {@link Durability#NONE} nothing is forced; the
+     * log still survives a JVM crash, just not a power loss.</p>
+     * 
+     * <p>Checkpoints: {@link #rotate()} starts a new segment; once every save logged in
+     * the older segments is in storage (and open backpacks were logged again in full),
+     * {@link #discardBefore(int)} deletes them.</p>
+     * 
+     * <p>Threading: {@link #append}, {@link #rotate()} and {@link #recover()} run on the
+     * main thread; {@link #sync()} on any thread.</p>
+     */
+    private static final class WriteAheadLog {
+        
+        /** Segment file magic - "BPWL" in ASCII */
+        private static final int MAGIC = 0x4250574C;
+        
+        /** Current segment layout version */
+        private static final int VERSION = 1;
+        
+        /** Magic + version */
+        private static final int SEGMENT_HEADER_SIZE = 5;
+        
+        /** Length + checksum */
+        private static final int FRAME_HEADER_SIZE = 8;
+        
+        private static final byte TYPE_FULL = 1;
+        private static final byte TYPE_DELTA = 2;
+        private static final byte TYPE_ARCHIVED = 3;
+        
+        /**
+         * One record read back by {@link #recover()}.
+         * 
+         * @param key The backpack's storage key
+         * @param full Whether the delta holds the complete contents
+         * @param archived Whether the backpack was moved to the archive - its contents are
+         *        empty, but its archive entry must survive the replay
+         * @param delta Slot changes in {@link BackpackCodec#encodeDelta} format
+         */
+        record Entry(String key, boolean full, boolean archived, byte[] delta) {}
+        
+        /** One log file */
+        private static final class Segment {
+            final int id;
+            final Path path;
+            final FileChannel channel;
+            /** Bytes written - set by the main thread after each append */
+            volatile long appended;
+            /** Bytes known to be on disk, guarded by {@link WriteAheadLog#forceLock} */
+            long forced;
+            
+            Segment(int id, Path path, FileChannel channel, long size) {
+                this.id = id;
+                this.path = path;
+                this.channel = channel;
+                this.appended = size;
+                this.forced = size;
+            }
+        }
+        
+        private final Path directory;
+        private final Durability durability;
+        private final Logger logger;
+        
+        /** Every segment, oldest first */
+        private final List<Segment> segments = new CopyOnWriteArrayList<>();
+        
+        /** Guards forcing, deleting and closing segments */
+        private final Object forceLock = new Object();
+        
+        /** Segment appended to (main thread) */
+        private Segment active;
+        
+        /** Sequence number of the next record (main thread) */
+        private long nextSequence = 1;
+        
+        /** Set by {@link #close(boolean)}, guarded by {@link #forceLock} */
+        private boolean closed;
+        
+        private final AtomicLong recordsAppended = new AtomicLong();
+        
+        private WriteAheadLog(Path directory, Durability durability, Logger logger) {
+            this.directory = directory;
+            this.durability = durability;
+            this.logger = logger;
+        }
+        
+        /**
+         * Opens the log, keeping the previous run's segments for {@link #recover()} and
+         * starting a new segment for appends.
+         * 
+         * @param directory The wal directory
+         * @param create Whether to create the log if the directory doesn't exist
+         * @param durability When appends are forced to disk
+         * @param logger Plugin logger
+         * @return The log, or null if it doesn't exist and create is false
+         * @throws IOException If the directory or a segment can't be opened
+         */
+        static WriteAheadLog open(Path directory, boolean create, Durability durability, Logger logger) throws IOException {
+            if (!create && !Files.isDirectory(directory)) {
+                return null;
+            }
+            Files.createDirectories(directory);
+            WriteAheadLog log = new WriteAheadLog(directory, durability, logger);
+            
+            TreeMap<Integer, Path> existing = new TreeMap<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    try {
+                        existing.put(Integer.parseInt(name.substring(4, name.length() - 4)), file);
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+            for (Map.Entry<Integer, Path> entry : existing.entrySet()) {
+                FileChannel channel = FileChannel.open(entry.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                log.segments.add(new Segment(entry.getKey(), entry.getValue(), channel, channel.size()));
+            }
+            log.active = log.createSegment(existing.isEmpty() ? 1 : existing.lastKey() + 1);
+            return log;
+        }
+        
+        /**
+         * Reads every record of the segments before the active one - the previous run's
+         * log - in order. Call once, before the first append.
+         * 
+         * @return The intact records, oldest first
+         * @throws IOException If a segment can't be read
+         */
+        List<Entry> recover() throws IOException {
+            List<Entry> entries = new ArrayList<>();
+            long expected = -1;
+            read:
+            for (Segment segment : segments) {
+                if (segment == active) {
+                    break;
+                }
+                ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(segment.path));
+                if (in.remaining() < SEGMENT_HEADER_SIZE || in.getInt() != MAGIC || in.get() != VERSION) {
+                    logger.warning("Write-ahead log " + segment.path.getFileName() + " is not readable; replay stops before it");
+                    break;
+                }
+                while (in.remaining() >= FRAME_HEADER_SIZE) {
+                    int start = in.position();
+                    int length = in.getInt();
+                    int crc = in.getInt();
+                    boolean intact = length >= 11 && length <= in.remaining();
+                    if (intact) {
+                        CRC32C checksum = new CRC32C();
+                        checksum.update(in.array(), in.position(), length);
+                        intact = (int) checksum.getValue() == crc;
+                    }
+                    long sequence = intact ? in.getLong() : -1;
+                    if (!intact || (expected != -1 && sequence != expected)) {
+                        // Normal for the last record written before a crash
+                        logger.warning("Write-ahead log " + segment.path.getFileName() + " ends with an incomplete record at byte "
+                            + start + "; replay stops there");
+                        break read;
+                    }
+                    expected = sequence + 1;
+                    byte type = in.get();
+                    byte[] key = new byte[in.getShort() & 0xFFFF];
+                    in.get(key);
+                    byte[] delta = new byte[length - 11 - key.length];
+                    in.get(delta);
+                    entries.add(new Entry(new String(key, StandardCharsets.UTF_8), type != TYPE_DELTA,
+                        type == TYPE_ARCHIVED, delta));
+                }
+            }
+            // Sequence numbers continue, so a log kept across restarts still reads in order
+            if (expected != -1) {
+                nextSequence = expected;
+            }
+            return entries;
+        }
+        
+        /**
+         * Appends a backpack change. On failure the segment is cut back to its previous
+         * end, so a half-written record never hides the records after it.
+         * 
+         * @param key The backpack's storage key
+         * @param snapshot Contents; only the changedSlots are logged, or everything if null
+         * @throws IOException If an item can't be serialized or the record can't be written
+         */
+        void append(String key, BackpackSnapshot snapshot) throws IOException {
+            BitSet slots = snapshot.changedSlots();
+            boolean full = slots == null;
+            if (full) {
+                slots = new BitSet();
+                snapshot.contents().keySet().forEach(slots::set);
+            }
+            append(key, full ? TYPE_FULL : TYPE_DELTA,
+                BackpackCodec.encodeDelta(new BackpackSnapshot(snapshot.capacity(), snapshot.contents(), slots)));
+        }
+        
+        /**
+         * Appends the archival of a backpack: it is deleted from storage, but unlike a
+         * plain delete its archive entry stays live when the record is replayed.
+         * 
+         * @param key The backpack's storage key
+         * @param capacity The backpack's size
+         * @throws IOException If the record can't be written
+         */
+        void appendArchival(String key, int capacity) throws IOException {
+            append(key, TYPE_ARCHIVED,
+                BackpackCodec.encodeDelta(new BackpackSnapshot(capacity, Collections.emptyMap(), new BitSet())));
+        }
+        
+        private void append(String key, byte type, byte[] delta) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            
+            int length = 8 + 1 + 2 + keyBytes.length + delta.length;
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+            frame.putInt(length);
+            frame.putInt(0); // checksum, filled in below
+            frame.putLong(nextSequence);
+            frame.put(type);
+            frame.putShort((short) keyBytes.length);
+            frame.put(keyBytes);
+            frame.put(delta);
+            CRC32C checksum = new CRC32C();
+            checksum.update(frame.array(), FRAME_HEADER_SIZE, length);
+            frame.putInt(4, (int) checksum.getValue());
+            frame.flip();
+            
+            Segment segment = active;
+            long start = segment.appended;
+            try {
+                while (frame.hasRemaining()) {
+                    segment.channel.write(frame, start + frame.position());
+                }
+            } catch (IOException e) {
+                try {
+                    segment.channel.truncate(start);
+                } catch (IOException truncateFailure) {
+                    // The record's checksum won't match; replay stops there
+                }
+                throw e;
+            }
+            segment.appended = start + frame.limit();
+            nextSequence++;
+            recordsAppended.incrementAndGet();
+        }
+        
+        /**
+         * Forces every appended record to disk (nothing with {@link Durability#NONE}).
+         * Concurrent callers share one fsync.
+         * 
+         * @throws IOException If a segment can't be forced
+         */
+        void sync() throws IOException {
+            if (durability == Durability.NONE) {
+                return;
+            }
+            synchronized (forceLock) {
+                if (closed) {
+                    return;
+                }
+                for (Segment segment : segments) {
+                    long end = segment.appended;
+                    if (segment.forced < end) {
+                        segment.channel.force(false);
+                        segment.forced = end;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Starts a new segment for appends.
+         * 
+         * @return The new segment's ID - every older segment can be discarded once
+         *         storage holds what they logged
+         * @throws IOException If the segment can't be created
+         */
+        int rotate() throws IOException {
+            active = createSegment(active.id + 1);
+            return active.id;
+        }
+        
+        /**
+         * Deletes every segment older than the given one.
+         * 
+         * @param segmentId First segment to keep, as returned by {@link #rotate()}
+         */
+        void discardBefore(int segmentId) {
+            synchronized (forceLock) {
+                if (closed) {
+                    return;
+                }
+                for (Segment segment : segments) {
+                    if (segment.id < segmentId && segment != active) {
+                        delete(segment);
+                    }
+                }
+            }
+            AtomicFiles.forceDirectory(directory);
+        }
+        
+        /** Deletes the segments read by {@link #recover()} - once storage holds what they logged */
+        void discardRecovered() {
+            discardBefore(active.id);
+        }
+        
+        /** Bytes in all segments */
+        long size() {
+            long size = 0;
+            for (Segment segment : segments) {
+                size += segment.appended;
+            }
+            return size;
+        }
+        
+        /** Bytes in the segment being appended to */
+        long activeSize() {
+            return active.appended;
+        }
+        
+        /** Records appended since startup */
+        long recordsAppended() {
+            return recordsAppended.get();
+        }
+        
+        /**
+         * Closes the log.
+         * 
+         * @param discard Whether storage holds everything logged, so the segments can be deleted
+         */
+        void close(boolean discard) {
+            synchronized (forceLock) {
+                closed = true;
+                for (Segment segment : segments) {
+                    if (discard) {
+                        delete(segment);
+                    } else {
+                        try {
+                            segment.channel.close();
+                        } catch (IOException e) {
+                            // Replayed from what reached the disk
+                        }
+                    }
+                }
+            }
+        }
+        
+        private Segment createSegment(int id) throws IOException {
+            Path path = directory.resolve(String.format("wal-%08d.log", id));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.put((byte) VERSION);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            Segment segment = new Segment(id, path, channel, SEGMENT_HEADER_SIZE);
+            segment.forced = 0;
+            segments.add(segment);
+            return segment;
+        }
+        
+        private void delete(Segment segment) {
+            segments.remove(segment);
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                logger.warning("Failed to delete " + segment.path.getFileName() + ": " + e.getMessage());
+            }
+        }
     }
-}
\ No newline at end of file
+}